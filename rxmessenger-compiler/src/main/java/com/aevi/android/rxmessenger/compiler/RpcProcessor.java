@@ -0,0 +1,429 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a client stub and a server dispatcher for each interface annotated with {@code @RpcService}.
+ * <p>
+ * The generated classes extend {@code RpcClientStub} and {@code RpcDispatcher} from the rxmessenger library. All Gson type adapters needed for
+ * the parameters and results are looked up once in the constructor of the generated class, and methods are dispatched with a switch on their
+ * integer id, so no reflection is needed per call.
+ * </p>
+ */
+public class RpcProcessor extends AbstractProcessor {
+
+    static final String RPC_SERVICE = "com.aevi.android.rxmessenger.rpc.RpcService";
+    static final String RPC_METHOD = "com.aevi.android.rxmessenger.rpc.RpcMethod";
+    static final String CLIENT_SUFFIX = "RpcClient";
+    static final String DISPATCHER_SUFFIX = "RpcDispatcher";
+
+    private static final String OBSERVABLE = "io.reactivex.Observable";
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(RPC_SERVICE);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement rpcService = processingEnv.getElementUtils().getTypeElement(RPC_SERVICE);
+        if (rpcService == null) {
+            return false;
+        }
+        for (Element element : roundEnv.getElementsAnnotatedWith(rpcService)) {
+            if (element.getKind() != ElementKind.INTERFACE) {
+                error(element, "@RpcService can only be used on interfaces");
+                continue;
+            }
+            ServiceModel service = readService((TypeElement) element);
+            if (service != null) {
+                write(service, service.clientName, generateClient(service));
+                write(service, service.dispatcherName, generateDispatcher(service));
+            }
+        }
+        return true;
+    }
+
+    private ServiceModel readService(TypeElement type) {
+        if (!type.getTypeParameters().isEmpty()) {
+            error(type, "@RpcService interfaces can not have type parameters");
+            return null;
+        }
+        ServiceModel service = new ServiceModel(type, getPackageName(type), getFlatName(type));
+        Map<Integer, ExecutableElement> ids = new HashMap<>();
+        boolean valid = true;
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type))) {
+            if (!method.getModifiers().contains(Modifier.ABSTRACT)) {
+                continue;
+            }
+            MethodModel methodModel = readMethod(service, method);
+            if (methodModel == null) {
+                valid = false;
+                continue;
+            }
+            ExecutableElement existing = ids.put(methodModel.id, method);
+            if (existing != null) {
+                error(method, "Method id " + methodModel.id + " is also used by " + existing.getSimpleName()
+                        + ", use @RpcMethod to give each method a unique id");
+                valid = false;
+                continue;
+            }
+            service.addMethod(methodModel);
+        }
+        return valid ? service : null;
+    }
+
+    private MethodModel readMethod(ServiceModel service, ExecutableElement method) {
+        if (!method.getTypeParameters().isEmpty()) {
+            error(method, "@RpcService methods can not have type parameters");
+            return null;
+        }
+        TypeMirror returnType = method.getReturnType();
+        if (returnType.getKind() != TypeKind.DECLARED
+                || !OBSERVABLE.equals(processingEnv.getTypeUtils().erasure(returnType).toString())
+                || ((DeclaredType) returnType).getTypeArguments().size() != 1) {
+            error(method, "@RpcService methods must return " + OBSERVABLE);
+            return null;
+        }
+        TypeMirror resultType = ((DeclaredType) returnType).getTypeArguments().get(0);
+        if (!isConcrete(resultType)) {
+            error(method, "The result type of @RpcService methods must be a concrete type");
+            return null;
+        }
+        MethodModel methodModel = new MethodModel(method.getSimpleName().toString(), getMethodId(method), returnType.toString(),
+                service.adapterFor(boxed(resultType)));
+        for (VariableElement parameter : method.getParameters()) {
+            TypeMirror parameterType = parameter.asType();
+            if (!isConcrete(parameterType)) {
+                error(parameter, "The parameters of @RpcService methods must have concrete types");
+                return null;
+            }
+            methodModel.parameterNames.add(parameter.getSimpleName().toString());
+            methodModel.parameterTypes.add(parameterType.toString());
+            methodModel.parameterAdapters.add(service.adapterFor(boxed(parameterType)));
+        }
+        return methodModel;
+    }
+
+    private boolean isConcrete(TypeMirror type) {
+        switch (type.getKind()) {
+            case DECLARED:
+                for (TypeMirror argument : ((DeclaredType) type).getTypeArguments()) {
+                    if (!isConcrete(argument)) {
+                        return false;
+                    }
+                }
+                return true;
+            case ARRAY:
+                return isConcrete(((ArrayType) type).getComponentType());
+            default:
+                return type.getKind().isPrimitive();
+        }
+    }
+
+    private String boxed(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName().toString();
+        }
+        return type.toString();
+    }
+
+    private int getMethodId(ExecutableElement method) {
+        for (AnnotationMirror annotation : method.getAnnotationMirrors()) {
+            if (RPC_METHOD.equals(annotation.getAnnotationType().toString())) {
+                for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value : annotation.getElementValues().entrySet()) {
+                    if ("id".contentEquals(value.getKey().getSimpleName())) {
+                        return (Integer) value.getValue().getValue();
+                    }
+                }
+            }
+        }
+        return method.getSimpleName().toString().hashCode();
+    }
+
+    private String getPackageName(TypeElement type) {
+        Element element = type;
+        while (!(element instanceof PackageElement)) {
+            element = element.getEnclosingElement();
+        }
+        return ((PackageElement) element).getQualifiedName().toString();
+    }
+
+    private String getFlatName(TypeElement type) {
+        String name = type.getSimpleName().toString();
+        Element enclosing = type.getEnclosingElement();
+        while (enclosing instanceof TypeElement) {
+            name = enclosing.getSimpleName() + "_" + name;
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return name;
+    }
+
+    String generateClient(ServiceModel service) {
+        SourceBuilder source = new SourceBuilder();
+        writeHeader(source, service);
+        source.line("public final class %s extends com.aevi.android.rxmessenger.rpc.RpcClientStub implements %s {", service.clientName,
+                    service.interfaceName);
+        source.line();
+        writeMethodIds(source, service);
+        writeAdapterFields(source, service);
+        source.line("    public %s(com.aevi.android.rxmessenger.ChannelClient channelClient) {", service.clientName);
+        source.line("        this(channelClient, new com.google.gson.GsonBuilder().create());");
+        source.line("    }");
+        source.line();
+        source.line("    public %s(com.aevi.android.rxmessenger.ChannelClient channelClient, com.google.gson.Gson gson) {", service.clientName);
+        source.line("        super(channelClient, gson);");
+        writeAdapterLookups(source, service);
+        source.line("    }");
+        for (MethodModel method : service.methods) {
+            source.line();
+            source.line("    @Override");
+            StringBuilder parameters = new StringBuilder();
+            for (int i = 0; i < method.parameterNames.size(); i++) {
+                if (i > 0) {
+                    parameters.append(", ");
+                }
+                parameters.append("final ").append(method.parameterTypes.get(i)).append(' ').append(method.parameterNames.get(i));
+            }
+            source.line("    public %s %s(%s) {", method.returnType, method.name, parameters);
+            source.line("        return invoke(%s, new ArgumentWriter() {", method.idConstant);
+            source.line("            @Override");
+            source.line("            public void write(com.google.gson.stream.JsonWriter out) throws java.io.IOException {");
+            for (int i = 0; i < method.parameterNames.size(); i++) {
+                source.line("                %s.write(out, %s);", method.parameterAdapters.get(i), method.parameterNames.get(i));
+            }
+            source.line("            }");
+            source.line("        }, %s);", method.resultAdapter);
+            source.line("    }");
+        }
+        source.line("}");
+        return source.toString();
+    }
+
+    String generateDispatcher(ServiceModel service) {
+        SourceBuilder source = new SourceBuilder();
+        writeHeader(source, service);
+        source.line("public final class %s extends com.aevi.android.rxmessenger.rpc.RpcDispatcher {", service.dispatcherName);
+        source.line();
+        writeMethodIds(source, service);
+        source.line("    private final %s service;", service.interfaceName);
+        writeAdapterFields(source, service);
+        source.line("    public %s(com.aevi.android.rxmessenger.ChannelServer channelServer, %s service) {", service.dispatcherName,
+                    service.interfaceName);
+        source.line("        this(channelServer, service, new com.google.gson.GsonBuilder().create());");
+        source.line("    }");
+        source.line();
+        source.line("    public %s(com.aevi.android.rxmessenger.ChannelServer channelServer, %s service, com.google.gson.Gson gson) {",
+                    service.dispatcherName, service.interfaceName);
+        source.line("        super(channelServer, gson);");
+        source.line("        this.service = service;");
+        writeAdapterLookups(source, service);
+        source.line("    }");
+        source.line();
+        source.line("    @Override");
+        source.line("    protected io.reactivex.Observable<String> dispatch(int methodId, long callId, com.google.gson.stream.JsonReader arguments)");
+        source.line("            throws java.io.IOException {");
+        source.line("        switch (methodId) {");
+        for (MethodModel method : service.methods) {
+            source.line("            case %s: {", method.idConstant);
+            StringBuilder arguments = new StringBuilder();
+            for (int i = 0; i < method.parameterNames.size(); i++) {
+                source.line("                %s arg%d = %s.read(arguments);", method.parameterTypes.get(i), i, method.parameterAdapters.get(i));
+                if (i > 0) {
+                    arguments.append(", ");
+                }
+                arguments.append("arg").append(i);
+            }
+            source.line("                return encodeResults(callId, service.%s(%s), %s);", method.name, arguments, method.resultAdapter);
+            source.line("            }");
+        }
+        source.line("            default:");
+        source.line("                return null;");
+        source.line("        }");
+        source.line("    }");
+        source.line("}");
+        return source.toString();
+    }
+
+    private void writeHeader(SourceBuilder source, ServiceModel service) {
+        if (!service.packageName.isEmpty()) {
+            source.line("package %s;", service.packageName);
+            source.line();
+        }
+        source.line("/**");
+        source.line(" * Generated by rxmessenger-compiler from {@link %s}. Do not edit.", service.interfaceName);
+        source.line(" */");
+    }
+
+    private void writeMethodIds(SourceBuilder source, ServiceModel service) {
+        for (MethodModel method : service.methods) {
+            source.line("    static final int %s = %d;", method.idConstant, method.id);
+        }
+        source.line();
+    }
+
+    private void writeAdapterFields(SourceBuilder source, ServiceModel service) {
+        for (Map.Entry<String, String> adapter : service.adapters.entrySet()) {
+            source.line("    private final com.google.gson.TypeAdapter<%s> %s;", adapter.getKey(), adapter.getValue());
+        }
+        source.line();
+    }
+
+    private void writeAdapterLookups(SourceBuilder source, ServiceModel service) {
+        for (Map.Entry<String, String> adapter : service.adapters.entrySet()) {
+            source.line("        %s = gson.getAdapter(new com.google.gson.reflect.TypeToken<%s>() {", adapter.getValue(), adapter.getKey());
+            source.line("        });");
+        }
+    }
+
+    private void write(ServiceModel service, String className, String source) {
+        String qualifiedName = service.packageName.isEmpty() ? className : service.packageName + "." + className;
+        try (Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, service.type).openWriter()) {
+            writer.write(source);
+        } catch (IOException e) {
+            error(service.type, "Unable to write " + qualifiedName + ": " + e.getMessage());
+        }
+    }
+
+    private void error(Element element, String message) {
+        Messager messager = processingEnv.getMessager();
+        messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    static final class ServiceModel {
+
+        final TypeElement type;
+        final String packageName;
+        final String interfaceName;
+        final String clientName;
+        final String dispatcherName;
+        final List<MethodModel> methods = new ArrayList<>();
+        final Map<String, String> adapters = new LinkedHashMap<>();
+        private final Set<String> constantNames = new HashSet<>();
+
+        ServiceModel(TypeElement type, String packageName, String flatName) {
+            this.type = type;
+            this.packageName = packageName;
+            this.interfaceName = type.getQualifiedName().toString();
+            this.clientName = flatName + CLIENT_SUFFIX;
+            this.dispatcherName = flatName + DISPATCHER_SUFFIX;
+        }
+
+        void addMethod(MethodModel method) {
+            String constant = method.constantName();
+            String unique = constant;
+            for (int i = 2; constantNames.contains(unique); i++) {
+                // overloaded methods share a name
+                unique = constant + "_" + i;
+            }
+            constantNames.add(unique);
+            method.idConstant = unique;
+            methods.add(method);
+        }
+
+        String adapterFor(String type) {
+            String adapter = adapters.get(type);
+            if (adapter == null) {
+                adapter = "typeAdapter" + adapters.size();
+                adapters.put(type, adapter);
+            }
+            return adapter;
+        }
+    }
+
+    static final class MethodModel {
+
+        final String name;
+        final int id;
+        final String returnType;
+        final String resultAdapter;
+        final List<String> parameterNames = new ArrayList<>();
+        final List<String> parameterTypes = new ArrayList<>();
+        final List<String> parameterAdapters = new ArrayList<>();
+        String idConstant;
+
+        MethodModel(String name, int id, String returnType, String resultAdapter) {
+            this.name = name;
+            this.id = id;
+            this.returnType = returnType;
+            this.resultAdapter = resultAdapter;
+        }
+
+        String constantName() {
+            StringBuilder constant = new StringBuilder("METHOD_");
+            for (char c : name.toCharArray()) {
+                if (Character.isUpperCase(c)) {
+                    constant.append('_');
+                }
+                constant.append(Character.toUpperCase(c));
+            }
+            return constant.toString();
+        }
+    }
+
+    static final class SourceBuilder {
+
+        private final StringBuilder source = new StringBuilder();
+
+        void line() {
+            source.append('\n');
+        }
+
+        void line(String format, Object... args) {
+            source.append(args.length == 0 ? format : String.format(format, args)).append('\n');
+        }
+
+        @Override
+        public String toString() {
+            return source.toString();
+        }
+    }
+}
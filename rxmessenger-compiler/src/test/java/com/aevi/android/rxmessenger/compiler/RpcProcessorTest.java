@@ -0,0 +1,203 @@
+package com.aevi.android.rxmessenger.compiler;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public class RpcProcessorTest {
+
+    private static final String ANNOTATIONS =
+            "package com.aevi.android.rxmessenger.rpc;\n"
+                    + "public @interface RpcService {}\n";
+    private static final String METHOD_ANNOTATION =
+            "package com.aevi.android.rxmessenger.rpc;\n"
+                    + "public @interface RpcMethod { int id(); }\n";
+    private static final String OBSERVABLE =
+            "package io.reactivex;\n"
+                    + "public class Observable<T> {}\n";
+
+    // the generated code extends and refers to these, and the rxmessenger library is an Android library so can not be on the classpath
+    private static final String CHANNEL_CLIENT =
+            "package com.aevi.android.rxmessenger;\n"
+                    + "public interface ChannelClient {}\n";
+    private static final String CHANNEL_SERVER =
+            "package com.aevi.android.rxmessenger;\n"
+                    + "public interface ChannelServer {}\n";
+    private static final String RPC_CLIENT_STUB =
+            "package com.aevi.android.rxmessenger.rpc;\n"
+                    + "public abstract class RpcClientStub {\n"
+                    + "    protected RpcClientStub(com.aevi.android.rxmessenger.ChannelClient channelClient, com.google.gson.Gson gson) {}\n"
+                    + "    protected interface ArgumentWriter { void write(com.google.gson.stream.JsonWriter out) throws java.io.IOException; }\n"
+                    + "    protected <T> io.reactivex.Observable<T> invoke(int methodId, ArgumentWriter arguments, "
+                    + "com.google.gson.TypeAdapter<T> resultAdapter) { return null; }\n"
+                    + "}\n";
+    private static final String RPC_DISPATCHER =
+            "package com.aevi.android.rxmessenger.rpc;\n"
+                    + "public abstract class RpcDispatcher {\n"
+                    + "    protected RpcDispatcher(com.aevi.android.rxmessenger.ChannelServer channelServer, com.google.gson.Gson gson) {}\n"
+                    + "    protected abstract io.reactivex.Observable<String> dispatch(int methodId, long callId, "
+                    + "com.google.gson.stream.JsonReader arguments) throws java.io.IOException;\n"
+                    + "    protected <T> io.reactivex.Observable<String> encodeResults(long callId, io.reactivex.Observable<T> results, "
+                    + "com.google.gson.TypeAdapter<T> adapter) { return null; }\n"
+                    + "}\n";
+    private static final String GSON =
+            "package com.google.gson;\n"
+                    + "public final class Gson { public <T> TypeAdapter<T> getAdapter(com.google.gson.reflect.TypeToken<T> type) { return null; } }\n";
+    private static final String GSON_BUILDER =
+            "package com.google.gson;\n"
+                    + "public final class GsonBuilder { public Gson create() { return null; } }\n";
+    private static final String TYPE_ADAPTER =
+            "package com.google.gson;\n"
+                    + "public abstract class TypeAdapter<T> {\n"
+                    + "    public abstract void write(com.google.gson.stream.JsonWriter out, T value) throws java.io.IOException;\n"
+                    + "    public abstract T read(com.google.gson.stream.JsonReader in) throws java.io.IOException;\n"
+                    + "}\n";
+    private static final String TYPE_TOKEN =
+            "package com.google.gson.reflect;\n"
+                    + "public class TypeToken<T> { protected TypeToken() {} }\n";
+    private static final String JSON_READER =
+            "package com.google.gson.stream;\n"
+                    + "public class JsonReader {}\n";
+    private static final String JSON_WRITER =
+            "package com.google.gson.stream;\n"
+                    + "public class JsonWriter {}\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void willGenerateClientAndDispatcher() throws IOException {
+        List<Diagnostic<? extends JavaFileObject>> errors = process(
+                "package com.example;\n"
+                        + "import io.reactivex.Observable;\n"
+                        + "@com.aevi.android.rxmessenger.rpc.RpcService\n"
+                        + "public interface Payments {\n"
+                        + "    Observable<String> pay(long amount, java.util.List<String> items);\n"
+                        + "    @com.aevi.android.rxmessenger.rpc.RpcMethod(id = 2) Observable<Integer> refund(int amount);\n"
+                        + "}\n");
+
+        assertThat(errors).isEmpty();
+        String client = readGenerated("com/example/PaymentsRpcClient.java");
+        assertThat(client).contains("public final class PaymentsRpcClient extends com.aevi.android.rxmessenger.rpc.RpcClientStub "
+                                            + "implements com.example.Payments");
+        assertThat(client).contains("static final int METHOD_PAY = " + "pay".hashCode() + ";");
+        assertThat(client).contains("static final int METHOD_REFUND = 2;");
+        assertThat(client).contains("com.google.gson.reflect.TypeToken<java.util.List<java.lang.String>>");
+        String dispatcher = readGenerated("com/example/PaymentsRpcDispatcher.java");
+        assertThat(dispatcher).contains("case METHOD_REFUND: {");
+        assertThat(dispatcher).contains("int arg0 = ");
+        assertThat(dispatcher).contains("return encodeResults(callId, service.refund(arg0), ");
+    }
+
+    @Test
+    public void willRejectMethodsNotReturningObservable() throws IOException {
+        List<Diagnostic<? extends JavaFileObject>> errors = process(
+                "package com.example;\n"
+                        + "@com.aevi.android.rxmessenger.rpc.RpcService\n"
+                        + "public interface Payments {\n"
+                        + "    String pay(long amount);\n"
+                        + "}\n");
+
+        assertThat(errors).hasSize(1);
+        assertThat(errors.get(0).getMessage(null)).contains("must return io.reactivex.Observable");
+    }
+
+    @Test
+    public void willRejectDuplicateMethodIds() throws IOException {
+        List<Diagnostic<? extends JavaFileObject>> errors = process(
+                "package com.example;\n"
+                        + "import io.reactivex.Observable;\n"
+                        + "@com.aevi.android.rxmessenger.rpc.RpcService\n"
+                        + "public interface Payments {\n"
+                        + "    Observable<String> pay(long amount);\n"
+                        + "    Observable<String> pay(int amount);\n"
+                        + "}\n");
+
+        assertThat(errors).hasSize(1);
+        assertThat(errors.get(0).getMessage(null)).contains("use @RpcMethod");
+    }
+
+    @Test
+    public void willRejectClasses() throws IOException {
+        List<Diagnostic<? extends JavaFileObject>> errors = process(
+                "package com.example;\n"
+                        + "@com.aevi.android.rxmessenger.rpc.RpcService\n"
+                        + "public class Payments {}\n");
+
+        assertThat(errors).hasSize(1);
+        assertThat(errors.get(0).getMessage(null)).contains("only be used on interfaces");
+    }
+
+    private List<Diagnostic<? extends JavaFileObject>> process(String source) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        List<JavaFileObject> sources = Arrays.asList(
+                new Source("com/aevi/android/rxmessenger/rpc/RpcService", ANNOTATIONS),
+                new Source("com/aevi/android/rxmessenger/rpc/RpcMethod", METHOD_ANNOTATION),
+                new Source("io/reactivex/Observable", OBSERVABLE),
+                new Source("com/aevi/android/rxmessenger/ChannelClient", CHANNEL_CLIENT),
+                new Source("com/aevi/android/rxmessenger/ChannelServer", CHANNEL_SERVER),
+                new Source("com/aevi/android/rxmessenger/rpc/RpcClientStub", RPC_CLIENT_STUB),
+                new Source("com/aevi/android/rxmessenger/rpc/RpcDispatcher", RPC_DISPATCHER),
+                new Source("com/google/gson/Gson", GSON),
+                new Source("com/google/gson/GsonBuilder", GSON_BUILDER),
+                new Source("com/google/gson/TypeAdapter", TYPE_ADAPTER),
+                new Source("com/google/gson/reflect/TypeToken", TYPE_TOKEN),
+                new Source("com/google/gson/stream/JsonReader", JSON_READER),
+                new Source("com/google/gson/stream/JsonWriter", JSON_WRITER),
+                new Source("com/example/Payments", source));
+        // an empty classpath, so that only the sources above are used whatever is on the classpath of the test
+        List<String> options = Arrays.asList("-proc:only", "-s", folder.getRoot().getAbsolutePath(),
+                                             "-classpath", folder.newFolder("classpath").getAbsolutePath());
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null, sources);
+        task.setProcessors(Collections.singletonList(new RpcProcessor()));
+        task.call();
+        List<Diagnostic<? extends JavaFileObject>> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(diagnostic);
+            }
+        }
+        return errors;
+    }
+
+    private String readGenerated(String path) throws IOException {
+        return new String(Files.readAllBytes(new File(folder.getRoot(), path).toPath()), Charset.forName("UTF-8"));
+    }
+
+    private static class Source extends SimpleJavaFileObject {
+
+        private final String code;
+
+        Source(String name, String code) {
+            super(URI.create("string:///" + name + Kind.SOURCE.extension), Kind.SOURCE);
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells clients using a {@link com.aevi.android.rxmessenger.client.CachingChannelClient} how long they may cache a response, see
+ * {@link ChannelServer#send(String, CacheControl)}.
+ * <p>
+ * The max age is sent alongside the response rather than in it, so clients that do not cache receive the response unchanged.
+ * </p>
+ */
+public final class CacheControl {
+
+    private static final CacheControl NO_STORE = new CacheControl(0);
+
+    private final long maxAgeSeconds;
+
+    private CacheControl(long maxAgeSeconds) {
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+
+    /**
+     * @param maxAge The time the response may be cached for
+     * @param unit   The unit of the max age
+     * @return A cache control allowing the response to be cached for the time given
+     */
+    public static CacheControl maxAge(long maxAge, TimeUnit unit) {
+        return new CacheControl(Math.max(0, unit.toSeconds(maxAge)));
+    }
+
+    /**
+     * @return A cache control that stops the response being cached
+     */
+    public static CacheControl noStore() {
+        return NO_STORE;
+    }
+
+    /**
+     * @return The number of seconds the response may be cached for, where 0 means it must not be cached
+     */
+    public long getMaxAgeSeconds() {
+        return maxAgeSeconds;
+    }
+}
@@ -15,6 +15,8 @@ package com.aevi.android.rxmessenger;
 
 import com.aevi.android.rxmessenger.client.NoSuchServiceException;
 
+import java.util.concurrent.TimeUnit;
+
 import io.reactivex.Completable;
 import io.reactivex.Observable;
 
@@ -59,6 +61,47 @@ public interface ChannelClient {
      */
     Observable<String> sendMessage(final String requestData);
 
+    /**
+     * Used to send a message to an {@link ChannelServer} implementation with a deadline, and observe the responses from it.
+     * <p>
+     * The time given is sent with the message, so that the service can see how much of it is left with
+     * {@link ChannelServer#getRemainingTimeMillis()}. If the service has not ended the stream returned by the deadline, the stream fails with a
+     * {@link java.util.concurrent.TimeoutException} and the service is told to cancel. Otherwise this behaves exactly as
+     * {@link #sendMessage(String)}.
+     *
+     * @param requestData The data to send (usually a serialised JSON object)
+     * @param timeout     The time to wait for the service to end the stream
+     * @param unit        The unit of the timeout
+     * @return An Observable stream of Strings containing data that the service sends back to this client
+     * @throws NoSuchServiceException Thrown if client cannot find the corresponding service to connect to
+     */
+    Observable<String> sendMessage(final String requestData, long timeout, TimeUnit unit);
+
+    /**
+     * Used to send a message to an {@link ChannelServer} implementation with a priority, and observe the responses from it.
+     * <p>
+     * Channels that queue messages before sending them send high priority messages first, so that small control messages do not wait behind
+     * large data messages. Channels without such a queue send the message as {@link #sendMessage(String)} does.
+     *
+     * @param requestData The data to send (usually a serialised JSON object)
+     * @param priority    The priority of the message
+     * @return An Observable stream of Strings containing data that the service sends back to this client
+     * @throws NoSuchServiceException Thrown if client cannot find the corresponding service to connect to
+     */
+    Observable<String> sendMessage(final String requestData, MessagePriority priority);
+
+    /**
+     * Used to send a binary message to an {@link ChannelServer} implementation and observe the binary responses from it.
+     * <p>
+     * Binary messages are passed as is by the underlying channel, without any conversion to or from a String. Otherwise this behaves exactly as
+     * {@link #sendMessage(String)}.
+     *
+     * @param requestData The data to send
+     * @return An Observable stream of binary data that the service sends back to this client
+     * @throws NoSuchServiceException Thrown if client cannot find the corresponding service to connect to
+     */
+    Observable<byte[]> sendBinaryMessage(final byte[] requestData);
+
     /**
      * Close the connection to the service.
      * <p>
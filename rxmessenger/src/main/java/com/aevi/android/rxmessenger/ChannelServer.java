@@ -16,6 +16,7 @@ package com.aevi.android.rxmessenger;
 import android.os.IBinder;
 import android.os.Message;
 
+import io.reactivex.Completable;
 import io.reactivex.Observable;
 
 /**
@@ -38,6 +39,40 @@ public interface ChannelServer extends IBinder.DeathRecipient {
      */
     boolean send(String message);
 
+    /**
+     * Send a response to the client, telling clients that cache responses how long they may cache it for.
+     * <p>
+     * The max age is sent alongside the response, so clients that do not cache receive the response as sent by {@link #send(String)}. Channels
+     * that have nowhere to carry the max age send the response without it, in which case caching clients use their own time to live.
+     * </p>
+     *
+     * @param message      The message to send
+     * @param cacheControl How long the response may be cached for
+     * @return True if the message was successfully sent
+     */
+    boolean send(String message, CacheControl cacheControl);
+
+    /**
+     * Send a message to the client with a priority.
+     * <p>
+     * Channels that queue messages before sending them send high priority messages first. Channels without a queue send the message
+     * straight away, as {@link #send(String)} does.
+     * </p>
+     *
+     * @param message  The message to send
+     * @param priority The priority of the message
+     * @return True if the message was successfully sent
+     */
+    boolean send(String message, MessagePriority priority);
+
+    /**
+     * Send a binary message to the client
+     *
+     * @param message The message to send
+     * @return True if the message was successfully sent
+     */
+    boolean send(byte[] message);
+
     /**
      * Send end of stream message back to the client and close the stream
      *
@@ -58,6 +93,11 @@ public interface ChannelServer extends IBinder.DeathRecipient {
      * <p>
      * <strong>WARNING: This method is blocking and will wait until there is at least one message to return</strong>
      * </p>
+     * <p>
+     * Channel servers created by {@link com.aevi.android.rxmessenger.service.AbstractChannelService} only keep the last message if
+     * {@link com.aevi.android.rxmessenger.service.AbstractChannelService#getMessageRetention(String)} returns
+     * {@link com.aevi.android.rxmessenger.service.MessageRetention#LATEST}. Otherwise nothing is kept, and this waits for the next message.
+     * </p>
      *
      * @return The last message
      */
@@ -70,6 +110,45 @@ public interface ChannelServer extends IBinder.DeathRecipient {
      */
     Observable<String> subscribeToMessages();
 
+    /**
+     * Allows a user of this channel to subscribe to binary client messages
+     *
+     * @return An observable stream of binary client messages
+     */
+    Observable<byte[]> subscribeToBinaryMessages();
+
+    /**
+     * Get a signal that the client no longer wants the responses to the message it has just sent.
+     * <p>
+     * The signal is for the message most recently passed to subscribers of {@link #subscribeToMessages()} or
+     * {@link #subscribeToBinaryMessages()}, so get it when the message is received. It completes when the client disposes of the stream it is
+     * observing the responses to that message on before the stream has ended, or when the client is disposed of. Stop the work for the
+     * message when it completes, e.g. {@code work.takeUntil(channelServer.whenCancelled().toObservable())}.
+     * </p>
+     *
+     * @return A completable that completes when the client cancels the message
+     */
+    Completable whenCancelled();
+
+    /**
+     * @return True if the client gave a deadline for the message it has just sent, see
+     * {@link ChannelClient#sendMessage(String, long, java.util.concurrent.TimeUnit)}
+     */
+    boolean hasDeadline();
+
+    /**
+     * Get the time left before the deadline the client gave for the message it has just sent.
+     * <p>
+     * As for {@link #whenCancelled()}, this is for the message most recently passed to subscribers, so call it when the message is received.
+     * Once the deadline has passed, the client has stopped waiting and fails its response stream. Each request keeps its own deadline, and
+     * messages sent are taken to be responses to the request most recently received, so are dropped once its deadline has passed, including
+     * those still queued to be sent. Errors and the end of the stream are always sent.
+     * </p>
+     *
+     * @return The time left in milliseconds, 0 if the deadline has passed, or {@link Long#MAX_VALUE} if there is no deadline
+     */
+    long getRemainingTimeMillis();
+
     /**
      * Called by the hosting service when the client is unbound
      */
@@ -113,4 +192,31 @@ public interface ChannelServer extends IBinder.DeathRecipient {
          */
         void onClientClosed();
     }
+
+    /**
+     * A {@link ClientListener} that is also told when the hosting service evicts the client to reclaim its memory
+     */
+    interface EvictionListener extends ClientListener {
+
+        /**
+         * This is called when the client is evicted by the hosting service, before {@link #onClientDispose()} is called
+         *
+         * @param reason Why the client was evicted
+         */
+        void onClientEvicted(EvictionReason reason);
+    }
+
+    /**
+     * Why a client was evicted by the hosting service
+     */
+    enum EvictionReason {
+        /**
+         * The client has not sent a message for longer than its idle timeout
+         */
+        IDLE,
+        /**
+         * The service has reached its maximum number of clients, and this client was the least recently active
+         */
+        CLIENT_LIMIT
+    }
 }
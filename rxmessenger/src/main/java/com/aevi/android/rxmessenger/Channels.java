@@ -16,8 +16,10 @@ package com.aevi.android.rxmessenger;
 import android.content.ComponentName;
 import android.content.Context;
 
+import com.aevi.android.rxmessenger.client.ObservableHybridClient;
 import com.aevi.android.rxmessenger.client.ObservableMessengerClient;
 import com.aevi.android.rxmessenger.client.ObservableWebSocketClient;
+import com.aevi.android.rxmessenger.compression.MessageCompressor;
 
 /**
  * Factory class that can be used to obtain any type of rx-messenger {@link ChannelClient}
@@ -35,6 +37,20 @@ public final class Channels {
         return new ObservableMessengerClient(context, componentName);
     }
 
+    /**
+     * Obtain a messenger {@link ChannelClient} that compresses large messages if the service supports it
+     *
+     * @param context           The Android context
+     * @param componentName     The name of the component to connect to
+     * @param messageCompressor The compressor to use
+     * @return A {@link ChannelClient} that will communicate over Android Messenger
+     */
+    public static ChannelClient messenger(Context context, ComponentName componentName, MessageCompressor messageCompressor) {
+        ObservableMessengerClient client = new ObservableMessengerClient(context, componentName);
+        client.setMessageCompressor(messageCompressor);
+        return client;
+    }
+
     /**
      * Obtain a websocket {@link ChannelClient}
      *
@@ -45,4 +61,41 @@ public final class Channels {
     public static ChannelClient webSocket(Context context, ComponentName componentName) {
         return new ObservableWebSocketClient(context, componentName);
     }
+
+    /**
+     * Obtain a websocket {@link ChannelClient} that compresses large messages if the service supports it
+     *
+     * @param context           The Android context
+     * @param componentName     The name of the component to connect to
+     * @param messageCompressor The compressor to use
+     * @return A {@link ChannelClient} that will communicate over Android Messenger initially to setup a websocket and then use that for all messages
+     */
+    public static ChannelClient webSocket(Context context, ComponentName componentName, MessageCompressor messageCompressor) {
+        ObservableWebSocketClient client = new ObservableWebSocketClient(context, componentName);
+        client.setMessageCompressor(messageCompressor);
+        return client;
+    }
+
+    /**
+     * Obtain a hybrid {@link ChannelClient} that sends small messages over Android Messenger and large messages over a websocket
+     *
+     * @param context       The Android context
+     * @param componentName The name of the component to connect to
+     * @return A {@link ChannelClient} that chooses the channel per message using the default size threshold
+     */
+    public static ChannelClient hybrid(Context context, ComponentName componentName) {
+        return new ObservableHybridClient(context, componentName);
+    }
+
+    /**
+     * Obtain a hybrid {@link ChannelClient} that sends small messages over Android Messenger and large messages over a websocket
+     *
+     * @param context       The Android context
+     * @param componentName The name of the component to connect to
+     * @param threshold     The message size, in characters, at or above which messages are sent via the websocket
+     * @return A {@link ChannelClient} that chooses the channel per message using the threshold given
+     */
+    public static ChannelClient hybrid(Context context, ComponentName componentName, int threshold) {
+        return new ObservableHybridClient(context, componentName, threshold);
+    }
 }
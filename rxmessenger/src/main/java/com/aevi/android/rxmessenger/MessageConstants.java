@@ -19,13 +19,47 @@ public interface MessageConstants {
     int MESSAGE_RESPONSE = 4;
     int MESSAGE_END_STREAM = 8;
     int MESSAGE_ERROR = 16;
+    int MESSAGE_CANCEL = 32;
 
     String KEY_CLIENT_ID = "clientId";
     String KEY_DATA_REQUEST = "dataRequest";
     String KEY_DATA_RESPONSE = "dataResponse";
+    String KEY_DATA_REQUEST_BINARY = "dataRequestBinary";
+    String KEY_DATA_RESPONSE_BINARY = "dataResponseBinary";
+    String KEY_DATA_REQUEST_DEFLATED = "dataRequestDeflated";
+    String KEY_DATA_RESPONSE_DEFLATED = "dataResponseDeflated";
     String KEY_DATA_SENDER = "sender";
     String KEY_CHANNEL_TYPE = "channel";
+    String KEY_HYBRID_THRESHOLD = "hybridThreshold";
+    String KEY_COMPRESSION = "compression";
+    String KEY_COMPRESSION_DICTIONARIES = "compressionDictionaries";
+    String KEY_COMPRESSION_DICTIONARY = "compressionDictionary";
+    String KEY_SEQUENCE = "sequence";
+    String KEY_RESUME_CLIENT_ID = "resumeClientId";
+    String KEY_RESUME_SEQUENCE = "resumeSequence";
+    String KEY_MAX_AGE = "maxAge";
+    String KEY_REQUEST_ID = "requestId";
 
     String CHANNEL_MESSENGER = "messenger";
     String CHANNEL_WEBSOCKET = "websocket";
+    String CHANNEL_HYBRID = "hybrid";
+
+    String COMPRESSION_DEFLATE = "deflate";
+
+    // first byte of websocket binary frames once compression has been agreed
+    byte FRAME_TYPE_BINARY = 0;
+    byte FRAME_TYPE_DEFLATED_TEXT = 1;
+
+    String HEADER_SEQUENCE = "seq";
+    String HEADER_END_STREAM = "end";
+    String HEADER_MAX_AGE = "maxAge";
+    String HEADER_TIMEOUT = "timeout";
+    String HEADER_PRIORITY = "priority";
+    String HEADER_REQUEST_ID = "req";
+    String HEADER_EXPIRED = "expired";
+
+    // request ids are numbered from 1 by each client, so that a cancel can name the request it is for
+    long NO_REQUEST_ID = 0;
+
+    int DEFAULT_HYBRID_THRESHOLD = 16 * 1024;
 }
@@ -22,10 +22,24 @@ public class MessageException extends Throwable {
 
     private final String code;
     private final String message;
+    // null rather than 0 when not retryable, so that it is left out of the json
+    private final Long retryAfter;
 
     public MessageException(String code, String message) {
+        this(code, message, 0);
+    }
+
+    /**
+     * Create an exception for a request that failed only because of a temporary condition, such as the service being overloaded
+     *
+     * @param code             The error code
+     * @param message          The error message
+     * @param retryAfterMillis The time the client should wait before sending the request again, or 0 if it should not be retried
+     */
+    public MessageException(String code, String message, long retryAfterMillis) {
         this.code = code;
         this.message = message;
+        this.retryAfter = retryAfterMillis > 0 ? retryAfterMillis : null;
     }
 
     public String getCode() {
@@ -36,6 +50,20 @@ public class MessageException extends Throwable {
         return message;
     }
 
+    /**
+     * @return True if the request can be sent again, after {@link #getRetryAfterMillis()}
+     */
+    public boolean isRetryable() {
+        return retryAfter != null;
+    }
+
+    /**
+     * @return The time the client should wait before sending the request again, or 0 if it should not be retried
+     */
+    public long getRetryAfterMillis() {
+        return retryAfter != null ? retryAfter : 0;
+    }
+
     public String toJson() {
         return gson.toJson(this);
     }
@@ -51,6 +79,9 @@ public class MessageException extends Throwable {
 
         MessageException that = (MessageException) o;
 
+        if (retryAfter != null ? !retryAfter.equals(that.retryAfter) : that.retryAfter != null) {
+            return false;
+        }
         if (code != null ? !code.equals(that.code) : that.code != null) {
             return false;
         }
@@ -62,6 +93,7 @@ public class MessageException extends Throwable {
     public int hashCode() {
         int result = code != null ? code.hashCode() : 0;
         result = 31 * result + (message != null ? message.hashCode() : 0);
+        result = 31 * result + (retryAfter != null ? retryAfter.hashCode() : 0);
         return result;
     }
 
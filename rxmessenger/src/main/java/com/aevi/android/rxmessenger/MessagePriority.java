@@ -0,0 +1,26 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger;
+
+/**
+ * The priority of a message, for channels that queue messages before sending them.
+ * <p>
+ * Use {@link #HIGH} for small control messages, such as heartbeats or status updates, that should not wait behind large data messages already
+ * queued. High priority messages may be received before normal messages sent earlier.
+ * </p>
+ */
+public enum MessagePriority {
+    HIGH,
+    NORMAL
+}
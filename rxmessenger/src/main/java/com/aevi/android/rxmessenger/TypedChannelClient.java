@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger;
+
+import com.aevi.android.rxmessenger.codec.BinaryMessageCodec;
+import com.aevi.android.rxmessenger.codec.TextMessageCodec;
+
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.functions.Function;
+
+/**
+ * Wraps a {@link ChannelClient} to send and receive typed messages, using a codec for each direction.
+ * <p>
+ * Requests are encoded when sent, and responses are decoded on the thread they are delivered on, so there is no need to convert messages by hand.
+ * {@link BinaryMessageCodec}s use the binary messages of the channel, so no intermediate String is created.
+ * </p>
+ * <p>
+ * The request and response codecs are either both {@link TextMessageCodec}s or both {@link BinaryMessageCodec}s, as the responses to a message
+ * are received in the same form as it was sent.
+ * </p>
+ *
+ * @param <Req>  The type of the requests sent to the service
+ * @param <Resp> The type of the responses received from the service
+ */
+public class TypedChannelClient<Req, Resp> {
+
+    private final ChannelClient channelClient;
+    private final TextMessageCodec<Req> textRequestCodec;
+    private final TextMessageCodec<Resp> textResponseCodec;
+    private final BinaryMessageCodec<Req> binaryRequestCodec;
+    private final BinaryMessageCodec<Resp> binaryResponseCodec;
+
+    /**
+     * @param channelClient The client to wrap
+     * @param requestCodec  The codec used to encode requests
+     * @param responseCodec The codec used to decode responses
+     */
+    public TypedChannelClient(ChannelClient channelClient, TextMessageCodec<Req> requestCodec, TextMessageCodec<Resp> responseCodec) {
+        this(channelClient, requestCodec, responseCodec, null, null);
+    }
+
+    /**
+     * @param channelClient The client to wrap
+     * @param requestCodec  The codec used to encode requests
+     * @param responseCodec The codec used to decode responses
+     */
+    public TypedChannelClient(ChannelClient channelClient, BinaryMessageCodec<Req> requestCodec, BinaryMessageCodec<Resp> responseCodec) {
+        this(channelClient, null, null, requestCodec, responseCodec);
+    }
+
+    private TypedChannelClient(ChannelClient channelClient, TextMessageCodec<Req> textRequestCodec, TextMessageCodec<Resp> textResponseCodec,
+                               BinaryMessageCodec<Req> binaryRequestCodec, BinaryMessageCodec<Resp> binaryResponseCodec) {
+        this.channelClient = channelClient;
+        this.textRequestCodec = textRequestCodec;
+        this.textResponseCodec = textResponseCodec;
+        this.binaryRequestCodec = binaryRequestCodec;
+        this.binaryResponseCodec = binaryResponseCodec;
+    }
+
+    /**
+     * @return The underlying {@link ChannelClient}
+     */
+    public ChannelClient getChannelClient() {
+        return channelClient;
+    }
+
+    /**
+     * See {@link ChannelClient#connect()}
+     *
+     * @return Completable that will complete on success and error on failure
+     */
+    public Completable connect() {
+        return channelClient.connect();
+    }
+
+    /**
+     * See {@link ChannelClient#isConnected()}
+     *
+     * @return True if connected, false otherwise.
+     */
+    public boolean isConnected() {
+        return channelClient.isConnected();
+    }
+
+    /**
+     * Send a message to the service and observe the decoded responses from it.
+     * <p>
+     * See {@link ChannelClient#sendMessage(String)} for details of connection handling and when the message is sent. Should a response fail to
+     * decode, the stream will end with a {@link com.aevi.android.rxmessenger.codec.CodecException}.
+     * </p>
+     *
+     * @param request The message to send
+     * @return An Observable stream of responses from the service
+     */
+    public Observable<Resp> sendMessage(Req request) {
+        if (binaryRequestCodec != null) {
+            return channelClient.sendBinaryMessage(binaryRequestCodec.encodeBinary(request)).map(new Function<byte[], Resp>() {
+                @Override
+                public Resp apply(byte[] response) throws Exception {
+                    return binaryResponseCodec.decodeBinary(response);
+                }
+            });
+        }
+        return channelClient.sendMessage(textRequestCodec.encodeText(request)).map(new Function<String, Resp>() {
+            @Override
+            public Resp apply(String response) throws Exception {
+                return textResponseCodec.decodeText(response);
+            }
+        });
+    }
+
+    /**
+     * See {@link ChannelClient#closeConnection()}
+     */
+    public void closeConnection() {
+        channelClient.closeConnection();
+    }
+}
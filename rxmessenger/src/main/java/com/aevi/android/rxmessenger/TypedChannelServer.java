@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger;
+
+import com.aevi.android.rxmessenger.codec.BinaryMessageCodec;
+import com.aevi.android.rxmessenger.codec.TextMessageCodec;
+
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.functions.Function;
+
+/**
+ * Wraps a {@link ChannelServer} to receive and send typed messages, using a codec for each direction.
+ * <p>
+ * {@link BinaryMessageCodec}s use the binary messages of the channel, so no intermediate String is created. As with {@link TypedChannelClient},
+ * the request and response codecs are either both {@link TextMessageCodec}s or both {@link BinaryMessageCodec}s.
+ * </p>
+ *
+ * @param <Req>  The type of the requests received from the client
+ * @param <Resp> The type of the responses sent to the client
+ */
+public class TypedChannelServer<Req, Resp> {
+
+    private final ChannelServer channelServer;
+    private final TextMessageCodec<Req> textRequestCodec;
+    private final TextMessageCodec<Resp> textResponseCodec;
+    private final BinaryMessageCodec<Req> binaryRequestCodec;
+    private final BinaryMessageCodec<Resp> binaryResponseCodec;
+
+    /**
+     * @param channelServer The server to wrap, usually as passed to {@code onNewClient}
+     * @param requestCodec  The codec used to decode requests
+     * @param responseCodec The codec used to encode responses
+     */
+    public TypedChannelServer(ChannelServer channelServer, TextMessageCodec<Req> requestCodec, TextMessageCodec<Resp> responseCodec) {
+        this(channelServer, requestCodec, responseCodec, null, null);
+    }
+
+    /**
+     * @param channelServer The server to wrap, usually as passed to {@code onNewClient}
+     * @param requestCodec  The codec used to decode requests
+     * @param responseCodec The codec used to encode responses
+     */
+    public TypedChannelServer(ChannelServer channelServer, BinaryMessageCodec<Req> requestCodec, BinaryMessageCodec<Resp> responseCodec) {
+        this(channelServer, null, null, requestCodec, responseCodec);
+    }
+
+    private TypedChannelServer(ChannelServer channelServer, TextMessageCodec<Req> textRequestCodec, TextMessageCodec<Resp> textResponseCodec,
+                               BinaryMessageCodec<Req> binaryRequestCodec, BinaryMessageCodec<Resp> binaryResponseCodec) {
+        this.channelServer = channelServer;
+        this.textRequestCodec = textRequestCodec;
+        this.textResponseCodec = textResponseCodec;
+        this.binaryRequestCodec = binaryRequestCodec;
+        this.binaryResponseCodec = binaryResponseCodec;
+    }
+
+    /**
+     * @return The underlying {@link ChannelServer}
+     */
+    public ChannelServer getChannelServer() {
+        return channelServer;
+    }
+
+    /**
+     * Subscribe to the decoded messages from the client. Should a message fail to decode, the stream will end with a
+     * {@link com.aevi.android.rxmessenger.codec.CodecException}.
+     *
+     * @return An observable stream of client messages
+     */
+    public Observable<Req> subscribeToMessages() {
+        if (binaryRequestCodec != null) {
+            return channelServer.subscribeToBinaryMessages().map(new Function<byte[], Req>() {
+                @Override
+                public Req apply(byte[] message) throws Exception {
+                    return binaryRequestCodec.decodeBinary(message);
+                }
+            });
+        }
+        return channelServer.subscribeToMessages().map(new Function<String, Req>() {
+            @Override
+            public Req apply(String message) throws Exception {
+                return textRequestCodec.decodeText(message);
+            }
+        });
+    }
+
+    /**
+     * Send a message to the client
+     *
+     * @param response The message to send
+     * @return True if the message was successfully sent
+     */
+    public boolean send(Resp response) {
+        if (binaryResponseCodec != null) {
+            return channelServer.send(binaryResponseCodec.encodeBinary(response));
+        }
+        return channelServer.send(textResponseCodec.encodeText(response));
+    }
+
+    /**
+     * Send an exception to the client
+     *
+     * @param e The exception to send
+     * @return True if the exception was successfully sent
+     */
+    public boolean send(MessageException e) {
+        return channelServer.send(e);
+    }
+
+    /**
+     * Send end of stream message back to the client and close the stream
+     *
+     * @return True if the end message was sent successfully
+     */
+    public boolean sendEndStream() {
+        return channelServer.sendEndStream();
+    }
+
+    /**
+     * Get a signal that the client no longer wants the responses to the message it has just sent, see {@link ChannelServer#whenCancelled()}
+     *
+     * @return A completable that completes when the client cancels the message
+     */
+    public Completable whenCancelled() {
+        return channelServer.whenCancelled();
+    }
+}
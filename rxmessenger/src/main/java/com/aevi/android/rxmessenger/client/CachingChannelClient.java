@@ -0,0 +1,374 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.client;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.aevi.android.rxmessenger.ChannelClient;
+import com.aevi.android.rxmessenger.MessagePriority;
+import com.aevi.android.rxmessenger.model.FramedMessage;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+
+/**
+ * Wraps a {@link ChannelClient} to cache the responses to idempotent requests, so that repeated requests are answered without contacting the
+ * service.
+ * <p>
+ * The first response to each request is cached, and the stream returned for a cacheable request completes after that response, whether it came
+ * from the service or the cache. Once the first response is received the request is disposed of, so the service is told to cancel any work
+ * left for it. Requests are cached by their payload, or if a key function is given, by the key it returns. Requests for which the key function
+ * returns null are always sent to the service. Binary messages are never cached.
+ * </p>
+ * <p>
+ * A response is only cached if no other request for the same key was in progress while waiting for it, as it can not be told which of them it
+ * is for. The responses to all requests share the stream of the client, so requests that are cached should not be sent while the client is
+ * waiting for responses to others.
+ * </p>
+ * <p>
+ * Responses are kept for the time to live given, unless the service sets a different max age with
+ * {@link com.aevi.android.rxmessenger.ChannelServer#send(String, com.aevi.android.rxmessenger.CacheControl)}, where a max age of 0 means the
+ * response is not cached. Once the cache is full the least recently used response is evicted. Hits, misses and evictions are counted in the
+ * {@link CacheStats} returned by {@link #getStats()}.
+ * </p>
+ * <p>
+ * The clients of this library pass on the max age in a header framing the response once wrapped, which is removed before the response is passed
+ * on here, so a wrapped client should only be used through this one.
+ * </p>
+ */
+public class CachingChannelClient implements ChannelClient {
+
+    private static final String TAG = CachingChannelClient.class.getSimpleName();
+
+    private final ChannelClient channelClient;
+    private final long timeToLiveMs;
+    private final Function<String, String> keyFunction;
+    private final Map<String, CachedResponse> cache;
+    private final CacheStats stats = new CacheStats();
+
+    // the requests in progress for each key, guarded by itself and only kept while there are some
+    private final Map<String, KeyRequests> requestsInProgress = new HashMap<>();
+
+    private static class KeyRequests {
+        int inProgress;
+        // counts the requests started while others were in progress, so that a request can tell whether any overlapped it
+        long overlaps;
+    }
+
+    /**
+     * The first response received for a request is only known to be for that request if no other request for the same key was in progress at
+     * any time while waiting for it
+     */
+    private class RequestTracker {
+
+        private final String key;
+        private KeyRequests requests;
+        private boolean overlapped;
+        private long overlapsAtStart;
+
+        RequestTracker(String key) {
+            this.key = key;
+        }
+
+        void start() {
+            synchronized (requestsInProgress) {
+                requests = requestsInProgress.get(key);
+                if (requests == null) {
+                    requests = new KeyRequests();
+                    requestsInProgress.put(key, requests);
+                } else if (requests.inProgress > 0) {
+                    requests.overlaps++;
+                    overlapped = true;
+                }
+                requests.inProgress++;
+                overlapsAtStart = requests.overlaps;
+            }
+        }
+
+        void finish() {
+            synchronized (requestsInProgress) {
+                if (--requests.inProgress == 0) {
+                    requestsInProgress.remove(key);
+                }
+            }
+        }
+
+        boolean isOnlyRequest() {
+            synchronized (requestsInProgress) {
+                return !overlapped && requests.overlaps == overlapsAtStart;
+            }
+        }
+    }
+
+    private static class CachedResponse {
+        final String response;
+        final long expiresAt;
+
+        CachedResponse(String response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Create an instance that caches responses by request payload.
+     *
+     * @param channelClient The client to wrap
+     * @param maxEntries    The maximum number of responses to cache
+     * @param timeToLive    The time to cache responses for, unless the service sets a max age
+     * @param unit          The unit of the time to live
+     */
+    public CachingChannelClient(ChannelClient channelClient, int maxEntries, long timeToLive, TimeUnit unit) {
+        this(channelClient, maxEntries, timeToLive, unit, null);
+    }
+
+    /**
+     * Create an instance that caches responses by the key returned by the key function.
+     *
+     * @param channelClient The client to wrap
+     * @param maxEntries    The maximum number of responses to cache
+     * @param timeToLive    The time to cache responses for, unless the service sets a max age
+     * @param unit          The unit of the time to live
+     * @param keyFunction   Returns the key for a request, or null if the request should not be cached. If null, the payload is the key.
+     */
+    public CachingChannelClient(ChannelClient channelClient, final int maxEntries, long timeToLive, TimeUnit unit,
+                                @Nullable Function<String, String> keyFunction) {
+        this.channelClient = channelClient;
+        if (channelClient instanceof ObservableMessengerClient) {
+            ((ObservableMessengerClient) channelClient).frameMaxAge();
+        }
+        this.timeToLiveMs = unit.toMillis(timeToLive);
+        this.keyFunction = keyFunction;
+        this.cache = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+                if (size() > maxEntries) {
+                    stats.recordEviction();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return The hit, miss and eviction counts of this cache
+     */
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Remove the cached response for a request, so that the next identical request is sent to the service.
+     *
+     * @param requestData The request
+     */
+    public void invalidate(String requestData) {
+        String key = getKey(requestData);
+        if (key != null) {
+            synchronized (cache) {
+                cache.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Remove all cached responses
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return The number of responses cached, including any that have expired but not yet been removed
+     */
+    int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public Completable connect() {
+        return channelClient.connect();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return channelClient.isConnected();
+    }
+
+    @Override
+    public Observable<String> sendMessage(final String requestData) {
+        return Observable.defer(new Callable<ObservableSource<String>>() {
+            @Override
+            public ObservableSource<String> call() throws Exception {
+                final String key = keyFunction != null ? keyFunction.apply(requestData) : requestData;
+                if (key == null) {
+                    return withoutMaxAge(channelClient.sendMessage(requestData));
+                }
+                String cached = getCached(key);
+                if (cached != null) {
+                    stats.recordHit();
+                    return Observable.just(cached);
+                }
+                stats.recordMiss();
+                return firstResponse(channelClient.sendMessage(requestData), key);
+            }
+        });
+    }
+
+    /**
+     * Pass on and cache the first response and complete, disposing of the request
+     */
+    private Observable<String> firstResponse(Observable<String> responses, final String key) {
+        final RequestTracker tracker = new RequestTracker(key);
+        return responses.doOnSubscribe(new Consumer<Disposable>() {
+            @Override
+            public void accept(Disposable disposable) {
+                tracker.start();
+            }
+        }).doFinally(new Action() {
+            @Override
+            public void run() {
+                tracker.finish();
+            }
+        }).take(1).map(new Function<String, String>() {
+            @Override
+            public String apply(String framed) {
+                // called before take() disposes of the request, so the tracker still counts it
+                FramedMessage response = FramedMessage.decode(framed);
+                cache(key, response.getPayload(), tracker.isOnlyRequest(), ResponseCacheControl.getMaxAgeSeconds(response));
+                return response.getPayload();
+            }
+        });
+    }
+
+    /**
+     * Pass on responses that are not cached without the max age they may be framed with
+     */
+    private static Observable<String> withoutMaxAge(Observable<String> responses) {
+        return responses.map(new Function<String, String>() {
+            @Override
+            public String apply(String response) {
+                return FramedMessage.decode(response).getPayload();
+            }
+        });
+    }
+
+    private void cache(String key, String response, boolean onlyRequest, long maxAgeSeconds) {
+        if (!onlyRequest) {
+            Log.d(TAG, "Not caching response as other requests were in progress");
+            return;
+        }
+        long maxAgeMs = maxAgeSeconds != ResponseCacheControl.NO_MAX_AGE ? TimeUnit.SECONDS.toMillis(maxAgeSeconds) : timeToLiveMs;
+        if (maxAgeMs > 0) {
+            synchronized (cache) {
+                cache.put(key, new CachedResponse(response, elapsedRealtime() + maxAgeMs));
+            }
+        }
+    }
+
+    @Nullable
+    private String getKey(String requestData) {
+        try {
+            return keyFunction != null ? keyFunction.apply(requestData) : requestData;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to get key for request", e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private String getCached(String key) {
+        synchronized (cache) {
+            CachedResponse cached = cache.get(key);
+            if (cached == null) {
+                return null;
+            }
+            if (cached.expiresAt > elapsedRealtime()) {
+                return cached.response;
+            }
+            removeExpired();
+            return null;
+        }
+    }
+
+    private void removeExpired() {
+        long now = elapsedRealtime();
+        Iterator<CachedResponse> iterator = cache.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().expiresAt <= now) {
+                iterator.remove();
+                stats.recordEviction();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Requests with a deadline are always sent to the service, and their responses are not cached.
+     * </p>
+     */
+    @Override
+    public Observable<String> sendMessage(String requestData, long timeout, TimeUnit unit) {
+        return withoutMaxAge(channelClient.sendMessage(requestData, timeout, unit));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Normal priority requests are cached as by {@link #sendMessage(String)}. High priority requests are always sent to the service, and their
+     * responses are not cached.
+     * </p>
+     */
+    @Override
+    public Observable<String> sendMessage(final String requestData, MessagePriority priority) {
+        if (priority == MessagePriority.NORMAL) {
+            return sendMessage(requestData);
+        }
+        return withoutMaxAge(channelClient.sendMessage(requestData, priority));
+    }
+
+    @Override
+    public Observable<byte[]> sendBinaryMessage(byte[] requestData) {
+        return channelClient.sendBinaryMessage(requestData);
+    }
+
+    @Override
+    public void closeConnection() {
+        channelClient.closeConnection();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.client;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.aevi.android.rxmessenger.ChannelClient;
+import com.aevi.android.rxmessenger.MessagePriority;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+
+/**
+ * Wraps a {@link ChannelClient} so that identical requests made while an earlier one is still in progress share its response stream, instead of
+ * each sending the request to the service again.
+ * <p>
+ * Requests are identical if their payloads are equal, or if a key function is given, if it returns the same key for them. The first caller
+ * sends the request when it subscribes, and callers that subscribe before the first response arrives share its responses. Callers subscribing
+ * after that send a new request. The request to the service is only cancelled once every caller has disposed of its subscription.
+ * </p>
+ * <p>
+ * This should only be used for requests where every caller expects the same responses, such as status or config queries.
+ * </p>
+ */
+public class CoalescingChannelClient implements ChannelClient {
+
+    private static final String TAG = CoalescingChannelClient.class.getSimpleName();
+
+    // callers can only join before the first response, so only responses sent while a joining caller subscribes need replaying
+    private static final int MAX_REPLAYED_RESPONSES = 16;
+
+    private final ChannelClient channelClient;
+    private final Function<String, String> keyFunction;
+    private final Map<String, Observable<String>> inFlightMessages = new HashMap<>();
+    private final Map<ByteBuffer, Observable<byte[]>> inFlightBinaryMessages = new HashMap<>();
+
+    /**
+     * Create an instance that coalesces requests with equal payloads.
+     *
+     * @param channelClient The client to wrap
+     */
+    public CoalescingChannelClient(ChannelClient channelClient) {
+        this(channelClient, null);
+    }
+
+    /**
+     * Create an instance that coalesces requests for which the key function returns the same key.
+     *
+     * @param channelClient The client to wrap
+     * @param keyFunction   Returns the key for a request, or null if the request should not be coalesced. If null, the payload is the key.
+     */
+    public CoalescingChannelClient(ChannelClient channelClient, @Nullable Function<String, String> keyFunction) {
+        this.channelClient = channelClient;
+        this.keyFunction = keyFunction;
+    }
+
+    @Override
+    public Completable connect() {
+        return channelClient.connect();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return channelClient.isConnected();
+    }
+
+    @Override
+    public Observable<String> sendMessage(final String requestData) {
+        String key;
+        try {
+            key = keyFunction != null ? keyFunction.apply(requestData) : requestData;
+        } catch (Exception e) {
+            return Observable.error(e);
+        }
+        if (key == null) {
+            return channelClient.sendMessage(requestData);
+        }
+        return coalesce(inFlightMessages, key, new Callable<Observable<String>>() {
+            @Override
+            public Observable<String> call() {
+                return channelClient.sendMessage(requestData);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Requests with a deadline are not shared, as each caller has its own deadline.
+     * </p>
+     */
+    @Override
+    public Observable<String> sendMessage(String requestData, long timeout, TimeUnit unit) {
+        return channelClient.sendMessage(requestData, timeout, unit);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Normal priority requests are shared as by {@link #sendMessage(String)}. High priority requests are not, so that they do not wait for a
+     * normal priority request already in flight.
+     * </p>
+     */
+    @Override
+    public Observable<String> sendMessage(String requestData, MessagePriority priority) {
+        if (priority == MessagePriority.NORMAL) {
+            return sendMessage(requestData);
+        }
+        return channelClient.sendMessage(requestData, priority);
+    }
+
+    @Override
+    public Observable<byte[]> sendBinaryMessage(final byte[] requestData) {
+        // the copy ensures the key cannot change if the caller reuses its array
+        ByteBuffer key = ByteBuffer.wrap(requestData.clone());
+        return coalesce(inFlightBinaryMessages, key, new Callable<Observable<byte[]>>() {
+            @Override
+            public Observable<byte[]> call() {
+                return channelClient.sendBinaryMessage(requestData);
+            }
+        });
+    }
+
+    private <K, T> Observable<T> coalesce(final Map<K, Observable<T>> inFlight, final K key, final Callable<Observable<T>> send) {
+        // looked up when subscribed to, so a request that is never subscribed to is never left in the map
+        return Observable.defer(new Callable<ObservableSource<T>>() {
+            @Override
+            public ObservableSource<T> call() throws Exception {
+                synchronized (inFlight) {
+                    Observable<T> shared = inFlight.get(key);
+                    if (shared != null) {
+                        Log.d(TAG, "Joining in-flight request");
+                        return shared;
+                    }
+                    shared = share(inFlight, key, send.call());
+                    inFlight.put(key, shared);
+                    return shared;
+                }
+            }
+        });
+    }
+
+    private <K, T> Observable<T> share(final Map<K, Observable<T>> inFlight, final K key, Observable<T> request) {
+        final AtomicReference<Observable<T>> current = new AtomicReference<>();
+        final Action remove = new Action() {
+            @Override
+            public void run() {
+                synchronized (inFlight) {
+                    if (inFlight.get(key) == current.get()) {
+                        inFlight.remove(key);
+                    }
+                }
+            }
+        };
+        // removed on the first response, so later callers send a new request rather than joining a stream the service may never end.
+        // Also removed when the request ends or the last caller disposes
+        Observable<T> shared = request.doOnNext(new Consumer<T>() {
+            @Override
+            public void accept(T response) throws Exception {
+                remove.run();
+            }
+        }).doFinally(remove).replay(MAX_REPLAYED_RESPONSES).refCount();
+        current.set(shared);
+        return shared;
+    }
+
+    /**
+     * @return The number of requests currently in progress
+     */
+    int getInFlightCount() {
+        synchronized (inFlightMessages) {
+            synchronized (inFlightBinaryMessages) {
+                return inFlightMessages.size() + inFlightBinaryMessages.size();
+            }
+        }
+    }
+
+    @Override
+    public void closeConnection() {
+        synchronized (inFlightMessages) {
+            inFlightMessages.clear();
+        }
+        synchronized (inFlightBinaryMessages) {
+            inFlightBinaryMessages.clear();
+        }
+        channelClient.closeConnection();
+    }
+}
@@ -17,65 +17,245 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Messenger;
 
 import com.aevi.android.rxmessenger.MessageException;
+import com.aevi.android.rxmessenger.compression.MessageCompressor;
+import com.aevi.android.rxmessenger.internal.LocalChannels;
 
 import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.reactivex.subjects.Subject;
 
 import static com.aevi.android.rxmessenger.MessageConstants.*;
 
-class IncomingHandler extends Handler {
+class IncomingHandler extends Handler implements LocalChannels.Receiver {
 
     private final WeakReference<ObservableMessengerClient> serviceRef;
+    private final AtomicInteger pendingLocalDeliveries = new AtomicInteger();
     private Subject<String> callbackEmitter;
+    private Subject<byte[]> binaryCallbackEmitter;
+    private volatile MessageCompressor agreedCompressor;
 
     IncomingHandler(ObservableMessengerClient service, Subject<String> callbackEmitter) {
+        this(service, callbackEmitter, null);
+    }
+
+    IncomingHandler(ObservableMessengerClient service, Subject<String> callbackEmitter, Subject<byte[]> binaryCallbackEmitter) {
         super(Looper.getMainLooper());
         serviceRef = new WeakReference<>(service);
         this.callbackEmitter = callbackEmitter;
+        this.binaryCallbackEmitter = binaryCallbackEmitter;
     }
 
     void updateCallbackEmitter(Subject<String> callbackEmitter) {
         this.callbackEmitter = callbackEmitter;
     }
 
+    void updateBinaryCallbackEmitter(Subject<byte[]> binaryCallbackEmitter) {
+        this.binaryCallbackEmitter = binaryCallbackEmitter;
+    }
+
     public Subject<String> getCallbackEmitter() {
         return callbackEmitter;
     }
 
+    public Subject<byte[]> getBinaryCallbackEmitter() {
+        return binaryCallbackEmitter;
+    }
+
+    /**
+     * @return True if the service has said it supports compression
+     */
+    boolean isCompressionAgreed() {
+        return agreedCompressor != null;
+    }
+
+    /**
+     * @return The compressor agreed with the service, which uses the dictionary chosen by the service if any, or null if not agreed
+     */
+    MessageCompressor getAgreedCompressor() {
+        return agreedCompressor;
+    }
+
+    private boolean hasObservers() {
+        return callbackEmitter.hasObservers() || (binaryCallbackEmitter != null && binaryCallbackEmitter.hasObservers());
+    }
+
+    private void onBinaryResponse(byte[] message) {
+        if (binaryCallbackEmitter != null && message != null) {
+            binaryCallbackEmitter.onNext(message);
+        }
+    }
+
+    private void onEndOfStream() {
+        callbackEmitter.onComplete();
+        if (binaryCallbackEmitter != null) {
+            binaryCallbackEmitter.onComplete();
+        }
+    }
+
+    private void onErrorResponse(MessageException error) {
+        callbackEmitter.onError(error);
+        if (binaryCallbackEmitter != null) {
+            binaryCallbackEmitter.onError(error);
+        }
+    }
+
     @Override
     public void handleMessage(Message msg) {
         ObservableMessengerClient client = serviceRef.get();
         if (client != null) {
             Bundle data = msg.getData();
-            if (data != null && callbackEmitter.hasObservers()) {
+            MessageCompressor compressor = client.getMessageCompressor();
+            if (data != null && agreedCompressor == null && compressor != null && COMPRESSION_DEFLATE.equals(data.getString(KEY_COMPRESSION))) {
+                agreedCompressor = compressor.forDictionary(compressor.getDictionary(data.getString(KEY_COMPRESSION_DICTIONARY)));
+            }
+            if (data != null && hasObservers()) {
+                if (data.containsKey(KEY_SEQUENCE)) {
+                    client.setLastSequence(data.getLong(KEY_SEQUENCE));
+                }
                 String sender = data.getString(KEY_DATA_SENDER);
                 switch (msg.what) {
                     case MESSAGE_RESPONSE:
+                        long maxAgeSeconds = data.getLong(KEY_MAX_AGE, ResponseCacheControl.NO_MAX_AGE);
                         if (data.containsKey(KEY_DATA_RESPONSE)) {
                             String json = data.getString(KEY_DATA_RESPONSE);
-                            client.handleMessage(json, sender, callbackEmitter);
+                            client.handleMessage(json, sender, maxAgeSeconds, callbackEmitter);
+                        } else if (data.containsKey(KEY_DATA_RESPONSE_DEFLATED)) {
+                            onCompressedResponse(client, data.getByteArray(KEY_DATA_RESPONSE_DEFLATED), sender, maxAgeSeconds);
+                        } else if (data.containsKey(KEY_DATA_RESPONSE_BINARY)) {
+                            onBinaryResponse(data.getByteArray(KEY_DATA_RESPONSE_BINARY));
                         }
                         break;
                     case MESSAGE_END_STREAM:
-                        callbackEmitter.onComplete();
+                        onEndOfStream();
                         break;
                     case MESSAGE_ERROR:
                         if (data.containsKey(KEY_DATA_RESPONSE)) {
                             String json = data.getString(KEY_DATA_RESPONSE);
                             MessageException response = MessageException.fromJson(json);
-                            callbackEmitter.onError(response);
+                            long requestId = data.getLong(KEY_REQUEST_ID, NO_REQUEST_ID);
+                            if (requestId != NO_REQUEST_ID) {
+                                // only the request named is rejected, the stream carries on for the others
+                                client.onRejected(requestId, response);
+                            } else {
+                                onErrorResponse(response);
+                            }
                             break;
                         }
                         // else fall through
                     default:
                         MessageException exception = new MessageException("Message error", "Unknown message type");
-                        callbackEmitter.onError(exception);
+                        onErrorResponse(exception);
                         break;
                 }
             }
         }
     }
+
+    private void onCompressedResponse(ObservableMessengerClient client, byte[] compressed, String sender, long maxAgeSeconds) {
+        MessageCompressor compressor = agreedCompressor;
+        if (compressor == null || compressed == null) {
+            onErrorResponse(new MessageException("Message error", "Received compressed message without agreeing to compression"));
+            return;
+        }
+        try {
+            client.handleMessage(compressor.decompress(compressed), sender, maxAgeSeconds, callbackEmitter);
+        } catch (IllegalArgumentException e) {
+            onErrorResponse(new MessageException("Message error", "Invalid compressed message"));
+        }
+    }
+
+    @Override
+    public void onMessage(String message, String sender) {
+        onMessage(message, sender, ResponseCacheControl.NO_MAX_AGE);
+    }
+
+    @Override
+    public void onMessage(final String message, final String sender, final long maxAgeSeconds) {
+        deliverLocal(new Runnable() {
+            @Override
+            public void run() {
+                ObservableMessengerClient client = serviceRef.get();
+                if (client != null && callbackEmitter.hasObservers()) {
+                    client.handleMessage(message, sender, maxAgeSeconds, callbackEmitter);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onBinaryMessage(final byte[] message, String sender) {
+        deliverLocal(new Runnable() {
+            @Override
+            public void run() {
+                if (serviceRef.get() != null && hasObservers()) {
+                    onBinaryResponse(message);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onEndStream() {
+        deliverLocal(new Runnable() {
+            @Override
+            public void run() {
+                if (serviceRef.get() != null && hasObservers()) {
+                    onEndOfStream();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onError(final MessageException error) {
+        deliverLocal(new Runnable() {
+            @Override
+            public void run() {
+                if (serviceRef.get() != null && hasObservers()) {
+                    onErrorResponse(error);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onRejected(final long requestId, final MessageException error) {
+        deliverLocal(new Runnable() {
+            @Override
+            public void run() {
+                ObservableMessengerClient client = serviceRef.get();
+                if (client != null) {
+                    client.onRejected(requestId, error);
+                }
+            }
+        });
+    }
+
+    @Override
+    public Messenger getReplyTo() {
+        return new Messenger(this);
+    }
+
+    /**
+     * Messages from a local service are delivered straight away if sent on the main thread and the response stream is being observed. Otherwise
+     * they are posted to the main thread, as they would have been via the messenger, keeping them in order with any already posted.
+     */
+    private void deliverLocal(final Runnable delivery) {
+        if (Looper.myLooper() == getLooper() && pendingLocalDeliveries.get() == 0 && hasObservers()) {
+            delivery.run();
+        } else {
+            pendingLocalDeliveries.incrementAndGet();
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    pendingLocalDeliveries.decrementAndGet();
+                    delivery.run();
+                }
+            });
+        }
+    }
 }
@@ -22,15 +22,28 @@ import android.os.Messenger;
 import android.os.RemoteException;
 import android.util.Log;
 
+import com.aevi.android.rxmessenger.compression.MessageCompressor;
+import com.aevi.android.rxmessenger.internal.LocalChannels;
+
 import io.reactivex.Observable;
 import io.reactivex.subjects.BehaviorSubject;
 import io.reactivex.subjects.Subject;
 
+import static com.aevi.android.rxmessenger.MessageConstants.COMPRESSION_DEFLATE;
 import static com.aevi.android.rxmessenger.MessageConstants.KEY_CHANNEL_TYPE;
 import static com.aevi.android.rxmessenger.MessageConstants.KEY_CLIENT_ID;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_COMPRESSION;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_COMPRESSION_DICTIONARIES;
 import static com.aevi.android.rxmessenger.MessageConstants.KEY_DATA_REQUEST;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_DATA_REQUEST_BINARY;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_DATA_REQUEST_DEFLATED;
 import static com.aevi.android.rxmessenger.MessageConstants.KEY_DATA_SENDER;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_REQUEST_ID;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_RESUME_CLIENT_ID;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_RESUME_SEQUENCE;
+import static com.aevi.android.rxmessenger.MessageConstants.MESSAGE_CANCEL;
 import static com.aevi.android.rxmessenger.MessageConstants.MESSAGE_REQUEST;
+import static com.aevi.android.rxmessenger.MessageConstants.NO_REQUEST_ID;
 
 class MessengerConnection implements ServiceConnection {
 
@@ -39,18 +52,33 @@ class MessengerConnection implements ServiceConnection {
     private final IncomingHandler incomingHandler;
     private final String clientId;
     private final String channelType;
+    private final Bundle connectionExtras;
+    private final MessageCompressor messageCompressor;
     private final BehaviorSubject<MessengerConnection> bindSubject = BehaviorSubject.create();
 
     private Messenger outgoingMessenger;
+    private IBinder binder;
+    private boolean local;
     private ComponentName componentName;
     private boolean bound = false;
     private String clientPackageName;
 
     MessengerConnection(IncomingHandler incomingHandler, String clientId, String channelType, String clientPackageName) {
+        this(incomingHandler, clientId, channelType, clientPackageName, null);
+    }
+
+    MessengerConnection(IncomingHandler incomingHandler, String clientId, String channelType, String clientPackageName, Bundle connectionExtras) {
+        this(incomingHandler, clientId, channelType, clientPackageName, connectionExtras, null);
+    }
+
+    MessengerConnection(IncomingHandler incomingHandler, String clientId, String channelType, String clientPackageName, Bundle connectionExtras,
+                        MessageCompressor messageCompressor) {
         this.incomingHandler = incomingHandler;
         this.clientId = clientId;
         this.channelType = channelType;
         this.clientPackageName = clientPackageName;
+        this.connectionExtras = connectionExtras;
+        this.messageCompressor = messageCompressor;
         Log.d(TAG, "Created connection with id: " + clientId);
     }
 
@@ -58,12 +86,21 @@ class MessengerConnection implements ServiceConnection {
         incomingHandler.updateCallbackEmitter(callbackEmitter);
     }
 
+    void updateBinaryCallbackEmitter(Subject<byte[]> binaryCallbackEmitter) {
+        incomingHandler.updateBinaryCallbackEmitter(binaryCallbackEmitter);
+    }
+
     public void onServiceConnected(ComponentName componentName, IBinder binder) {
         if (componentName != null) {
             Log.d(TAG, "Bound to service - " + componentName.flattenToString());
         }
         this.componentName = componentName;
+        this.binder = binder;
         outgoingMessenger = new Messenger(binder);
+        local = LocalChannels.isLocal(binder);
+        if (local) {
+            Log.d(TAG, "Service is running in this process, messages will be passed directly");
+        }
         bound = true;
         bindSubject.onNext(this);
     }
@@ -79,6 +116,10 @@ class MessengerConnection implements ServiceConnection {
         if (callbackEmitter != null) {
             callbackEmitter.onComplete();
         }
+        Subject<byte[]> binaryCallbackEmitter = incomingHandler.getBinaryCallbackEmitter();
+        if (binaryCallbackEmitter != null) {
+            binaryCallbackEmitter.onComplete();
+        }
     }
 
     String getClientId() {
@@ -93,22 +134,141 @@ class MessengerConnection implements ServiceConnection {
         return bound;
     }
 
+    /**
+     * @return True if the service is running in the same process and messages are passed to it directly
+     */
+    boolean isLocal() {
+        return local;
+    }
+
     void sendMessage(String requestData) {
+        sendMessage(requestData, NO_REQUEST_ID);
+    }
+
+    /**
+     * @param requestData The message to send
+     * @param requestId   The id of the request, which the service is given so that a cancel can name it
+     */
+    void sendMessage(String requestData, long requestId) {
         Log.d(TAG, "Sending message from connection with id: " + clientId);
         if (requestData != null) {
-            Message msg = Message.obtain(null, MESSAGE_REQUEST);
-            Bundle data = new Bundle();
-            data.putString(KEY_CLIENT_ID, clientId);
-            data.putString(KEY_DATA_REQUEST, requestData);
-            data.putString(KEY_DATA_SENDER, clientPackageName);
-            data.putString(KEY_CHANNEL_TYPE, channelType);
-            msg.setData(data);
-            msg.replyTo = new Messenger(incomingHandler);
-            doSend(msg);
+            if (local) {
+                if (LocalChannels.send(binder, clientId, channelType, clientPackageName, requestData, getLocalExtras(requestId), incomingHandler)) {
+                    return;
+                }
+                Log.w(TAG, "Local service no longer available, falling back to messenger");
+                local = false;
+            }
+            Bundle data = createRequestData(requestId);
+            MessageCompressor compressor = getAgreedCompressor();
+            if (compressor != null && compressor.shouldCompress(requestData)) {
+                data.putByteArray(KEY_DATA_REQUEST_DEFLATED, compressor.compress(requestData));
+            } else {
+                data.putString(KEY_DATA_REQUEST, requestData);
+            }
+            doSend(data, MESSAGE_REQUEST);
+        }
+    }
+
+    void sendMessage(byte[] requestData, long requestId) {
+        Log.d(TAG, "Sending binary message from connection with id: " + clientId);
+        if (requestData != null) {
+            if (local) {
+                if (LocalChannels.send(binder, clientId, channelType, clientPackageName, requestData, getLocalExtras(requestId), incomingHandler)) {
+                    return;
+                }
+                Log.w(TAG, "Local service no longer available, falling back to messenger");
+                local = false;
+            }
+            Bundle data = createRequestData(requestId);
+            data.putByteArray(KEY_DATA_REQUEST_BINARY, requestData);
+            doSend(data, MESSAGE_REQUEST);
+        }
+    }
+
+    /**
+     * Tell the service to cancel the work it is doing for a request. This is always sent via the messenger, whichever channel is in use.
+     *
+     * @param requestId The id the request was sent with
+     */
+    void sendCancel(long requestId) {
+        Log.d(TAG, "Sending cancel for request " + requestId + " from connection with id: " + clientId);
+        if (outgoingMessenger != null) {
+            doSend(createRequestData(requestId), MESSAGE_CANCEL);
+        }
+    }
+
+    /**
+     * Ask the service to carry on from a previous connection of this client, sending the messages received since the last one given. This is
+     * always sent via the messenger, whichever channel is in use.
+     *
+     * @param previousClientId The client id of the previous connection
+     * @param lastSequence     The sequence number of the last message received
+     */
+    void sendResume(String previousClientId, long lastSequence) {
+        Log.d(TAG, "Resuming connection " + previousClientId + " from message " + lastSequence + " with id: " + clientId);
+        if (outgoingMessenger != null) {
+            Bundle data = createRequestData();
+            data.putString(KEY_RESUME_CLIENT_ID, previousClientId);
+            data.putLong(KEY_RESUME_SEQUENCE, lastSequence);
+            doSend(data, MESSAGE_REQUEST);
+        }
+    }
+
+    /**
+     * @return True if the service has agreed to compress large messages
+     */
+    boolean isCompressionAgreed() {
+        return getAgreedCompressor() != null;
+    }
+
+    /**
+     * @return The compressor agreed with the service, or null if compression has not been agreed
+     */
+    MessageCompressor getAgreedCompressor() {
+        return messageCompressor != null ? incomingHandler.getAgreedCompressor() : null;
+    }
+
+    private Bundle createRequestData(long requestId) {
+        Bundle data = createRequestData();
+        if (requestId != NO_REQUEST_ID) {
+            data.putLong(KEY_REQUEST_ID, requestId);
+        }
+        return data;
+    }
+
+    /**
+     * Messages passed directly to a local service have no Bundle of their own, so the request id is added to a copy of the connection extras
+     */
+    private Bundle getLocalExtras(long requestId) {
+        if (requestId == NO_REQUEST_ID) {
+            return connectionExtras;
+        }
+        Bundle extras = connectionExtras != null ? new Bundle(connectionExtras) : new Bundle();
+        extras.putLong(KEY_REQUEST_ID, requestId);
+        return extras;
+    }
+
+    private Bundle createRequestData() {
+        Bundle data = new Bundle();
+        data.putString(KEY_CLIENT_ID, clientId);
+        data.putString(KEY_DATA_SENDER, clientPackageName);
+        data.putString(KEY_CHANNEL_TYPE, channelType);
+        if (messageCompressor != null) {
+            // lets the service know it can compress the messages it sends, and that it should tell us if we can do the same
+            data.putString(KEY_COMPRESSION, COMPRESSION_DEFLATE);
+            data.putStringArray(KEY_COMPRESSION_DICTIONARIES, messageCompressor.getDictionaryIds());
+        }
+        if (connectionExtras != null) {
+            data.putAll(connectionExtras);
         }
+        return data;
     }
 
-    private void doSend(Message msg) {
+    private void doSend(Bundle data, int what) {
+        Message msg = Message.obtain(null, what);
+        msg.setData(data);
+        msg.replyTo = new Messenger(incomingHandler);
         try {
             outgoingMessenger.send(msg);
         } catch (RemoteException e) {
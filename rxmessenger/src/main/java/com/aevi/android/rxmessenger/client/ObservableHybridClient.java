@@ -0,0 +1,268 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.client;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+
+import com.aevi.android.rxmessenger.MessagePriority;
+import com.aevi.android.rxmessenger.model.FramedMessage;
+import com.aevi.android.rxmessenger.service.AbstractChannelService;
+import com.aevi.android.rxmessenger.util.MessageSequencer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+
+import static com.aevi.android.rxmessenger.MessageConstants.*;
+
+/**
+ * Client that chooses the channel to use for each message it sends to an {@link AbstractChannelService}, based on the size of the message.
+ * <p>
+ * The connection is setup in the same way as for {@link ObservableWebSocketClient}. Once connected, messages smaller than the threshold are sent via
+ * Android Messenger, which is faster for small payloads, and larger messages are sent via the websocket, which can handle payloads of any size. The
+ * service uses the same threshold for the messages it sends back.
+ * </p>
+ * <p>
+ * All messages in both directions are numbered, so that they are always delivered in the order they were sent in as one logical stream, regardless
+ * of the channel they travelled on. If the websocket can not be used all messages will be sent via Android Messenger.
+ * </p>
+ */
+public class ObservableHybridClient extends ObservableWebSocketClient {
+
+    private static final int MAX_PENDING_MESSAGES = 64;
+
+    private final int threshold;
+    private final AtomicLong outgoingSequence = new AtomicLong();
+    private final MessageSequencer<FramedMessage> incomingSequencer;
+
+    /**
+     * Create an instance using the {@link com.aevi.android.rxmessenger.MessageConstants#DEFAULT_HYBRID_THRESHOLD default threshold}.
+     *
+     * @param context              The context to use for binding to the service
+     * @param serviceComponentName The component name of the {@link AbstractChannelService} to bind to
+     */
+    public ObservableHybridClient(Context context, ComponentName serviceComponentName) {
+        this(context, serviceComponentName, DEFAULT_HYBRID_THRESHOLD);
+    }
+
+    /**
+     * Create an instance with a custom threshold.
+     *
+     * @param context              The context to use for binding to the service
+     * @param serviceComponentName The component name of the {@link AbstractChannelService} to bind to
+     * @param threshold            The message size, in characters, at or above which messages will be sent via the websocket
+     */
+    public ObservableHybridClient(Context context, ComponentName serviceComponentName, int threshold) {
+        super(context, serviceComponentName);
+        this.threshold = threshold;
+        incomingSequencer = new MessageSequencer<>(MAX_PENDING_MESSAGES, new MessageSequencer.Receiver<FramedMessage>() {
+            @Override
+            public void onMessage(FramedMessage message) {
+                deliver(message);
+            }
+        });
+    }
+
+    @NonNull
+    @Override
+    protected Intent getServiceIntent(String clientId) {
+        Intent intent = super.getServiceIntent(clientId);
+        intent.putExtra(KEY_CHANNEL_TYPE, CHANNEL_HYBRID);
+        return intent;
+    }
+
+    @Override
+    protected String getChannelType() {
+        return CHANNEL_HYBRID;
+    }
+
+    @Override
+    protected Bundle getConnectionExtras() {
+        Bundle extras = new Bundle();
+        extras.putInt(KEY_HYBRID_THRESHOLD, threshold);
+        return extras;
+    }
+
+    /**
+     * @return The message size, in characters, at or above which messages will be sent via the websocket
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    @Override
+    public Completable connect() {
+        if (isConnected()) {
+            return Completable.complete();
+        }
+        if (!isMessengerConnected()) {
+            // a new connection means a new client on the service side, so numbering starts again
+            outgoingSequence.set(0);
+            incomingSequencer.reset();
+        }
+        return super.connect().doOnComplete(new Action() {
+            @Override
+            public void run() throws Exception {
+                if (okWebSocketClient != null) {
+                    okWebSocketClient.updateCallbackEmitter(createWebSocketMessageReceiver());
+                }
+            }
+        });
+    }
+
+    private PublishSubject<String> createWebSocketMessageReceiver() {
+        PublishSubject<String> webSocketMessages = PublishSubject.create();
+        webSocketMessages.subscribe(new Consumer<String>() {
+            @Override
+            public void accept(String message) throws Exception {
+                receive(message);
+            }
+        });
+        return webSocketMessages;
+    }
+
+    @Override
+    public Observable<String> sendMessage(final String message) {
+        if (!isMessengerConnected()) {
+            return connect().andThen(Observable.defer(new Callable<ObservableSource<? extends String>>() {
+                @Override
+                public ObservableSource<? extends String> call() throws Exception {
+                    return sendSequenced(message);
+                }
+            }));
+        }
+        return sendSequenced(message);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * High priority messages are not numbered, so that the service handles them as soon as they arrive rather than after earlier messages
+     * still on their way over the websocket.
+     * </p>
+     */
+    @Override
+    public Observable<String> sendMessage(final String requestData, final MessagePriority priority) {
+        if (priority == MessagePriority.NORMAL) {
+            return sendMessage(requestData);
+        }
+        if (!isMessengerConnected()) {
+            return connect().andThen(Observable.defer(new Callable<ObservableSource<? extends String>>() {
+                @Override
+                public ObservableSource<? extends String> call() throws Exception {
+                    return sendMessage(requestData, priority);
+                }
+            }));
+        }
+        if (isResponseEmitterDone()) {
+            responseEmitter = PublishSubject.create();
+            messengerConnection.updateCallbackEmitter(responseEmitter);
+        }
+        final long requestId = nextRequestId();
+        return cancelOnDispose(responseEmitter.doOnSubscribe(new Consumer<Disposable>() {
+            @Override
+            public void accept(Disposable disposable) throws Exception {
+                if (requestData == null) {
+                    return;
+                }
+                String frame = FramedMessage.of(requestData).withHeader(HEADER_PRIORITY, priority.name())
+                        .withHeader(HEADER_REQUEST_ID, requestId).encode();
+                if (requestData.length() >= threshold && isWebSocketConnected()) {
+                    okWebSocketClient.sendMessage(frame);
+                } else {
+                    messengerConnection.sendMessage(frame);
+                }
+            }
+        }), false, requestId);
+    }
+
+    private Observable<String> sendSequenced(final String message) {
+        if (isResponseEmitterDone()) {
+            responseEmitter = PublishSubject.create();
+            messengerConnection.updateCallbackEmitter(responseEmitter);
+        }
+        final long requestId = nextRequestId();
+        return cancelOnDispose(responseEmitter.doOnSubscribe(new Consumer<Disposable>() {
+            @Override
+            public void accept(Disposable disposable) throws Exception {
+                doSend(message, requestId);
+            }
+        }), false, requestId);
+    }
+
+    private void doSend(String message, long requestId) {
+        if (message == null) {
+            return;
+        }
+        String frame = FramedMessage.of(message).withHeader(HEADER_SEQUENCE, outgoingSequence.getAndIncrement())
+                .withHeader(HEADER_REQUEST_ID, requestId).encode();
+        if (message.length() >= threshold && isWebSocketConnected()) {
+            okWebSocketClient.sendMessage(frame);
+        } else {
+            messengerConnection.sendMessage(frame);
+        }
+    }
+
+    @Override
+    void handleMessage(String data, String sender, long maxAgeSeconds, Subject<String> callbackEmitter) {
+        if (FramedMessage.isFramed(data)) {
+            receive(data);
+        } else {
+            // connection setup messages are not numbered
+            super.handleMessage(data, sender, maxAgeSeconds, callbackEmitter);
+        }
+    }
+
+    private void receive(String message) {
+        FramedMessage framedMessage = FramedMessage.decode(message);
+        if (framedMessage.hasHeader(HEADER_PRIORITY) && !framedMessage.hasHeader(HEADER_SEQUENCE)) {
+            // high priority messages are not numbered, and are delivered straight away
+            deliver(framedMessage);
+            return;
+        }
+        incomingSequencer.receive(framedMessage.getLongHeader(HEADER_SEQUENCE, 0), framedMessage);
+    }
+
+    private void deliver(FramedMessage message) {
+        if (responseEmitter == null || message.hasHeader(HEADER_EXPIRED)) {
+            // an expired message only fills its place in the numbering, as the stream it was for has already timed out
+            return;
+        }
+        if (message.hasHeader(HEADER_END_STREAM)) {
+            responseEmitter.onComplete();
+        } else {
+            responseEmitter.onNext(withMaxAge(message.getPayload(), ResponseCacheControl.getMaxAgeSeconds(message)));
+        }
+    }
+
+    private boolean isMessengerConnected() {
+        return messengerConnection != null && messengerConnection.isBound();
+    }
+
+    private boolean isWebSocketConnected() {
+        return okWebSocketClient != null && okWebSocketClient.isConnected();
+    }
+}
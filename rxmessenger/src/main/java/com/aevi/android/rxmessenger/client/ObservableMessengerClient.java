@@ -16,18 +16,30 @@ package com.aevi.android.rxmessenger.client;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.aevi.android.rxmessenger.ChannelClient;
+import com.aevi.android.rxmessenger.MessageException;
+import com.aevi.android.rxmessenger.MessagePriority;
+import com.aevi.android.rxmessenger.compression.CompressionStats;
+import com.aevi.android.rxmessenger.compression.MessageCompressor;
+import com.aevi.android.rxmessenger.model.FramedMessage;
 import com.aevi.android.rxmessenger.service.AbstractChannelService;
 
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.reactivex.*;
 import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Action;
 import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+import io.reactivex.functions.Predicate;
 import io.reactivex.subjects.PublishSubject;
 import io.reactivex.subjects.Subject;
 
@@ -50,7 +62,14 @@ public class ObservableMessengerClient extends BaseChannelClient implements Chan
 
     private final OnHandleMessageCallback onHandleMessageCallback;
     PublishSubject<String> responseEmitter;
-    private MessengerConnection messengerConnection;
+    PublishSubject<byte[]> binaryResponseEmitter;
+    MessengerConnection messengerConnection;
+    private MessageCompressor messageCompressor;
+    private String lastClientId;
+    private long lastSequence;
+    private final AtomicLong requestIds = new AtomicLong();
+    private final Subject<Rejection> rejections = PublishSubject.<Rejection>create().toSerialized();
+    private volatile boolean framingMaxAge;
 
     /**
      * Create an instance with default message handling.
@@ -75,12 +94,75 @@ public class ObservableMessengerClient extends BaseChannelClient implements Chan
         this.onHandleMessageCallback = onHandleMessageCallback;
     }
 
+    /**
+     * Enable compression of large messages, if the service supports it. Must be called before connecting to the service.
+     * <p>
+     * The client tells the service it supports compression in the first message it sends. If the service agrees, messages at or above the threshold
+     * of the compressor are compressed in both directions, using the first of the dictionaries of the compressor that the service also has.
+     * Messages passed directly to a service in the same process are never compressed.
+     * </p>
+     *
+     * @param messageCompressor The compressor to use, or null to disable compression
+     */
+    public void setMessageCompressor(@Nullable MessageCompressor messageCompressor) {
+        this.messageCompressor = messageCompressor;
+    }
+
+    @Nullable
+    MessageCompressor getMessageCompressor() {
+        return messageCompressor;
+    }
+
+    /**
+     * @return The compression statistics for this client, or null if compression is not enabled
+     */
+    @Nullable
+    public CompressionStats getCompressionStats() {
+        return messageCompressor != null ? messageCompressor.getStats() : null;
+    }
+
+    /**
+     * @return True if the service has agreed to compress large messages
+     */
+    boolean isCompressionAgreed() {
+        return messengerConnection != null && messengerConnection.isCompressionAgreed();
+    }
+
+    /**
+     * @return The compressor agreed with the service, or null if compression has not been agreed
+     */
+    @Nullable
+    MessageCompressor getAgreedCompressor() {
+        return messengerConnection != null ? messengerConnection.getAgreedCompressor() : null;
+    }
+
+    /**
+     * Called by a {@link CachingChannelClient} wrapping this client, after which responses the service sent with a max age are passed on framed
+     * with it, for the caching client to read.
+     */
+    void frameMaxAge() {
+        framingMaxAge = true;
+    }
+
+    boolean isFramingMaxAge() {
+        return framingMaxAge;
+    }
+
+    /**
+     * @param response      The response to pass on
+     * @param maxAgeSeconds The max age the service sent with the response, or {@link ResponseCacheControl#NO_MAX_AGE}
+     * @return The response, framed with its max age if this client is wrapped by a caching client
+     */
+    String withMaxAge(String response, long maxAgeSeconds) {
+        return framingMaxAge ? ResponseCacheControl.frame(response, maxAgeSeconds) : response;
+    }
+
     /**
      * Default handler proxies the message straight to the client.
      */
-    void handleMessage(String data, String sender, Subject<String> callbackEmitter) {
+    void handleMessage(String data, String sender, long maxAgeSeconds, Subject<String> callbackEmitter) {
         if (onHandleMessageCallback == null) {
-            callbackEmitter.onNext(data);
+            callbackEmitter.onNext(withMaxAge(data, maxAgeSeconds));
         } else {
             onHandleMessageCallback.handleMessage(data, sender, callbackEmitter);
         }
@@ -95,6 +177,13 @@ public class ObservableMessengerClient extends BaseChannelClient implements Chan
         return messengerConnection != null && messengerConnection.isBound();
     }
 
+    /**
+     * @return True if connected to a service running in the same process, in which case messages are passed to it directly
+     */
+    boolean isLocalConnection() {
+        return messengerConnection != null && messengerConnection.isBound() && messengerConnection.isLocal();
+    }
+
     /**
      * Connect to the remote service.
      * <p>
@@ -108,10 +197,14 @@ public class ObservableMessengerClient extends BaseChannelClient implements Chan
         if (messengerConnection != null && messengerConnection.isBound()) {
             return Completable.complete();
         }
+        return bind(null);
+    }
+
+    private Completable bind(@Nullable final String resumeClientId) {
         return Completable.create(new CompletableOnSubscribe() {
             @Override
             public void subscribe(final CompletableEmitter completableEmitter) throws Exception {
-                bindToService().subscribe(new Consumer<MessengerConnection>() {
+                bindToService(resumeClientId).subscribe(new Consumer<MessengerConnection>() {
                     @Override
                     public void accept(MessengerConnection messengerConnection) throws Exception {
                         ObservableMessengerClient.this.messengerConnection = messengerConnection;
@@ -136,36 +229,248 @@ public class ObservableMessengerClient extends BaseChannelClient implements Chan
      * <p>
      * NOTE: The messages are only sent once a client is subscribed to the Observable.
      * </p>
+     * <p>
+     * If the stream is disposed before the service ends it, the service is told to cancel the work it is doing for this message, see
+     * {@link com.aevi.android.rxmessenger.ChannelServer#whenCancelled()}.
+     * </p>
      *
      * @param requestData The data to send (usually a serialised JSON object)
      * @return An Observable stream of Strings containing data that the service sends back to this client
      */
     public Observable<String> sendMessage(final String requestData) {
+        return Observable.defer(new Callable<ObservableSource<String>>() {
+            @Override
+            public ObservableSource<String> call() throws Exception {
+                long requestId = nextRequestId();
+                return cancelOnDispose(sendRequest(requestData, requestId), false, requestId);
+            }
+        });
+    }
+
+    /**
+     * Reconnect to the service, carrying on from the last connection of this client rather than starting again.
+     * <p>
+     * The service is asked to send the messages it sent after the last one received by this client, then carries on sending new messages to
+     * the stream returned, which replaces any stream returned before. This requires the service to keep the messages it sends, see
+     * {@link AbstractChannelService#getReplayBufferSize(String)}. If it does not, or the client took too long to reconnect, or some of the
+     * messages it missed are no longer kept, the stream fails with a {@link com.aevi.android.rxmessenger.MessageException} with code
+     * {@link AbstractChannelService#ERROR_RESUME_FAILED} and the client should start again. The new connection is kept, and as with any error
+     * from the service, the next message sent on it gets a new response stream. Only messages sent via the messenger channel can be resumed
+     * from.
+     * </p>
+     * <p>
+     * If this client is still connected, the current connection is closed first.
+     * </p>
+     *
+     * @return An Observable stream of Strings containing the messages missed, then the data that the service sends back to this client
+     */
+    public Observable<String> resumeConnection() {
+        final String previousClientId = lastClientId;
+        if (previousClientId == null) {
+            return Observable.error(new IllegalStateException("There is no previous connection to resume"));
+        }
+        final long sequence = lastSequence;
+        closeConnection();
+        return cancelOnDispose(bind(previousClientId).andThen(Observable.defer(new Callable<ObservableSource<? extends String>>() {
+            @Override
+            public ObservableSource<? extends String> call() throws Exception {
+                return responseEmitter.doOnSubscribe(new Consumer<Disposable>() {
+                    @Override
+                    public void accept(Disposable disposable) throws Exception {
+                        messengerConnection.sendResume(previousClientId, sequence);
+                    }
+                });
+            }
+        })), false, requestIds.get());
+    }
+
+    /**
+     * @return The sequence number of the last message received from the service, or 0 if none have been received or the service does not
+     * number its messages, see {@link AbstractChannelService#getReplayBufferSize(String)}
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    void setLastSequence(long lastSequence) {
+        this.lastSequence = lastSequence;
+    }
+
+    @Override
+    public Observable<String> sendMessage(final String requestData, final long timeout, final TimeUnit unit) {
+        final String message = FramedMessage.of(requestData).withHeader(HEADER_TIMEOUT, unit.toMillis(timeout)).encode();
+        return Observable.defer(new Callable<ObservableSource<String>>() {
+            @Override
+            public ObservableSource<String> call() throws Exception {
+                // the same timer is used for every response, so the stream fails at the deadline rather than after a gap between responses
+                final Observable<Long> deadline = Observable.timer(timeout, unit).replay(1).autoConnect();
+                return sendMessage(message).timeout(deadline, new Function<String, ObservableSource<Long>>() {
+                    @Override
+                    public ObservableSource<Long> apply(String response) {
+                        return deadline;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The messenger has a single queue, so here the message is sent as by {@link #sendMessage(String)}.
+     * </p>
+     */
+    @Override
+    public Observable<String> sendMessage(final String requestData, MessagePriority priority) {
+        return sendMessage(requestData);
+    }
+
+    /**
+     * Send a message without telling the service to cancel when the stream returned is disposed
+     */
+    Observable<String> sendRequest(final String requestData) {
+        return sendRequest(requestData, NO_REQUEST_ID);
+    }
+
+    private Observable<String> sendRequest(final String requestData, final long requestId) {
         if (messengerConnection == null || !messengerConnection.isBound()) {
-            return connectAndSendMessage(requestData);
+            return connectAndSendMessage(requestData, requestId);
         } else {
-            // The service may have sent end of stream previously, so for each "round", we then create a new emitter
-            if (responseEmitter.hasComplete()) {
+            // The service may have sent end of stream or an error previously, so for each "round", we then create a new emitter
+            if (isResponseEmitterDone()) {
                 responseEmitter = PublishSubject.create();
                 messengerConnection.updateCallbackEmitter(responseEmitter);
             }
             return responseEmitter.doOnSubscribe(new Consumer<Disposable>() {
                 @Override
                 public void accept(Disposable disposable) throws Exception {
-                    messengerConnection.sendMessage(requestData);
+                    messengerConnection.sendMessage(requestData, requestId);
                 }
             });
         }
     }
 
-    private Observable<String> connectAndSendMessage(final String requestData) {
+    /**
+     * Used to send a binary message to an {@link AbstractChannelService} implementation and observe the binary responses from it.
+     * <p>
+     * This will connect to the service if not already connected when called.
+     * </p>
+     * The stream returned will only return messages from the point of subscription.
+     * <p>
+     * NOTE: The messages are only sent once a client is subscribed to the Observable.
+     * </p>
+     * <p>
+     * If the stream is disposed before the service ends it, the service is told to cancel the work it is doing for this message, see
+     * {@link com.aevi.android.rxmessenger.ChannelServer#whenCancelled()}.
+     * </p>
+     *
+     * @param requestData The data to send
+     * @return An Observable stream of binary data that the service sends back to this client
+     */
+    public Observable<byte[]> sendBinaryMessage(final byte[] requestData) {
+        if (messengerConnection == null || !messengerConnection.isBound()) {
+            return connect().andThen(Observable.defer(new Callable<ObservableSource<? extends byte[]>>() {
+                @Override
+                public ObservableSource<? extends byte[]> call() throws Exception {
+                    return sendBinaryMessage(requestData);
+                }
+            }));
+        }
+        ensureBinaryResponseEmitter();
+        final long requestId = nextRequestId();
+        return cancelOnDispose(binaryResponseEmitter.doOnSubscribe(new Consumer<Disposable>() {
+            @Override
+            public void accept(Disposable disposable) throws Exception {
+                messengerConnection.sendMessage(requestData, requestId);
+            }
+        }), true, requestId);
+    }
+
+    /**
+     * @return The id of the next request, which the service is given with the request so that a cancel can name it
+     */
+    long nextRequestId() {
+        return requestIds.incrementAndGet();
+    }
+
+    /**
+     * Called when the service rejects a single request, such as when it sheds load, without ending the stream of responses to the others
+     *
+     * @param requestId The id of the request rejected
+     * @param error     Why the request was rejected
+     */
+    void onRejected(long requestId, MessageException error) {
+        rejections.onNext(new Rejection(requestId, error));
+    }
+
+    /**
+     * Send a cancel for the request given to the service once the stream given is disposed, if the service has not already ended the stream.
+     * Subclasses use this for the streams they return instead of those of this class.
+     * <p>
+     * The stream fails if the service rejects the request, which leaves the streams of any other requests running.
+     * </p>
+     */
+    <T> Observable<T> cancelOnDispose(Observable<T> responses, final boolean binary, final long requestId) {
+        return failOnRejection(responses, requestId).doFinally(new Action() {
+            @Override
+            public void run() throws Exception {
+                Subject<?> emitter = binary ? binaryResponseEmitter : responseEmitter;
+                MessengerConnection connection = messengerConnection;
+                if (connection != null && connection.isBound() && emitter != null && !emitter.hasComplete() && !emitter.hasThrowable()) {
+                    connection.sendCancel(requestId);
+                }
+            }
+        });
+    }
+
+    private <T> Observable<T> failOnRejection(Observable<T> responses, final long requestId) {
+        if (requestId == NO_REQUEST_ID) {
+            return responses;
+        }
+        final Observable<T> rejected = rejections.filter(new Predicate<Rejection>() {
+            @Override
+            public boolean test(Rejection rejection) {
+                return rejection.requestId == requestId;
+            }
+        }).take(1).flatMap(new Function<Rejection, ObservableSource<T>>() {
+            @Override
+            public ObservableSource<T> apply(Rejection rejection) {
+                return Observable.error(rejection.error);
+            }
+        });
+        // subscribed to before the request is sent, and only for as long as the responses run
+        return responses.publish(new Function<Observable<T>, ObservableSource<T>>() {
+            @Override
+            public ObservableSource<T> apply(Observable<T> shared) {
+                return shared.mergeWith(rejected.takeUntil(shared.ignoreElements().toObservable()));
+            }
+        });
+    }
+
+    /**
+     * @return True if the text response emitter has been ended, by end of stream or by an error such as a rejection from the service, so
+     * that a new one is required for the next message
+     */
+    boolean isResponseEmitterDone() {
+        return responseEmitter == null || responseEmitter.hasComplete() || responseEmitter.hasThrowable();
+    }
+
+    void ensureBinaryResponseEmitter() {
+        // as for text messages, a new emitter is required for each "round"
+        if (binaryResponseEmitter == null || binaryResponseEmitter.hasComplete() || binaryResponseEmitter.hasThrowable()) {
+            binaryResponseEmitter = PublishSubject.create();
+            messengerConnection.updateBinaryCallbackEmitter(binaryResponseEmitter);
+        }
+    }
+
+    private Observable<String> connectAndSendMessage(final String requestData, final long requestId) {
         return connect().andThen(Observable.defer(new Callable<ObservableSource<? extends String>>() {
             @Override
             public ObservableSource<? extends String> call() throws Exception {
                 return responseEmitter.doOnSubscribe(new Consumer<Disposable>() {
                     @Override
                     public void accept(Disposable disposable) throws Exception {
-                        messengerConnection.sendMessage(requestData);
+                        messengerConnection.sendMessage(requestData, requestId);
                     }
                 });
             }
@@ -193,15 +498,29 @@ public class ObservableMessengerClient extends BaseChannelClient implements Chan
                 responseEmitter.onComplete();
                 responseEmitter = null;
             }
+            if (binaryResponseEmitter != null) {
+                binaryResponseEmitter.onComplete();
+                binaryResponseEmitter = null;
+            }
         }
     }
 
-    private Observable<MessengerConnection> bindToService() {
+    private Observable<MessengerConnection> bindToService(@Nullable String resumeClientId) {
         responseEmitter = PublishSubject.create();
-        IncomingHandler incomingHandler = new IncomingHandler(this, responseEmitter);
+        binaryResponseEmitter = PublishSubject.create();
+        IncomingHandler incomingHandler = new IncomingHandler(this, responseEmitter, binaryResponseEmitter);
         String clientId = UUID.randomUUID().toString();
         Intent serviceIntent = getServiceIntent(clientId);
-        MessengerConnection messengerConnection = new MessengerConnection(incomingHandler, clientId, getChannelType(), context.getPackageName());
+        if (resumeClientId != null) {
+            // lets the service carry on with the channel server of the previous connection rather than creating a new one
+            serviceIntent.putExtra(KEY_RESUME_CLIENT_ID, resumeClientId);
+        } else {
+            lastSequence = 0;
+        }
+        lastClientId = clientId;
+        MessengerConnection messengerConnection =
+                new MessengerConnection(incomingHandler, clientId, getChannelType(), context.getPackageName(), getConnectionExtras(),
+                                        messageCompressor);
         boolean canBind = context.bindService(serviceIntent, messengerConnection, Context.BIND_AUTO_CREATE);
         if (canBind) {
             return messengerConnection.getConnectedObservable();
@@ -214,6 +533,16 @@ public class ObservableMessengerClient extends BaseChannelClient implements Chan
         return CHANNEL_MESSENGER;
     }
 
+    /**
+     * Can be overridden by sub-classes to add channel specific values to every message sent to the service
+     *
+     * @return A bundle of extra values or null if there are none
+     */
+    @Nullable
+    protected Bundle getConnectionExtras() {
+        return null;
+    }
+
     @NonNull
     protected Intent getServiceIntent(String clientId) {
         Intent serviceIntent = new Intent();
@@ -223,6 +552,17 @@ public class ObservableMessengerClient extends BaseChannelClient implements Chan
         return serviceIntent;
     }
 
+    private static final class Rejection {
+
+        private final long requestId;
+        private final MessageException error;
+
+        Rejection(long requestId, MessageException error) {
+            this.requestId = requestId;
+            this.error = error;
+        }
+    }
+
     public interface OnHandleMessageCallback {
 
         void handleMessage(String data, String sender, Subject<String> callbackEmitter);
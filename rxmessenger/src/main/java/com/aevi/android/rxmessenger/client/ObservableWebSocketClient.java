@@ -20,8 +20,10 @@ import android.os.Handler;
 import android.os.Looper;
 import android.support.annotation.NonNull;
 
+import com.aevi.android.rxmessenger.MessagePriority;
 import com.aevi.android.rxmessenger.client.websocket.OkWebSocketClient;
 import com.aevi.android.rxmessenger.model.ConnectionParams;
+import com.aevi.android.rxmessenger.model.FramedMessage;
 import com.aevi.android.rxmessenger.service.AbstractChannelService;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -32,10 +34,12 @@ import io.reactivex.Completable;
 import io.reactivex.CompletableEmitter;
 import io.reactivex.CompletableObserver;
 import io.reactivex.CompletableOnSubscribe;
+import io.reactivex.CompletableSource;
 import io.reactivex.Observable;
 import io.reactivex.ObservableSource;
 import io.reactivex.disposables.Disposable;
 import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
 import io.reactivex.subjects.PublishSubject;
 
 import static com.aevi.android.rxmessenger.MessageConstants.*;
@@ -64,7 +68,7 @@ public class ObservableWebSocketClient extends ObservableMessengerClient {
 
     private static final int CONNECTION_TIMEOUT = 2000;
 
-    private OkWebSocketClient okWebSocketClient;
+    OkWebSocketClient okWebSocketClient;
 
     private Gson gson = new GsonBuilder().create();
 
@@ -89,7 +93,20 @@ public class ObservableWebSocketClient extends ObservableMessengerClient {
         if (isConnected()) {
             return Completable.complete();
         }
-        return super.connect().andThen(webSocketSetupCompletable());
+        return super.connect().andThen(webSocketSetupIfRemote());
+    }
+
+    private Completable webSocketSetupIfRemote() {
+        return Completable.defer(new Callable<CompletableSource>() {
+            @Override
+            public CompletableSource call() throws Exception {
+                if (isLocalConnection()) {
+                    // no need for a websocket to talk to a service in the same process
+                    return Completable.complete();
+                }
+                return webSocketSetupCompletable();
+            }
+        });
     }
 
     private Completable webSocketSetupCompletable() {
@@ -99,11 +116,14 @@ public class ObservableWebSocketClient extends ObservableMessengerClient {
         return Completable.create(new CompletableOnSubscribe() {
             @Override
             public void subscribe(final CompletableEmitter emitter) throws Exception {
-                ObservableWebSocketClient.super.sendMessage(CONNECT_PLEASE).take(1).subscribe(new Consumer<String>() {
+                sendRequest(CONNECT_PLEASE).take(1).subscribe(new Consumer<String>() {
                     @Override
                     public void accept(String message) throws Exception {
                         ConnectionParams params = gson.fromJson(message, ConnectionParams.class);
                         okWebSocketClient = getWebSocketClient(params);
+                        if (isCompressionAgreed()) {
+                            okWebSocketClient.setMessageCompressor(getAgreedCompressor());
+                        }
                         okWebSocketClient.doConnect(CONNECTION_TIMEOUT).subscribe(new CompletableObserver() {
                             @Override
                             public void onSubscribe(Disposable d) {
@@ -142,40 +162,112 @@ public class ObservableWebSocketClient extends ObservableMessengerClient {
 
     @Override
     public boolean isConnected() {
-        return super.isConnected() && okWebSocketClient != null && okWebSocketClient.isConnected();
+        return super.isConnected() && (isLocalConnection() || (okWebSocketClient != null && okWebSocketClient.isConnected()));
     }
 
     @Override
     public Observable<String> sendMessage(final String message) {
         if (!super.isConnected()) {
             return connectAndSendMessage(message);
+        } else if (isLocalConnection()) {
+            return super.sendMessage(message);
         } else {
-            if (responseEmitter == null || responseEmitter.hasComplete()) {
+            if (isResponseEmitterDone()) {
                 responseEmitter = PublishSubject.create();
             }
 
+            long requestId = nextRequestId();
             if (okWebSocketClient != null && okWebSocketClient.isConnected()) {
                 okWebSocketClient.updateCallbackEmitter(responseEmitter);
-                okWebSocketClient.sendMessage(message);
+                okWebSocketClient.sendMessage(withRequestId(message, requestId));
             } else {
                 // fallback to Messenger
-                super.sendMessage(message);
+                messengerConnection.updateCallbackEmitter(responseEmitter);
+                messengerConnection.sendMessage(message, requestId);
+            }
+            return withMaxAgeFrames(cancelOnDispose(responseEmitter, false, requestId));
+        }
+    }
+
+    /**
+     * The service frames a response sent over the websocket with a max age, which is only kept for a caching client to read
+     */
+    private Observable<String> withMaxAgeFrames(Observable<String> responses) {
+        return responses.map(new Function<String, String>() {
+            @Override
+            public String apply(String response) throws Exception {
+                return isFramingMaxAge() ? response : FramedMessage.decode(response).getPayload();
             }
-            return responseEmitter;
+        });
+    }
+
+    /**
+     * Websocket frames have nowhere else to carry the request id, so the message is framed with it and the service removes the frame
+     */
+    private static String withRequestId(String message, long requestId) {
+        if (message == null) {
+            return null;
         }
+        return FramedMessage.of(message).withHeader(HEADER_REQUEST_ID, requestId).encode();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * High priority messages are sent via the messenger, so that they do not wait behind large messages queued for the websocket. The service
+     * still replies over the websocket.
+     * </p>
+     */
+    @Override
+    public Observable<String> sendMessage(final String requestData, MessagePriority priority) {
+        if (priority == MessagePriority.NORMAL || !isConnected() || isLocalConnection()) {
+            return sendMessage(requestData);
+        }
+        if (isResponseEmitterDone()) {
+            responseEmitter = PublishSubject.create();
+        }
+        okWebSocketClient.updateCallbackEmitter(responseEmitter);
+        final long requestId = nextRequestId();
+        return withMaxAgeFrames(cancelOnDispose(responseEmitter.doOnSubscribe(new Consumer<Disposable>() {
+            @Override
+            public void accept(Disposable disposable) throws Exception {
+                messengerConnection.sendMessage(requestData, requestId);
+            }
+        }), false, requestId));
+    }
+
+    @Override
+    public Observable<byte[]> sendBinaryMessage(final byte[] requestData) {
+        if (!super.isConnected() || isLocalConnection() || okWebSocketClient == null || !okWebSocketClient.isConnected()) {
+            // connects first if required, or falls back to Messenger
+            return super.sendBinaryMessage(requestData);
+        }
+        ensureBinaryResponseEmitter();
+        okWebSocketClient.updateBinaryCallbackEmitter(binaryResponseEmitter);
+        // binary frames have nowhere to carry a request id, so the cancel is for all the requests sent without one
+        return cancelOnDispose(binaryResponseEmitter.doOnSubscribe(new Consumer<Disposable>() {
+            @Override
+            public void accept(Disposable disposable) throws Exception {
+                okWebSocketClient.sendMessage(requestData);
+            }
+        }), true, NO_REQUEST_ID);
     }
 
     private Observable<String> connectAndSendMessage(final String requestData) {
-        return super.connect().andThen(webSocketSetupCompletable()).andThen(Observable.defer(new Callable<ObservableSource<? extends String>>() {
+        return super.connect().andThen(webSocketSetupIfRemote()).andThen(Observable.defer(new Callable<ObservableSource<? extends String>>() {
             @Override
             public ObservableSource<? extends String> call() throws Exception {
-                return responseEmitter.doOnSubscribe(new Consumer<Disposable>() {
+                if (isLocalConnection()) {
+                    return ObservableWebSocketClient.super.sendMessage(requestData);
+                }
+                final long requestId = nextRequestId();
+                return withMaxAgeFrames(cancelOnDispose(responseEmitter.doOnSubscribe(new Consumer<Disposable>() {
                     @Override
                     public void accept(Disposable disposable) throws Exception {
                         okWebSocketClient.updateCallbackEmitter(responseEmitter);
-                        okWebSocketClient.sendMessage(requestData);
+                        okWebSocketClient.sendMessage(withRequestId(requestData, requestId));
                     }
-                });
+                }), false, requestId));
             }
         }));
     }
@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.client;
+
+import com.aevi.android.rxmessenger.model.FramedMessage;
+
+import static com.aevi.android.rxmessenger.MessageConstants.HEADER_MAX_AGE;
+
+/**
+ * Carries the max age the service sent with a response to a {@link CachingChannelClient}, in a header framing the response.
+ * <p>
+ * Responses are only framed by clients wrapped by a caching client, see {@link ObservableMessengerClient#frameMaxAge()}, which reads the max
+ * age from the frame and passes on the response without it. Other clients receive responses unchanged.
+ * </p>
+ */
+final class ResponseCacheControl {
+
+    static final long NO_MAX_AGE = -1;
+
+    private ResponseCacheControl() {
+    }
+
+    /**
+     * @param response      The response
+     * @param maxAgeSeconds The max age the service sent with the response, or {@link #NO_MAX_AGE}
+     * @return The response framed with its max age, or the response as is if the service did not send one
+     */
+    static String frame(String response, long maxAgeSeconds) {
+        if (response == null || maxAgeSeconds == NO_MAX_AGE) {
+            return response;
+        }
+        return FramedMessage.of(response).withHeader(HEADER_MAX_AGE, maxAgeSeconds).encode();
+    }
+
+    /**
+     * @param response A response that may have been framed by {@link #frame(String, long)}
+     * @return The max age the response was framed with, or {@link #NO_MAX_AGE} if it has none
+     */
+    static long getMaxAgeSeconds(FramedMessage response) {
+        return response.getLongHeader(HEADER_MAX_AGE, NO_MAX_AGE);
+    }
+}
@@ -15,6 +15,8 @@ package com.aevi.android.rxmessenger.client.websocket;
 
 import android.util.Log;
 
+import com.aevi.android.rxmessenger.compression.CompressedFrames;
+import com.aevi.android.rxmessenger.compression.MessageCompressor;
 import com.aevi.android.rxmessenger.model.ConnectionParams;
 
 import java.security.cert.CertificateException;
@@ -35,6 +37,7 @@ import io.reactivex.subjects.PublishSubject;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.WebSocket;
+import okio.ByteString;
 
 /**
  * For internal use only
@@ -49,6 +52,7 @@ public class OkWebSocketClient {
     private final String serverPackageName;
     private WebSocket webSocket;
     private OkWebSocketListener listener;
+    private volatile MessageCompressor messageCompressor;
 
     public OkWebSocketClient(ConnectionParams connectionParams, String serverPackageName) {
         this.connectionParams = connectionParams;
@@ -140,11 +144,37 @@ public class OkWebSocketClient {
         }
     }
 
+    /**
+     * Set once the service has agreed to compression, after which every binary frame starts with its type
+     *
+     * @param messageCompressor The compressor to use
+     */
+    public void setMessageCompressor(MessageCompressor messageCompressor) {
+        this.messageCompressor = messageCompressor;
+    }
+
+    MessageCompressor getMessageCompressor() {
+        return messageCompressor;
+    }
+
     public void sendMessage(String message) {
-        webSocket.send(message);
+        MessageCompressor compressor = messageCompressor;
+        if (compressor != null && compressor.shouldCompress(message)) {
+            webSocket.send(ByteString.of(CompressedFrames.compressedText(compressor, message)));
+        } else {
+            webSocket.send(message);
+        }
+    }
+
+    public void sendMessage(byte[] message) {
+        webSocket.send(ByteString.of(messageCompressor != null ? CompressedFrames.binary(message) : message));
     }
 
     public void updateCallbackEmitter(PublishSubject<String> responseEmitter) {
         listener.updateCallbackEmitter(responseEmitter);
     }
+
+    public void updateBinaryCallbackEmitter(PublishSubject<byte[]> binaryResponseEmitter) {
+        listener.updateBinaryCallbackEmitter(binaryResponseEmitter);
+    }
 }
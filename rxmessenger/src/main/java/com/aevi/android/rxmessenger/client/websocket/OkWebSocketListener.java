@@ -17,11 +17,15 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
+import com.aevi.android.rxmessenger.compression.CompressedFrames;
+import com.aevi.android.rxmessenger.compression.MessageCompressor;
+
 import io.reactivex.CompletableEmitter;
 import io.reactivex.subjects.PublishSubject;
 import okhttp3.Response;
 import okhttp3.WebSocket;
 import okhttp3.WebSocketListener;
+import okio.ByteString;
 
 import static com.aevi.android.rxmessenger.service.WebSocketChannelServer.CLOSE_MESSAGE;
 
@@ -35,6 +39,7 @@ public class OkWebSocketListener extends WebSocketListener {
     private final CompletableEmitter emitter;
     private final OkWebSocketClient okWebSocketClient;
     private PublishSubject<String> responseEmitter;
+    private PublishSubject<byte[]> binaryResponseEmitter;
 
     OkWebSocketListener(OkWebSocketClient okWebSocketClient, CompletableEmitter emitter) {
         this.emitter = emitter;
@@ -54,6 +59,9 @@ public class OkWebSocketListener extends WebSocketListener {
                 public void run() {
                     if (CLOSE_MESSAGE.equals(text)) {
                         responseEmitter.onComplete();
+                        if (binaryResponseEmitter != null) {
+                            binaryResponseEmitter.onComplete();
+                        }
                         okWebSocketClient.close();
                     } else {
                         if (responseEmitter != null) {
@@ -67,6 +75,31 @@ public class OkWebSocketListener extends WebSocketListener {
         }
     }
 
+    @Override
+    public void onMessage(WebSocket webSocket, ByteString bytes) {
+        byte[] frame = bytes.toByteArray();
+        MessageCompressor compressor = okWebSocketClient.getMessageCompressor();
+        if (compressor != null && CompressedFrames.isCompressedText(frame)) {
+            try {
+                onMessage(webSocket, CompressedFrames.decompressText(compressor, frame));
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Invalid compressed message", e);
+            }
+            return;
+        }
+        final byte[] message = compressor != null ? CompressedFrames.payload(frame) : frame;
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                if (binaryResponseEmitter != null) {
+                    binaryResponseEmitter.onNext(message);
+                } else {
+                    Log.d(TAG, "Receieved binary message but no response emitter to pass it to");
+                }
+            }
+        });
+    }
+
     @Override
     public void onClosed(WebSocket webSocket, int code, String reason) {
         Log.d(TAG, "Websocket closed");
@@ -76,6 +109,9 @@ public class OkWebSocketListener extends WebSocketListener {
                 if (responseEmitter != null) {
                     responseEmitter.onComplete();
                 }
+                if (binaryResponseEmitter != null) {
+                    binaryResponseEmitter.onComplete();
+                }
             }
         });
     }
@@ -88,4 +124,8 @@ public class OkWebSocketListener extends WebSocketListener {
     void updateCallbackEmitter(PublishSubject<String> responseEmitter) {
         this.responseEmitter = responseEmitter;
     }
+
+    void updateBinaryCallbackEmitter(PublishSubject<byte[]> binaryResponseEmitter) {
+        this.binaryResponseEmitter = binaryResponseEmitter;
+    }
 }
@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.codec;
+
+/**
+ * Converts between message objects and the bytes they are sent as, using the binary messages of a channel so that no intermediate String is
+ * created
+ *
+ * @param <T> The type of message this codec handles
+ */
+public interface BinaryMessageCodec<T> {
+
+    /**
+     * @param message The message to encode
+     * @return The message encoded as bytes
+     * @throws CodecException if the message can not be encoded
+     */
+    byte[] encodeBinary(T message);
+
+    /**
+     * @param message The bytes to decode
+     * @return The decoded message
+     * @throws CodecException if the bytes can not be decoded
+     */
+    T decodeBinary(byte[] message);
+}
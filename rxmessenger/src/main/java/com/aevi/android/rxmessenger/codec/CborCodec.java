@@ -0,0 +1,281 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.codec;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * A compact binary codec that encodes messages as <a href="https://tools.ietf.org/html/rfc7049">CBOR</a>.
+ * <p>
+ * Messages are mapped to and from a JSON tree using Gson, so any class that works with {@link GsonCodec} can be used with this codec. The tree is
+ * then written as CBOR, which avoids the quoting and number formatting of JSON text and is typically noticeably smaller. Only the subset of CBOR
+ * needed to represent JSON is supported (definite lengths, integers, doubles, strings, arrays, maps, booleans and null).
+ * </p>
+ *
+ * @param <T> The type of message this codec handles
+ */
+public class CborCodec<T> implements BinaryMessageCodec<T> {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_SIMPLE = 7;
+
+    private static final int SIMPLE_FALSE = 20;
+    private static final int SIMPLE_TRUE = 21;
+    private static final int SIMPLE_NULL = 22;
+    private static final int HALF_FLOAT = 25;
+    private static final int SINGLE_FLOAT = 26;
+    private static final int DOUBLE_FLOAT = 27;
+
+    private static final BigDecimal MIN_LONG = BigDecimal.valueOf(Long.MIN_VALUE);
+    private static final BigDecimal MAX_LONG = BigDecimal.valueOf(Long.MAX_VALUE);
+
+    private final Gson gson;
+    private final Type type;
+
+    /**
+     * @param type The class of the messages
+     */
+    public CborCodec(Class<T> type) {
+        this(new GsonBuilder().create(), type);
+    }
+
+    /**
+     * @param gson The Gson instance used to map messages to and from a JSON tree
+     * @param type The type of the messages, which may be a generic type
+     */
+    public CborCodec(Gson gson, Type type) {
+        this.gson = gson;
+        this.type = type;
+    }
+
+    @Override
+    public byte[] encodeBinary(T message) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, gson.toJsonTree(message, type));
+        return out.toByteArray();
+    }
+
+    @Override
+    public T decodeBinary(byte[] message) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(message);
+            JsonElement element = read(in);
+            if (in.hasRemaining()) {
+                throw new CodecException("Unexpected data after CBOR message");
+            }
+            return gson.fromJson(element, type);
+        } catch (BufferUnderflowException e) {
+            throw new CodecException("Truncated CBOR message", e);
+        } catch (JsonParseException e) {
+            throw new CodecException("Unable to decode message as " + type, e);
+        }
+    }
+
+    private static void write(ByteArrayOutputStream out, JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            out.write(MAJOR_SIMPLE << 5 | SIMPLE_NULL);
+        } else if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            writeHeader(out, MAJOR_MAP, object.size());
+            for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                writeText(out, entry.getKey());
+                write(out, entry.getValue());
+            }
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            writeHeader(out, MAJOR_ARRAY, array.size());
+            for (JsonElement item : array) {
+                write(out, item);
+            }
+        } else {
+            writePrimitive(out, element.getAsJsonPrimitive());
+        }
+    }
+
+    private static void writePrimitive(ByteArrayOutputStream out, JsonPrimitive primitive) {
+        if (primitive.isBoolean()) {
+            out.write(MAJOR_SIMPLE << 5 | (primitive.getAsBoolean() ? SIMPLE_TRUE : SIMPLE_FALSE));
+        } else if (primitive.isNumber()) {
+            BigDecimal value = primitive.getAsBigDecimal();
+            if (isLong(value)) {
+                long longValue = value.longValueExact();
+                if (longValue >= 0) {
+                    writeHeader(out, MAJOR_UNSIGNED, longValue);
+                } else {
+                    writeHeader(out, MAJOR_NEGATIVE, -1 - longValue);
+                }
+            } else {
+                out.write(MAJOR_SIMPLE << 5 | DOUBLE_FLOAT);
+                writeLong(out, Double.doubleToLongBits(value.doubleValue()), 8);
+            }
+        } else {
+            writeText(out, primitive.getAsString());
+        }
+    }
+
+    private static boolean isLong(BigDecimal value) {
+        return (value.scale() <= 0 || value.stripTrailingZeros().scale() <= 0) && value.compareTo(MIN_LONG) >= 0 && value.compareTo(MAX_LONG) <= 0;
+    }
+
+    private static void writeText(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(UTF_8);
+        writeHeader(out, MAJOR_TEXT, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeHeader(ByteArrayOutputStream out, int majorType, long value) {
+        int major = majorType << 5;
+        if (value < 24) {
+            out.write(major | (int) value);
+        } else if (value <= 0xFF) {
+            out.write(major | 24);
+            writeLong(out, value, 1);
+        } else if (value <= 0xFFFF) {
+            out.write(major | 25);
+            writeLong(out, value, 2);
+        } else if (value <= 0xFFFFFFFFL) {
+            out.write(major | 26);
+            writeLong(out, value, 4);
+        } else {
+            out.write(major | 27);
+            writeLong(out, value, 8);
+        }
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value, int bytes) {
+        for (int i = bytes - 1; i >= 0; i--) {
+            out.write((int) (value >>> (i * 8)) & 0xFF);
+        }
+    }
+
+    private static JsonElement read(ByteBuffer in) {
+        int initial = in.get() & 0xFF;
+        int majorType = initial >>> 5;
+        int additional = initial & 0x1F;
+        switch (majorType) {
+            case MAJOR_UNSIGNED:
+                return new JsonPrimitive(readLength(in, additional));
+            case MAJOR_NEGATIVE:
+                return new JsonPrimitive(-1 - readLength(in, additional));
+            case MAJOR_TEXT:
+                byte[] text = new byte[readSize(in, additional)];
+                in.get(text);
+                return new JsonPrimitive(new String(text, UTF_8));
+            case MAJOR_ARRAY:
+                int arraySize = readSize(in, additional);
+                JsonArray array = new JsonArray();
+                for (int i = 0; i < arraySize; i++) {
+                    array.add(read(in));
+                }
+                return array;
+            case MAJOR_MAP:
+                int mapSize = readSize(in, additional);
+                JsonObject object = new JsonObject();
+                for (int i = 0; i < mapSize; i++) {
+                    JsonElement key = read(in);
+                    if (!key.isJsonPrimitive() || !key.getAsJsonPrimitive().isString()) {
+                        throw new CodecException("Only text keys are supported in CBOR maps");
+                    }
+                    object.add(key.getAsString(), read(in));
+                }
+                return object;
+            case MAJOR_SIMPLE:
+                return readSimple(in, additional);
+            case MAJOR_BYTES:
+            default:
+                throw new CodecException("Unsupported CBOR major type: " + majorType);
+        }
+    }
+
+    private static JsonElement readSimple(ByteBuffer in, int additional) {
+        switch (additional) {
+            case SIMPLE_FALSE:
+                return new JsonPrimitive(false);
+            case SIMPLE_TRUE:
+                return new JsonPrimitive(true);
+            case SIMPLE_NULL:
+                return JsonNull.INSTANCE;
+            case HALF_FLOAT:
+                return new JsonPrimitive(halfToDouble(in.getShort() & 0xFFFF));
+            case SINGLE_FLOAT:
+                return new JsonPrimitive(in.getFloat());
+            case DOUBLE_FLOAT:
+                return new JsonPrimitive(in.getDouble());
+            default:
+                throw new CodecException("Unsupported CBOR simple value: " + additional);
+        }
+    }
+
+    private static double halfToDouble(int half) {
+        int exponent = (half >> 10) & 0x1F;
+        int mantissa = half & 0x3FF;
+        double value;
+        if (exponent == 0) {
+            value = mantissa * Math.pow(2, -24);
+        } else if (exponent == 0x1F) {
+            value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        } else {
+            value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+        }
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+
+    private static int readSize(ByteBuffer in, int additional) {
+        long size = readLength(in, additional);
+        if (size < 0 || size > in.remaining()) {
+            throw new CodecException("Invalid CBOR length: " + size);
+        }
+        return (int) size;
+    }
+
+    private static long readLength(ByteBuffer in, int additional) {
+        if (additional < 24) {
+            return additional;
+        }
+        switch (additional) {
+            case 24:
+                return in.get() & 0xFF;
+            case 25:
+                return in.getShort() & 0xFFFF;
+            case 26:
+                return in.getInt() & 0xFFFFFFFFL;
+            case 27:
+                return in.getLong();
+            default:
+                throw new CodecException("Indefinite length CBOR items are not supported");
+        }
+    }
+}
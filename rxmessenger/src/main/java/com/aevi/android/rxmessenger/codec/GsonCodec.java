@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.codec;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import java.lang.reflect.Type;
+
+/**
+ * A text codec that converts messages to and from JSON using Gson
+ *
+ * @param <T> The type of message this codec handles
+ */
+public class GsonCodec<T> implements TextMessageCodec<T> {
+
+    private final Gson gson;
+    private final Type type;
+
+    /**
+     * @param type The class of the messages
+     */
+    public GsonCodec(Class<T> type) {
+        this(new GsonBuilder().create(), type);
+    }
+
+    /**
+     * @param gson The Gson instance to use, e.g. with custom type adapters registered
+     * @param type The type of the messages, which may be a generic type
+     */
+    public GsonCodec(Gson gson, Type type) {
+        this.gson = gson;
+        this.type = type;
+    }
+
+    @Override
+    public String encodeText(T message) {
+        return gson.toJson(message, type);
+    }
+
+    @Override
+    public T decodeText(String message) {
+        try {
+            return gson.fromJson(message, type);
+        } catch (JsonParseException e) {
+            throw new CodecException("Unable to decode message as " + type, e);
+        }
+    }
+}
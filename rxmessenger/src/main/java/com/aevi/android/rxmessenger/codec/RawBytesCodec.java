@@ -0,0 +1,30 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.codec;
+
+/**
+ * A binary codec that passes byte arrays through unchanged
+ */
+public class RawBytesCodec implements BinaryMessageCodec<byte[]> {
+
+    @Override
+    public byte[] encodeBinary(byte[] message) {
+        return message;
+    }
+
+    @Override
+    public byte[] decodeBinary(byte[] message) {
+        return message;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.codec;
+
+/**
+ * Converts between message objects and the text they are sent as, using the String messages of a channel
+ *
+ * @param <T> The type of message this codec handles
+ */
+public interface TextMessageCodec<T> {
+
+    /**
+     * @param message The message to encode
+     * @return The message encoded as text
+     * @throws CodecException if the message can not be encoded
+     */
+    String encodeText(T message);
+
+    /**
+     * @param message The text to decode
+     * @return The decoded message
+     * @throws CodecException if the text can not be decoded
+     */
+    T decodeText(String message);
+}
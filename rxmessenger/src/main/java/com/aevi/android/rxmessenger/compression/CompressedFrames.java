@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.compression;
+
+import static com.aevi.android.rxmessenger.MessageConstants.FRAME_TYPE_BINARY;
+import static com.aevi.android.rxmessenger.MessageConstants.FRAME_TYPE_DEFLATED_TEXT;
+
+/**
+ * Helpers for websocket binary frames once the client and service have agreed to use compression. Compressed text messages are sent as binary
+ * frames, so every binary frame starts with a byte giving its type.
+ * <p>
+ * For internal use only
+ * </p>
+ */
+public final class CompressedFrames {
+
+    private CompressedFrames() {
+    }
+
+    /**
+     * @param compressor The compressor to use
+     * @param message    The text message
+     * @return A binary frame containing the compressed message
+     */
+    public static byte[] compressedText(MessageCompressor compressor, String message) {
+        return withType(FRAME_TYPE_DEFLATED_TEXT, compressor.compress(message));
+    }
+
+    /**
+     * @param compressed A text message already compressed with the agreed compressor
+     * @return A binary frame containing the compressed message
+     */
+    public static byte[] compressedText(byte[] compressed) {
+        return withType(FRAME_TYPE_DEFLATED_TEXT, compressed);
+    }
+
+    /**
+     * @param message The binary message
+     * @return A binary frame containing the message
+     */
+    public static byte[] binary(byte[] message) {
+        return withType(FRAME_TYPE_BINARY, message);
+    }
+
+    /**
+     * @param frame The frame received
+     * @return True if the frame contains a compressed text message
+     */
+    public static boolean isCompressedText(byte[] frame) {
+        return frame.length > 0 && frame[0] == FRAME_TYPE_DEFLATED_TEXT;
+    }
+
+    /**
+     * @param compressor The compressor to use
+     * @param frame      A frame for which {@link #isCompressedText(byte[])} is true
+     * @return The text message
+     */
+    public static String decompressText(MessageCompressor compressor, byte[] frame) {
+        return compressor.decompress(payload(frame));
+    }
+
+    /**
+     * @param frame The frame received
+     * @return The message in the frame, without the type
+     */
+    public static byte[] payload(byte[] frame) {
+        if (frame.length == 0) {
+            return frame;
+        }
+        byte[] payload = new byte[frame.length - 1];
+        System.arraycopy(frame, 1, payload, 0, payload.length);
+        return payload;
+    }
+
+    private static byte[] withType(byte type, byte[] payload) {
+        byte[] frame = new byte[payload.length + 1];
+        frame[0] = type;
+        System.arraycopy(payload, 0, frame, 1, payload.length);
+        return frame;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.compression;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A preset dictionary for deflate, identified by an id that the client and service use to agree on which dictionary to use.
+ * <p>
+ * Small messages compress poorly with plain deflate as every message starts with an empty window. A dictionary containing the keys and values
+ * that most messages share fills the window before each message, so that even the first occurrence of a key can be replaced by a reference.
+ * The most frequently used strings should be at the end of the dictionary, as closer references are encoded in fewer bits. See
+ * {@link CompressionDictionaryBuilder} to create a dictionary from captured messages.
+ * </p>
+ * <p>
+ * A dictionary must never be changed once it has been released, as a client and service using different content under the same id will fail
+ * to decompress each other's messages. Use a new id instead, e.g. "basket-v2".
+ * </p>
+ */
+public final class CompressionDictionary {
+
+    /**
+     * The largest useful dictionary size, as deflate can only refer back 32KB
+     */
+    public static final int MAX_SIZE = 32 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String id;
+    private final byte[] content;
+
+    /**
+     * @param id      The id of the dictionary, which must be the same in the client and service
+     * @param content The dictionary content, at most {@link #MAX_SIZE} bytes are used
+     */
+    public CompressionDictionary(String id, byte[] content) {
+        if (id == null || id.isEmpty()) {
+            throw new IllegalArgumentException("Dictionary id must be set");
+        }
+        this.id = id;
+        this.content = content.length > MAX_SIZE ? Arrays.copyOfRange(content, content.length - MAX_SIZE, content.length) : content.clone();
+    }
+
+    /**
+     * @param id      The id of the dictionary, which must be the same in the client and service
+     * @param content The dictionary content, e.g. a typical message
+     */
+    public CompressionDictionary(String id, String content) {
+        this(id, content.getBytes(UTF8));
+    }
+
+    /**
+     * @return The id of the dictionary
+     */
+    public String getId() {
+        return id;
+    }
+
+    byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * @return The size of the dictionary in bytes
+     */
+    public int size() {
+        return content.length;
+    }
+}
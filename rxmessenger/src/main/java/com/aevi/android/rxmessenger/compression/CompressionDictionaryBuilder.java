@@ -0,0 +1,226 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.compression;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds a {@link CompressionDictionary} from a corpus of captured messages.
+ * <p>
+ * Each message is split into fragments, which are the keys (e.g. <code>"currency":</code>) and the members of objects and arrays (e.g.
+ * <code>"currency":"GBP",</code>). Fragments found in at least {@link #setMinOccurrences(int) the minimum number} of messages are scored by the
+ * number of messages containing them multiplied by their length, and the best are added to the dictionary until it reaches the maximum size.
+ * The highest scoring fragments are placed at the end of the dictionary, where references to them are cheapest.
+ * </p>
+ * <p>
+ * Larger dictionaries are not always better, as the dictionary is loaded for every message compressed. The default maximum size of
+ * {@link #DEFAULT_MAX_SIZE} bytes suits messages of a few KB.
+ * </p>
+ * <p>
+ * The builder can also be run from the command line, with a file of messages (one per line) as input:
+ * {@code java com.aevi.android.rxmessenger.compression.CompressionDictionaryBuilder <corpus> <output> [maxSize]}
+ * </p>
+ */
+public class CompressionDictionaryBuilder {
+
+    /**
+     * The default maximum size of the dictionary, in bytes
+     */
+    public static final int DEFAULT_MAX_SIZE = 4096;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MIN_FRAGMENT_LENGTH = 3;
+
+    private final Map<String, Integer> fragmentCounts = new HashMap<>();
+    private int samples;
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private int minOccurrences = 2;
+
+    /**
+     * @param maxSize The maximum size of the dictionary, in bytes
+     * @return This builder
+     */
+    public CompressionDictionaryBuilder setMaxSize(int maxSize) {
+        this.maxSize = Math.min(maxSize, CompressionDictionary.MAX_SIZE);
+        return this;
+    }
+
+    /**
+     * @param minOccurrences The minimum number of messages a fragment must be found in to be added to the dictionary
+     * @return This builder
+     */
+    public CompressionDictionaryBuilder setMinOccurrences(int minOccurrences) {
+        this.minOccurrences = minOccurrences;
+        return this;
+    }
+
+    /**
+     * @param message A message typical of those that will be compressed with the dictionary
+     * @return This builder
+     */
+    public CompressionDictionaryBuilder addSample(String message) {
+        for (String fragment : getFragments(message)) {
+            Integer count = fragmentCounts.get(fragment);
+            fragmentCounts.put(fragment, count == null ? 1 : count + 1);
+        }
+        samples++;
+        return this;
+    }
+
+    /**
+     * @return The number of samples added
+     */
+    public int getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * @param id The id to give the dictionary
+     * @return The dictionary
+     */
+    public CompressionDictionary build(String id) {
+        List<Map.Entry<String, Integer>> candidates = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : fragmentCounts.entrySet()) {
+            if (entry.getValue() >= minOccurrences) {
+                candidates.add(entry);
+            }
+        }
+        Collections.sort(candidates, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2) {
+                int result = compareLong(score(e2), score(e1));
+                return result != 0 ? result : e1.getKey().compareTo(e2.getKey());
+            }
+        });
+
+        // best first, skipping fragments already covered by a better one
+        List<String> selected = new ArrayList<>();
+        StringBuilder covered = new StringBuilder();
+        int size = 0;
+        for (Map.Entry<String, Integer> candidate : candidates) {
+            String fragment = candidate.getKey();
+            int length = fragment.getBytes(UTF8).length;
+            if (size + length > maxSize || covered.indexOf(fragment) >= 0) {
+                continue;
+            }
+            selected.add(fragment);
+            covered.append(fragment).append('\n');
+            size += length;
+        }
+
+        StringBuilder content = new StringBuilder(size);
+        for (int i = selected.size() - 1; i >= 0; i--) {
+            content.append(selected.get(i));
+        }
+        return new CompressionDictionary(id, content.toString());
+    }
+
+    private static long score(Map.Entry<String, Integer> entry) {
+        return (long) entry.getValue() * entry.getKey().length();
+    }
+
+    private static int compareLong(long l1, long l2) {
+        return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+    }
+
+    /**
+     * Split the message into keys and members, each counted once per message.
+     */
+    static Set<String> getFragments(String message) {
+        Set<String> fragments = new HashSet<>();
+        int memberStart = 0;
+        int stringStart = -1;
+        boolean escaped = false;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (stringStart >= 0) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    int end = i + 1;
+                    if (end < message.length() && message.charAt(end) == ':') {
+                        addFragment(fragments, message.substring(stringStart, end + 1));
+                    }
+                    stringStart = -1;
+                }
+            } else if (c == '"') {
+                stringStart = i;
+            } else if (c == '{' || c == '[') {
+                memberStart = i + 1;
+            } else if (c == ',' || c == '}' || c == ']') {
+                addFragment(fragments, message.substring(memberStart, i + 1));
+                memberStart = i + 1;
+            }
+        }
+        return fragments;
+    }
+
+    private static void addFragment(Set<String> fragments, String fragment) {
+        if (fragment.length() >= MIN_FRAGMENT_LENGTH) {
+            fragments.add(fragment);
+        }
+    }
+
+    /**
+     * Build a dictionary from a file containing one message per line, and write its content to the output file.
+     *
+     * @param args The corpus file, the output file and optionally the maximum size
+     * @throws IOException If the files cannot be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CompressionDictionaryBuilder <corpus> <output> [maxSize]");
+            System.exit(1);
+        }
+        CompressionDictionaryBuilder builder = new CompressionDictionaryBuilder();
+        if (args.length > 2) {
+            builder.setMaxSize(Integer.parseInt(args[2]));
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    builder.addSample(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        CompressionDictionary dictionary = builder.build(args[1]);
+        OutputStream out = new FileOutputStream(args[1]);
+        try {
+            out.write(dictionary.getContent());
+        } finally {
+            out.close();
+        }
+        System.out.println("Wrote " + dictionary.size() + " byte dictionary from " + builder.getSampleCount() + " messages to " + args[1]);
+    }
+}
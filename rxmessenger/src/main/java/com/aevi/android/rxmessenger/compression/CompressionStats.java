@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.compression;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the messages compressed and decompressed by a {@link MessageCompressor}.
+ * <p>
+ * The counters are updated as messages are sent and received, so the values returned by the getters may change between calls.
+ * </p>
+ */
+public final class CompressionStats {
+
+    private final AtomicLong compressedMessages = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressCpuTimeNanos = new AtomicLong();
+    private final AtomicLong decompressedMessages = new AtomicLong();
+    private final AtomicLong decompressCpuTimeNanos = new AtomicLong();
+
+    CompressionStats() {
+    }
+
+    void recordCompression(int originalLength, int compressedLength, long cpuTimeNanos) {
+        compressedMessages.incrementAndGet();
+        uncompressedBytes.addAndGet(originalLength);
+        compressedBytes.addAndGet(compressedLength);
+        compressCpuTimeNanos.addAndGet(cpuTimeNanos);
+    }
+
+    void recordDecompression(long cpuTimeNanos) {
+        decompressedMessages.incrementAndGet();
+        decompressCpuTimeNanos.addAndGet(cpuTimeNanos);
+    }
+
+    /**
+     * @return The number of messages compressed
+     */
+    public long getCompressedMessages() {
+        return compressedMessages.get();
+    }
+
+    /**
+     * @return The total size in bytes of the messages compressed, before compression
+     */
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    /**
+     * @return The total size in bytes of the messages compressed, after compression
+     */
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * @return The original size of the messages compressed divided by their compressed size, or 1 if nothing has been compressed yet
+     */
+    public double getCompressionRatio() {
+        long compressed = compressedBytes.get();
+        return compressed == 0 ? 1 : (double) uncompressedBytes.get() / compressed;
+    }
+
+    /**
+     * @return The thread CPU time spent compressing messages, in nanoseconds
+     */
+    public long getCompressCpuTimeNanos() {
+        return compressCpuTimeNanos.get();
+    }
+
+    /**
+     * @return The number of messages decompressed
+     */
+    public long getDecompressedMessages() {
+        return decompressedMessages.get();
+    }
+
+    /**
+     * @return The thread CPU time spent decompressing messages, in nanoseconds
+     */
+    public long getDecompressCpuTimeNanos() {
+        return decompressCpuTimeNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "compressed %d messages (%d -> %d bytes, ratio %.2f) in %dus, decompressed %d messages in %dus",
+                             getCompressedMessages(), getUncompressedBytes(), getCompressedBytes(), getCompressionRatio(),
+                             getCompressCpuTimeNanos() / 1000, getDecompressedMessages(), getDecompressCpuTimeNanos() / 1000);
+    }
+}
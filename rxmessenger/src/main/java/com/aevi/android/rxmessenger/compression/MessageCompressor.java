@@ -0,0 +1,307 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.compression;
+
+import android.os.Debug;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses messages with deflate, for channels where the client and service have agreed to use compression.
+ * <p>
+ * Only messages at or above the threshold size are compressed, as small messages gain little and compressing them costs more CPU time than it
+ * saves in copying. {@link Deflater} and {@link Inflater} instances hold native memory and are expensive to create, so a small number of them are
+ * pooled and reused. A single instance can be shared by many channels and used from any thread.
+ * </p>
+ * <p>
+ * The ratio achieved and the CPU time spent are recorded in the {@link CompressionStats} returned by {@link #getStats()}.
+ * </p>
+ * <p>
+ * Preset {@link CompressionDictionary dictionaries} can be given to greatly improve the ratio for small messages. The client offers the ids of
+ * its dictionaries in order of preference and the service picks the first one it also has. The compressor used for a channel is then obtained
+ * via {@link #forDictionary(CompressionDictionary)}.
+ * </p>
+ */
+public class MessageCompressor {
+
+    /**
+     * The default size, in characters, at or above which messages are compressed
+     */
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    /**
+     * The default size, in bytes, above which a decompressed message is rejected
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    private static final int MAX_POOLED = 4;
+    private static final int BUFFER_SIZE = 4096;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int threshold;
+    private final int level;
+    private final int maxMessageSize;
+    private final Queue<Deflater> deflaters;
+    private final Queue<Inflater> inflaters;
+    private final CompressionStats stats;
+    private final Map<String, CompressionDictionary> dictionaries;
+    private final CompressionDictionary dictionary;
+
+    /**
+     * Create an instance using the {@link #DEFAULT_THRESHOLD default threshold}.
+     */
+    public MessageCompressor() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param threshold The size, in characters, at or above which messages are compressed
+     */
+    public MessageCompressor(int threshold) {
+        this(threshold, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param threshold The size, in characters, at or above which messages are compressed
+     * @param level     The deflate compression level (0-9)
+     */
+    public MessageCompressor(int threshold, int level) {
+        this(threshold, level, new CompressionDictionary[0]);
+    }
+
+    /**
+     * @param threshold    The size, in characters, at or above which messages are compressed
+     * @param dictionaries The preset dictionaries supported, in order of preference
+     */
+    public MessageCompressor(int threshold, CompressionDictionary... dictionaries) {
+        this(threshold, Deflater.DEFAULT_COMPRESSION, dictionaries);
+    }
+
+    /**
+     * @param threshold    The size, in characters, at or above which messages are compressed
+     * @param level        The deflate compression level (0-9)
+     * @param dictionaries The preset dictionaries supported, in order of preference
+     */
+    public MessageCompressor(int threshold, int level, CompressionDictionary... dictionaries) {
+        this(threshold, level, DEFAULT_MAX_MESSAGE_SIZE, dictionaries);
+    }
+
+    /**
+     * @param threshold      The size, in characters, at or above which messages are compressed
+     * @param level          The deflate compression level (0-9)
+     * @param maxMessageSize The size, in bytes, above which a decompressed message is rejected
+     * @param dictionaries   The preset dictionaries supported, in order of preference
+     */
+    public MessageCompressor(int threshold, int level, int maxMessageSize, CompressionDictionary... dictionaries) {
+        this.threshold = threshold;
+        this.level = level;
+        this.maxMessageSize = maxMessageSize;
+        this.deflaters = new ConcurrentLinkedQueue<>();
+        this.inflaters = new ConcurrentLinkedQueue<>();
+        this.stats = new CompressionStats();
+        Map<String, CompressionDictionary> dictionaryMap = new LinkedHashMap<>();
+        for (CompressionDictionary dictionary : dictionaries) {
+            dictionaryMap.put(dictionary.getId(), dictionary);
+        }
+        this.dictionaries = Collections.unmodifiableMap(dictionaryMap);
+        this.dictionary = null;
+    }
+
+    private MessageCompressor(MessageCompressor parent, CompressionDictionary dictionary) {
+        this.threshold = parent.threshold;
+        this.level = parent.level;
+        this.maxMessageSize = parent.maxMessageSize;
+        this.deflaters = parent.deflaters;
+        this.inflaters = parent.inflaters;
+        this.stats = parent.stats;
+        this.dictionaries = parent.dictionaries;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * @return The size, in characters, at or above which messages are compressed
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return The size, in bytes, above which a decompressed message is rejected
+     */
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * @return The ids of the dictionaries supported, in order of preference
+     */
+    public String[] getDictionaryIds() {
+        return dictionaries.keySet().toArray(new String[dictionaries.size()]);
+    }
+
+    /**
+     * @param id The id of the dictionary
+     * @return The dictionary, or null if it is not supported by this compressor
+     */
+    @Nullable
+    public CompressionDictionary getDictionary(String id) {
+        return id != null ? dictionaries.get(id) : null;
+    }
+
+    /**
+     * @return The dictionary used by this compressor, or null if messages are compressed without a dictionary
+     */
+    @Nullable
+    public CompressionDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Obtain a compressor that uses the dictionary given. The compressor returned shares the pooled instances and statistics of this one.
+     *
+     * @param dictionary The dictionary to use, or null to compress without one
+     * @return The compressor
+     */
+    public MessageCompressor forDictionary(@Nullable CompressionDictionary dictionary) {
+        if (dictionary == this.dictionary) {
+            return this;
+        }
+        return new MessageCompressor(this, dictionary);
+    }
+
+    /**
+     * @return The statistics for all messages compressed and decompressed by this instance
+     */
+    public CompressionStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @param message The message to send
+     * @return True if the message is large enough to be compressed
+     */
+    public boolean shouldCompress(String message) {
+        return message != null && message.length() >= threshold;
+    }
+
+    /**
+     * @param message The message to compress
+     * @return The deflated UTF-8 bytes of the message
+     */
+    public byte[] compress(String message) {
+        long start = cpuTimeNanos();
+        byte[] input = message.getBytes(UTF8);
+        Deflater deflater = obtainDeflater();
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary.getContent());
+            }
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, input.length / 4));
+            byte[] buffer = new byte[Math.min(BUFFER_SIZE, input.length + 64)];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+            byte[] compressed = out.toByteArray();
+            stats.recordCompression(input.length, compressed.length, cpuTimeNanos() - start);
+            return compressed;
+        } finally {
+            release(deflater);
+        }
+    }
+
+    /**
+     * @param compressed The bytes created by {@link #compress(String)} of a compressor using the same dictionary
+     * @return The original message
+     * @throws IllegalArgumentException If the bytes given are not a valid compressed message, or the message is larger than the
+     *                                  {@link #getMaxMessageSize() maximum size}
+     */
+    public String decompress(byte[] compressed) {
+        long start = cpuTimeNanos();
+        Inflater inflater = obtainInflater();
+        try {
+            if (dictionary != null) {
+                // raw inflate never asks for the dictionary, so it must be set up front
+                inflater.setDictionary(dictionary.getContent());
+            }
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(compressed.length * 4L, maxMessageSize));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Compressed message is truncated or needs a dictionary");
+                }
+                // checked as it is inflated, so a small message that inflates to a huge one is rejected before it uses up the memory
+                if (out.size() + length > maxMessageSize) {
+                    throw new IllegalArgumentException("Decompressed message is larger than the maximum of " + maxMessageSize + " bytes");
+                }
+                out.write(buffer, 0, length);
+            }
+            String message = new String(out.toByteArray(), UTF8);
+            stats.recordDecompression(cpuTimeNanos() - start);
+            return message;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid compressed message", e);
+        } finally {
+            release(inflater);
+        }
+    }
+
+    private Deflater obtainDeflater() {
+        Deflater deflater = deflaters.poll();
+        // raw deflate, the channel already knows the message is compressed so the zlib header and checksum are not needed
+        return deflater != null ? deflater : new Deflater(level, true);
+    }
+
+    private Inflater obtainInflater() {
+        Inflater inflater = inflaters.poll();
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    private void release(Deflater deflater) {
+        deflater.reset();
+        if (deflaters.size() < MAX_POOLED) {
+            deflaters.offer(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    private void release(Inflater inflater) {
+        inflater.reset();
+        if (inflaters.size() < MAX_POOLED) {
+            inflaters.offer(inflater);
+        } else {
+            inflater.end();
+        }
+    }
+
+    private static long cpuTimeNanos() {
+        long cpuTime = Debug.threadCpuTimeNanos();
+        return cpuTime >= 0 ? cpuTime : System.nanoTime();
+    }
+}
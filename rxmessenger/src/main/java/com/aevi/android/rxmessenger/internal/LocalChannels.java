@@ -0,0 +1,202 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.internal;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Messenger;
+
+import com.aevi.android.rxmessenger.MessageException;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps track of the binders returned by {@link com.aevi.android.rxmessenger.service.AbstractChannelService} instances running in this process.
+ * <p>
+ * When a client binds to a service in its own process, Android hands it the same binder object the service returned. This allows the client to
+ * detect that the service is local and to pass messages directly to the {@link com.aevi.android.rxmessenger.ChannelServer}, without bundling,
+ * parcelling or going through a {@link Messenger}.
+ * </p>
+ * <p>
+ * This class is not part of the public API of the library. It is only public so that the client and service packages can share it, is excluded
+ * from the javadoc and may change in any release.
+ * </p>
+ */
+public final class LocalChannels {
+
+    private static final Map<IBinder, WeakReference<Endpoint>> SERVICES = new WeakHashMap<>();
+
+    private LocalChannels() {
+    }
+
+    /**
+     * Register the endpoint of a service for the binder it returns from onBind()
+     *
+     * @param binder   The binder returned by the service
+     * @param endpoint The endpoint that hands local messages to the service, only weakly referenced
+     */
+    public static void register(IBinder binder, Endpoint endpoint) {
+        if (binder != null) {
+            synchronized (SERVICES) {
+                SERVICES.put(binder, new WeakReference<>(endpoint));
+            }
+        }
+    }
+
+    /**
+     * Remove all registrations of an endpoint
+     *
+     * @param endpoint The endpoint of a service that is being destroyed
+     */
+    public static void unregister(Endpoint endpoint) {
+        synchronized (SERVICES) {
+            Iterator<WeakReference<Endpoint>> iterator = SERVICES.values().iterator();
+            while (iterator.hasNext()) {
+                Endpoint registered = iterator.next().get();
+                if (registered == null || registered == endpoint) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private static Endpoint getEndpoint(IBinder binder) {
+        if (binder == null) {
+            return null;
+        }
+        synchronized (SERVICES) {
+            WeakReference<Endpoint> endpointRef = SERVICES.get(binder);
+            return endpointRef != null ? endpointRef.get() : null;
+        }
+    }
+
+    /**
+     * @param binder The binder received when binding to a service
+     * @return True if the binder belongs to a service running in this process
+     */
+    public static boolean isLocal(IBinder binder) {
+        return getEndpoint(binder) != null;
+    }
+
+    /**
+     * Send a message directly to a service running in this process
+     *
+     * @param binder            The binder received when binding to the service
+     * @param clientId          The id of the client
+     * @param channelType       The channel type of the client
+     * @param clientPackageName The package name of the client
+     * @param message           The message to send
+     * @param extras            Any extra values the client sends with each message, may be null
+     * @param receiver          The receiver for messages sent back by the service
+     * @return True if the message was passed to the service, false if the service is no longer available
+     */
+    public static boolean send(IBinder binder, String clientId, String channelType, String clientPackageName, String message, Bundle extras,
+                               Receiver receiver) {
+        return sendLocal(binder, clientId, channelType, clientPackageName, message, extras, receiver);
+    }
+
+    /**
+     * Send a binary message directly to a service running in this process
+     *
+     * @param binder            The binder received when binding to the service
+     * @param clientId          The id of the client
+     * @param channelType       The channel type of the client
+     * @param clientPackageName The package name of the client
+     * @param message           The binary message to send
+     * @param extras            Any extra values the client sends with each message, may be null
+     * @param receiver          The receiver for messages sent back by the service
+     * @return True if the message was passed to the service, false if the service is no longer available
+     */
+    public static boolean send(IBinder binder, String clientId, String channelType, String clientPackageName, byte[] message, Bundle extras,
+                               Receiver receiver) {
+        return sendLocal(binder, clientId, channelType, clientPackageName, message, extras, receiver);
+    }
+
+    private static boolean sendLocal(IBinder binder, String clientId, String channelType, String clientPackageName, Object message, Bundle extras,
+                                     Receiver receiver) {
+        Endpoint endpoint = getEndpoint(binder);
+        if (endpoint != null) {
+            endpoint.handleLocalMessage(clientId, channelType, clientPackageName, message, extras, receiver);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Implemented by the service end of a local channel to receive messages from clients in the same process
+     */
+    public interface Endpoint {
+
+        /**
+         * @param clientId          The id of the client
+         * @param channelType       The channel type of the client
+         * @param clientPackageName The package name of the client
+         * @param message           The message, either a String or a byte array
+         * @param extras            Any extra values the client sends with each message, may be null
+         * @param receiver          The receiver for messages sent back by the service
+         */
+        void handleLocalMessage(String clientId, String channelType, String clientPackageName, Object message, Bundle extras, Receiver receiver);
+    }
+
+    /**
+     * Implemented by the client end of a local channel to receive messages from the service
+     */
+    public interface Receiver {
+
+        /**
+         * @param message The message sent by the service
+         * @param sender  The component name of the service
+         */
+        void onMessage(String message, String sender);
+
+        /**
+         * @param message       The message sent by the service
+         * @param sender        The component name of the service
+         * @param maxAgeSeconds The number of seconds the message may be cached for, see {@link com.aevi.android.rxmessenger.CacheControl}
+         */
+        void onMessage(String message, String sender, long maxAgeSeconds);
+
+        /**
+         * @param message The binary message sent by the service
+         * @param sender  The component name of the service
+         */
+        void onBinaryMessage(byte[] message, String sender);
+
+        /**
+         * Called when the service ends the stream
+         */
+        void onEndStream();
+
+        /**
+         * @param error The error sent by the service
+         */
+        void onError(MessageException error);
+
+        /**
+         * Called when the service rejects a single request, without ending the stream
+         *
+         * @param requestId The id the client gave the request
+         * @param error     Why the request was rejected
+         */
+        void onRejected(long requestId, MessageException error);
+
+        /**
+         * @return A messenger that can be used by channel servers that do not support local delivery
+         */
+        Messenger getReplyTo();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.model;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A message payload together with a small set of headers, encoded as a single string so that it can be sent over any channel.
+ * <p>
+ * The encoded form is the payload prefixed with a header block of the form {@code \u001Ekey=value;key=value\u001F}. A string that does not start
+ * with the header block marker is treated as a payload with no headers, so plain messages can always be decoded.
+ * </p>
+ * <p>
+ * Header names and values must not contain the characters {@code ;} or {@code =}. This class is intended for internal use by the library only.
+ * </p>
+ */
+public final class FramedMessage {
+
+    private static final char HEADERS_START = '\u001E';
+    private static final char HEADERS_END = '\u001F';
+    private static final char HEADER_SEPARATOR = ';';
+    private static final char VALUE_SEPARATOR = '=';
+
+    private final Map<String, String> headers;
+    private final String payload;
+
+    private FramedMessage(Map<String, String> headers, String payload) {
+        this.headers = headers;
+        this.payload = payload;
+    }
+
+    /**
+     * Create a new framed message with no headers
+     *
+     * @param payload The message payload
+     * @return The framed message
+     */
+    public static FramedMessage of(String payload) {
+        return new FramedMessage(Collections.<String, String>emptyMap(), payload);
+    }
+
+    /**
+     * Returns a copy of this message with the given header added
+     *
+     * @param name  The header name
+     * @param value The header value
+     * @return A new framed message containing the header
+     */
+    public FramedMessage withHeader(String name, String value) {
+        Map<String, String> newHeaders = new LinkedHashMap<>(headers);
+        newHeaders.put(name, value);
+        return new FramedMessage(newHeaders, payload);
+    }
+
+    /**
+     * Returns a copy of this message with the given header added
+     *
+     * @param name  The header name
+     * @param value The header value
+     * @return A new framed message containing the header
+     */
+    public FramedMessage withHeader(String name, long value) {
+        return withHeader(name, String.valueOf(value));
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    public boolean hasHeader(String name) {
+        return headers.containsKey(name);
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public long getLongHeader(String name, long defaultValue) {
+        String value = headers.get(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                // fall through to default
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @return The string form of this message that can be sent to the other end of a channel
+     */
+    public String encode() {
+        if (headers.isEmpty()) {
+            return payload;
+        }
+        StringBuilder builder = new StringBuilder(payload.length() + 16 * headers.size());
+        builder.append(HEADERS_START);
+        boolean first = true;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (!first) {
+                builder.append(HEADER_SEPARATOR);
+            }
+            builder.append(header.getKey()).append(VALUE_SEPARATOR).append(header.getValue());
+            first = false;
+        }
+        builder.append(HEADERS_END);
+        builder.append(payload);
+        return builder.toString();
+    }
+
+    /**
+     * @param message The message to check
+     * @return True if the message given contains a header block
+     */
+    public static boolean isFramed(String message) {
+        return message != null && !message.isEmpty() && message.charAt(0) == HEADERS_START && message.indexOf(HEADERS_END) > 0;
+    }
+
+    /**
+     * Decode a message previously encoded with {@link #encode()}. Messages without a header block are returned as is with no headers.
+     *
+     * @param message The encoded message
+     * @return The decoded message
+     */
+    public static FramedMessage decode(String message) {
+        if (!isFramed(message)) {
+            return of(message);
+        }
+        int headersEnd = message.indexOf(HEADERS_END);
+        Map<String, String> headers = new LinkedHashMap<>();
+        int start = 1;
+        while (start < headersEnd) {
+            int end = message.indexOf(HEADER_SEPARATOR, start);
+            if (end < 0 || end > headersEnd) {
+                end = headersEnd;
+            }
+            int split = message.indexOf(VALUE_SEPARATOR, start);
+            if (split > start && split < end) {
+                headers.put(message.substring(start, split), message.substring(split + 1, end));
+            }
+            start = end + 1;
+        }
+        return new FramedMessage(headers, message.substring(headersEnd + 1));
+    }
+}
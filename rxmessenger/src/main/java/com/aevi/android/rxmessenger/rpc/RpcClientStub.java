@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.rpc;
+
+import com.aevi.android.rxmessenger.ChannelClient;
+import com.aevi.android.rxmessenger.MessageException;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.functions.Function;
+import io.reactivex.functions.Predicate;
+
+/**
+ * Base class for the client stubs generated for {@link RpcService} interfaces.
+ * <p>
+ * Each call is given a unique id, so that several calls can be in progress at once over the same {@link ChannelClient}.
+ * </p>
+ */
+public abstract class RpcClientStub {
+
+    private final ChannelClient channelClient;
+    private final AtomicLong nextCallId = new AtomicLong();
+
+    protected final Gson gson;
+
+    protected RpcClientStub(ChannelClient channelClient, Gson gson) {
+        this.channelClient = channelClient;
+        this.gson = gson;
+    }
+
+    /**
+     * @return The {@link ChannelClient} calls are made over
+     */
+    public ChannelClient getChannelClient() {
+        return channelClient;
+    }
+
+    /**
+     * Writes the arguments of a call, in the order they are declared
+     */
+    protected interface ArgumentWriter {
+
+        void write(JsonWriter out) throws IOException;
+    }
+
+    /**
+     * Call a method of the remote service
+     *
+     * @param methodId      The id of the method
+     * @param arguments     Writes the method arguments
+     * @param resultAdapter The adapter used to read the results
+     * @param <T>           The type of the results
+     * @return An observable stream of results, that completes when the remote method completes
+     */
+    protected <T> Observable<T> invoke(int methodId, ArgumentWriter arguments, final TypeAdapter<T> resultAdapter) {
+        final long callId = nextCallId.incrementAndGet();
+        final String request;
+        try {
+            request = RpcEnvelope.writeRequest(callId, methodId, arguments);
+        } catch (IOException e) {
+            return Observable.error(e);
+        }
+        return channelClient.sendMessage(request)
+                .map(new Function<String, RpcEnvelope.Response<T>>() {
+                    @Override
+                    public RpcEnvelope.Response<T> apply(String message) throws Exception {
+                        return RpcEnvelope.readResponse(message, callId, resultAdapter);
+                    }
+                })
+                .filter(new Predicate<RpcEnvelope.Response<T>>() {
+                    @Override
+                    public boolean test(RpcEnvelope.Response<T> response) throws Exception {
+                        return response != RpcEnvelope.Response.OTHER_CALL;
+                    }
+                })
+                .takeWhile(new Predicate<RpcEnvelope.Response<T>>() {
+                    @Override
+                    public boolean test(RpcEnvelope.Response<T> response) throws Exception {
+                        return !response.done;
+                    }
+                })
+                .concatMap(new Function<RpcEnvelope.Response<T>, ObservableSource<T>>() {
+                    @Override
+                    public ObservableSource<T> apply(RpcEnvelope.Response<T> response) throws Exception {
+                        if (response.error != null) {
+                            return Observable.error(response.error);
+                        }
+                        if (response.value == null) {
+                            return Observable.error(new MessageException("rpcError", "Received null result"));
+                        }
+                        return Observable.just(response.value);
+                    }
+                });
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.rpc;
+
+import android.util.Log;
+
+import com.aevi.android.rxmessenger.ChannelServer;
+import com.aevi.android.rxmessenger.MessageException;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import io.reactivex.Observable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+
+/**
+ * Base class for the server dispatchers generated for {@link RpcService} interfaces.
+ * <p>
+ * Call {@link #start()} once the dispatcher has been created, typically from {@code onNewClient} of the service, to start handling calls from
+ * the client.
+ * </p>
+ */
+public abstract class RpcDispatcher {
+
+    private static final String TAG = RpcDispatcher.class.getSimpleName();
+
+    static final String ERROR_UNKNOWN_METHOD = "unknownMethod";
+    static final String ERROR_INVALID_REQUEST = "invalidRequest";
+    static final String ERROR_RPC = "rpcError";
+
+    private final ChannelServer channelServer;
+
+    protected final Gson gson;
+
+    protected RpcDispatcher(ChannelServer channelServer, Gson gson) {
+        this.channelServer = channelServer;
+        this.gson = gson;
+    }
+
+    /**
+     * @return The {@link ChannelServer} calls are received from
+     */
+    public ChannelServer getChannelServer() {
+        return channelServer;
+    }
+
+    /**
+     * Start handling calls from the client
+     *
+     * @return A disposable that can be used to stop handling calls
+     */
+    public Disposable start() {
+        return channelServer.subscribeToMessages().subscribe(new Consumer<String>() {
+            @Override
+            public void accept(String message) throws Exception {
+                handleRequest(message);
+            }
+        });
+    }
+
+    void handleRequest(String message) {
+        long callId = -1;
+        Observable<String> results;
+        try {
+            JsonReader in = new JsonReader(new StringReader(message));
+            long[] header = RpcEnvelope.readRequestHeader(in);
+            callId = header[0];
+            results = dispatch((int) header[1], callId, in);
+            if (results == null) {
+                sendError(callId, new MessageException(ERROR_UNKNOWN_METHOD, "Unknown method id: " + header[1]));
+                return;
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Invalid RPC request", e);
+            if (callId != -1) {
+                sendError(callId, new MessageException(ERROR_INVALID_REQUEST, "Unable to read arguments: " + e.getMessage()));
+            }
+            return;
+        }
+        final long id = callId;
+        results.subscribe(new Consumer<String>() {
+            @Override
+            public void accept(String response) throws Exception {
+                channelServer.send(response);
+            }
+        }, new Consumer<Throwable>() {
+            @Override
+            public void accept(Throwable throwable) throws Exception {
+                if (throwable instanceof MessageException) {
+                    sendError(id, (MessageException) throwable);
+                } else {
+                    sendError(id, new MessageException(ERROR_RPC, String.valueOf(throwable.getMessage())));
+                }
+            }
+        }, new Action() {
+            @Override
+            public void run() throws Exception {
+                channelServer.send(RpcEnvelope.writeDone(id));
+            }
+        });
+    }
+
+    private void sendError(long callId, MessageException error) {
+        try {
+            channelServer.send(RpcEnvelope.writeError(callId, error));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to send RPC error", e);
+        }
+    }
+
+    /**
+     * Read the arguments for a call and call the service method
+     *
+     * @param methodId  The id of the method to call
+     * @param callId    The id of the call, to be passed to {@link #encodeResults(long, Observable, TypeAdapter)}
+     * @param arguments A reader positioned at the first argument
+     * @return The encoded results of the call, or null if the method id is not known
+     * @throws IOException If the arguments can not be read
+     */
+    protected abstract Observable<String> dispatch(int methodId, long callId, JsonReader arguments) throws IOException;
+
+    /**
+     * Encode the results of a call for sending to the client
+     *
+     * @param callId  The id of the call
+     * @param results The results returned by the service method
+     * @param adapter The adapter used to write the results
+     * @param <T>     The type of the results
+     * @return The encoded results
+     */
+    protected <T> Observable<String> encodeResults(final long callId, Observable<T> results, final TypeAdapter<T> adapter) {
+        return results.map(new Function<T, String>() {
+            @Override
+            public String apply(T value) throws Exception {
+                return RpcEnvelope.writeValue(callId, adapter, value);
+            }
+        });
+    }
+}
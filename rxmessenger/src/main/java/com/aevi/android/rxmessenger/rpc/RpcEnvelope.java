@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.rpc;
+
+import com.aevi.android.rxmessenger.MessageException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ * Reads and writes the JSON envelopes used for RPC calls.
+ * <p>
+ * Requests are of the form {@code {"i":callId,"m":methodId,"a":[arguments]}}. Each result is sent back as {@code {"i":callId,"v":value}},
+ * followed by either {@code {"i":callId,"d":true}} when the call completes or {@code {"i":callId,"e":{"code":...,"message":...}}} if it fails.
+ * The call id always comes first, so that a client can skip responses to other calls without parsing them.
+ * </p>
+ */
+final class RpcEnvelope {
+
+    static final String KEY_CALL_ID = "i";
+    static final String KEY_METHOD_ID = "m";
+    static final String KEY_ARGUMENTS = "a";
+    static final String KEY_VALUE = "v";
+    static final String KEY_DONE = "d";
+    static final String KEY_ERROR = "e";
+    static final String KEY_ERROR_CODE = "code";
+    static final String KEY_ERROR_MESSAGE = "message";
+
+    private RpcEnvelope() {
+    }
+
+    static String writeRequest(long callId, int methodId, RpcClientStub.ArgumentWriter arguments) throws IOException {
+        StringWriter stringWriter = new StringWriter();
+        JsonWriter out = new JsonWriter(stringWriter);
+        out.beginObject();
+        out.name(KEY_CALL_ID).value(callId);
+        out.name(KEY_METHOD_ID).value(methodId);
+        out.name(KEY_ARGUMENTS).beginArray();
+        arguments.write(out);
+        out.endArray();
+        out.endObject();
+        out.close();
+        return stringWriter.toString();
+    }
+
+    /**
+     * Reads the call and method ids of a request, leaving the reader positioned at the first argument
+     */
+    static long[] readRequestHeader(JsonReader in) throws IOException {
+        Long callId = null;
+        Integer methodId = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (KEY_CALL_ID.equals(name)) {
+                callId = in.nextLong();
+            } else if (KEY_METHOD_ID.equals(name)) {
+                methodId = in.nextInt();
+            } else if (KEY_ARGUMENTS.equals(name)) {
+                if (callId == null || methodId == null) {
+                    throw new IOException("Call and method ids must come before the arguments");
+                }
+                in.beginArray();
+                return new long[]{callId, methodId};
+            } else {
+                in.skipValue();
+            }
+        }
+        throw new IOException("Request has no arguments");
+    }
+
+    static <T> String writeValue(long callId, TypeAdapter<T> adapter, T value) throws IOException {
+        StringWriter stringWriter = new StringWriter();
+        JsonWriter out = new JsonWriter(stringWriter);
+        out.beginObject();
+        out.name(KEY_CALL_ID).value(callId);
+        out.name(KEY_VALUE);
+        adapter.write(out, value);
+        out.endObject();
+        out.close();
+        return stringWriter.toString();
+    }
+
+    static String writeDone(long callId) throws IOException {
+        StringWriter stringWriter = new StringWriter();
+        JsonWriter out = new JsonWriter(stringWriter);
+        out.beginObject();
+        out.name(KEY_CALL_ID).value(callId);
+        out.name(KEY_DONE).value(true);
+        out.endObject();
+        out.close();
+        return stringWriter.toString();
+    }
+
+    static String writeError(long callId, MessageException error) throws IOException {
+        StringWriter stringWriter = new StringWriter();
+        JsonWriter out = new JsonWriter(stringWriter);
+        out.beginObject();
+        out.name(KEY_CALL_ID).value(callId);
+        out.name(KEY_ERROR).beginObject();
+        out.name(KEY_ERROR_CODE).value(error.getCode());
+        out.name(KEY_ERROR_MESSAGE).value(error.getMessage());
+        out.endObject();
+        out.endObject();
+        out.close();
+        return stringWriter.toString();
+    }
+
+    /**
+     * Reads a response, returning {@link Response#OTHER_CALL} without parsing any further if it is not for the call given
+     */
+    @SuppressWarnings("unchecked")
+    static <T> Response<T> readResponse(String message, long callId, TypeAdapter<T> adapter) throws IOException {
+        JsonReader in = new JsonReader(new StringReader(message));
+        try {
+            if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                return (Response<T>) Response.OTHER_CALL;
+            }
+            in.beginObject();
+            if (!in.hasNext() || !KEY_CALL_ID.equals(in.nextName()) || in.peek() != JsonToken.NUMBER || in.nextLong() != callId) {
+                return (Response<T>) Response.OTHER_CALL;
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            // not an RPC response
+            return (Response<T>) Response.OTHER_CALL;
+        }
+        String name = in.nextName();
+        if (KEY_VALUE.equals(name)) {
+            return new Response<>(adapter.read(in), null, false);
+        } else if (KEY_ERROR.equals(name)) {
+            String code = null;
+            String errorMessage = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String errorName = in.nextName();
+                if (KEY_ERROR_CODE.equals(errorName)) {
+                    code = in.nextString();
+                } else if (KEY_ERROR_MESSAGE.equals(errorName)) {
+                    errorMessage = in.nextString();
+                } else {
+                    in.skipValue();
+                }
+            }
+            return new Response<>(null, new MessageException(code, errorMessage), false);
+        }
+        return new Response<>(null, null, true);
+    }
+
+    static final class Response<T> {
+
+        static final Response<Object> OTHER_CALL = new Response<>(null, null, false);
+
+        final T value;
+        final MessageException error;
+        final boolean done;
+
+        Response(T value, MessageException error, boolean done) {
+            this.value = value;
+            this.error = error;
+            this.done = done;
+        }
+    }
+}
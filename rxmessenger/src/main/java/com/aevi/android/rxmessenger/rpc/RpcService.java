@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.rpc;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface as a remote service, for which the rxmessenger-compiler annotation processor will generate a client stub and a server
+ * dispatcher.
+ * <p>
+ * For an interface named {@code Calculator} the processor generates {@code CalculatorRpcClient}, which implements the interface on top of a
+ * {@link com.aevi.android.rxmessenger.ChannelClient}, and {@code CalculatorRpcDispatcher}, which calls an implementation of the interface for each
+ * message received by a {@link com.aevi.android.rxmessenger.ChannelServer}.
+ * </p>
+ * <p>
+ * Every method of the interface must return an {@link io.reactivex.Observable}. Parameters and results are serialised with Gson type adapters
+ * that are looked up once, when the generated class is created. Each method is identified by an integer id, see {@link RpcMethod}.
+ * </p>
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface RpcService {
+}
@@ -22,11 +22,36 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.aevi.android.rxmessenger.ChannelServer;
+import com.aevi.android.rxmessenger.ChannelServer.EvictionReason;
+import com.aevi.android.rxmessenger.MessageException;
+import com.aevi.android.rxmessenger.compression.CompressionStats;
+import com.aevi.android.rxmessenger.compression.MessageCompressor;
+import com.aevi.android.rxmessenger.internal.LocalChannels;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
 
 import static com.aevi.android.rxmessenger.MessageConstants.*;
 
@@ -51,21 +76,97 @@ public abstract class AbstractChannelService extends Service {
 
     private static final String TAG = AbstractChannelService.class.getSimpleName();
 
-    protected final Map<String, ChannelServer> channelServerMap = new HashMap<>();
+    /**
+     * The error code sent to a client that sends more than {@link #getMaxPendingMessages()} messages before it is initialised
+     */
+    public static final String ERROR_CLIENT_NOT_READY = "clientNotReady";
+    public static final int DEFAULT_MAX_PENDING_MESSAGES = 32;
+
+    /**
+     * The error code sent to a client that asks to resume from messages that are no longer kept, see {@link #getReplayBufferSize(String)}
+     */
+    public static final String ERROR_RESUME_FAILED = "resumeFailed";
+    public static final long DEFAULT_RESUME_TIMEOUT_MILLIS = 30000;
+
+    protected final ConcurrentMap<String, ChannelServer> channelServerMap = new ConcurrentHashMap<>();
+
+    // guards the lazily created helpers below, never held while calling code outside this class
+    private final Object lock = new Object();
+    private volatile String serviceName;
+    protected volatile IncomingHandler incomingHandler;
+
+    private volatile boolean stopSelfOnEndOfStream;
+    private MessageCompressor messageCompressor;
+    private boolean messageCompressorCreated;
+    private SharedResponses sharedResponses;
+    private Broadcaster broadcaster;
+    private final Subject<ClientMessage> allMessages = PublishSubject.<ClientMessage>create().toSerialized();
+    // guarded by lock, clients are only subscribed to once allMessages() is used, so that their message subjects are not created otherwise
+    private boolean taggingMessages;
+    private final Set<ChannelServer> taggedClients = Collections.newSetFromMap(new IdentityHashMap<ChannelServer, Boolean>());
+    private final Map<String, ClientThrottle> clientThrottles = new HashMap<>();
+    // clients that neither limit applies to, so that the limits are only looked up once for each client
+    private final Set<String> unthrottledClients = new HashSet<>();
+    // dropped once the last throttled client of the package has gone
+    final Map<String, PackageBucket> packageBuckets = new HashMap<>();
+    private final ConcurrentMap<ChannelServer, PendingMessages> pendingClients = new ConcurrentHashMap<>();
+    private Scheduler mainScheduler;
+    private volatile ClientEvictor clientEvictor;
+    private volatile ResumableClients resumableClients;
+    private LoadShedder loadShedder;
+    private boolean loadShedderCreated;
+
+    // counts the requests waiting for the main thread on every transport, and sheds them once they get there
+    private final BaseChannelServer.LoadShedding loadShedding = new BaseChannelServer.LoadShedding() {
+        @Override
+        public void onQueued() {
+            LoadShedder shedder = getLoadShedder();
+            if (shedder != null) {
+                shedder.onEnqueued();
+            }
+        }
 
-    private String serviceName;
-    protected IncomingHandler incomingHandler;
+        @Override
+        public MessageException onDequeued(ChannelServer channelServer, long queuedAt) {
+            LoadShedder shedder = getLoadShedder();
+            if (shedder == null) {
+                return null;
+            }
+            shedder.onDequeued();
+            return shed(channelServer, queuedAt);
+        }
+    };
 
-    private boolean stopSelfOnEndOfStream;
+    // registered for the binders returned to clients, so that clients in this process can reach handleLocalMessage() without it being public
+    private final LocalChannels.Endpoint localEndpoint = new LocalChannels.Endpoint() {
+        @Override
+        public void handleLocalMessage(String clientId, String channelType, String clientPackageName, Object message, Bundle extras,
+                                       LocalChannels.Receiver receiver) {
+            AbstractChannelService.this.handleLocalMessage(clientId, channelType, clientPackageName, message, extras, receiver);
+        }
+    };
 
     static class IncomingHandler extends Handler {
 
         private final WeakReference<AbstractChannelService> serviceRef;
 
         IncomingHandler(AbstractChannelService abstractChannelService) {
+            super(Looper.getMainLooper());
             serviceRef = new WeakReference<>(abstractChannelService);
         }
 
+        /**
+         * Requests are counted as they are queued for the main thread, so that the load shedder knows how many are waiting
+         */
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            AbstractChannelService service = serviceRef.get();
+            if (msg.what == MESSAGE_REQUEST && service != null) {
+                service.loadShedding.onQueued();
+            }
+            return super.sendMessageAtTime(msg, uptimeMillis);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
@@ -76,14 +177,71 @@ public abstract class AbstractChannelService extends Service {
                     String clientPackageName = data.getString(KEY_DATA_SENDER, "");
                     AbstractChannelService service = serviceRef.get();
                     if (service != null) {
-                        ChannelServer channelServer = service.getChannelServer(msgClientId, channelType, clientPackageName);
-                        channelServer.handleMessage(msg);
+                        service.resumeClient(msgClientId, data.getString(KEY_RESUME_CLIENT_ID), clientPackageName);
+                        final ChannelServer channelServer = service.getChannelServer(msgClientId, channelType, clientPackageName);
+                        service.onClientActivity(msgClientId);
+                        // messages are stamped with the uptime they were sent to this handler, so their wait is known
+                        long sentAt = msg.getWhen() > 0 ? msg.getWhen() : SystemClock.uptimeMillis();
+                        MessageException rejection = service.loadShedding.onDequeued(channelServer, sentAt);
+                        if (rejection != null) {
+                            reject(channelServer, msg, rejection);
+                            break;
+                        }
+                        ClientThrottle throttle = service.getClientThrottle(msgClientId, channelServer);
+                        if (throttle == null && !service.isInitialising(channelServer)) {
+                            channelServer.handleMessage(msg);
+                        } else {
+                            // the message is recycled when this method returns, so a queued or held message must be a copy
+                            service.admit(channelServer, throttle, handleCopy(channelServer, msg));
+                        }
                     }
                     break;
+                case MESSAGE_CANCEL:
+                    handleCancel(msg);
+                    break;
                 default:
                     super.handleMessage(msg);
             }
         }
+
+        /**
+         * Cancels are only passed to the channel server of an existing client, as a new client has nothing to cancel
+         */
+        private void handleCancel(Message msg) {
+            String msgClientId = msg.getData().getString(KEY_CLIENT_ID);
+            AbstractChannelService service = serviceRef.get();
+            if (service != null && msgClientId != null) {
+                ChannelServer channelServer = service.getChannelServerForId(msgClientId);
+                if (channelServer == null) {
+                    return;
+                }
+                service.onClientActivity(msgClientId);
+                if (service.isInitialising(channelServer)) {
+                    // held messages are passed on first, so that the cancel applies to them
+                    service.deliverWhenReady(channelServer, handleCopy(channelServer, msg));
+                } else {
+                    channelServer.handleMessage(msg);
+                }
+            }
+        }
+
+        private static void reject(ChannelServer channelServer, Message msg, MessageException rejection) {
+            if (channelServer instanceof MessengerChannelServer) {
+                ((MessengerChannelServer) channelServer).reject(msg, rejection);
+            } else {
+                channelServer.send(rejection);
+            }
+        }
+
+        private static Runnable handleCopy(final ChannelServer channelServer, Message msg) {
+            final Message copy = Message.obtain(msg);
+            return new Runnable() {
+                @Override
+                public void run() {
+                    channelServer.handleMessage(copy);
+                }
+            };
+        }
     }
 
     @Override
@@ -94,21 +252,147 @@ public abstract class AbstractChannelService extends Service {
         String clientPackageName = getClientPackageNameFromIntent(intent);
 
         Log.d(TAG, String.format("Bound to client %s channel type: %s", clientId, channelType));
+        resumeClient(clientId, intent.getStringExtra(KEY_RESUME_CLIENT_ID), clientPackageName);
         return createServiceIncomingHandler(clientId, channelType, clientPackageName);
     }
 
     @NonNull
     public IBinder createServiceIncomingHandler(String clientId, String channelType, String clientPackageName) {
-        synchronized (channelServerMap) {
-            // Other handlers can be selected here if/when they are implemented
-            serviceName = getServiceName();
+        // Other handlers can be selected here if/when they are implemented
+        serviceName = getServiceName();
+
+        ChannelServer channelServer = getChannelServer(clientId, channelType, clientPackageName);
+        // getChannelServer() has already registered the client unless overridden, and a put could replace a channel server registered since
+        ChannelServer registered = channelServerMap.putIfAbsent(clientId, channelServer);
+        if (registered != null) {
+            channelServer = registered;
+        }
+        setupIncomingHandler();
+        Messenger incomingMessenger = getMessenger();
+        monitorForDeath(incomingMessenger, channelServer);
+        IBinder binder = incomingMessenger.getBinder();
+        LocalChannels.register(binder, localEndpoint);
+        return binder;
+    }
+
+    private void setupIncomingHandler() {
+        synchronized (lock) {
+            if (incomingHandler == null) {
+                incomingHandler = new IncomingHandler(this);
+            }
+        }
+    }
+
+    /**
+     * Handle a message from a client running in the same process as this service.
+     * <p>
+     * The message is passed straight to the {@link ChannelServer} for the client. If called from the main thread this happens immediately,
+     * otherwise the message is posted to the main thread, as it would have been via the {@link Messenger}.
+     * </p>
+     */
+    void handleLocalMessage(final String clientId, final String channelType, final String clientPackageName, final Object message,
+                            final Bundle extras, final LocalChannels.Receiver receiver) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            deliverLocalMessage(clientId, channelType, clientPackageName, message, extras, receiver, SystemClock.uptimeMillis(), false);
+        } else {
+            loadShedding.onQueued();
+            final long postedAt = SystemClock.uptimeMillis();
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    deliverLocalMessage(clientId, channelType, clientPackageName, message, extras, receiver, postedAt, true);
+                }
+            });
+        }
+    }
+
+    private void deliverLocalMessage(final String clientId, final String channelType, final String clientPackageName, final Object message,
+                                     final Bundle extras, final LocalChannels.Receiver receiver, long sentAt, boolean queued) {
+        final ChannelServer channelServer = getChannelServer(clientId, channelType, clientPackageName);
+        onClientActivity(clientId);
+        MessageException rejection = queued ? loadShedding.onDequeued(channelServer, sentAt) : shed(channelServer, sentAt);
+        if (rejection != null) {
+            rejectLocalMessage(channelServer, message, extras, receiver, rejection);
+            return;
+        }
+        ClientThrottle throttle = getClientThrottle(clientId, channelServer);
+        admit(channelServer, throttle, new Runnable() {
+            @Override
+            public void run() {
+                dispatchLocalMessage(channelServer, clientId, channelType, clientPackageName, message, extras, receiver);
+            }
+        });
+    }
+
+    /**
+     * Pass a message on to the channel server of a client, via the throttle of the client if it has one, holding it while the client is
+     * initialised
+     */
+    void admit(final ChannelServer channelServer, @Nullable ClientThrottle throttle, final Runnable delivery) {
+        if (throttle == null) {
+            deliverWhenReady(channelServer, delivery);
+        } else {
+            throttle.submit(new Runnable() {
+                @Override
+                public void run() {
+                    deliverWhenReady(channelServer, delivery);
+                }
+            });
+        }
+    }
+
+    void deliverWhenReady(ChannelServer channelServer, Runnable delivery) {
+        PendingMessages pendingMessages = pendingClients.get(channelServer);
+        if (pendingMessages == null) {
+            delivery.run();
+        } else if (!pendingMessages.submit(delivery)) {
+            channelServer.send(new MessageException(ERROR_CLIENT_NOT_READY, "Too many messages sent while the client is being set up"));
+        }
+    }
+
+    boolean isInitialising(ChannelServer channelServer) {
+        return pendingClients.containsKey(channelServer);
+    }
+
+    private void rejectLocalMessage(ChannelServer channelServer, Object message, Bundle extras, LocalChannels.Receiver receiver,
+                                    MessageException rejection) {
+        if (channelServer instanceof MessengerChannelServer) {
+            long requestId = extras != null ? extras.getLong(KEY_REQUEST_ID, NO_REQUEST_ID) : NO_REQUEST_ID;
+            String request = message instanceof String ? (String) message : null;
+            ((MessengerChannelServer) channelServer).rejectLocal(request, receiver, requestId, rejection);
+        } else {
+            channelServer.send(rejection);
+        }
+    }
 
-            ChannelServer channelServer = getChannelServer(clientId, channelType, clientPackageName);
-            incomingHandler = new IncomingHandler(this);
-            Messenger incomingMessenger = getMessenger();
-            monitorForDeath(incomingMessenger, channelServer);
-            channelServerMap.put(clientId, channelServer);
-            return incomingMessenger.getBinder();
+    private void dispatchLocalMessage(ChannelServer channelServer, String clientId, String channelType, String clientPackageName, Object message,
+                                      Bundle extras, LocalChannels.Receiver receiver) {
+        if (channelServer instanceof MessengerChannelServer) {
+            MessengerChannelServer messengerChannelServer = (MessengerChannelServer) channelServer;
+            long requestId = extras != null ? extras.getLong(KEY_REQUEST_ID, NO_REQUEST_ID) : NO_REQUEST_ID;
+            if (message instanceof byte[]) {
+                messengerChannelServer.handleLocalMessage((byte[]) message, receiver, requestId);
+            } else {
+                messengerChannelServer.handleLocalMessage((String) message, receiver, requestId);
+            }
+        } else {
+            // custom channel servers get the message exactly as the messenger would have delivered it
+            Message msg = Message.obtain(null, MESSAGE_REQUEST);
+            Bundle data = new Bundle();
+            if (extras != null) {
+                data.putAll(extras);
+            }
+            data.putString(KEY_CLIENT_ID, clientId);
+            data.putString(KEY_CHANNEL_TYPE, channelType);
+            data.putString(KEY_DATA_SENDER, clientPackageName);
+            if (message instanceof byte[]) {
+                data.putByteArray(KEY_DATA_REQUEST_BINARY, (byte[]) message);
+            } else {
+                data.putString(KEY_DATA_REQUEST, (String) message);
+            }
+            msg.setData(data);
+            msg.replyTo = receiver.getReplyTo();
+            channelServer.handleMessage(msg);
         }
     }
 
@@ -147,6 +431,12 @@ public abstract class AbstractChannelService extends Service {
      * Supply a {@link ChannelServer} based on the channelType sent in the Intent onBind of this service
      * <p>
      * Can be overridden in services if a custom channel server is required
+     * </p>
+     * <p>
+     * May be called on several threads at once. If two threads race to create the channel server for a new client, only one of them is
+     * registered and passed to {@link #onNewClient(ChannelServer, String)}, which is called without holding any lock, or on
+     * {@link #getClientInitialisationScheduler()} if there is one.
+     * </p>
      *
      * @param channelType       The channel type to support
      * @param clientId          The id of the client
@@ -155,14 +445,651 @@ public abstract class AbstractChannelService extends Service {
      */
     @NonNull
     protected ChannelServer getChannelServer(String clientId, String channelType, String clientPackageName) {
-        if (channelServerMap.containsKey(clientId)) {
-            return channelServerMap.get(clientId);
-        } else {
-            ChannelServer channelServer = ChannelServerFactory.getChannelServer(getBaseContext(), channelType, serviceName, clientPackageName);
-            channelServerMap.put(clientId, channelServer);
+        ChannelServer existing = channelServerMap.get(clientId);
+        if (existing != null) {
+            return existing;
+        }
+        // creating a channel server has no side effects, so the loser of a race is simply dropped
+        ChannelServer channelServer = ChannelServerFactory.getChannelServer(getBaseContext(), channelType, serviceName, clientPackageName);
+        if (channelServer instanceof MessengerChannelServer) {
+            ((MessengerChannelServer) channelServer).setMessageCompressor(getMessageCompressor());
+        }
+        if (channelServer instanceof BaseChannelServer) {
+            ((BaseChannelServer) channelServer).setMessageRetention(getMessageRetention(clientPackageName));
+            ((BaseChannelServer) channelServer).setLoadShedding(loadShedding);
+        }
+        if (channelServer instanceof MessengerChannelServer && !(channelServer instanceof WebSocketChannelServer)) {
+            // websocket channels send at least some messages without the messenger, so cannot number them all
+            ((MessengerChannelServer) channelServer).setReplayBufferSize(getReplayBufferSize(clientPackageName));
+        }
+        Scheduler initialisationScheduler = getClientInitialisationScheduler();
+        PendingMessages pendingMessages = null;
+        if (initialisationScheduler != null) {
+            // held from before the client is registered, so no thread can pass it a message before it is initialised
+            pendingMessages = new PendingMessages(getMaxPendingMessages());
+            pendingClients.put(channelServer, pendingMessages);
+        }
+        existing = channelServerMap.putIfAbsent(clientId, channelServer);
+        if (existing != null) {
+            pendingClients.remove(channelServer);
+            return existing;
+        }
+        tagMessages(clientId, clientPackageName, channelServer);
+        trackClient(clientId, clientPackageName);
+        if (pendingMessages == null) {
             onNewClient(channelServer, clientPackageName);
-            return channelServer;
+        } else {
+            initialiseLater(initialisationScheduler, channelServer, clientPackageName, pendingMessages);
+        }
+        return channelServer;
+    }
+
+    private void initialiseLater(Scheduler scheduler, final ChannelServer channelServer, final String clientPackageName,
+                                 final PendingMessages pendingMessages) {
+        scheduler.scheduleDirect(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    onNewClient(channelServer, clientPackageName);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to initialise client of " + clientPackageName, e);
+                }
+                // held messages are passed on from the main thread, as messages from the messenger are
+                getMainScheduler().scheduleDirect(new Runnable() {
+                    @Override
+                    public void run() {
+                        pendingMessages.release();
+                        pendingClients.remove(channelServer, pendingMessages);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Get what the channel server of a client keeps of the messages it has received.
+     * <p>
+     * Returns {@link MessageRetention#NONE} by default, so that a large message is not kept in memory for the life of the client. Can be
+     * overridden in services that subscribe to the messages of a client after it may have sent them, or that call
+     * {@link ChannelServer#getLastMessageBlocking()} for a message that may have already been received, to return
+     * {@link MessageRetention#LATEST}. Called once for each client, when it connects.
+     * </p>
+     *
+     * @param clientPackageName The package name of the client
+     * @return What to keep of the messages of the client
+     */
+    @NonNull
+    protected MessageRetention getMessageRetention(String clientPackageName) {
+        return MessageRetention.NONE;
+    }
+
+    /**
+     * Get the number of messages sent to a client that are kept, so that they can be sent again if the client reconnects.
+     * <p>
+     * Returns 0 by default, so that messages are neither numbered nor kept. Can be overridden in services that send long running streams of
+     * responses, so that a client that loses its connection can call
+     * {@link com.aevi.android.rxmessenger.client.ObservableMessengerClient#resumeConnection()} and be sent only the messages it missed, rather than
+     * starting again. Only messages sent via the messenger channel are kept. Called once for each client, when it connects.
+     * </p>
+     * <p>
+     * When a client with a replay buffer unbinds, its channel server is not disposed of for {@link #getResumeTimeoutMillis()}, so the service
+     * can carry on sending to it. If the client reconnects in time it carries on with the same channel server, without
+     * {@link #onNewClient(ChannelServer, String)} being called again. If some of the messages it missed are no longer kept, or it took too long
+     * to reconnect, it is sent a {@link MessageException} with code {@link #ERROR_RESUME_FAILED}.
+     * </p>
+     *
+     * @param clientPackageName The package name of the client
+     * @return The number of messages to keep, or 0 to keep none
+     */
+    protected int getReplayBufferSize(String clientPackageName) {
+        return 0;
+    }
+
+    /**
+     * Get the time a client with a replay buffer has to reconnect once it has unbound, see {@link #getReplayBufferSize(String)}.
+     *
+     * @return The time in milliseconds, {@link #DEFAULT_RESUME_TIMEOUT_MILLIS} by default
+     */
+    protected long getResumeTimeoutMillis() {
+        return DEFAULT_RESUME_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Carry on with the channel server of a previous connection of a client, if it is still held and is for the same package, registering it
+     * under the id of the new connection
+     */
+    void resumeClient(String clientId, @Nullable String previousClientId, String clientPackageName) {
+        if (previousClientId == null || channelServerMap.containsKey(clientId)) {
+            return;
+        }
+        ResumableClients resumable = resumableClients;
+        ChannelServer channelServer = resumable != null ? resumable.take(previousClientId, clientPackageName) : null;
+        if (channelServer == null) {
+            // the previous connection may not have been unbound yet, as the service is only unbound once all clients have unbound
+            channelServer = channelServerMap.get(previousClientId);
+            if (!isResumable(channelServer) || !clientPackageName.equals(channelServer.getClientPackageName())
+                    || !channelServerMap.remove(previousClientId, channelServer)) {
+                return;
+            }
+            forgetClientId(previousClientId);
+        }
+        if (channelServerMap.putIfAbsent(clientId, channelServer) != null) {
+            Log.w(TAG, String.format("Client %s was connected before it could resume from client %s", clientId, previousClientId));
+            disposeChannelServer(channelServer);
+            return;
+        }
+        Log.d(TAG, String.format("Client %s resumed from client %s", clientId, previousClientId));
+        ((MessengerChannelServer) channelServer).reattach();
+        tagMessages(clientId, clientPackageName, channelServer);
+        trackClient(clientId, clientPackageName);
+    }
+
+    private static boolean isResumable(ChannelServer channelServer) {
+        return channelServer instanceof MessengerChannelServer && ((MessengerChannelServer) channelServer).getReplayBufferSize() > 0;
+    }
+
+    private void holdForResume(String clientId, ChannelServer channelServer) {
+        ResumableClients resumable;
+        synchronized (lock) {
+            if (resumableClients == null) {
+                resumableClients = new ResumableClients(getResumeTimeoutMillis(), getMainScheduler(), new ResumableClients.Expiry() {
+                    @Override
+                    public void expire(String clientId, ChannelServer channelServer) {
+                        Log.d(TAG, String.format("Client %s did not reconnect in time", clientId));
+                        disposeChannelServer(channelServer);
+                        checkForStop();
+                    }
+                });
+            }
+            resumable = resumableClients;
+        }
+        ((MessengerChannelServer) channelServer).detach();
+        resumable.hold(clientId, channelServer);
+    }
+
+    /**
+     * Get the scheduler that {@link #onNewClient(ChannelServer, String)} is called on.
+     * <p>
+     * Returns null by default, so that a new client is initialised straight away, before the client is told it has connected. Can be
+     * overridden in services that do slow set up for each client, for example to return {@link Schedulers#io()}. The client is then told it
+     * has connected straight away, and the messages it sends before {@link #onNewClient(ChannelServer, String)} returns are held, then passed
+     * on in the order they were sent.
+     * </p>
+     *
+     * @return The scheduler to initialise new clients on, or null to initialise them straight away
+     */
+    @Nullable
+    protected Scheduler getClientInitialisationScheduler() {
+        return null;
+    }
+
+    /**
+     * Get the maximum number of messages held for each client while it is initialised on {@link #getClientInitialisationScheduler()}.
+     * Further messages are rejected with a {@link MessageException} with code {@link #ERROR_CLIENT_NOT_READY}.
+     *
+     * @return The maximum number of messages held for a client
+     */
+    protected int getMaxPendingMessages() {
+        return DEFAULT_MAX_PENDING_MESSAGES;
+    }
+
+    /**
+     * Forward the messages of a client to {@link #allMessages()}, once it has been subscribed to and if the client is not already forwarded.
+     * The subscription ends when the client is disposed.
+     */
+    private void tagMessages(final String clientId, final String clientPackageName, final ChannelServer channelServer) {
+        synchronized (lock) {
+            if (!taggingMessages || !taggedClients.add(channelServer)) {
+                return;
+            }
+        }
+        channelServer.subscribeToMessages().subscribe(new Consumer<String>() {
+            @Override
+            public void accept(String message) {
+                allMessages.onNext(new ClientMessage(clientId, clientPackageName, channelServer, message));
+            }
+        }, new Consumer<Throwable>() {
+            @Override
+            public void accept(Throwable throwable) {
+                Log.e(TAG, "Failed to receive messages from client " + clientId, throwable);
+                untagMessages(channelServer);
+            }
+        }, new Action() {
+            @Override
+            public void run() {
+                untagMessages(channelServer);
+            }
+        });
+    }
+
+    private void untagMessages(ChannelServer channelServer) {
+        synchronized (lock) {
+            taggedClients.remove(channelServer);
+        }
+    }
+
+    /**
+     * Forward the messages of the clients already connected, and from now on of each new client, to {@link #allMessages()}
+     */
+    private void startTaggingMessages() {
+        synchronized (lock) {
+            if (taggingMessages) {
+                return;
+            }
+            taggingMessages = true;
+        }
+        for (Map.Entry<String, ChannelServer> client : channelServerMap.entrySet()) {
+            ChannelServer channelServer = client.getValue();
+            tagMessages(client.getKey(), channelServer.getClientPackageName(), channelServer);
+        }
+    }
+
+    /**
+     * Get a single stream of the messages from all clients of this service, each tagged with the client that sent it.
+     * <p>
+     * Messages are received from the point of subscription, and from clients that connect later, without subscribing to each client. Messages
+     * may be emitted on different threads depending on the channel they arrive on, but are never emitted concurrently. To process messages in
+     * batches, use e.g. {@code allMessages().buffer(100, TimeUnit.MILLISECONDS, 50)}, or convert to a {@link io.reactivex.Flowable} with
+     * {@link Observable#toFlowable(io.reactivex.BackpressureStrategy)} to apply backpressure.
+     * </p>
+     *
+     * @return An observable stream of messages from all clients
+     */
+    @NonNull
+    public Observable<ClientMessage> allMessages() {
+        return allMessages.doOnSubscribe(new Consumer<Disposable>() {
+            @Override
+            public void accept(Disposable disposable) {
+                startTaggingMessages();
+            }
+        });
+    }
+
+    /**
+     * Create the compressor used for clients that ask for compression. It is shared by all clients of this service.
+     * <p>
+     * Can be overridden in services to change the compression threshold, add preset dictionaries, or to return null to never compress messages.
+     * </p>
+     *
+     * @return The compressor to use, or null to disable compression
+     */
+    @Nullable
+    protected MessageCompressor createMessageCompressor() {
+        return new MessageCompressor();
+    }
+
+    private MessageCompressor getMessageCompressor() {
+        synchronized (lock) {
+            if (!messageCompressorCreated) {
+                messageCompressor = createMessageCompressor();
+                messageCompressorCreated = true;
+            }
+            return messageCompressor;
+        }
+    }
+
+    /**
+     * @return The compression statistics for all clients of this service, or null if compression is disabled
+     */
+    @Nullable
+    public CompressionStats getCompressionStats() {
+        MessageCompressor compressor = getMessageCompressor();
+        return compressor != null ? compressor.getStats() : null;
+    }
+
+    /**
+     * Create the {@link SharedResponses} used by {@link #sendSharedResponse(ChannelServer, String, Single)}.
+     * <p>
+     * Can be overridden in services to keep results for a short time after they are computed.
+     * </p>
+     *
+     * @return The shared responses to use
+     */
+    @NonNull
+    protected SharedResponses createSharedResponses() {
+        return new SharedResponses();
+    }
+
+    /**
+     * Send the result of a computation to a client, sharing the computation with all other clients of this service that make a request with the
+     * same key while it is in progress.
+     *
+     * @param channelServer The channel server of the client to send the result to
+     * @param key           The key that identifies the request
+     * @param computation   The computation of the result
+     * @see SharedResponses#send(ChannelServer, String, Single)
+     */
+    protected void sendSharedResponse(ChannelServer channelServer, String key, Single<String> computation) {
+        SharedResponses responses;
+        synchronized (lock) {
+            if (sharedResponses == null) {
+                sharedResponses = createSharedResponses();
+            }
+            responses = sharedResponses;
+        }
+        responses.send(channelServer, key, computation);
+    }
+
+    /**
+     * Create the {@link Broadcaster} used by {@link #broadcast(String)} and {@link #publish(String, String)}.
+     * <p>
+     * Can be overridden in services to change the size of the queue for each client, what is dropped when it is full, or the scheduler used to
+     * send the messages.
+     * </p>
+     *
+     * @return The broadcaster to use
+     */
+    @NonNull
+    protected Broadcaster createBroadcaster() {
+        return new Broadcaster();
+    }
+
+    private Broadcaster getBroadcaster() {
+        synchronized (lock) {
+            if (broadcaster == null) {
+                broadcaster = createBroadcaster();
+            }
+            return broadcaster;
+        }
+    }
+
+    /**
+     * Send a message to all clients of this service.
+     * <p>
+     * The message is encoded once and queued for each client, so this method does not wait for the clients to receive it.
+     * </p>
+     *
+     * @param payload The message
+     * @return The number of clients the message was queued for
+     */
+    public int broadcast(String payload) {
+        Broadcaster broadcaster = getBroadcaster();
+        List<ChannelServer> channelServers = new ArrayList<>(channelServerMap.values());
+        return broadcaster.broadcast(channelServers, payload);
+    }
+
+    /**
+     * Send a message to all clients of this service subscribed to a topic with {@link #subscribeToTopic(ChannelServer, String)}.
+     * <p>
+     * The message is encoded once and queued for each client, so this method does not wait for the clients to receive it.
+     * </p>
+     *
+     * @param topic   The topic
+     * @param payload The message
+     * @return The number of clients the message was queued for
+     */
+    public int publish(String topic, String payload) {
+        return getBroadcaster().publish(topic, payload);
+    }
+
+    /**
+     * Subscribe a client to the messages published to a topic. Clients are unsubscribed from all topics when they unbind.
+     *
+     * @param channelServer The channel server of the client
+     * @param topic         The topic
+     */
+    public void subscribeToTopic(ChannelServer channelServer, String topic) {
+        getBroadcaster().subscribe(channelServer, topic);
+    }
+
+    /**
+     * Unsubscribe a client from the messages published to a topic
+     *
+     * @param channelServer The channel server of the client
+     * @param topic         The topic
+     */
+    public void unsubscribeFromTopic(ChannelServer channelServer, String topic) {
+        getBroadcaster().unsubscribe(channelServer, topic);
+    }
+
+    /**
+     * Create the {@link LoadShedder} used to reject low priority requests while this service is overloaded.
+     * <p>
+     * Returns null by default, so that no requests are shed. Can be overridden in services to return a shedder, with thresholds suited to the
+     * work the service does for each request.
+     * </p>
+     *
+     * @return The load shedder to use, or null to never shed requests
+     */
+    @Nullable
+    protected LoadShedder createLoadShedder() {
+        return null;
+    }
+
+    private LoadShedder getLoadShedder() {
+        synchronized (lock) {
+            if (!loadShedderCreated) {
+                loadShedder = createLoadShedder();
+                loadShedderCreated = true;
+            }
+            return loadShedder;
+        }
+    }
+
+    /**
+     * Decide whether the requests of a client can be shed while this service is overloaded.
+     * <p>
+     * All requests can be shed by default. Can be overridden in services to keep serving important clients, whose requests are then
+     * always dispatched.
+     * </p>
+     *
+     * @param clientPackageName The package name of the client
+     * @return True if requests from the client can be shed
+     */
+    protected boolean isLowPriority(String clientPackageName) {
+        return true;
+    }
+
+    /**
+     * @return A stream of the load shedding state of this service, starting with the current state. Always {@link LoadShedder.State#NORMAL}
+     * if {@link #createLoadShedder()} returns null.
+     */
+    public Observable<LoadShedder.State> observeLoadShedding() {
+        LoadShedder shedder = getLoadShedder();
+        return shedder != null ? shedder.observeState() : Observable.just(LoadShedder.State.NORMAL);
+    }
+
+    /**
+     * Decide whether to shed a request from a client
+     *
+     * @param channelServer The channel server of the client
+     * @param sentAt        The uptime at which the request was sent to the service
+     * @return The error to reject the request with, or null to dispatch it
+     */
+    @Nullable
+    MessageException shed(ChannelServer channelServer, long sentAt) {
+        LoadShedder shedder = getLoadShedder();
+        if (shedder == null) {
+            return null;
         }
+        long now = SystemClock.uptimeMillis();
+        if (shedder.shouldShed(now - sentAt, isLowPriority(channelServer.getClientPackageName()), now)) {
+            return new MessageException(LoadShedder.ERROR_OVERLOADED, "Service is overloaded, try again later", shedder.getRetryAfterMillis());
+        }
+        return null;
+    }
+
+    /**
+     * Get the limit on the rate of messages accepted from each client of a package.
+     * <p>
+     * Can be overridden in services to stop a single client from flooding the service. Each client (each {@link ChannelServer}) gets its own
+     * bucket of tokens, so this limit applies to every client separately. Called once for each client, when it sends its first message.
+     * </p>
+     *
+     * @param clientPackageName The package name of the client
+     * @return The limit for each client of the package, or null for no limit
+     */
+    @Nullable
+    protected RateLimit getClientRateLimit(String clientPackageName) {
+        return null;
+    }
+
+    /**
+     * Get the limit on the rate of messages accepted from all clients of a package together.
+     * <p>
+     * Can be overridden in services to stop an application from getting around the limit from {@link #getClientRateLimit(String)} by opening
+     * many clients. All clients of the package share one bucket of tokens. Called once for each package.
+     * </p>
+     *
+     * @param clientPackageName The package name of the clients
+     * @return The limit for all clients of the package, or null for no limit
+     */
+    @Nullable
+    protected RateLimit getPackageRateLimit(String clientPackageName) {
+        return null;
+    }
+
+    /**
+     * @param clientId The id of the client
+     * @return The counts of messages admitted, queued, rejected and dropped for the client, or null if the client is not rate limited
+     */
+    @Nullable
+    public ThrottleStats getThrottleStats(String clientId) {
+        synchronized (lock) {
+            ClientThrottle throttle = clientThrottles.get(clientId);
+            return throttle != null ? throttle.getStats() : null;
+        }
+    }
+
+    @Nullable
+    ClientThrottle getClientThrottle(String clientId, ChannelServer channelServer) {
+        synchronized (lock) {
+            ClientThrottle throttle = clientThrottles.get(clientId);
+            if (throttle != null || unthrottledClients.contains(clientId)) {
+                return throttle;
+            }
+            String clientPackageName = channelServer.getClientPackageName();
+            RateLimit clientLimit = getClientRateLimit(clientPackageName);
+            RateLimit packageLimit = getPackageRateLimit(clientPackageName);
+            if (clientLimit == null && packageLimit == null) {
+                unthrottledClients.add(clientId);
+                return null;
+            }
+            TokenBucket packageBucket = null;
+            if (packageLimit != null) {
+                PackageBucket shared = packageBuckets.get(clientPackageName);
+                if (shared == null) {
+                    shared = new PackageBucket(new TokenBucket(packageLimit, getMainScheduler().now(TimeUnit.MILLISECONDS)));
+                    packageBuckets.put(clientPackageName, shared);
+                }
+                shared.clients++;
+                packageBucket = shared.bucket;
+            }
+            throttle = new ClientThrottle(channelServer, clientLimit, packageBucket, packageLimit, getMainScheduler());
+            clientThrottles.put(clientId, throttle);
+            return throttle;
+        }
+    }
+
+    /**
+     * Must be called holding the lock, once a throttle using the bucket of the package has gone
+     */
+    private void releasePackageBucket(String clientPackageName) {
+        PackageBucket shared = packageBuckets.get(clientPackageName);
+        if (shared != null && --shared.clients == 0) {
+            packageBuckets.remove(clientPackageName);
+        }
+    }
+
+    /**
+     * The token bucket shared by the clients of a package, with the number of clients using it
+     */
+    static final class PackageBucket {
+        final TokenBucket bucket;
+        int clients;
+
+        PackageBucket(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    private Scheduler getMainScheduler() {
+        synchronized (lock) {
+            if (mainScheduler == null) {
+                // queued messages are passed on from the main thread, as messages from the messenger are
+                final Handler mainHandler = new Handler(Looper.getMainLooper());
+                mainScheduler = Schedulers.from(new Executor() {
+                    @Override
+                    public void execute(@NonNull Runnable command) {
+                        mainHandler.post(command);
+                    }
+                });
+            }
+            return mainScheduler;
+        }
+    }
+
+    /**
+     * Get the time after which a client that has not sent a message is evicted.
+     * <p>
+     * Returns 0 by default, so that clients are kept until they unbind. Can be overridden in services that may have clients that stall without
+     * unbinding, to reclaim the memory used by their channel servers. Called once for each client, when it connects. Services that send
+     * long running streams of responses without further messages from the client should use a timeout longer than the streams.
+     * </p>
+     * <p>
+     * Listeners added to the channel server of an evicted client that implement {@link ChannelServer.EvictionListener} are told why the client
+     * was evicted, then all listeners are told the client has been disposed of. If the client sends another message, it is treated as a new
+     * client.
+     * </p>
+     *
+     * @param clientPackageName The package name of the client
+     * @return The idle timeout in milliseconds, or 0 to never evict idle clients of the package
+     */
+    protected long getClientIdleTimeoutMillis(String clientPackageName) {
+        return ClientEvictor.NO_TIMEOUT;
+    }
+
+    /**
+     * Get the maximum number of clients of this service.
+     * <p>
+     * Returns 0 by default, for no limit. Can be overridden in long running services to bound their memory. When a new client connects and
+     * the limit has been reached, the client that least recently sent a message is evicted, as described in
+     * {@link #getClientIdleTimeoutMillis(String)}.
+     * </p>
+     *
+     * @return The maximum number of clients, or 0 for no limit
+     */
+    protected int getMaxClients() {
+        return 0;
+    }
+
+    private void trackClient(String clientId, String clientPackageName) {
+        long idleTimeout = getClientIdleTimeoutMillis(clientPackageName);
+        ClientEvictor evictor;
+        synchronized (lock) {
+            if (clientEvictor == null && (idleTimeout != ClientEvictor.NO_TIMEOUT || getMaxClients() > 0)) {
+                clientEvictor = new ClientEvictor(getMaxClients(), getMainScheduler(), new ClientEvictor.Evictions() {
+                    @Override
+                    public void evict(String clientId, EvictionReason reason) {
+                        evictClient(clientId, reason);
+                    }
+                });
+            }
+            evictor = clientEvictor;
+        }
+        if (evictor != null) {
+            evictor.onClientAdded(clientId, idleTimeout);
+        }
+    }
+
+    void onClientActivity(String clientId) {
+        ClientEvictor evictor = clientEvictor;
+        if (evictor != null) {
+            evictor.onActivity(clientId);
+        }
+    }
+
+    void evictClient(String clientId, EvictionReason reason) {
+        ChannelServer channelServer = channelServerMap.get(clientId);
+        if (channelServer == null) {
+            return;
+        }
+        Log.d(TAG, String.format("Evicting client %s, reason: %s", clientId, reason));
+        if (channelServer instanceof BaseChannelServer) {
+            ((BaseChannelServer) channelServer).notifyEvicted(reason);
+        }
+        removeClient(clientId);
+        checkForStop();
     }
 
     /**
@@ -175,21 +1102,82 @@ public abstract class AbstractChannelService extends Service {
 
     @Override
     public boolean onUnbind(Intent intent) {
-        synchronized (channelServerMap) {
-            String clientId = getClientIdFromIntent(intent);
-            Log.d(TAG, String.format("Unbound from client %s", clientId));
-            ChannelServer channel = getTargetForClientId(clientId);
-            if (channel != null) {
-                channel.disposeClient();
-            }
-            channelServerMap.remove(clientId);
-            checkForStop();
+        String clientId = getClientIdFromIntent(intent);
+        Log.d(TAG, String.format("Unbound from client %s", clientId));
+        ChannelServer channel = channelServerMap.get(clientId);
+        if (isResumable(channel) && channelServerMap.remove(clientId, channel)) {
+            forgetClientId(clientId);
+            holdForResume(clientId, channel);
+        } else {
+            removeClient(clientId);
         }
+        checkForStop();
         return false;
     }
 
+    private void removeClient(String clientId) {
+        ChannelServer channel = channelServerMap.remove(clientId);
+        if (channel != null) {
+            disposeChannelServer(channel);
+        }
+        forgetClientId(clientId);
+    }
+
+    private void disposeChannelServer(ChannelServer channel) {
+        PendingMessages pendingMessages = pendingClients.remove(channel);
+        if (pendingMessages != null) {
+            pendingMessages.discard();
+        }
+        channel.disposeClient();
+        Broadcaster broadcaster;
+        synchronized (lock) {
+            broadcaster = this.broadcaster;
+        }
+        if (broadcaster != null) {
+            broadcaster.remove(channel);
+        }
+    }
+
+    /**
+     * Drop what is kept for the id of a client that has gone, or has reconnected with a new id
+     */
+    private void forgetClientId(String clientId) {
+        ClientThrottle throttle;
+        synchronized (lock) {
+            unthrottledClients.remove(clientId);
+            throttle = clientThrottles.remove(clientId);
+            if (throttle != null && throttle.hasPackageBucket()) {
+                releasePackageBucket(throttle.getClientPackageName());
+            }
+        }
+        if (throttle != null) {
+            throttle.dispose();
+        }
+        ClientEvictor evictor = clientEvictor;
+        if (evictor != null) {
+            evictor.onClientRemoved(clientId);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        LocalChannels.unregister(localEndpoint);
+        ClientEvictor evictor = clientEvictor;
+        if (evictor != null) {
+            evictor.dispose();
+        }
+        ResumableClients resumable = resumableClients;
+        if (resumable != null) {
+            for (ChannelServer channelServer : resumable.clear()) {
+                disposeChannelServer(channelServer);
+            }
+        }
+        super.onDestroy();
+    }
+
     private void checkForStop() {
-        if (channelServerMap.size() == 0 && stopSelfOnEndOfStream) {
+        ResumableClients resumable = resumableClients;
+        if (channelServerMap.isEmpty() && (resumable == null || resumable.isEmpty()) && stopSelfOnEndOfStream) {
             stopSelf();
         }
     }
@@ -229,8 +1217,4 @@ public abstract class AbstractChannelService extends Service {
         }
         return "";
     }
-
-    private ChannelServer getTargetForClientId(String clientId) {
-        return channelServerMap.get(clientId);
-    }
 }
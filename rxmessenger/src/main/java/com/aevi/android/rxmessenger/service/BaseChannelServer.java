@@ -15,29 +15,176 @@ package com.aevi.android.rxmessenger.service;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
 
+import com.aevi.android.rxmessenger.CacheControl;
 import com.aevi.android.rxmessenger.ChannelServer;
 import com.aevi.android.rxmessenger.MessageException;
+import com.aevi.android.rxmessenger.MessagePriority;
+import com.aevi.android.rxmessenger.model.FramedMessage;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
+import io.reactivex.Completable;
 import io.reactivex.Observable;
 import io.reactivex.subjects.BehaviorSubject;
+import io.reactivex.subjects.CompletableSubject;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+
+import static com.aevi.android.rxmessenger.MessageConstants.HEADER_REQUEST_ID;
+import static com.aevi.android.rxmessenger.MessageConstants.HEADER_TIMEOUT;
+import static com.aevi.android.rxmessenger.MessageConstants.NO_REQUEST_ID;
 
 /**
  * Base handler that can be used as a base class for {@link ChannelServer} implementations
+ * <p>
+ * A service may have many idle clients, so the subjects and listeners of a client are only created when first needed.
+ * </p>
  */
 public abstract class BaseChannelServer implements ChannelServer {
 
     private static final String TAG = BaseChannelServer.class.getSimpleName();
 
-    private final Set<ClientListener> listeners;
-    private final BehaviorSubject<String> clientMessages;
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    // for messages that are not sent in response to a request, such as connection details, which have no deadline
+    static final long NOT_A_REQUEST = -1;
+
+    // bounds what is kept for clients that never end the stream, only the most recent requests are likely to be cancelled or still answered
+    private static final int MAX_CANCELLATIONS = 64;
+    private static final int MAX_DEADLINES = 64;
+
+    /**
+     * Lets the service shed the requests that a channel server receives without them passing through the service, such as over a websocket
+     */
+    interface LoadShedding {
+
+        /**
+         * Record that a request is waiting to be handled on the main thread
+         */
+        void onQueued();
+
+        /**
+         * Record that a request recorded by {@link #onQueued()} is being handled, and decide whether to shed it
+         *
+         * @param channelServer The channel server of the client that sent the request
+         * @param queuedAt      The uptime at which the request was queued
+         * @return The error to reject the request with, or null to handle it
+         */
+        @Nullable
+        MessageException onDequeued(ChannelServer channelServer, long queuedAt);
+    }
+
+    private volatile LoadShedding loadShedding;
+
+    // all guarded by this
+    private Set<ClientListener> listeners;
+    private MessageRetention messageRetention = MessageRetention.NONE;
+    private Subject<String> clientMessages;
+    private Subject<byte[]> binaryClientMessages;
+    // the cancellation signals handed out, by the id of the request they are for
+    private LinkedHashMap<Long, CompletableSubject> cancellations;
+    // cancels received before the request they are for, e.g. while it was held by a throttle
+    private LinkedHashSet<Long> earlyCancels;
+    // the deadlines given by the client, in elapsedRealtime() time, by the id of the request they are for
+    private LinkedHashMap<Long, Long> deadlines;
+    private long nextRequestId = NO_REQUEST_ID;
+    private long requestId = NO_REQUEST_ID;
+    private boolean disposed;
 
     BaseChannelServer() {
-        listeners = new HashSet<>();
-        clientMessages = BehaviorSubject.create();
+    }
+
+    /**
+     * Set what is kept of the messages received from the client. Must be called before the client sends a message or anything subscribes.
+     *
+     * @param messageRetention What to keep
+     */
+    synchronized void setMessageRetention(MessageRetention messageRetention) {
+        this.messageRetention = messageRetention;
+    }
+
+    /**
+     * @return What is kept of the messages received from the client
+     */
+    public synchronized MessageRetention getMessageRetention() {
+        return messageRetention;
+    }
+
+    void setLoadShedding(LoadShedding loadShedding) {
+        this.loadShedding = loadShedding;
+    }
+
+    @Nullable
+    LoadShedding getLoadShedding() {
+        return loadShedding;
+    }
+
+    /**
+     * Reject a request that will not be passed on, without ending the stream of responses to the other requests of the client
+     *
+     * @param message   The request as received, framed with the id the client gave it if sent over a websocket, or null if it is not text
+     * @param requestId The id the client gave the request, if sent alongside it
+     * @param error     Why the request was rejected
+     */
+    void reject(@Nullable String message, long requestId, MessageException error) {
+        if (FramedMessage.isFramed(message)) {
+            requestId = FramedMessage.decode(message).getLongHeader(HEADER_REQUEST_ID, requestId);
+        }
+        sendRejection(requestId, error);
+    }
+
+    /**
+     * Channels that can not name the request rejected send the error, which ends the stream of responses
+     *
+     * @param requestId The id the client gave the request
+     * @param error     Why the request was rejected
+     * @return True if the rejection was sent
+     */
+    boolean sendRejection(long requestId, MessageException error) {
+        return send(error);
+    }
+
+    private synchronized Subject<String> getClientMessages() {
+        if (clientMessages == null) {
+            clientMessages = createSubject();
+        }
+        return clientMessages;
+    }
+
+    private synchronized Subject<byte[]> getBinaryClientMessages() {
+        if (binaryClientMessages == null) {
+            binaryClientMessages = createSubject();
+        }
+        return binaryClientMessages;
+    }
+
+    private <T> Subject<T> createSubject() {
+        Subject<T> subject = messageRetention == MessageRetention.LATEST ? BehaviorSubject.<T>create() : PublishSubject.<T>create();
+        if (disposed) {
+            subject.onComplete();
+        }
+        return subject;
+    }
+
+    /**
+     * Without retention a message is only passed to current subscribers, so there is no need to create a subject if nothing has subscribed
+     */
+    private synchronized Subject<String> getClientMessagesToNotify() {
+        return messageRetention == MessageRetention.LATEST ? getClientMessages() : clientMessages;
+    }
+
+    private synchronized Subject<byte[]> getBinaryClientMessagesToNotify() {
+        return messageRetention == MessageRetention.LATEST ? getBinaryClientMessages() : binaryClientMessages;
     }
 
     @Override
@@ -45,23 +192,206 @@ public abstract class BaseChannelServer implements ChannelServer {
         disposeClient();
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Unless the {@link MessageRetention} is {@link MessageRetention#LATEST}, messages are not kept, so this waits for the next message
+     * from the client.
+     * </p>
+     */
     @Override
     public String getLastMessageBlocking() {
-        return clientMessages.blockingLatest().iterator().next();
+        return getClientMessages().blockingLatest().iterator().next();
     }
 
     protected void notifyMessage(String message) {
-        clientMessages.onNext(message);
+        long timeout = -1;
+        long id = takeNextRequestId();
+        while (FramedMessage.isFramed(message)) {
+            FramedMessage framedMessage = FramedMessage.decode(message);
+            if (!framedMessage.hasHeader(HEADER_TIMEOUT) && !framedMessage.hasHeader(HEADER_REQUEST_ID)) {
+                break;
+            }
+            timeout = framedMessage.getLongHeader(HEADER_TIMEOUT, timeout);
+            id = framedMessage.getLongHeader(HEADER_REQUEST_ID, id);
+            message = framedMessage.getPayload();
+        }
+        setRequest(id, timeout >= 0 ? elapsedRealtime() + timeout : NO_DEADLINE);
+        Subject<String> messages = getClientMessagesToNotify();
+        if (messages != null) {
+            messages.onNext(message);
+        }
+    }
+
+    @Override
+    public boolean hasDeadline() {
+        return hasDeadline(getRequestId());
     }
 
     @Override
-    public void addClientListener(ClientListener clientListener) {
+    public long getRemainingTimeMillis() {
+        long deadline = getDeadline(getRequestId());
+        if (deadline == NO_DEADLINE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, deadline - elapsedRealtime());
+    }
+
+    /**
+     * @return The id of the request most recently passed to subscribers, which messages sent to the client are taken to be a response to
+     */
+    synchronized long getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * @param requestId The id of a request, as returned by {@link #getRequestId()}
+     * @return True if the client gave the request a deadline
+     */
+    boolean hasDeadline(long requestId) {
+        return getDeadline(requestId) != NO_DEADLINE;
+    }
+
+    /**
+     * @param requestId The id of a request, as returned by {@link #getRequestId()}
+     * @return True if the client gave the request a deadline and it has passed, so that responses to it should be dropped
+     */
+    boolean isExpired(long requestId) {
+        long deadline = getDeadline(requestId);
+        return deadline != NO_DEADLINE && elapsedRealtime() >= deadline;
+    }
+
+    private synchronized long getDeadline(long requestId) {
+        Long deadline = deadlines != null ? deadlines.get(requestId) : null;
+        return deadline != null ? deadline : NO_DEADLINE;
+    }
+
+    long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    protected void notifyBinaryMessage(byte[] message) {
+        setRequest(takeNextRequestId(), NO_DEADLINE);
+        Subject<byte[]> messages = getBinaryClientMessagesToNotify();
+        if (messages != null) {
+            messages.onNext(message);
+        }
+    }
+
+    /**
+     * Set the id the client gave the next message, before passing it to {@link #notifyMessage(String)} or {@link #notifyBinaryMessage(byte[])}
+     *
+     * @param requestId The id of the request, or {@link com.aevi.android.rxmessenger.MessageConstants#NO_REQUEST_ID} if it has none
+     */
+    synchronized void setNextRequestId(long requestId) {
+        nextRequestId = requestId;
+    }
+
+    private synchronized long takeNextRequestId() {
+        long id = nextRequestId;
+        nextRequestId = NO_REQUEST_ID;
+        return id;
+    }
+
+    private synchronized void setRequest(long requestId, long deadline) {
+        this.requestId = requestId;
+        if (deadline != NO_DEADLINE) {
+            if (deadlines == null) {
+                deadlines = new LinkedHashMap<>();
+            }
+            deadlines.put(requestId, deadline);
+            if (deadlines.size() > MAX_DEADLINES) {
+                removeEldest(deadlines.keySet());
+            }
+        } else if (deadlines != null) {
+            // clients that do not give ids reuse the same one for every request
+            deadlines.remove(requestId);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Requests from clients that do not give them an id share one signal, which is completed by a cancel without an id, after which a new
+     * signal is returned for the requests that follow.
+     * </p>
+     */
+    @Override
+    public synchronized Completable whenCancelled() {
+        if (cancellations == null) {
+            cancellations = new LinkedHashMap<>();
+        }
+        CompletableSubject cancellation = cancellations.get(requestId);
+        if (cancellation == null) {
+            cancellation = CompletableSubject.create();
+            if (disposed || (earlyCancels != null && earlyCancels.remove(requestId))) {
+                cancellation.onComplete();
+                return cancellation;
+            }
+            cancellations.put(requestId, cancellation);
+            if (cancellations.size() > MAX_CANCELLATIONS) {
+                removeEldest(cancellations.keySet());
+            }
+        }
+        return cancellation;
+    }
+
+    /**
+     * Called when the client cancels a request, to complete the cancellation signal for it
+     *
+     * @param requestId The id of the request cancelled, or {@link com.aevi.android.rxmessenger.MessageConstants#NO_REQUEST_ID} if the client
+     *                  did not give one
+     */
+    protected void notifyCancel(long requestId) {
+        CompletableSubject cancelled;
+        synchronized (this) {
+            cancelled = cancellations != null ? cancellations.remove(requestId) : null;
+            if (cancelled == null && requestId != NO_REQUEST_ID) {
+                if (earlyCancels == null) {
+                    earlyCancels = new LinkedHashSet<>();
+                }
+                earlyCancels.add(requestId);
+                if (earlyCancels.size() > MAX_CANCELLATIONS) {
+                    removeEldest(earlyCancels);
+                }
+            }
+        }
+        if (cancelled != null) {
+            cancelled.onComplete();
+        }
+    }
+
+    /**
+     * Called when the stream is ended, after which the client no longer cancels the requests it sent before
+     */
+    synchronized void clearCancellations() {
+        cancellations = null;
+        earlyCancels = null;
+    }
+
+    private static void removeEldest(Set<Long> requestIds) {
+        Iterator<Long> iterator = requestIds.iterator();
+        iterator.next();
+        iterator.remove();
+    }
+
+    @Override
+    public synchronized void addClientListener(ClientListener clientListener) {
+        if (listeners == null) {
+            listeners = new HashSet<>();
+        }
         listeners.add(clientListener);
     }
 
     @Override
-    public void removeClientListener(ClientListener clientListener) {
-        listeners.remove(clientListener);
+    public synchronized void removeClientListener(ClientListener clientListener) {
+        if (listeners != null) {
+            listeners.remove(clientListener);
+        }
+    }
+
+    private synchronized List<ClientListener> getListeners() {
+        return listeners != null ? new ArrayList<>(listeners) : Collections.<ClientListener>emptyList();
     }
 
     @Override
@@ -69,6 +399,49 @@ public abstract class BaseChannelServer implements ChannelServer {
         return false;
     }
 
+    @Override
+    public boolean send(byte[] message) {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * By default the response is sent without the cache control.
+     * </p>
+     */
+    @Override
+    public boolean send(String message, CacheControl cacheControl) {
+        return send(message);
+    }
+
+    /**
+     * Send a message to the client with a priority.
+     * <p>
+     * Channels that queue messages before sending them send high priority messages first. Channels without a queue send the message
+     * straight away, as {@link #send(String)} does.
+     * </p>
+     *
+     * @param message  The message to send
+     * @param priority The priority of the message
+     * @return True if the message was successfully sent
+     */
+    @Override
+    public boolean send(String message, MessagePriority priority) {
+        return send(message);
+    }
+
+    /**
+     * Send a message that is also being sent to other clients. Implementations can override this to reuse work done encoding the message for
+     * other clients.
+     *
+     * @param message The message to send
+     * @return True if the message was successfully sent
+     */
+    boolean send(BroadcastMessage message) {
+        return send(message.getPayload());
+    }
+
     @Override
     public boolean sendEndStream() {
         return false;
@@ -81,28 +454,70 @@ public abstract class BaseChannelServer implements ChannelServer {
 
     @Override
     public Observable<String> subscribeToMessages() {
-        return clientMessages;
+        return getClientMessages();
+    }
+
+    @Override
+    public Observable<byte[]> subscribeToBinaryMessages() {
+        return getBinaryClientMessages();
     }
 
     @Override
     public void disposeClient() {
-        clientMessages.onComplete();
+        Subject<String> messages;
+        Subject<byte[]> binaryMessages;
+        List<CompletableSubject> cancelled;
+        synchronized (this) {
+            disposed = true;
+            messages = clientMessages;
+            binaryMessages = binaryClientMessages;
+            cancelled = cancellations != null ? new ArrayList<>(cancellations.values()) : Collections.<CompletableSubject>emptyList();
+            cancellations = null;
+            earlyCancels = null;
+        }
+        if (messages != null) {
+            messages.onComplete();
+        }
+        if (binaryMessages != null) {
+            binaryMessages.onComplete();
+        }
+        for (CompletableSubject cancellation : cancelled) {
+            cancellation.onComplete();
+        }
         new Handler(Looper.getMainLooper()).post(new Runnable() {
             @Override
             public void run() {
-                for (ClientListener listener : listeners) {
+                for (ClientListener listener : getListeners()) {
                     listener.onClientDispose();
                 }
             }
         });
     }
 
+    /**
+     * Called by the hosting service when it evicts the client, to tell listeners why before the client is disposed of
+     *
+     * @param reason Why the client was evicted
+     */
+    void notifyEvicted(final EvictionReason reason) {
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                for (ClientListener listener : getListeners()) {
+                    if (listener instanceof EvictionListener) {
+                        ((EvictionListener) listener).onClientEvicted(reason);
+                    }
+                }
+            }
+        });
+    }
+
     @Override
     public void closeClient() {
         new Handler(Looper.getMainLooper()).post(new Runnable() {
             @Override
             public void run() {
-                for (ClientListener listener : listeners) {
+                for (ClientListener listener : getListeners()) {
                     listener.onClientClosed();
                 }
             }
@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+import com.aevi.android.rxmessenger.compression.CompressionDictionary;
+import com.aevi.android.rxmessenger.compression.MessageCompressor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A message sent to several clients. The message is compressed at most once for each dictionary used by the clients it is sent to, however
+ * many clients there are.
+ */
+final class BroadcastMessage {
+
+    private static final String NO_DICTIONARY = "";
+
+    private final String payload;
+    private final Map<String, byte[]> compressed = new HashMap<>();
+
+    BroadcastMessage(String payload) {
+        this.payload = payload;
+    }
+
+    String getPayload() {
+        return payload;
+    }
+
+    /**
+     * @param compressor The compressor agreed with a client
+     * @return The compressed message, which must not be modified as it is shared with other clients
+     */
+    byte[] getCompressed(MessageCompressor compressor) {
+        CompressionDictionary dictionary = compressor.getDictionary();
+        String key = dictionary != null ? dictionary.getId() : NO_DICTIONARY;
+        synchronized (compressed) {
+            byte[] bytes = compressed.get(key);
+            if (bytes == null) {
+                bytes = compressor.compress(payload);
+                compressed.put(key, bytes);
+            }
+            return bytes;
+        }
+    }
+}
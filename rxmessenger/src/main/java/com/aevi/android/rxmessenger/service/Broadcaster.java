@@ -0,0 +1,300 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+import android.util.Log;
+
+import com.aevi.android.rxmessenger.ChannelServer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Sends messages to many clients at once, either to every client given or to the clients subscribed to a topic.
+ * <p>
+ * Each message is encoded once, however many clients it is sent to. Every client has its own bounded queue of messages waiting to be sent.
+ * A queue is drained by a task run on the scheduler given only while it has messages, so no thread is held for an idle client, and messages are
+ * handed to clients in parallel up to the threads of the scheduler without the caller waiting for a client. Messages to each client are sent in
+ * the order they were broadcast. When a slow client's queue is full, the {@link DropPolicy} decides which message is dropped.
+ * </p>
+ * <p>
+ * Once a client has been removed, messages to it are ignored, including those broadcast to a list of clients taken before it was removed.
+ * </p>
+ */
+public class Broadcaster {
+
+    private static final String TAG = Broadcaster.class.getSimpleName();
+
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+
+    /**
+     * What to do with a new message for a client whose queue is full
+     */
+    public enum DropPolicy {
+        /**
+         * Drop the oldest message waiting to be sent, so the client receives the most recent messages
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new message, so the client receives the messages already queued
+         */
+        DROP_NEWEST
+    }
+
+    private final int queueSize;
+    private final DropPolicy dropPolicy;
+    private final Scheduler scheduler;
+
+    private final Map<ChannelServer, ClientQueue> clientQueues = new HashMap<>();
+    private final Map<String, Set<ChannelServer>> topics = new HashMap<>();
+    // weak so that the clients removed are not kept once they have gone
+    private final Set<ChannelServer> removed = Collections.newSetFromMap(new WeakHashMap<ChannelServer, Boolean>());
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Create an instance with queues of {@link #DEFAULT_QUEUE_SIZE} messages that drop the oldest message when full, sending on the
+     * {@link Schedulers#computation()} scheduler
+     */
+    public Broadcaster() {
+        this(DEFAULT_QUEUE_SIZE, DropPolicy.DROP_OLDEST, Schedulers.computation());
+    }
+
+    /**
+     * @param queueSize  The maximum number of messages waiting to be sent to each client
+     * @param dropPolicy What to do when a client's queue is full
+     * @param scheduler  The scheduler to send the messages on, which should have a bounded number of threads
+     */
+    public Broadcaster(int queueSize, DropPolicy dropPolicy, Scheduler scheduler) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("Queue size must be at least 1");
+        }
+        this.queueSize = queueSize;
+        this.dropPolicy = dropPolicy;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Subscribe a client to a topic
+     *
+     * @param channelServer The channel server of the client
+     * @param topic         The topic
+     */
+    public void subscribe(ChannelServer channelServer, String topic) {
+        synchronized (clientQueues) {
+            if (removed.contains(channelServer)) {
+                return;
+            }
+            Set<ChannelServer> subscribers = topics.get(topic);
+            if (subscribers == null) {
+                subscribers = new HashSet<>();
+                topics.put(topic, subscribers);
+            }
+            subscribers.add(channelServer);
+        }
+    }
+
+    /**
+     * Unsubscribe a client from a topic
+     *
+     * @param channelServer The channel server of the client
+     * @param topic         The topic
+     */
+    public void unsubscribe(ChannelServer channelServer, String topic) {
+        synchronized (clientQueues) {
+            Set<ChannelServer> subscribers = topics.get(topic);
+            if (subscribers != null && subscribers.remove(channelServer) && subscribers.isEmpty()) {
+                topics.remove(topic);
+            }
+        }
+    }
+
+    /**
+     * Unsubscribe a client from all topics and stop sending it any messages still queued
+     *
+     * @param channelServer The channel server of the client
+     */
+    public void remove(ChannelServer channelServer) {
+        synchronized (clientQueues) {
+            Iterator<Set<ChannelServer>> iterator = topics.values().iterator();
+            while (iterator.hasNext()) {
+                Set<ChannelServer> subscribers = iterator.next();
+                if (subscribers.remove(channelServer) && subscribers.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+            removed.add(channelServer);
+            ClientQueue clientQueue = clientQueues.remove(channelServer);
+            if (clientQueue != null) {
+                clientQueue.dispose();
+            }
+        }
+    }
+
+    /**
+     * Send a message to every client given
+     *
+     * @param channelServers The channel servers of the clients
+     * @param payload        The message
+     * @return The number of clients the message was queued for
+     */
+    public int broadcast(Collection<ChannelServer> channelServers, String payload) {
+        List<ClientQueue> queues = new ArrayList<>(channelServers.size());
+        synchronized (clientQueues) {
+            for (ChannelServer channelServer : channelServers) {
+                if (!removed.contains(channelServer)) {
+                    queues.add(getClientQueue(channelServer));
+                }
+            }
+        }
+        return offer(queues, payload);
+    }
+
+    /**
+     * Send a message to every client subscribed to a topic
+     *
+     * @param topic   The topic
+     * @param payload The message
+     * @return The number of clients the message was queued for
+     */
+    public int publish(String topic, String payload) {
+        List<ClientQueue> queues;
+        synchronized (clientQueues) {
+            Set<ChannelServer> subscribers = topics.get(topic);
+            if (subscribers == null) {
+                return 0;
+            }
+            queues = new ArrayList<>(subscribers.size());
+            for (ChannelServer channelServer : subscribers) {
+                queues.add(getClientQueue(channelServer));
+            }
+        }
+        return offer(queues, payload);
+    }
+
+    /**
+     * @return The number of messages dropped because a client's queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private int offer(List<ClientQueue> queues, String payload) {
+        BroadcastMessage message = new BroadcastMessage(payload);
+        int queued = 0;
+        for (ClientQueue queue : queues) {
+            if (queue.offer(message)) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    private ClientQueue getClientQueue(ChannelServer channelServer) {
+        ClientQueue clientQueue = clientQueues.get(channelServer);
+        if (clientQueue == null) {
+            clientQueue = new ClientQueue(channelServer);
+            clientQueues.put(channelServer, clientQueue);
+        }
+        return clientQueue;
+    }
+
+    private static boolean send(ChannelServer channelServer, BroadcastMessage message) {
+        if (channelServer instanceof BaseChannelServer) {
+            return ((BaseChannelServer) channelServer).send(message);
+        }
+        return channelServer.send(message.getPayload());
+    }
+
+    /**
+     * The messages waiting to be sent to a client. Only one task drains the queue at a time, so messages are sent in order.
+     */
+    private final class ClientQueue implements Runnable {
+
+        private final ChannelServer channelServer;
+        private final ArrayDeque<BroadcastMessage> queue = new ArrayDeque<>();
+        private boolean draining;
+        private boolean disposed;
+
+        ClientQueue(ChannelServer channelServer) {
+            this.channelServer = channelServer;
+        }
+
+        /**
+         * @return False if the client has been removed since the message was broadcast
+         */
+        boolean offer(BroadcastMessage message) {
+            synchronized (this) {
+                if (disposed) {
+                    return false;
+                }
+                if (queue.size() >= queueSize) {
+                    dropped.incrementAndGet();
+                    if (dropPolicy == DropPolicy.DROP_NEWEST) {
+                        return true;
+                    }
+                    queue.poll();
+                }
+                queue.add(message);
+                if (draining) {
+                    return true;
+                }
+                draining = true;
+            }
+            scheduler.scheduleDirect(this);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                BroadcastMessage message;
+                synchronized (this) {
+                    message = disposed ? null : queue.poll();
+                    if (message == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                try {
+                    send(channelServer, message);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to send broadcast message to client", e);
+                }
+            }
+        }
+
+        /**
+         * A drain already scheduled stops before sending anything more
+         */
+        void dispose() {
+            synchronized (this) {
+                disposed = true;
+                queue.clear();
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ import android.support.annotation.NonNull;
 
 import com.aevi.android.rxmessenger.ChannelServer;
 
+import static com.aevi.android.rxmessenger.MessageConstants.CHANNEL_HYBRID;
 import static com.aevi.android.rxmessenger.MessageConstants.CHANNEL_WEBSOCKET;
 
 final class ChannelServerFactory {
@@ -31,6 +32,9 @@ final class ChannelServerFactory {
             case CHANNEL_WEBSOCKET:
                 channelServer = new WebSocketChannelServer(context, serviceComponentName, clientPackageName);
                 break;
+            case CHANNEL_HYBRID:
+                channelServer = new HybridChannelServer(context, serviceComponentName, clientPackageName);
+                break;
             default:
                 channelServer = new MessengerChannelServer(serviceComponentName, clientPackageName);
                 break;
@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+import com.aevi.android.rxmessenger.ChannelServer.EvictionReason;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+
+/**
+ * Keeps track of when each client of a service last sent a message, to evict clients that have been idle for too long, and the least recently
+ * active client when there are too many.
+ * <p>
+ * Idle clients are looked for periodically on the scheduler given, every half of the shortest idle timeout, so a client is evicted between
+ * one and one and a half times its timeout after its last message.
+ * </p>
+ */
+final class ClientEvictor {
+
+    interface Evictions {
+
+        /**
+         * Called without holding any lock when a client should be evicted. The client has already been forgotten by the evictor.
+         *
+         * @param clientId The id of the client
+         * @param reason   Why the client is evicted
+         */
+        void evict(String clientId, EvictionReason reason);
+    }
+
+    static final long NO_TIMEOUT = 0;
+
+    private final int maxClients;
+    private final Scheduler scheduler;
+    private final Evictions evictions;
+    // in order of activity, least recently active first
+    private final LinkedHashMap<String, Activity> clients = new LinkedHashMap<>(16, 0.75f, true);
+    private long sweepInterval = Long.MAX_VALUE;
+    private Disposable sweep;
+
+    private static final class Activity {
+        private final long idleTimeout;
+        private long lastActive;
+
+        private Activity(long idleTimeout, long lastActive) {
+            this.idleTimeout = idleTimeout;
+            this.lastActive = lastActive;
+        }
+
+        private boolean isIdle(long now) {
+            return idleTimeout != NO_TIMEOUT && now - lastActive >= idleTimeout;
+        }
+    }
+
+    /**
+     * @param maxClients The maximum number of clients, or 0 for no limit
+     * @param scheduler  The scheduler idle clients are looked for on, which also provides the time
+     * @param evictions  Called to evict clients
+     */
+    ClientEvictor(int maxClients, Scheduler scheduler, Evictions evictions) {
+        this.maxClients = maxClients;
+        this.scheduler = scheduler;
+        this.evictions = evictions;
+    }
+
+    /**
+     * Start keeping track of a new client, evicting the least recently active client if there are now too many
+     *
+     * @param clientId    The id of the client
+     * @param idleTimeout The time in milliseconds without a message after which the client is evicted, or {@link #NO_TIMEOUT}
+     */
+    void onClientAdded(String clientId, long idleTimeout) {
+        String evicted = null;
+        synchronized (this) {
+            clients.put(clientId, new Activity(idleTimeout, now()));
+            if (maxClients > 0 && clients.size() > maxClients) {
+                Iterator<String> leastRecentlyActive = clients.keySet().iterator();
+                evicted = leastRecentlyActive.next();
+                leastRecentlyActive.remove();
+            }
+            if (idleTimeout != NO_TIMEOUT && idleTimeout / 2 < sweepInterval) {
+                startSweep(Math.max(1, idleTimeout / 2));
+            }
+        }
+        if (evicted != null) {
+            evictions.evict(evicted, EvictionReason.CLIENT_LIMIT);
+        }
+    }
+
+    /**
+     * Record that a client has sent a message
+     *
+     * @param clientId The id of the client
+     */
+    synchronized void onActivity(String clientId) {
+        Activity activity = clients.get(clientId);
+        if (activity != null) {
+            activity.lastActive = now();
+        }
+    }
+
+    /**
+     * Stop keeping track of a client that has gone
+     *
+     * @param clientId The id of the client
+     */
+    synchronized void onClientRemoved(String clientId) {
+        clients.remove(clientId);
+    }
+
+    synchronized boolean isTracked(String clientId) {
+        return clients.containsKey(clientId);
+    }
+
+    synchronized void dispose() {
+        if (sweep != null) {
+            sweep.dispose();
+            sweep = null;
+        }
+        clients.clear();
+    }
+
+    private void startSweep(long interval) {
+        if (sweep != null) {
+            sweep.dispose();
+        }
+        sweepInterval = interval;
+        sweep = scheduler.schedulePeriodicallyDirect(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleClients();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void evictIdleClients() {
+        List<String> idle = new ArrayList<>();
+        synchronized (this) {
+            long now = now();
+            Iterator<Map.Entry<String, Activity>> iterator = clients.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Activity> client = iterator.next();
+                if (client.getValue().isIdle(now)) {
+                    idle.add(client.getKey());
+                    iterator.remove();
+                }
+            }
+        }
+        for (String clientId : idle) {
+            evictions.evict(clientId, EvictionReason.IDLE);
+        }
+    }
+
+    private long now() {
+        return scheduler.now(TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+import com.aevi.android.rxmessenger.ChannelServer;
+
+/**
+ * A message received from a client of an {@link AbstractChannelService}, along with the identity of the client that sent it.
+ */
+public final class ClientMessage {
+
+    private final String clientId;
+    private final String clientPackageName;
+    private final ChannelServer channelServer;
+    private final String message;
+
+    ClientMessage(String clientId, String clientPackageName, ChannelServer channelServer, String message) {
+        this.clientId = clientId;
+        this.clientPackageName = clientPackageName;
+        this.channelServer = channelServer;
+        this.message = message;
+    }
+
+    /**
+     * @return The id of the client that sent the message
+     */
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * @return The package name of the client that sent the message
+     */
+    public String getClientPackageName() {
+        return clientPackageName;
+    }
+
+    /**
+     * @return The channel server of the client that sent the message, which can be used to reply to it
+     */
+    public ChannelServer getChannelServer() {
+        return channelServer;
+    }
+
+    /**
+     * @return The message as received
+     */
+    public String getMessage() {
+        return message;
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.aevi.android.rxmessenger.ChannelServer;
+import com.aevi.android.rxmessenger.MessageException;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+
+/**
+ * Applies the {@link RateLimit} of a client to the messages it sends.
+ * <p>
+ * A message must take a token from the bucket of the client and, if there is one, from the bucket shared by all clients of the same package.
+ * Messages queued by the {@link RateLimit.Policy#QUEUE} policy are passed on in the order they arrived, on the scheduler given.
+ * </p>
+ */
+final class ClientThrottle {
+
+    private static final String TAG = ClientThrottle.class.getSimpleName();
+
+    private final ChannelServer channelServer;
+    private final String clientPackageName;
+    private final TokenBucket clientBucket;
+    private final TokenBucket packageBucket;
+    private final RateLimit.Policy policy;
+    private final int maxQueued;
+    private final Scheduler scheduler;
+    private final ThrottleStats stats = new ThrottleStats();
+
+    private final Queue<Runnable> queue = new ArrayDeque<>();
+    private Disposable drain;
+
+    /**
+     * @param channelServer The channel server of the client, used to send rejections
+     * @param clientLimit   The limit for this client, or null if only the package is limited
+     * @param packageBucket The bucket shared by the package, or null if only this client is limited
+     * @param packageLimit  The limit of the shared bucket, used for the policy if there is no client limit
+     * @param scheduler     The scheduler queued messages are passed on with, which also provides the time
+     */
+    ClientThrottle(ChannelServer channelServer, @Nullable RateLimit clientLimit, @Nullable TokenBucket packageBucket,
+                   @Nullable RateLimit packageLimit, Scheduler scheduler) {
+        RateLimit limit = clientLimit != null ? clientLimit : packageLimit;
+        if (limit == null) {
+            throw new IllegalArgumentException("A client or package limit is required");
+        }
+        this.channelServer = channelServer;
+        this.clientPackageName = channelServer.getClientPackageName();
+        this.scheduler = scheduler;
+        this.clientBucket = clientLimit != null ? new TokenBucket(clientLimit, now()) : null;
+        this.packageBucket = packageBucket;
+        this.policy = limit.getPolicy();
+        this.maxQueued = limit.getMaxQueued();
+    }
+
+    /**
+     * Pass on a message if the limit allows it, otherwise apply the policy
+     *
+     * @param delivery Passes the message on to the channel server. Must not depend on state that changes after this call if queued.
+     */
+    void submit(Runnable delivery) {
+        synchronized (this) {
+            // anything already queued goes first, to keep messages in order
+            if (queue.isEmpty() && tryAcquire(now())) {
+                stats.recordAdmitted();
+            } else {
+                overLimit(delivery);
+                return;
+            }
+        }
+        delivery.run();
+    }
+
+    ThrottleStats getStats() {
+        return stats;
+    }
+
+    String getClientPackageName() {
+        return clientPackageName;
+    }
+
+    boolean hasPackageBucket() {
+        return packageBucket != null;
+    }
+
+    synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * Discard any queued messages, when the client has gone
+     */
+    synchronized void dispose() {
+        queue.clear();
+        if (drain != null) {
+            drain.dispose();
+            drain = null;
+        }
+    }
+
+    private void overLimit(Runnable delivery) {
+        if (policy == RateLimit.Policy.DROP) {
+            stats.recordDropped();
+            return;
+        }
+        if (policy == RateLimit.Policy.QUEUE && queue.size() < maxQueued) {
+            queue.add(delivery);
+            stats.recordQueued();
+            scheduleDrain();
+            return;
+        }
+        stats.recordRejected();
+        Log.w(TAG, "Rejecting message over rate limit from " + clientPackageName);
+        channelServer.send(new MessageException(RateLimit.ERROR_RATE_LIMITED, "Too many messages, try again later"));
+    }
+
+    private void scheduleDrain() {
+        if (drain == null) {
+            drain = scheduler.scheduleDirect(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, getWaitMillis(now()), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable delivery;
+            synchronized (this) {
+                drain = null;
+                if (queue.isEmpty()) {
+                    return;
+                }
+                if (!tryAcquire(now())) {
+                    scheduleDrain();
+                    return;
+                }
+                delivery = queue.poll();
+                stats.recordAdmitted();
+            }
+            delivery.run();
+        }
+    }
+
+    private boolean tryAcquire(long now) {
+        if (clientBucket != null && !clientBucket.tryAcquire(now)) {
+            return false;
+        }
+        if (packageBucket != null && !packageBucket.tryAcquire(now)) {
+            if (clientBucket != null) {
+                clientBucket.release();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private long getWaitMillis(long now) {
+        long clientWait = clientBucket != null ? clientBucket.getWaitMillis(now) : 0;
+        long packageWait = packageBucket != null ? packageBucket.getWaitMillis(now) : 0;
+        // at least 1ms, so a package bucket drained by another client is not polled in a tight loop
+        return Math.max(1, Math.max(clientWait, packageWait));
+    }
+
+    private long now() {
+        return scheduler.now(TimeUnit.MILLISECONDS);
+    }
+}
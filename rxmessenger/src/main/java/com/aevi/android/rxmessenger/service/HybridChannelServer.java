@@ -0,0 +1,222 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Message;
+import android.util.Log;
+
+import com.aevi.android.rxmessenger.CacheControl;
+import com.aevi.android.rxmessenger.ChannelServer;
+import com.aevi.android.rxmessenger.MessageException;
+import com.aevi.android.rxmessenger.MessagePriority;
+import com.aevi.android.rxmessenger.model.FramedMessage;
+import com.aevi.android.rxmessenger.util.MessageSequencer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.aevi.android.rxmessenger.MessageConstants.*;
+
+/**
+ * A hybrid implementation of an {@link ChannelServer} that chooses the channel to use per message.
+ * <p>
+ * Messages smaller than the threshold given by the client are sent via Android Messenger and larger messages are sent via the websocket. Every
+ * message is numbered so that the receiving end can deliver them in the order they were sent, regardless of the channel they arrived on.
+ * </p>
+ * <p>
+ * High priority messages are not numbered, so that they are delivered as soon as they arrive rather than waiting for earlier messages.
+ * </p>
+ * <p>
+ * Responses to a request with a deadline are dropped once it has passed. A numbered message still queued for the websocket is replaced by an
+ * empty one marked as expired, as the client waits for any gap in the numbers to be filled.
+ * </p>
+ */
+public class HybridChannelServer extends WebSocketChannelServer {
+
+    private static final String TAG = HybridChannelServer.class.getSimpleName();
+
+    private static final int MAX_PENDING_MESSAGES = 64;
+
+    // fills the place of a rejected request in the sequence, so that the requests after it are not held back
+    private static final FramedMessage REJECTED = FramedMessage.of("");
+
+    private final AtomicLong outgoingSequence = new AtomicLong();
+    private final MessageSequencer<FramedMessage> incomingSequencer;
+
+    private volatile int threshold = DEFAULT_HYBRID_THRESHOLD;
+
+    HybridChannelServer(Context context, String serviceComponentName, String clientPackageName) {
+        super(context, serviceComponentName, clientPackageName);
+        incomingSequencer = new MessageSequencer<>(MAX_PENDING_MESSAGES, new MessageSequencer.Receiver<FramedMessage>() {
+            @Override
+            public void onMessage(FramedMessage message) {
+                notifyInOrder(message);
+            }
+        });
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+        Bundle data = msg.getData();
+        if (data != null && data.containsKey(KEY_HYBRID_THRESHOLD)) {
+            threshold = data.getInt(KEY_HYBRID_THRESHOLD, DEFAULT_HYBRID_THRESHOLD);
+        }
+        super.handleMessage(msg);
+    }
+
+    int getThreshold() {
+        return threshold;
+    }
+
+    @Override
+    protected void notifyMessage(String message) {
+        if (FramedMessage.isFramed(message)) {
+            FramedMessage framedMessage = FramedMessage.decode(message);
+            if (isUnnumbered(framedMessage)) {
+                notifyInOrder(framedMessage);
+                return;
+            }
+            // the id is taken from the frame once it is passed on in order
+            setNextRequestId(NO_REQUEST_ID);
+            incomingSequencer.receive(framedMessage.getLongHeader(HEADER_SEQUENCE, 0), framedMessage);
+        } else {
+            super.notifyMessage(message);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A rejected request still takes its place in the sequence, as the requests after it wait for any gap in the numbers to be filled.
+     * </p>
+     */
+    @Override
+    void reject(String message, long requestId, MessageException error) {
+        if (FramedMessage.isFramed(message)) {
+            FramedMessage framedMessage = FramedMessage.decode(message);
+            if (!isUnnumbered(framedMessage)) {
+                incomingSequencer.receive(framedMessage.getLongHeader(HEADER_SEQUENCE, 0), REJECTED);
+            }
+        }
+        super.reject(message, requestId, error);
+    }
+
+    private void notifyInOrder(FramedMessage message) {
+        if (message == REJECTED) {
+            return;
+        }
+        setNextRequestId(message.getLongHeader(HEADER_REQUEST_ID, NO_REQUEST_ID));
+        super.notifyMessage(message.getPayload());
+    }
+
+    @Override
+    public boolean send(String message) {
+        if (message == null) {
+            return false;
+        }
+        return sendNumbered(message, getRequestId());
+    }
+
+    private boolean sendNumbered(String message, long requestId) {
+        if (isExpired(requestId)) {
+            // dropped before it is numbered, as the client waits for any gap in the numbers to be filled
+            Log.d(TAG, "Dropping message as the deadline given by the client has passed");
+            return false;
+        }
+        return sendFrame(nextFrame(message), message.length(), requestId);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The max age is added to the header of the frame, which the hybrid client removes.
+     * </p>
+     */
+    @Override
+    public boolean send(String message, CacheControl cacheControl) {
+        if (message == null) {
+            return false;
+        }
+        long requestId = getRequestId();
+        if (isExpired(requestId)) {
+            Log.d(TAG, "Dropping message as the deadline given by the client has passed");
+            return false;
+        }
+        return sendFrame(nextFrame(message).withHeader(HEADER_MAX_AGE, cacheControl.getMaxAgeSeconds()), message.length(), requestId);
+    }
+
+    @Override
+    public boolean send(String message, MessagePriority priority) {
+        if (priority == MessagePriority.NORMAL) {
+            return send(message);
+        }
+        if (message == null) {
+            return false;
+        }
+        long requestId = getRequestId();
+        if (isExpired(requestId)) {
+            Log.d(TAG, "Dropping message as the deadline given by the client has passed");
+            return false;
+        }
+        FramedMessage frame = FramedMessage.of(message).withHeader(HEADER_PRIORITY, priority.name());
+        if (message.length() >= threshold && isWebSocketConnected()) {
+            // not numbered, so nothing needs to be sent in its place once expired
+            return enqueue(frame.encode(), requestId, null, priority);
+        }
+        return sendOverMessenger(frame.encode());
+    }
+
+    private static boolean isUnnumbered(FramedMessage message) {
+        return message.hasHeader(HEADER_PRIORITY) && !message.hasHeader(HEADER_SEQUENCE);
+    }
+
+    @Override
+    boolean send(BroadcastMessage message) {
+        // every client has its own sequence numbers, so there is no shared encoding to reuse
+        return sendNumbered(message.getPayload(), NOT_A_REQUEST);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only a numbered end frame is sent, so that the client ends the stream once, after every message sent before it has been delivered. The
+     * websocket is closed once the messages queued for it have been sent.
+     * </p>
+     */
+    @Override
+    public boolean sendEndStream() {
+        boolean sent = sendFrame(nextFrame("").withHeader(HEADER_END_STREAM, "true"), 0, NOT_A_REQUEST);
+        closeWebSocket();
+        return sent;
+    }
+
+    private FramedMessage nextFrame(String payload) {
+        return FramedMessage.of(payload).withHeader(HEADER_SEQUENCE, outgoingSequence.getAndIncrement());
+    }
+
+    private boolean sendFrame(FramedMessage frame, int payloadSize, long requestId) {
+        if (payloadSize >= threshold && isWebSocketConnected()) {
+            return enqueue(frame.encode(), requestId, hasDeadline(requestId) ? expiredFrame(frame) : null, MessagePriority.NORMAL);
+        }
+        return sendOverMessenger(frame.encode());
+    }
+
+    /**
+     * @return An empty frame with the number of the frame given, to be sent in its place once the deadline of its request has passed
+     */
+    private static String expiredFrame(FramedMessage frame) {
+        return FramedMessage.of("").withHeader(HEADER_SEQUENCE, frame.getHeader(HEADER_SEQUENCE)).withHeader(HEADER_EXPIRED, "true").encode();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Observable;
+import io.reactivex.subjects.BehaviorSubject;
+import io.reactivex.subjects.Subject;
+
+/**
+ * Decides when a service is overloaded and low priority requests should be rejected straight away, rather than added to the queue.
+ * <p>
+ * The service is overloaded when messages have waited longer than the target time to be dispatched for a whole interval, or when more messages
+ * are waiting than the maximum queue depth. A short burst that is dispatched within the interval does not cause shedding. Shedding stops as soon
+ * as a message is dispatched within the target time again, which happens quickly once new requests are being rejected.
+ * </p>
+ */
+public class LoadShedder {
+
+    /**
+     * The code of the {@link com.aevi.android.rxmessenger.MessageException} sent to clients whose requests are shed. Only the request shed
+     * fails, unless the client can not be told which request it was.
+     */
+    public static final String ERROR_OVERLOADED = "serviceOverloaded";
+
+    public static final long DEFAULT_TARGET_SOJOURN_MS = 100;
+    public static final long DEFAULT_INTERVAL_MS = 500;
+    public static final int DEFAULT_MAX_QUEUE_DEPTH = 256;
+
+    public enum State {
+        NORMAL,
+        SHEDDING
+    }
+
+    private final long targetSojournMillis;
+    private final long intervalMillis;
+    private final int maxQueueDepth;
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicLong shedCount = new AtomicLong();
+    private final Subject<State> stateSubject = BehaviorSubject.createDefault(State.NORMAL).toSerialized();
+    private State state = State.NORMAL;
+    private long aboveTargetSince = -1;
+
+    public LoadShedder() {
+        this(DEFAULT_TARGET_SOJOURN_MS, DEFAULT_INTERVAL_MS, DEFAULT_MAX_QUEUE_DEPTH);
+    }
+
+    /**
+     * @param targetSojournMillis The longest time a message should wait to be dispatched
+     * @param intervalMillis      How long messages must wait longer than the target before requests are shed
+     * @param maxQueueDepth       The number of waiting messages above which requests are shed straight away
+     */
+    public LoadShedder(long targetSojournMillis, long intervalMillis, int maxQueueDepth) {
+        this.targetSojournMillis = targetSojournMillis;
+        this.intervalMillis = intervalMillis;
+        this.maxQueueDepth = maxQueueDepth;
+    }
+
+    /**
+     * Record that a message is waiting to be dispatched
+     */
+    void onEnqueued() {
+        queueDepth.incrementAndGet();
+    }
+
+    /**
+     * Record that a message recorded by {@link #onEnqueued()} is being dispatched
+     */
+    void onDequeued() {
+        int depth;
+        do {
+            depth = queueDepth.get();
+            if (depth == 0) {
+                // a message handed straight to the service was never counted
+                return;
+            }
+        } while (!queueDepth.compareAndSet(depth, depth - 1));
+    }
+
+    /**
+     * Record how long a message waited to be dispatched, and decide whether to shed it
+     *
+     * @param sojournMillis How long the message waited
+     * @param lowPriority   True if the message can be shed
+     * @param now           The current time, from the same clock as the time the message was queued
+     * @return True if the message should be rejected
+     */
+    synchronized boolean shouldShed(long sojournMillis, boolean lowPriority, long now) {
+        boolean overloaded;
+        if (sojournMillis < targetSojournMillis) {
+            aboveTargetSince = -1;
+            overloaded = false;
+        } else {
+            if (aboveTargetSince < 0) {
+                aboveTargetSince = now;
+            }
+            overloaded = now - aboveTargetSince >= intervalMillis;
+        }
+        setState(overloaded || queueDepth.get() > maxQueueDepth ? State.SHEDDING : State.NORMAL);
+        if (lowPriority && state == State.SHEDDING) {
+            shedCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private void setState(State newState) {
+        if (state != newState) {
+            state = newState;
+            stateSubject.onNext(newState);
+        }
+    }
+
+    /**
+     * @return The time clients should wait before sending a shed request again
+     */
+    public long getRetryAfterMillis() {
+        return intervalMillis;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return A stream of the shedding state, starting with the current state
+     */
+    public Observable<State> observeState() {
+        return stateSubject.hide();
+    }
+
+    /**
+     * @return The number of messages waiting to be dispatched that this shedder knows of
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return The number of requests shed so far
+     */
+    public long getShedCount() {
+        return shedCount.get();
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+/**
+ * What a channel server keeps of the messages it has received from its client, once they have been passed to the subscribers of
+ * {@link BaseChannelServer#subscribeToMessages()} and {@link BaseChannelServer#subscribeToBinaryMessages()}.
+ */
+public enum MessageRetention {
+    /**
+     * Nothing is kept, so a message can be garbage collected as soon as the subscribers are done with it. Subscribers only get the messages
+     * received after they subscribe.
+     */
+    NONE,
+    /**
+     * The latest message is kept for the life of the client, and passed to new subscribers when they subscribe
+     */
+    LATEST
+}
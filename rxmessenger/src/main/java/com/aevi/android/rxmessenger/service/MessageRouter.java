@@ -0,0 +1,241 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+import android.util.Log;
+
+import com.aevi.android.rxmessenger.ChannelServer;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Consumer;
+
+/**
+ * Routes JSON messages from a {@link ChannelServer} to handlers, based on the value of a routing field such as {@code "type"}.
+ * <p>
+ * Only the routing field is read from each message, using a streaming {@link JsonReader} that stops as soon as the field is found. The handler
+ * for the value is then found with a single hash lookup, so the cost per message does not grow with the number of handlers registered. Handlers
+ * receive a {@link RoutedMessage} and only pay for parsing the full message if they ask for it.
+ * </p>
+ * <p>
+ * The routing field must be a top level string field of the message object.
+ * </p>
+ */
+public class MessageRouter {
+
+    private static final String TAG = MessageRouter.class.getSimpleName();
+
+    private final String routingField;
+    private final Gson gson;
+    private final Map<String, Handler> handlers = new HashMap<>();
+    private Handler defaultHandler;
+    private ErrorHandler errorHandler;
+
+    /**
+     * @param routingField The name of the field used to route messages
+     */
+    public MessageRouter(String routingField) {
+        this(routingField, new GsonBuilder().create());
+    }
+
+    /**
+     * @param routingField The name of the field used to route messages
+     * @param gson         The Gson instance used when handlers parse messages
+     */
+    public MessageRouter(String routingField, Gson gson) {
+        this.routingField = routingField;
+        this.gson = gson;
+    }
+
+    /**
+     * Register a handler for messages with the given routing value, replacing any handler already registered for it
+     *
+     * @param routingValue The value of the routing field
+     * @param handler      The handler
+     * @return This router, for chaining
+     */
+    public MessageRouter register(String routingValue, Handler handler) {
+        synchronized (handlers) {
+            handlers.put(routingValue, handler);
+        }
+        return this;
+    }
+
+    /**
+     * Register a handler that is passed the message parsed as the type given
+     *
+     * @param routingValue The value of the routing field
+     * @param type         The class to parse messages as
+     * @param handler      The handler
+     * @param <T>          The type of the messages
+     * @return This router, for chaining
+     */
+    public <T> MessageRouter register(String routingValue, final Class<T> type, final TypedHandler<T> handler) {
+        return register(routingValue, new Handler() {
+            @Override
+            public void onMessage(RoutedMessage message) {
+                handler.onMessage(message.parse(type));
+            }
+        });
+    }
+
+    /**
+     * @param routingValue The value of the routing field
+     * @return This router, for chaining
+     */
+    public MessageRouter unregister(String routingValue) {
+        synchronized (handlers) {
+            handlers.remove(routingValue);
+        }
+        return this;
+    }
+
+    /**
+     * Set the handler for messages that have no routing field or no handler registered for their routing value
+     *
+     * @param defaultHandler The handler, or null to ignore such messages
+     * @return This router, for chaining
+     */
+    public MessageRouter setDefaultHandler(Handler defaultHandler) {
+        this.defaultHandler = defaultHandler;
+        return this;
+    }
+
+    /**
+     * Set the handler for messages that a handler fails on, such as a message that can not be parsed as the type of a typed handler
+     *
+     * @param errorHandler The handler, or null to log such failures
+     * @return This router, for chaining
+     */
+    public MessageRouter setErrorHandler(ErrorHandler errorHandler) {
+        this.errorHandler = errorHandler;
+        return this;
+    }
+
+    /**
+     * Route all messages received by a channel server.
+     * <p>
+     * A handler that fails on a message does not stop the routing of the messages after it. The failure is passed to the error handler, see
+     * {@link #setErrorHandler(ErrorHandler)}.
+     * </p>
+     *
+     * @param channelServer The channel server
+     * @return A disposable that can be used to stop routing the messages of the channel server
+     */
+    public Disposable attach(ChannelServer channelServer) {
+        return channelServer.subscribeToMessages().subscribe(new Consumer<String>() {
+            @Override
+            public void accept(String message) throws Exception {
+                try {
+                    route(message);
+                } catch (RuntimeException e) {
+                    onError(message, e);
+                }
+            }
+        }, new Consumer<Throwable>() {
+            @Override
+            public void accept(Throwable throwable) throws Exception {
+                Log.e(TAG, "Error routing messages", throwable);
+            }
+        });
+    }
+
+    /**
+     * Route a single message
+     *
+     * @param message The JSON message
+     * @return True if a handler was called for the message
+     */
+    public boolean route(String message) {
+        String routingValue = readRoutingValue(message);
+        Handler handler = null;
+        if (routingValue != null) {
+            synchronized (handlers) {
+                handler = handlers.get(routingValue);
+            }
+        }
+        if (handler == null) {
+            handler = defaultHandler;
+        }
+        if (handler != null) {
+            handler.onMessage(new RoutedMessage(routingValue, message, gson));
+            return true;
+        }
+        return false;
+    }
+
+    private void onError(String message, RuntimeException error) {
+        ErrorHandler handler = errorHandler;
+        if (handler != null) {
+            handler.onError(message, error);
+        } else {
+            Log.e(TAG, "Failed to handle message", error);
+        }
+    }
+
+    String readRoutingValue(String message) {
+        if (message == null) {
+            return null;
+        }
+        JsonReader in = new JsonReader(new StringReader(message));
+        try {
+            if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                return null;
+            }
+            in.beginObject();
+            while (in.hasNext()) {
+                if (routingField.equals(in.nextName())) {
+                    return in.peek() == JsonToken.STRING ? in.nextString() : null;
+                }
+                in.skipValue();
+            }
+        } catch (IOException | IllegalStateException e) {
+            // not a JSON object, so can only go to the default handler
+        }
+        return null;
+    }
+
+    public interface Handler {
+
+        /**
+         * @param message The message routed to this handler
+         */
+        void onMessage(RoutedMessage message);
+    }
+
+    public interface ErrorHandler {
+
+        /**
+         * @param message The message the handler failed on
+         * @param error   The failure thrown by the handler
+         */
+        void onError(String message, RuntimeException error);
+    }
+
+    public interface TypedHandler<T> {
+
+        /**
+         * @param message The parsed message routed to this handler
+         */
+        void onMessage(T message);
+    }
+}
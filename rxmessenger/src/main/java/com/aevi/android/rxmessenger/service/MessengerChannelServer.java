@@ -17,10 +17,18 @@ import android.os.Bundle;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.aevi.android.rxmessenger.CacheControl;
 import com.aevi.android.rxmessenger.ChannelServer;
 import com.aevi.android.rxmessenger.MessageException;
+import com.aevi.android.rxmessenger.MessagePriority;
+import com.aevi.android.rxmessenger.compression.CompressionDictionary;
+import com.aevi.android.rxmessenger.compression.MessageCompressor;
+import com.aevi.android.rxmessenger.internal.LocalChannels;
+
+import java.util.List;
 
 import static com.aevi.android.rxmessenger.MessageConstants.*;
 
@@ -31,7 +39,20 @@ public class MessengerChannelServer extends BaseChannelServer {
 
     private static final String TAG = MessengerChannelServer.class.getSimpleName();
 
-    protected Messenger replyTo;
+    protected volatile Messenger replyTo;
+
+    // the service may send from any thread, so replies are sent one at a time, in order, by whichever thread finds no send in progress.
+    // Created on the first send, as many clients never have anything sent to them
+    private volatile OutboundQueue<Message> outgoingMessages;
+
+    private volatile LocalChannels.Receiver localReceiver;
+
+    // numbers the messages sent via the messenger, and keeps the last of them for a client that reconnects
+    private volatile ReplayBuffer<Message> replayBuffer;
+    private volatile boolean reattached;
+
+    private MessageCompressor messageCompressor;
+    private volatile MessageCompressor agreedCompressor;
 
     private final String serviceComponentName;
     private final String clientPackageName;
@@ -41,10 +62,129 @@ public class MessengerChannelServer extends BaseChannelServer {
         this.clientPackageName = clientPackageName;
     }
 
+    /**
+     * Set the compressor used if the client asks for compression. If not set, messages are never compressed.
+     *
+     * @param messageCompressor The compressor, which may be shared with other channel servers
+     */
+    void setMessageCompressor(MessageCompressor messageCompressor) {
+        this.messageCompressor = messageCompressor;
+    }
+
+    /**
+     * Keep the last messages sent to the client, so that they can be sent again if the client reconnects. Must be called before anything is sent.
+     *
+     * @param size The number of messages kept, or 0 to keep none
+     */
+    void setReplayBufferSize(int size) {
+        replayBuffer = size > 0 ? new ReplayBuffer<Message>(size) : null;
+    }
+
+    /**
+     * @return The number of messages kept for the client to resume from if it reconnects, or 0 if messages are not numbered or kept
+     */
+    public int getReplayBufferSize() {
+        ReplayBuffer<Message> buffer = replayBuffer;
+        return buffer != null ? buffer.getCapacity() : 0;
+    }
+
+    /**
+     * The client has disconnected. Messages sent until it reconnects are kept in the replay buffer only.
+     */
+    void detach() {
+        replyTo = null;
+        localReceiver = null;
+    }
+
+    /**
+     * The client has reconnected, and can now resume from the messages in the replay buffer
+     */
+    void reattach() {
+        reattached = true;
+    }
+
+    /**
+     * Send the messages the client missed while disconnected, then carry on sending new messages to the messenger given.
+     * <p>
+     * If the client has not been reattached, or some of the messages it missed have been dropped from the replay buffer, it is sent a
+     * {@link MessageException} with code {@link AbstractChannelService#ERROR_RESUME_FAILED} instead, and should start again.
+     * </p>
+     *
+     * @param lastSequence The sequence number of the last message received by the client
+     * @param messenger    The messenger to send to
+     */
+    void resume(long lastSequence, Messenger messenger) {
+        ReplayBuffer<Message> buffer = replayBuffer;
+        if (buffer != null && reattached) {
+            // held while the gap is queued, so that no new message is sent before it
+            synchronized (buffer) {
+                List<Message> missed = buffer.since(lastSequence);
+                if (missed != null) {
+                    Log.d(TAG, "Client resumed, sending " + missed.size() + " missed messages");
+                    localReceiver = null;
+                    replyTo = messenger;
+                    long sequence = lastSequence;
+                    for (Message message : missed) {
+                        offer(numbered(message, ++sequence));
+                    }
+                    return;
+                }
+            }
+        }
+        Log.d(TAG, "Unable to resume client from message " + lastSequence);
+        replyTo = messenger;
+        send(new MessageException(AbstractChannelService.ERROR_RESUME_FAILED, "The messages sent since " + lastSequence + " are not available"));
+    }
+
+    /**
+     * @return The compressor agreed with the client, which uses the agreed dictionary if any, or null if compression has not been agreed
+     */
+    MessageCompressor getMessageCompressor() {
+        return agreedCompressor;
+    }
+
+    /**
+     * @return True if the client and this server have agreed to compress large messages
+     */
+    boolean isCompressionAgreed() {
+        return agreedCompressor != null;
+    }
+
+    /**
+     * Clients that support compression say so in every message they send, along with the ids of the dictionaries they have. Once a client has,
+     * this server compresses large messages it sends using the first of those dictionaries it also has, and tells the client it can do the same by
+     * adding the same keys to its replies.
+     */
+    void negotiateCompression(Bundle data) {
+        if (agreedCompressor == null && messageCompressor != null && COMPRESSION_DEFLATE.equals(data.getString(KEY_COMPRESSION))) {
+            CompressionDictionary dictionary = null;
+            String[] dictionaryIds = data.getStringArray(KEY_COMPRESSION_DICTIONARIES);
+            if (dictionaryIds != null) {
+                for (int i = 0; i < dictionaryIds.length && dictionary == null; i++) {
+                    dictionary = messageCompressor.getDictionary(dictionaryIds[i]);
+                }
+            }
+            Log.d(TAG, "Client supports compression, messages of " + messageCompressor.getThreshold() + " characters or more will be compressed" +
+                    (dictionary != null ? " using dictionary " + dictionary.getId() : ""));
+            agreedCompressor = messageCompressor.forDictionary(dictionary);
+        }
+    }
+
     @Override
     public void handleMessage(Message msg) {
         Bundle data = msg.getData();
-        if (data != null && data.containsKey(KEY_DATA_REQUEST)) {
+        long requestId = data != null ? data.getLong(KEY_REQUEST_ID, NO_REQUEST_ID) : NO_REQUEST_ID;
+        if (msg.what == MESSAGE_CANCEL) {
+            Log.d(TAG, "Client cancelled request: " + requestId);
+            notifyCancel(requestId);
+            return;
+        }
+        if (data != null) {
+            negotiateCompression(data);
+        }
+        if (data != null && data.containsKey(KEY_RESUME_SEQUENCE)) {
+            resume(data.getLong(KEY_RESUME_SEQUENCE), msg.replyTo);
+        } else if (data != null && data.containsKey(KEY_DATA_REQUEST)) {
             String requestJson = data.getString(KEY_DATA_REQUEST);
 
             try {
@@ -54,6 +194,7 @@ public class MessengerChannelServer extends BaseChannelServer {
                         replyTo = msg.replyTo;
                     }
 
+                    setNextRequestId(requestId);
                     notifyMessage(requestJson);
                 } else {
                     Log.e(TAG, "Invalid message data");
@@ -61,7 +202,143 @@ public class MessengerChannelServer extends BaseChannelServer {
             } catch (Exception e) {
                 Log.e(TAG, "Invalid data", e);
             }
+        } else if (data != null && data.containsKey(KEY_DATA_REQUEST_BINARY)) {
+            byte[] request = data.getByteArray(KEY_DATA_REQUEST_BINARY);
+            if (request != null) {
+                Log.d(TAG, "Received valid binary message from client, length: " + request.length);
+                if (msg.replyTo != null) {
+                    replyTo = msg.replyTo;
+                }
+                setNextRequestId(requestId);
+                notifyBinaryMessage(request);
+            } else {
+                Log.e(TAG, "Invalid message data");
+            }
+        } else if (data != null && data.containsKey(KEY_DATA_REQUEST_DEFLATED)) {
+            byte[] request = data.getByteArray(KEY_DATA_REQUEST_DEFLATED);
+            MessageCompressor compressor = agreedCompressor;
+            if (request != null && compressor != null) {
+                try {
+                    String requestJson = compressor.decompress(request);
+                    Log.d(TAG, "Received valid compressed message from client, length: " + request.length);
+                    if (msg.replyTo != null) {
+                        replyTo = msg.replyTo;
+                    }
+                    setNextRequestId(requestId);
+                    notifyMessage(requestJson);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "Invalid compressed data", e);
+                }
+            } else {
+                Log.e(TAG, "Invalid message data");
+            }
+        }
+    }
+
+    /**
+     * Handle a message sent by a client running in the same process as this server. Replies to the client will be passed directly to the receiver
+     * given instead of being sent via a {@link Messenger}.
+     *
+     * @param message   The message from the client
+     * @param receiver  The client end of the local channel
+     * @param requestId The id the client gave the message
+     */
+    void handleLocalMessage(String message, LocalChannels.Receiver receiver, long requestId) {
+        localReceiver = receiver;
+        if (message != null) {
+            Log.d(TAG, "Received valid local message from client: " + message);
+            setNextRequestId(requestId);
+            notifyMessage(message);
+        } else {
+            Log.e(TAG, "Invalid message data");
+        }
+    }
+
+    /**
+     * Handle a binary message sent by a client running in the same process as this server.
+     *
+     * @param message   The message from the client
+     * @param receiver  The client end of the local channel
+     * @param requestId The id the client gave the message
+     */
+    void handleLocalMessage(byte[] message, LocalChannels.Receiver receiver, long requestId) {
+        localReceiver = receiver;
+        if (message != null) {
+            Log.d(TAG, "Received valid local binary message from client, length: " + message.length);
+            setNextRequestId(requestId);
+            notifyBinaryMessage(message);
+        } else {
+            Log.e(TAG, "Invalid message data");
+        }
+    }
+
+    /**
+     * Reject a request sent via the messenger that the service will not pass on, without ending the stream of responses to the other requests
+     * of the client.
+     *
+     * @param msg   The request
+     * @param error Why the request was rejected
+     */
+    void reject(Message msg, MessageException error) {
+        Bundle data = msg.getData();
+        if (data == null) {
+            return;
+        }
+        negotiateCompression(data);
+        if (msg.replyTo != null) {
+            replyTo = msg.replyTo;
+        }
+        reject(getRequest(data), data.getLong(KEY_REQUEST_ID, NO_REQUEST_ID), error);
+    }
+
+    /**
+     * Reject a request sent by a client running in the same process as this server, without ending the stream of responses to its other requests.
+     *
+     * @param message   The request, or null if it is not text
+     * @param receiver  The client end of the local channel
+     * @param requestId The id the client gave the request
+     * @param error     Why the request was rejected
+     */
+    void rejectLocal(@Nullable String message, LocalChannels.Receiver receiver, long requestId, MessageException error) {
+        localReceiver = receiver;
+        reject(message, requestId, error);
+    }
+
+    @Nullable
+    private String getRequest(Bundle data) {
+        if (data.containsKey(KEY_DATA_REQUEST)) {
+            return data.getString(KEY_DATA_REQUEST);
+        }
+        byte[] request = data.getByteArray(KEY_DATA_REQUEST_DEFLATED);
+        MessageCompressor compressor = agreedCompressor;
+        if (request != null && compressor != null) {
+            try {
+                return compressor.decompress(request);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Invalid compressed data", e);
+            }
         }
+        return null;
+    }
+
+    /**
+     * The request is named alongside the error, so that only the stream of responses to that request fails
+     */
+    @Override
+    boolean sendRejection(long requestId, MessageException error) {
+        if (requestId == NO_REQUEST_ID) {
+            return send(error);
+        }
+        LocalChannels.Receiver receiver = localReceiver;
+        if (receiver != null) {
+            receiver.onRejected(requestId, error);
+            return true;
+        }
+        Bundle b = new Bundle();
+        b.putString(KEY_DATA_RESPONSE, error.toJson());
+        b.putLong(KEY_REQUEST_ID, requestId);
+        Message message = createMessage(b, MESSAGE_ERROR);
+        return send(message);
     }
 
     @Override
@@ -72,6 +349,11 @@ public class MessengerChannelServer extends BaseChannelServer {
 
     @Override
     public boolean send(MessageException error) {
+        LocalChannels.Receiver receiver = localReceiver;
+        if (receiver != null) {
+            receiver.onError(error);
+            return true;
+        }
         Bundle b = new Bundle();
         b.putString(KEY_DATA_RESPONSE, error.toJson());
         Message message = createMessage(b, MESSAGE_ERROR);
@@ -83,32 +365,184 @@ public class MessengerChannelServer extends BaseChannelServer {
         return clientPackageName;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The message is taken to be a response to the request most recently received, and is dropped if the deadline the client gave that
+     * request has passed, including while the message is still queued to be sent.
+     * </p>
+     */
     @Override
     public boolean send(String senddata) {
+        return sendResponse(senddata, null, getRequestId());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The max age is added to the bundle of the response.
+     * </p>
+     */
+    @Override
+    public boolean send(String senddata, CacheControl cacheControl) {
+        return sendResponse(senddata, cacheControl, getRequestId());
+    }
+
+    /**
+     * Send a message to the client via the messenger whatever the deadline of the request, for subclasses that send {@link #send(String)}
+     * another way
+     */
+    boolean sendResponse(String senddata) {
+        return sendResponse(senddata, null, NOT_A_REQUEST);
+    }
+
+    private boolean sendResponse(String senddata, @Nullable CacheControl cacheControl, long requestId) {
+        if (isExpired(requestId)) {
+            Log.d(TAG, "Dropping message as the deadline given by the client has passed");
+            return false;
+        }
+        LocalChannels.Receiver receiver = localReceiver;
+        if (receiver != null) {
+            if (cacheControl != null) {
+                receiver.onMessage(senddata, serviceComponentName, cacheControl.getMaxAgeSeconds());
+            } else {
+                receiver.onMessage(senddata, serviceComponentName);
+            }
+            return true;
+        }
+        Bundle b = new Bundle();
+        MessageCompressor compressor = agreedCompressor;
+        if (compressor != null && compressor.shouldCompress(senddata)) {
+            b.putByteArray(KEY_DATA_RESPONSE_DEFLATED, compressor.compress(senddata));
+        } else {
+            b.putString(KEY_DATA_RESPONSE, senddata);
+        }
+        if (cacheControl != null) {
+            b.putLong(KEY_MAX_AGE, cacheControl.getMaxAgeSeconds());
+        }
+        putDeadlineRequestId(b, requestId);
+        Message message = createMessage(b, MESSAGE_RESPONSE);
+        return send(message);
+    }
+
+    @Override
+    boolean send(BroadcastMessage broadcastMessage) {
+        LocalChannels.Receiver receiver = localReceiver;
+        if (receiver != null) {
+            receiver.onMessage(broadcastMessage.getPayload(), serviceComponentName);
+            return true;
+        }
         Bundle b = new Bundle();
-        b.putString(KEY_DATA_RESPONSE, senddata);
+        MessageCompressor compressor = agreedCompressor;
+        if (compressor != null && compressor.shouldCompress(broadcastMessage.getPayload())) {
+            b.putByteArray(KEY_DATA_RESPONSE_DEFLATED, broadcastMessage.getCompressed(compressor));
+        } else {
+            b.putString(KEY_DATA_RESPONSE, broadcastMessage.getPayload());
+        }
+        Message message = createMessage(b, MESSAGE_RESPONSE);
+        return send(message);
+    }
+
+    @Override
+    public boolean send(byte[] senddata) {
+        long requestId = getRequestId();
+        if (isExpired(requestId)) {
+            Log.d(TAG, "Dropping binary message as the deadline given by the client has passed");
+            return false;
+        }
+        LocalChannels.Receiver receiver = localReceiver;
+        if (receiver != null) {
+            receiver.onBinaryMessage(senddata, serviceComponentName);
+            return true;
+        }
+        Bundle b = new Bundle();
+        b.putByteArray(KEY_DATA_RESPONSE_BINARY, senddata);
+        putDeadlineRequestId(b, requestId);
         Message message = createMessage(b, MESSAGE_RESPONSE);
         return send(message);
     }
 
     @Override
     public boolean sendEndStream() {
+        clearCancellations();
+        LocalChannels.Receiver receiver = localReceiver;
+        if (receiver != null) {
+            closeClient();
+            receiver.onEndStream();
+            return true;
+        }
         Message message = createMessage(null, MESSAGE_END_STREAM);
         closeClient();
         return send(message);
     }
 
     private boolean send(Message message) {
-        if (replyTo != null) {
+        ReplayBuffer<Message> buffer = replayBuffer;
+        if (buffer == null) {
+            return replyTo != null && offer(message);
+        }
+        synchronized (buffer) {
+            long sequence = buffer.add(message);
+            // while the client is disconnected the message is only kept, to be sent if it reconnects
+            return replyTo == null || offer(numbered(message, sequence));
+        }
+    }
+
+    private boolean offer(Message message) {
+        return getOutgoingMessages().offer(message, MessagePriority.NORMAL);
+    }
+
+    /**
+     * @return A copy of the message kept, with its sequence number, as the message sent is recycled once delivered
+     */
+    private static Message numbered(Message message, long sequence) {
+        Message copy = Message.obtain(message);
+        copy.getData().putLong(KEY_SEQUENCE, sequence);
+        return copy;
+    }
+
+    private OutboundQueue<Message> getOutgoingMessages() {
+        OutboundQueue<Message> queue = outgoingMessages;
+        if (queue == null) {
+            synchronized (this) {
+                if (outgoingMessages == null) {
+                    outgoingMessages = new OutboundQueue<>(new OutboundQueue.Sender<Message>() {
+                        @Override
+                        public void send(Message message) {
+                            sendToClient(message);
+                        }
+                    }, null);
+                }
+                queue = outgoingMessages;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Name the request a response is for if it has a deadline, so that the response can be dropped if still queued once the deadline has passed
+     */
+    private void putDeadlineRequestId(Bundle b, long requestId) {
+        if (hasDeadline(requestId)) {
+            b.putLong(KEY_REQUEST_ID, requestId);
+        }
+    }
+
+    private void sendToClient(Message message) {
+        Bundle data = message.getData();
+        if (data.containsKey(KEY_REQUEST_ID) && isExpired(data.getLong(KEY_REQUEST_ID))) {
+            Log.d(TAG, "Dropping queued message as the deadline given by the client has passed");
+            return;
+        }
+        Messenger messenger = replyTo;
+        if (messenger != null) {
             try {
-                replyTo.send(message);
-                return true;
+                messenger.send(message);
             } catch (RemoteException e) {
                 Log.e(TAG, "Failed to send reply to client", e);
                 binderDied();
             }
         }
-        return false;
     }
 
     private Message createMessage(Bundle b, int what) {
@@ -116,6 +550,13 @@ public class MessengerChannelServer extends BaseChannelServer {
             b = new Bundle();
         }
         b.putString(KEY_DATA_SENDER, serviceComponentName);
+        MessageCompressor compressor = agreedCompressor;
+        if (compressor != null) {
+            b.putString(KEY_COMPRESSION, COMPRESSION_DEFLATE);
+            if (compressor.getDictionary() != null) {
+                b.putString(KEY_COMPRESSION_DICTIONARY, compressor.getDictionary().getId());
+            }
+        }
         Message msg = Message.obtain(null, what);
         msg.setData(b);
         return msg;
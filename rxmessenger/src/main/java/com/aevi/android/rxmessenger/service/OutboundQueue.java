@@ -0,0 +1,163 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.aevi.android.rxmessenger.MessagePriority;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Scheduler;
+
+/**
+ * A queue of messages to send to a client, that any number of threads can add to without locking and that is drained by one thread at a time.
+ * <p>
+ * The thread that finds the queue idle when it adds a message starts the drain, on the scheduler given or otherwise on itself, so that a send
+ * with no other send in progress happens straight away. Threads that add messages while a drain is running leave them to be sent by it and
+ * return at once. Messages are sent in the order they were added, high priority messages first as described for {@link PriorityLanes}.
+ * </p>
+ */
+final class OutboundQueue<T> {
+
+    private static final String TAG = OutboundQueue.class.getSimpleName();
+
+    interface Sender<T> {
+
+        /**
+         * Send a message. Only ever called by one thread at a time.
+         *
+         * @param message The message
+         */
+        void send(T message);
+    }
+
+    // set in the state once the queue is closing, the other bits counting the offers adding a message
+    private static final int CLOSING = Integer.MIN_VALUE;
+
+    private final PriorityLanes<T> lanes = new PriorityLanes<>();
+    // the number of times a drain has been asked for since the running drain last found the queue empty
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicInteger state = new AtomicInteger();
+    private final Sender<T> sender;
+    private final Scheduler.Worker worker;
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private volatile Runnable onClosed;
+    private boolean closed;
+
+    /**
+     * @param sender    Sends the messages
+     * @param scheduler The scheduler to send the messages on, or null to send them on the thread that adds a message to the idle queue
+     */
+    OutboundQueue(Sender<T> sender, @Nullable Scheduler scheduler) {
+        this.sender = sender;
+        this.worker = scheduler != null ? scheduler.createWorker() : null;
+    }
+
+    /**
+     * Add a message to be sent
+     *
+     * @param message  The message
+     * @param priority The priority of the message
+     * @return False if the queue has been closed and the message will not be sent
+     */
+    boolean offer(T message, MessagePriority priority) {
+        int current;
+        do {
+            current = state.get();
+            if ((current & CLOSING) != 0) {
+                return false;
+            }
+        } while (!state.compareAndSet(current, current + 1));
+        lanes.add(message, priority);
+        // the message is added before the count is dropped, so the drain does not close until it can see the message
+        state.decrementAndGet();
+        schedule();
+        return true;
+    }
+
+    /**
+     * Close the queue once the messages already added have been sent. Messages added from now on are not sent.
+     *
+     * @param onClosed Called on the draining thread once the queue is closed, or null
+     */
+    synchronized void close(@Nullable Runnable onClosed) {
+        if (!isClosed()) {
+            // set before closing, so a drain that sees the queue closing also sees the callback
+            this.onClosed = onClosed;
+            int current;
+            do {
+                current = state.get();
+            } while (!state.compareAndSet(current, current | CLOSING));
+            schedule();
+        }
+    }
+
+    boolean isClosed() {
+        return (state.get() & CLOSING) != 0;
+    }
+
+    private void schedule() {
+        if (wip.getAndIncrement() == 0) {
+            if (worker != null) {
+                worker.schedule(drainTask);
+            } else {
+                drain();
+            }
+        }
+    }
+
+    private void drain() {
+        int missed = 1;
+        while (true) {
+            sendQueued();
+            // once closing with no offer still adding a message, nothing more can be added, so a last look finds any message left
+            if (!closed && state.get() == CLOSING) {
+                sendQueued();
+                closed = true;
+                Runnable closedCallback = onClosed;
+                if (closedCallback != null) {
+                    closedCallback.run();
+                }
+            }
+            // the close path also gives up its count, so that wip is back to 0 once the queue is idle whether it is closed or not
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                if (closed && worker != null) {
+                    worker.dispose();
+                }
+                return;
+            }
+        }
+    }
+
+    private void sendQueued() {
+        T message;
+        while ((message = lanes.poll()) != null) {
+            try {
+                sender.send(message);
+            } catch (RuntimeException e) {
+                // the queue must keep draining, or every message after this one would be stuck
+                Log.e(TAG, "Failed to send message", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Holds the messages of a new client while it is initialised in the background, and passes them on in the order they arrived once it is ready.
+ * <p>
+ * Messages submitted while the held messages are being passed on are queued behind them, so the order is kept whichever thread submits.
+ * </p>
+ */
+final class PendingMessages {
+
+    private final int maxPending;
+    private final Queue<Runnable> pending = new ArrayDeque<>();
+    private boolean ready;
+    private boolean discarded;
+
+    /**
+     * @param maxPending The maximum number of messages held until the client is ready
+     */
+    PendingMessages(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Pass on a message if the client is ready, otherwise hold it
+     *
+     * @param delivery Passes the message on to the channel server. Must not depend on state that changes after this call if held.
+     * @return False if the message was not accepted, as the maximum number of messages are already held
+     */
+    boolean submit(Runnable delivery) {
+        synchronized (this) {
+            if (discarded) {
+                return true;
+            }
+            if (!ready) {
+                if (pending.size() >= maxPending) {
+                    return false;
+                }
+                pending.add(delivery);
+                return true;
+            }
+        }
+        delivery.run();
+        return true;
+    }
+
+    /**
+     * Pass on the held messages in order, then pass on all later messages straight away
+     */
+    void release() {
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                next = pending.poll();
+                if (next == null) {
+                    ready = true;
+                    return;
+                }
+            }
+            next.run();
+        }
+    }
+
+    /**
+     * Drop the held messages and all later messages, as the client has gone
+     */
+    synchronized void discard() {
+        discarded = true;
+        pending.clear();
+    }
+
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+}
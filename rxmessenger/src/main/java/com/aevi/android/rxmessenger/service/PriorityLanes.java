@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+import com.aevi.android.rxmessenger.MessagePriority;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A queue with a lane for each {@link MessagePriority}, that is drained high priority first.
+ * <p>
+ * So that a steady stream of high priority messages cannot hold up normal messages forever, a normal message is taken after every run of
+ * high priority messages of the maximum length given, if there is one waiting.
+ * </p>
+ * <p>
+ * Any number of threads can add items without locking, but only one thread at a time may take them, as {@link OutboundQueue} does.
+ * </p>
+ */
+final class PriorityLanes<T> {
+
+    static final int DEFAULT_MAX_HIGH_IN_A_ROW = 8;
+
+    private final Queue<T> high = new ConcurrentLinkedQueue<>();
+    private final Queue<T> normal = new ConcurrentLinkedQueue<>();
+    private final int maxHighInARow;
+    private int highInARow;
+
+    PriorityLanes() {
+        this(DEFAULT_MAX_HIGH_IN_A_ROW);
+    }
+
+    PriorityLanes(int maxHighInARow) {
+        this.maxHighInARow = maxHighInARow;
+    }
+
+    void add(T item, MessagePriority priority) {
+        if (priority == MessagePriority.HIGH) {
+            high.add(item);
+        } else {
+            normal.add(item);
+        }
+    }
+
+    /**
+     * @return The next item to send, or null if there are none
+     */
+    T poll() {
+        if (!high.isEmpty() && (normal.isEmpty() || highInARow < maxHighInARow)) {
+            highInARow++;
+            return high.poll();
+        }
+        highInARow = 0;
+        return normal.poll();
+    }
+
+    int size() {
+        return high.size() + normal.size();
+    }
+
+    void clear() {
+        high.clear();
+        normal.clear();
+        highInARow = 0;
+    }
+}
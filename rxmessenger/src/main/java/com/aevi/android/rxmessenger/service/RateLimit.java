@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+/**
+ * A limit on the rate of messages accepted from a client, applied with a token bucket.
+ * <p>
+ * The bucket holds up to the burst size of tokens and is refilled at the rate given. Every message accepted takes a token, so a client can send
+ * a burst of messages at once, but no more than the rate on average. What happens to messages that arrive when there is no token left is
+ * decided by the {@link Policy}.
+ * </p>
+ */
+public final class RateLimit {
+
+    /**
+     * The code of the {@link com.aevi.android.rxmessenger.MessageException} sent to clients whose messages are rejected
+     */
+    public static final String ERROR_RATE_LIMITED = "rateLimited";
+
+    public static final int DEFAULT_MAX_QUEUED = 32;
+
+    /**
+     * What to do with a message that arrives when the limit has been reached
+     */
+    public enum Policy {
+        /**
+         * Reject the message, sending the client a {@link com.aevi.android.rxmessenger.MessageException} with code {@link #ERROR_RATE_LIMITED}
+         */
+        REJECT,
+        /**
+         * Drop the message without telling the client
+         */
+        DROP,
+        /**
+         * Queue the message until a token is available. Messages that arrive when the queue is full are rejected.
+         */
+        QUEUE
+    }
+
+    private final double messagesPerSecond;
+    private final int burst;
+    private final Policy policy;
+    private final int maxQueued;
+
+    /**
+     * @param messagesPerSecond The average number of messages per second accepted
+     * @param burst             The number of messages that can be accepted at once
+     * @param policy            What to do with messages over the limit
+     */
+    public RateLimit(double messagesPerSecond, int burst, Policy policy) {
+        this(messagesPerSecond, burst, policy, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * @param messagesPerSecond The average number of messages per second accepted
+     * @param burst             The number of messages that can be accepted at once
+     * @param policy            What to do with messages over the limit
+     * @param maxQueued         The maximum number of messages queued, if the policy is {@link Policy#QUEUE}
+     */
+    public RateLimit(double messagesPerSecond, int burst, Policy policy, int maxQueued) {
+        if (messagesPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate must be positive and burst at least 1");
+        }
+        this.messagesPerSecond = messagesPerSecond;
+        this.burst = burst;
+        this.policy = policy;
+        this.maxQueued = maxQueued;
+    }
+
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+}
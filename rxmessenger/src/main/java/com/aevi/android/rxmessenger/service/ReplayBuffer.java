@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the last messages sent to a client, numbered in the order they were sent, so that a client that reconnects can be sent the messages it
+ * missed.
+ * <p>
+ * Messages are numbered from 1. Once the buffer is full, adding a message drops the oldest one.
+ * </p>
+ *
+ * @param <T> The type of message
+ */
+final class ReplayBuffer<T> {
+
+    private final Object[] messages;
+    private long lastSequence;
+
+    /**
+     * @param capacity The number of messages kept
+     */
+    ReplayBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be greater than 0");
+        }
+        messages = new Object[capacity];
+    }
+
+    /**
+     * Add a message, dropping the oldest message if the buffer is full
+     *
+     * @param message The message
+     * @return The sequence number of the message
+     */
+    synchronized long add(T message) {
+        lastSequence++;
+        messages[index(lastSequence)] = message;
+        return lastSequence;
+    }
+
+    /**
+     * Get the messages sent after the one given, in order. These are numbered consecutively from the sequence number given plus one.
+     *
+     * @param sequence The sequence number of the last message received by the client, or 0 if it has received none
+     * @return The messages after the one given, which may be none, or null if some of them have already been dropped or the sequence number
+     * has not been reached
+     */
+    @SuppressWarnings("unchecked")
+    synchronized List<T> since(long sequence) {
+        if (sequence < 0 || sequence > lastSequence || lastSequence - sequence > messages.length) {
+            return null;
+        }
+        List<T> missed = new ArrayList<>((int) (lastSequence - sequence));
+        for (long next = sequence + 1; next <= lastSequence; next++) {
+            missed.add((T) messages[index(next)]);
+        }
+        return missed;
+    }
+
+    synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    int getCapacity() {
+        return messages.length;
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % messages.length);
+    }
+}
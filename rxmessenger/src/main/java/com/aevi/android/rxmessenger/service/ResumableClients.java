@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+import com.aevi.android.rxmessenger.ChannelServer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+
+/**
+ * Holds on to the channel servers of clients that have disconnected, so that a client that reconnects within the timeout can carry on with the
+ * same channel server. The channel server of a client that does not reconnect in time is given back to be disposed of.
+ */
+final class ResumableClients {
+
+    interface Expiry {
+
+        /**
+         * Called without holding any lock when a client has not reconnected in time. The client has already been forgotten.
+         *
+         * @param clientId      The id the client had
+         * @param channelServer The channel server of the client
+         */
+        void expire(String clientId, ChannelServer channelServer);
+    }
+
+    private final long timeoutMillis;
+    private final Scheduler scheduler;
+    private final Expiry expiry;
+    private final Map<String, Held> clients = new HashMap<>();
+
+    private static final class Held {
+        private final ChannelServer channelServer;
+        private Disposable timeout;
+
+        private Held(ChannelServer channelServer) {
+            this.channelServer = channelServer;
+        }
+    }
+
+    /**
+     * @param timeoutMillis The time a client has to reconnect
+     * @param scheduler     The scheduler the channel servers of clients that have not reconnected are given back on
+     * @param expiry        Called with the channel servers of clients that have not reconnected
+     */
+    ResumableClients(long timeoutMillis, Scheduler scheduler, Expiry expiry) {
+        this.timeoutMillis = timeoutMillis;
+        this.scheduler = scheduler;
+        this.expiry = expiry;
+    }
+
+    /**
+     * Hold on to the channel server of a client that has disconnected
+     *
+     * @param clientId      The id the client had
+     * @param channelServer The channel server of the client
+     */
+    void hold(final String clientId, ChannelServer channelServer) {
+        final Held held = new Held(channelServer);
+        synchronized (this) {
+            clients.put(clientId, held);
+            held.timeout = scheduler.scheduleDirect(new Runnable() {
+                @Override
+                public void run() {
+                    expire(clientId, held);
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Take back the channel server of a client that has reconnected
+     *
+     * @param clientId          The id the client had
+     * @param clientPackageName The package name of the client, which must match that of the channel server
+     * @return The channel server of the client, or null if it is not held for the package, for example as the client took too long to reconnect
+     */
+    synchronized ChannelServer take(String clientId, String clientPackageName) {
+        Held held = clients.get(clientId);
+        if (held == null || !clientPackageName.equals(held.channelServer.getClientPackageName())) {
+            return null;
+        }
+        clients.remove(clientId);
+        held.timeout.dispose();
+        return held.channelServer;
+    }
+
+    synchronized boolean isEmpty() {
+        return clients.isEmpty();
+    }
+
+    /**
+     * Stop holding all channel servers
+     *
+     * @return The channel servers that were held, to be disposed of
+     */
+    synchronized List<ChannelServer> clear() {
+        List<ChannelServer> released = new ArrayList<>();
+        for (Held held : clients.values()) {
+            held.timeout.dispose();
+            released.add(held.channelServer);
+        }
+        clients.clear();
+        return released;
+    }
+
+    private void expire(String clientId, Held held) {
+        synchronized (this) {
+            if (clients.get(clientId) != held) {
+                return;
+            }
+            clients.remove(clientId);
+        }
+        expiry.expire(clientId, held.channelServer);
+    }
+}
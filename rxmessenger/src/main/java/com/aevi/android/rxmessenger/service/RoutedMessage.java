@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.lang.reflect.Type;
+
+/**
+ * A message passed to a {@link MessageRouter.Handler}. The message is only parsed if and when the handler asks for it.
+ */
+public final class RoutedMessage {
+
+    private final String routingValue;
+    private final String message;
+    private final Gson gson;
+
+    RoutedMessage(String routingValue, String message, Gson gson) {
+        this.routingValue = routingValue;
+        this.message = message;
+        this.gson = gson;
+    }
+
+    /**
+     * @return The value of the routing field, or null if the message had none
+     */
+    public String getRoutingValue() {
+        return routingValue;
+    }
+
+    /**
+     * @return The message as received
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @param type The class to parse the message as
+     * @param <T>  The type of the message
+     * @return The parsed message
+     */
+    public <T> T parse(Class<T> type) {
+        return gson.fromJson(message, type);
+    }
+
+    /**
+     * @param type The type to parse the message as, which may be a generic type
+     * @param <T>  The type of the message
+     * @return The parsed message
+     */
+    public <T> T parse(Type type) {
+        return gson.fromJson(message, type);
+    }
+
+    /**
+     * @return The message parsed as a JSON tree
+     */
+    public JsonObject asJsonObject() {
+        return gson.fromJson(message, JsonObject.class);
+    }
+}
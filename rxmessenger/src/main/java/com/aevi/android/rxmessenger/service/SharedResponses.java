@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+import android.os.SystemClock;
+
+import com.aevi.android.rxmessenger.ChannelServer;
+import com.aevi.android.rxmessenger.MessageException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Single;
+import io.reactivex.functions.BiConsumer;
+
+/**
+ * Shares the result of a computation between all clients of a service that ask for the same thing at the same time.
+ * <p>
+ * Each request is identified by a key chosen by the service. When a request is made while a computation for the same key is already in
+ * progress, the client is added to the clients waiting for that computation instead of starting another one. Once the computation completes its
+ * result is sent to every waiting client via {@link ChannelServer#send(String)}, or if it fails, the error is sent via
+ * {@link ChannelServer#send(MessageException)}.
+ * </p>
+ * <p>
+ * Results can optionally be kept for a short time, so that requests made just after a computation has completed are answered without computing
+ * the result again. Failed results are never kept.
+ * </p>
+ */
+public class SharedResponses {
+
+    static final String ERROR_SHARED_REQUEST = "sharedRequestError";
+
+    private final long cacheTimeMs;
+    private final Map<String, List<ChannelServer>> inFlight = new HashMap<>();
+    private final Map<String, CachedResult> results = new HashMap<>();
+
+    private static class CachedResult {
+        final String result;
+        final long expiresAt;
+
+        CachedResult(String result, long expiresAt) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Create an instance that only shares computations while they are in progress
+     */
+    public SharedResponses() {
+        this(0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create an instance that keeps results for the time given after the computation completes
+     *
+     * @param cacheTime The time to keep results for, or 0 to not keep them
+     * @param unit      The unit of the cache time
+     */
+    public SharedResponses(long cacheTime, TimeUnit unit) {
+        this.cacheTimeMs = unit.toMillis(cacheTime);
+    }
+
+    /**
+     * Send the result for a request to a client, sharing the computation with any other clients that have made a request with the same key.
+     * <p>
+     * The computation is only subscribed to if there is no computation in progress, or result kept, for the key. It is subscribed to on the
+     * calling thread, so use {@link Single#subscribeOn(io.reactivex.Scheduler)} for work that should not run on the main thread.
+     * </p>
+     *
+     * @param channelServer The channel server of the client to send the result to
+     * @param key           The key that identifies the request
+     * @param computation   The computation of the result
+     */
+    public void send(ChannelServer channelServer, final String key, Single<String> computation) {
+        synchronized (inFlight) {
+            String cached = getCached(key);
+            if (cached != null) {
+                channelServer.send(cached);
+                return;
+            }
+            List<ChannelServer> waiting = inFlight.get(key);
+            if (waiting != null) {
+                waiting.add(channelServer);
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(channelServer);
+            inFlight.put(key, waiting);
+        }
+        computation.subscribe(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String result, Throwable throwable) {
+                complete(key, result, throwable);
+            }
+        });
+    }
+
+    private void complete(String key, String result, Throwable throwable) {
+        List<ChannelServer> waiting;
+        synchronized (inFlight) {
+            waiting = inFlight.remove(key);
+            if (result != null && cacheTimeMs > 0) {
+                removeExpired();
+                results.put(key, new CachedResult(result, elapsedRealtime() + cacheTimeMs));
+            }
+        }
+        if (waiting == null) {
+            return;
+        }
+        MessageException error = null;
+        if (throwable != null) {
+            error = throwable instanceof MessageException ? (MessageException) throwable :
+                    new MessageException(ERROR_SHARED_REQUEST, String.valueOf(throwable.getMessage()));
+        }
+        for (ChannelServer channelServer : waiting) {
+            if (error != null) {
+                channelServer.send(error);
+            } else {
+                channelServer.send(result);
+            }
+        }
+    }
+
+    /**
+     * Remove the kept result for a key, so that the next request for it is computed again
+     *
+     * @param key The key that identifies the request
+     */
+    public void invalidate(String key) {
+        synchronized (inFlight) {
+            results.remove(key);
+        }
+    }
+
+    /**
+     * @return The number of computations in progress
+     */
+    int getInFlightCount() {
+        synchronized (inFlight) {
+            return inFlight.size();
+        }
+    }
+
+    long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    private String getCached(String key) {
+        CachedResult cached = results.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.expiresAt > elapsedRealtime()) {
+            return cached.result;
+        }
+        removeExpired();
+        return null;
+    }
+
+    private void removeExpired() {
+        long now = elapsedRealtime();
+        Iterator<CachedResult> iterator = results.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().expiresAt <= now) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the messages received from a client that has a {@link RateLimit}.
+ * <p>
+ * The counters are updated as messages are received, so the values returned by the getters may change between calls.
+ * </p>
+ */
+public final class ThrottleStats {
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    ThrottleStats() {
+    }
+
+    void recordAdmitted() {
+        admitted.incrementAndGet();
+    }
+
+    void recordQueued() {
+        queued.incrementAndGet();
+    }
+
+    void recordRejected() {
+        rejected.incrementAndGet();
+    }
+
+    void recordDropped() {
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * @return The number of messages passed on to the channel server, including those that were queued first
+     */
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    /**
+     * @return The number of messages that had to wait in the queue before being passed on
+     */
+    public long getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return The number of messages rejected with an error sent to the client
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return The number of messages dropped without telling the client
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d admitted (%d queued), %d rejected, %d dropped", getAdmitted(), getQueued(), getRejected(),
+                             getDropped());
+    }
+}
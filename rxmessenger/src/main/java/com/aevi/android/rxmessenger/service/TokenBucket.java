@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service;
+
+/**
+ * A token bucket for a {@link RateLimit}. Times are in milliseconds, from any clock that only moves forwards.
+ */
+final class TokenBucket {
+
+    private final double tokensPerMs;
+    private final int capacity;
+
+    private double tokens;
+    private long lastRefill;
+
+    TokenBucket(RateLimit rateLimit, long now) {
+        this.tokensPerMs = rateLimit.getMessagesPerSecond() / 1000;
+        this.capacity = rateLimit.getBurst();
+        this.tokens = capacity;
+        this.lastRefill = now;
+    }
+
+    synchronized boolean tryAcquire(long now) {
+        refill(now);
+        if (tokens >= 1) {
+            tokens--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return a token taken by {@link #tryAcquire(long)} that was not used
+     */
+    synchronized void release() {
+        tokens = Math.min(capacity, tokens + 1);
+    }
+
+    /**
+     * @return The time until a token is available
+     */
+    synchronized long getWaitMillis(long now) {
+        refill(now);
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerMs);
+    }
+
+    private void refill(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerMs);
+            lastRefill = now;
+        }
+    }
+}
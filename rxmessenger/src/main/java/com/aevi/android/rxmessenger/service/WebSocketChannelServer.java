@@ -17,11 +17,17 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.aevi.android.rxmessenger.CacheControl;
 import com.aevi.android.rxmessenger.ChannelServer;
 import com.aevi.android.rxmessenger.MessageException;
+import com.aevi.android.rxmessenger.MessagePriority;
+import com.aevi.android.rxmessenger.compression.CompressedFrames;
 import com.aevi.android.rxmessenger.model.ConnectionParams;
+import com.aevi.android.rxmessenger.model.FramedMessage;
 import com.aevi.android.rxmessenger.service.websocket.WebSocketConnection;
 import com.aevi.android.rxmessenger.service.websocket.WebSocketServer;
 import com.google.gson.Gson;
@@ -34,12 +40,12 @@ import io.reactivex.CompletableObserver;
 import io.reactivex.Observable;
 import io.reactivex.Scheduler;
 import io.reactivex.disposables.Disposable;
-import io.reactivex.functions.Action;
 import io.reactivex.functions.Consumer;
 import io.reactivex.schedulers.Schedulers;
-import io.reactivex.subjects.PublishSubject;
 
+import static com.aevi.android.rxmessenger.MessageConstants.HEADER_MAX_AGE;
 import static com.aevi.android.rxmessenger.MessageConstants.MESSAGE_REQUEST;
+import static com.aevi.android.rxmessenger.MessageConstants.NO_REQUEST_ID;
 
 /**
  * An websocket implementation of an {@link ChannelServer}. Will automatically fall back to messenger comms if the websocket fails.
@@ -57,13 +63,31 @@ public class WebSocketChannelServer extends MessengerChannelServer {
     public static final String CLOSE_MESSAGE = "closeMessage";
 
     private WebSocketServer webSocketServer;
-    private WebSocketConnection webSocketConnection;
-    private Gson gson = new GsonBuilder().create();
+    private volatile WebSocketConnection webSocketConnection;
+    // thread safe, so shared by all clients rather than built for each
+    private static final Gson GSON = new GsonBuilder().create();
 
-    private PublishSubject<String> sendMessageQueue;
+    // messages are sent from the send scheduler, whichever thread they are sent from by the service
+    private volatile OutboundQueue<Object> sendMessageQueue;
 
     private final Context context;
 
+    /**
+     * A response queued to be sent, that is not sent if still queued once the deadline the client gave its request has passed
+     */
+    private static final class ExpiringMessage {
+        final Object message;
+        final long requestId;
+        // sent in place of the message once expired, or null to send nothing
+        final Object expired;
+
+        ExpiringMessage(Object message, long requestId, Object expired) {
+            this.message = message;
+            this.requestId = requestId;
+            this.expired = expired;
+        }
+    }
+
     private boolean disconnectedWithEndStreamCall = false;
 
     WebSocketChannelServer(Context context, String serviceComponentName, String clientPackageName) {
@@ -78,7 +102,16 @@ public class WebSocketChannelServer extends MessengerChannelServer {
                 if (msg.replyTo != null) {
                     replyTo = msg.replyTo;
                 }
-                startServer();
+                if (msg.getData() != null) {
+                    // agreed before replying with the connection details, so the client knows the websocket frames may be compressed
+                    negotiateCompression(msg.getData());
+                }
+                if (webSocketServer == null) {
+                    startServer();
+                } else {
+                    // websocket already setup, so this is a message sent via the messenger fallback
+                    super.handleMessage(msg);
+                }
                 break;
             default:
                 super.handleMessage(msg);
@@ -97,7 +130,7 @@ public class WebSocketChannelServer extends MessengerChannelServer {
             @Override
             public void accept(Disposable disposable) throws Exception {
                 ConnectionParams connectionParams = new ConnectionParams(webSocketServer.getHostname(), webSocketServer.getPort());
-                if (!WebSocketChannelServer.super.send(gson.toJson(connectionParams))) {
+                if (!sendResponse(GSON.toJson(connectionParams))) {
                     Log.d(TAG, "Failed to send connection details to client");
                 }
             }
@@ -118,35 +151,86 @@ public class WebSocketChannelServer extends MessengerChannelServer {
     }
 
     private void setupSendQueue() {
-        if (sendMessageQueue == null || sendMessageQueue.hasComplete()) {
-            sendMessageQueue = PublishSubject.create();
+        if (sendMessageQueue == null || sendMessageQueue.isClosed()) {
+            sendMessageQueue = new OutboundQueue<>(new OutboundQueue.Sender<Object>() {
+                @Override
+                public void send(Object message) {
+                    sendQueuedMessage(message);
+                }
+            }, getSendScheduler());
         }
+    }
 
-        sendMessageQueue.observeOn(getSendScheduler())
-                .doOnComplete(new Action() {
-                    @Override
-                    public void run() throws Exception {
-                        finishAndCleanUp();
-                    }
-                })
-                .subscribe(new Consumer<String>() {
-                    @Override
-                    public void accept(String message) throws Exception {
-                        try {
-                            if (webSocketConnection != null && webSocketConnection.isConnected()) {
-                                webSocketConnection.send(message);
-                            }
-                        } catch (IOException e) {
-                            Log.e(TAG, "Failed to send message via websocket", e);
-                        }
-                    }
-                });
+    private void sendQueuedMessage(Object message) {
+        if (message instanceof ExpiringMessage) {
+            ExpiringMessage expiringMessage = (ExpiringMessage) message;
+            if (isExpired(expiringMessage.requestId)) {
+                Log.d(TAG, "Dropping queued message as the deadline given by the client has passed");
+                if (expiringMessage.expired == null) {
+                    return;
+                }
+                message = expiringMessage.expired;
+            } else {
+                message = expiringMessage.message;
+            }
+        }
+        WebSocketConnection connection = webSocketConnection;
+        try {
+            if (connection != null && connection.isConnected()) {
+                if (message instanceof byte[]) {
+                    byte[] bytes = (byte[]) message;
+                    connection.send(isCompressionAgreed() ? CompressedFrames.binary(bytes) : bytes);
+                } else if (message instanceof BroadcastMessage) {
+                    sendOverWebSocket(connection, (BroadcastMessage) message);
+                } else if (shouldCompress(connection, (String) message)) {
+                    connection.send(CompressedFrames.compressedText(getMessageCompressor(), (String) message));
+                } else {
+                    connection.send((String) message);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to send message via websocket", e);
+        }
     }
 
-    private void finishAndCleanUp() {
-        if (webSocketConnection != null) {
+    private void closeSendQueue() {
+        sendMessageQueue.close(new Runnable() {
+            @Override
+            public void run() {
+                finishAndCleanUp();
+            }
+        });
+    }
+
+    /**
+     * Close the websocket once the messages already queued for it have been sent, without telling the client that the stream has ended
+     */
+    void closeWebSocket() {
+        if (sendMessageQueue != null) {
+            closeSendQueue();
+        }
+    }
 
-            webSocketConnection.disconnect();
+    private boolean shouldCompress(WebSocketConnection connection, String message) {
+        // with permessage-deflate the frame is already compressed, so compressing the message as well would waste CPU
+        return isCompressionAgreed() && !connection.isPerMessageDeflateEnabled() && getMessageCompressor().shouldCompress(message);
+    }
+
+    private void sendOverWebSocket(WebSocketConnection connection, BroadcastMessage message) throws IOException {
+        String payload = message.getPayload();
+        if (shouldCompress(connection, payload)) {
+            connection.send(CompressedFrames.compressedText(message.getCompressed(getMessageCompressor())));
+        } else {
+            connection.send(payload);
+        }
+    }
+
+    private void finishAndCleanUp() {
+        WebSocketConnection connection = webSocketConnection;
+        // the queue is closed, so nothing else will be sent and the connection (and its buffers) can be released
+        webSocketConnection = null;
+        if (connection != null) {
+            connection.disconnect();
         }
     }
 
@@ -177,22 +261,22 @@ public class WebSocketChannelServer extends MessengerChannelServer {
             }
 
             private void disconnected() {
-                sendMessageQueue.onComplete();
+                closeSendQueue();
                 if (webSocketServer != null) {
                     webSocketServer.stopServer();
                     webSocketServer = null;
                 }
 
                 if (disconnectedWithEndStreamCall) {
-                    sendEndStreamBelow();
+                    sendEndStreamOverMessenger();
                 }
                 disposeClient();
             }
         });
     }
 
-    private void sendEndStreamBelow() {
-        super.sendEndStream();
+    protected boolean sendEndStreamOverMessenger() {
+        return super.sendEndStream();
     }
 
     @Override
@@ -207,13 +291,7 @@ public class WebSocketChannelServer extends MessengerChannelServer {
                 .subscribe(new Consumer<String>() {
                     @Override
                     public void accept(final String message) throws Exception {
-                        new Handler(Looper.getMainLooper()).post(new Runnable() {
-                            @Override
-                            public void run() {
-                                notifyMessage(message);
-                            }
-                        });
-
+                        postMessage(message);
                     }
                 }, new Consumer<Throwable>() {
                     @Override
@@ -221,32 +299,213 @@ public class WebSocketChannelServer extends MessengerChannelServer {
                         Log.e(TAG, "receiveMessages", throwable);
                     }
                 });
+        webSocketConnection.receiveBinaryMessages()
+                .subscribe(new Consumer<byte[]>() {
+                    @Override
+                    public void accept(byte[] frame) throws Exception {
+                        if (isCompressionAgreed() && CompressedFrames.isCompressedText(frame)) {
+                            final String message;
+                            try {
+                                // decompressed here, off the main thread
+                                message = CompressedFrames.decompressText(getMessageCompressor(), frame);
+                            } catch (IllegalArgumentException e) {
+                                Log.e(TAG, "Invalid compressed message", e);
+                                return;
+                            }
+                            postMessage(message);
+                            return;
+                        }
+                        postBinaryMessage(isCompressionAgreed() ? CompressedFrames.payload(frame) : frame);
+                    }
+                }, new Consumer<Throwable>() {
+                    @Override
+                    public void accept(Throwable throwable) throws Exception {
+                        Log.e(TAG, "receiveBinaryMessages", throwable);
+                    }
+                });
+    }
+
+    /**
+     * Websocket messages are passed to the main thread without going through the service, so they are counted and shed here
+     */
+    private void postMessage(final String message) {
+        final LoadShedding shedding = getLoadShedding();
+        if (shedding != null) {
+            shedding.onQueued();
+        }
+        final long queuedAt = SystemClock.uptimeMillis();
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                MessageException rejection = shedding != null ? shedding.onDequeued(WebSocketChannelServer.this, queuedAt) : null;
+                if (rejection != null) {
+                    reject(message, NO_REQUEST_ID, rejection);
+                } else {
+                    notifyMessage(message);
+                }
+            }
+        });
     }
 
+    private void postBinaryMessage(final byte[] message) {
+        final LoadShedding shedding = getLoadShedding();
+        if (shedding != null) {
+            shedding.onQueued();
+        }
+        final long queuedAt = SystemClock.uptimeMillis();
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                MessageException rejection = shedding != null ? shedding.onDequeued(WebSocketChannelServer.this, queuedAt) : null;
+                if (rejection != null) {
+                    // binary frames have nowhere to carry a request id, so the request can not be named
+                    reject(null, NO_REQUEST_ID, rejection);
+                } else {
+                    notifyBinaryMessage(message);
+                }
+            }
+        });
+    }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The first message sets up the websocket, and is never rejected, as the client waits for the connection details.
+     * </p>
+     */
+    @Override
+    void reject(Message msg, MessageException error) {
+        if (webSocketServer == null) {
+            handleMessage(msg);
+        } else {
+            super.reject(msg, error);
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The message is taken to be a response to the request most recently received, and is dropped if the deadline the client gave that
+     * request has passed, including while the message is still queued for the websocket.
+     * </p>
+     */
     @Override
     public boolean send(final String message) {
-        if (webSocketConnection != null && webSocketConnection.isConnected()) {
+        if (isWebSocketConnected()) {
             // normal message sends go over web socket channel
-            sendMessageQueue.onNext(message);
-            return true;
+            return enqueueResponse(message, MessagePriority.NORMAL);
         } else {
             // fallback to messenger
             return super.send(message);
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Over the websocket the max age is sent in a header framing the message, which the client removes before passing the message on.
+     * </p>
+     */
+    @Override
+    public boolean send(String message, CacheControl cacheControl) {
+        if (isWebSocketConnected()) {
+            String framed = message != null ? FramedMessage.of(message).withHeader(HEADER_MAX_AGE, cacheControl.getMaxAgeSeconds()).encode() : null;
+            return enqueueResponse(framed, MessagePriority.NORMAL);
+        }
+        return super.send(message, cacheControl);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * High priority messages are sent before any normal messages still queued for the websocket.
+     * </p>
+     */
+    @Override
+    public boolean send(String message, MessagePriority priority) {
+        if (priority == MessagePriority.NORMAL) {
+            return send(message);
+        }
+        if (isWebSocketConnected()) {
+            return enqueueResponse(message, priority);
+        }
+        return super.send(message);
+    }
+
+    @Override
+    public boolean send(byte[] message) {
+        if (isWebSocketConnected()) {
+            return enqueueResponse(message, MessagePriority.NORMAL);
+        }
+        return super.send(message);
+    }
+
+    @Override
+    boolean send(BroadcastMessage message) {
+        if (isWebSocketConnected()) {
+            return enqueue(message, MessagePriority.NORMAL);
+        }
+        return super.send(message);
+    }
+
+    protected boolean isWebSocketConnected() {
+        WebSocketConnection connection = webSocketConnection;
+        return connection != null && connection.isConnected();
+    }
+
+    protected boolean sendOverWebSocket(String message) {
+        return sendOverWebSocket(message, MessagePriority.NORMAL);
+    }
+
+    protected boolean sendOverWebSocket(String message, MessagePriority priority) {
+        return enqueue(message, priority);
+    }
+
+    private boolean enqueue(Object message, MessagePriority priority) {
+        return sendMessageQueue.offer(message, priority);
+    }
+
+    private boolean enqueueResponse(Object message, MessagePriority priority) {
+        long requestId = getRequestId();
+        if (isExpired(requestId)) {
+            Log.d(TAG, "Dropping message as the deadline given by the client has passed");
+            return false;
+        }
+        return enqueue(message, requestId, null, priority);
+    }
+
+    /**
+     * Queue a response for the websocket, that is not sent if still queued once the deadline the client gave its request has passed
+     *
+     * @param message   The message to send
+     * @param requestId The id of the request the message is a response to
+     * @param expired   The message to send in its place once the deadline has passed, or null to send nothing
+     * @param priority  The priority of the message
+     * @return True if the message was queued
+     */
+    boolean enqueue(Object message, long requestId, @Nullable Object expired, MessagePriority priority) {
+        return enqueue(hasDeadline(requestId) ? new ExpiringMessage(message, requestId, expired) : message, priority);
+    }
+
+    protected boolean sendOverMessenger(String message) {
+        return sendResponse(message);
+    }
+
     @Override
     public boolean sendEndStream() {
+        if (sendMessageQueue == null) {
+            // websocket never set up (e.g. local client), so end the stream via the messenger fallback
+            return sendEndStreamOverMessenger();
+        }
         disconnectedWithEndStreamCall = true;
-        sendMessageQueue.onNext(CLOSE_MESSAGE);
+        // queued as a normal message, so the stream is not closed before the messages sent ahead of it
+        enqueue(CLOSE_MESSAGE, MessagePriority.NORMAL);
         Observable.timer(WAIT_FOR_CLOSE_TIMEOUT, TimeUnit.SECONDS, getSendScheduler())
                 .subscribe(new Consumer<Long>() {
                     @Override
                     public void accept(Long aLong) throws Exception {
-                        if (!sendMessageQueue.hasComplete()) {
-                            sendMessageQueue.onComplete();
-                        }
+                        closeSendQueue();
                     }
                 });
         return true;
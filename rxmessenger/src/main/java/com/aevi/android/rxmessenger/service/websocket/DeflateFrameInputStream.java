@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service.websocket;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Follows the websocket frames read from the client, so that the RSV1 bit set on the first frame of messages compressed with permessage-deflate
+ * can be recorded and cleared before NanoWSD reads the frame, as NanoWSD rejects frames with any reserved bit set.
+ * <p>
+ * The bit is only cleared for text and binary frames. It is left for continuation and control frames, where RFC 7692 does not allow it, so
+ * that NanoWSD still closes the connection with a protocol error.
+ * </p>
+ */
+class DeflateFrameInputStream extends FilterInputStream {
+
+    private static final int RSV1 = 0x40;
+    private static final int OPCODE_MASK = 0x0F;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_LENGTH = 1;
+    private static final int STATE_EXTENDED_LENGTH = 2;
+    private static final int STATE_MASK = 3;
+    private static final int STATE_PAYLOAD = 4;
+
+    // only used by the thread reading the websocket, which is also the thread the messages are delivered on
+    private final Queue<Boolean> compressedMessages = new ArrayDeque<>();
+
+    private int state = STATE_HEADER;
+    private boolean masked;
+    private int headerBytesLeft;
+    private long payloadLeft;
+
+    DeflateFrameInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Called for each text or binary message received, in order.
+     *
+     * @return True if the message was compressed
+     */
+    boolean nextMessageCompressed() {
+        Boolean compressed = compressedMessages.poll();
+        return compressed != null && compressed;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = in.read();
+        return value == -1 ? value : onByte(value);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (state == STATE_PAYLOAD) {
+            int read = in.read(b, off, (int) Math.min(len, payloadLeft));
+            if (read > 0) {
+                payloadLeft -= read;
+                if (payloadLeft == 0) {
+                    state = STATE_HEADER;
+                }
+            }
+            return read;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        // frame headers are read a byte at a time so every byte can be checked
+        int value = read();
+        if (value == -1) {
+            return -1;
+        }
+        b[off] = (byte) value;
+        return 1;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && read() != -1) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private int onByte(int value) {
+        switch (state) {
+            case STATE_HEADER:
+                int opCode = value & OPCODE_MASK;
+                if (opCode == OPCODE_TEXT || opCode == OPCODE_BINARY) {
+                    compressedMessages.offer((value & RSV1) != 0);
+                    value &= ~RSV1;
+                }
+                state = STATE_LENGTH;
+                break;
+            case STATE_LENGTH:
+                masked = (value & 0x80) != 0;
+                int length = value & 0x7F;
+                payloadLeft = 0;
+                if (length == 126) {
+                    headerBytesLeft = 2;
+                    state = STATE_EXTENDED_LENGTH;
+                } else if (length == 127) {
+                    headerBytesLeft = 8;
+                    state = STATE_EXTENDED_LENGTH;
+                } else {
+                    payloadLeft = length;
+                    onLengthRead();
+                }
+                break;
+            case STATE_EXTENDED_LENGTH:
+                payloadLeft = (payloadLeft << 8) | value;
+                if (--headerBytesLeft == 0) {
+                    onLengthRead();
+                }
+                break;
+            case STATE_MASK:
+                if (--headerBytesLeft == 0) {
+                    onHeaderRead();
+                }
+                break;
+            case STATE_PAYLOAD:
+                if (--payloadLeft == 0) {
+                    state = STATE_HEADER;
+                }
+                break;
+        }
+        return value;
+    }
+
+    private void onLengthRead() {
+        if (masked) {
+            headerBytesLeft = 4;
+            state = STATE_MASK;
+        } else {
+            onHeaderRead();
+        }
+    }
+
+    private void onHeaderRead() {
+        state = payloadLeft > 0 ? STATE_PAYLOAD : STATE_HEADER;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.service.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The state of the permessage-deflate extension (RFC 7692) for a single websocket connection.
+ * <p>
+ * With context takeover, the deflate window is kept between messages so later messages can refer back to earlier ones, which greatly improves
+ * the ratio for streams of similar messages at the cost of keeping a {@link Deflater} and {@link Inflater} per connection. Java cannot limit the
+ * deflate window size, so offers that ask the server to use a smaller window are declined.
+ * </p>
+ * <p>
+ * For internal use only
+ * </p>
+ */
+public class PerMessageDeflate {
+
+    static final String EXTENSION_NAME = "permessage-deflate";
+
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+    private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+    private static final int MAX_WINDOW_BITS = 15;
+
+    // every message compressed with a sync flush ends with an empty stored block, which is removed before sending
+    private static final byte[] EMPTY_BLOCK = {0x00, 0x00, (byte) 0xff, (byte) 0xff};
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Messages smaller than this, in bytes, are sent without compression
+     */
+    public static final int DEFAULT_MIN_DEFLATE_SIZE = 1024;
+
+    private final boolean serverNoContextTakeover;
+    private final boolean clientNoContextTakeover;
+    private final int minDeflateSize;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] deflateBuffer = new byte[BUFFER_SIZE];
+    private final byte[] inflateBuffer = new byte[BUFFER_SIZE];
+    private volatile boolean closed;
+
+    PerMessageDeflate(boolean serverNoContextTakeover, boolean clientNoContextTakeover, int minDeflateSize) {
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        this.minDeflateSize = minDeflateSize;
+    }
+
+    /**
+     * Choose the first permessage-deflate offer from the client that can be accepted.
+     *
+     * @param extensionsHeader      The value of the Sec-WebSocket-Extensions header of the client, may be null
+     * @param serverContextTakeover True to keep the deflate window between messages sent, unless the client asks otherwise
+     * @param minDeflateSize        Messages smaller than this, in bytes, are sent without compression
+     * @return The extension to use for the connection, or null if the client did not offer permessage-deflate or none of its offers can be accepted
+     */
+    public static PerMessageDeflate negotiate(String extensionsHeader, boolean serverContextTakeover, int minDeflateSize) {
+        if (extensionsHeader == null) {
+            return null;
+        }
+        for (String offer : extensionsHeader.split(",")) {
+            String[] parts = offer.split(";");
+            if (!EXTENSION_NAME.equalsIgnoreCase(parts[0].trim())) {
+                continue;
+            }
+            boolean serverNoContextTakeover = !serverContextTakeover;
+            boolean clientNoContextTakeover = false;
+            boolean accept = true;
+            Set<String> seen = new HashSet<>();
+            for (int i = 1; i < parts.length && accept; i++) {
+                String[] param = parts[i].split("=", 2);
+                String name = param[0].trim().toLowerCase(Locale.US);
+                String value = param.length > 1 ? param[1].trim().replace("\"", "") : null;
+                if (!seen.add(name)) {
+                    accept = false;
+                } else if (SERVER_NO_CONTEXT_TAKEOVER.equals(name) && value == null) {
+                    serverNoContextTakeover = true;
+                } else if (CLIENT_NO_CONTEXT_TAKEOVER.equals(name) && value == null) {
+                    clientNoContextTakeover = true;
+                } else if (SERVER_MAX_WINDOW_BITS.equals(name)) {
+                    accept = MAX_WINDOW_BITS == parseWindowBits(value);
+                } else if (CLIENT_MAX_WINDOW_BITS.equals(name)) {
+                    // the client can limit its own window without us needing to know, as the inflater handles any window size
+                    accept = value == null || parseWindowBits(value) > 0;
+                } else {
+                    accept = false;
+                }
+            }
+            if (accept) {
+                return new PerMessageDeflate(serverNoContextTakeover, clientNoContextTakeover, minDeflateSize);
+            }
+        }
+        return null;
+    }
+
+    private static int parseWindowBits(String value) {
+        try {
+            int bits = Integer.parseInt(value);
+            return bits >= 8 && bits <= MAX_WINDOW_BITS ? bits : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return The value of the Sec-WebSocket-Extensions header to send back to the client
+     */
+    public String getResponseHeader() {
+        StringBuilder header = new StringBuilder(EXTENSION_NAME);
+        if (serverNoContextTakeover) {
+            header.append("; ").append(SERVER_NO_CONTEXT_TAKEOVER);
+        }
+        if (clientNoContextTakeover) {
+            header.append("; ").append(CLIENT_NO_CONTEXT_TAKEOVER);
+        }
+        return header.toString();
+    }
+
+    boolean isServerNoContextTakeover() {
+        return serverNoContextTakeover;
+    }
+
+    boolean isClientNoContextTakeover() {
+        return clientNoContextTakeover;
+    }
+
+    /**
+     * @param payload The message payload
+     * @return True if the message is large enough to be compressed
+     */
+    public boolean shouldDeflate(byte[] payload) {
+        return payload.length >= minDeflateSize;
+    }
+
+    /**
+     * Compress a message to send. Messages must be sent in the order they were compressed in, as with context takeover each one depends on the
+     * messages before it.
+     *
+     * @param payload The message payload
+     * @return The compressed payload, to be sent with the RSV1 bit set
+     * @throws IOException If the connection has been closed
+     */
+    public byte[] deflate(byte[] payload) throws IOException {
+        synchronized (deflater) {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            deflater.setInput(payload);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2 + EMPTY_BLOCK.length);
+            int length;
+            do {
+                length = deflater.deflate(deflateBuffer, 0, deflateBuffer.length, Deflater.SYNC_FLUSH);
+                out.write(deflateBuffer, 0, length);
+            } while (length == deflateBuffer.length || !deflater.needsInput());
+            if (serverNoContextTakeover) {
+                deflater.reset();
+            }
+            byte[] compressed = out.toByteArray();
+            if (!endsWithEmptyBlock(compressed)) {
+                throw new IOException("Unexpected end of deflated message");
+            }
+            byte[] message = new byte[compressed.length - EMPTY_BLOCK.length];
+            System.arraycopy(compressed, 0, message, 0, message.length);
+            return message;
+        }
+    }
+
+    /**
+     * Decompress a message received with the RSV1 bit set.
+     *
+     * @param payload The compressed payload
+     * @return The message payload
+     * @throws IOException If the payload is not valid or the connection has been closed
+     */
+    public byte[] inflate(byte[] payload) throws IOException {
+        synchronized (inflater) {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            byte[] input = new byte[payload.length + EMPTY_BLOCK.length];
+            System.arraycopy(payload, 0, input, 0, payload.length);
+            System.arraycopy(EMPTY_BLOCK, 0, input, payload.length, EMPTY_BLOCK.length);
+            inflater.setInput(input);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 4);
+            try {
+                while (!inflater.finished()) {
+                    int length = inflater.inflate(inflateBuffer);
+                    if (length == 0) {
+                        if (inflater.needsInput()) {
+                            break;
+                        }
+                        throw new IOException("Invalid deflated message");
+                    }
+                    out.write(inflateBuffer, 0, length);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid deflated message", e);
+            }
+            // a message ending with a final block starts a new stream, which loses the window as it cannot be carried over by Inflater
+            if (clientNoContextTakeover || inflater.finished()) {
+                inflater.reset();
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static boolean endsWithEmptyBlock(byte[] data) {
+        if (data.length < EMPTY_BLOCK.length) {
+            return false;
+        }
+        for (int i = 0; i < EMPTY_BLOCK.length; i++) {
+            if (data[data.length - EMPTY_BLOCK.length + i] != EMPTY_BLOCK[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Release the native memory held by the deflater and inflater
+     */
+    public void close() {
+        closed = true;
+        synchronized (deflater) {
+            deflater.end();
+        }
+        synchronized (inflater) {
+            inflater.end();
+        }
+    }
+}
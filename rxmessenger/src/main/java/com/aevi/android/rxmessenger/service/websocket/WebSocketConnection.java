@@ -16,14 +16,22 @@ package com.aevi.android.rxmessenger.service.websocket;
 import android.util.Log;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
 
 import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.NanoWSD;
 import io.reactivex.Completable;
 import io.reactivex.Observable;
-import io.reactivex.subjects.BehaviorSubject;
 import io.reactivex.subjects.CompletableSubject;
+import io.reactivex.subjects.UnicastSubject;
 
+import static fi.iki.elonen.NanoWSD.WebSocketFrame.CloseCode.InvalidFramePayloadData;
 import static fi.iki.elonen.NanoWSD.WebSocketFrame.CloseCode.NormalClosure;
 
 /**
@@ -32,13 +40,58 @@ import static fi.iki.elonen.NanoWSD.WebSocketFrame.CloseCode.NormalClosure;
 public class WebSocketConnection extends NanoWSD.WebSocket {
 
     private static final String TAG = WebSocketConnection.class.getSimpleName();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     private CompletableSubject connectSubject = CompletableSubject.create();
-    // WebSocketChannelServer may call receiveMessages() AFTER the request comes in
-    private BehaviorSubject<String> responseSubject = BehaviorSubject.create();
+    // WebSocketChannelServer may call receiveMessages() AFTER the request comes in, so messages are buffered until then, but not after
+    private UnicastSubject<String> responseSubject = UnicastSubject.create();
+    private UnicastSubject<byte[]> binaryResponseSubject = UnicastSubject.create();
     private CompletableSubject disconnectedSubject = CompletableSubject.create();
 
+    private final PerMessageDeflate perMessageDeflate;
+    private final DeflateFrameInputStream deflateFrameInputStream;
+
     WebSocketConnection(NanoHTTPD.IHTTPSession handshakeRequest) {
-        super(handshakeRequest);
+        this(handshakeRequest, null);
+    }
+
+    WebSocketConnection(NanoHTTPD.IHTTPSession handshakeRequest, PerMessageDeflate perMessageDeflate) {
+        this(handshakeRequest, perMessageDeflate,
+             perMessageDeflate != null ? new DeflateFrameInputStream(handshakeRequest.getInputStream()) : null);
+    }
+
+    private WebSocketConnection(NanoHTTPD.IHTTPSession handshakeRequest, PerMessageDeflate perMessageDeflate,
+                                DeflateFrameInputStream deflateFrameInputStream) {
+        super(deflateFrameInputStream != null ? withInputStream(handshakeRequest, deflateFrameInputStream) : handshakeRequest);
+        this.perMessageDeflate = perMessageDeflate;
+        this.deflateFrameInputStream = deflateFrameInputStream;
+    }
+
+    /**
+     * NanoWSD reads the frames from the input stream of the handshake request, so the request is wrapped to read them via our stream instead
+     */
+    private static NanoHTTPD.IHTTPSession withInputStream(final NanoHTTPD.IHTTPSession session, final InputStream inputStream) {
+        return (NanoHTTPD.IHTTPSession) Proxy.newProxyInstance(NanoHTTPD.IHTTPSession.class.getClassLoader(),
+                                                               new Class[]{NanoHTTPD.IHTTPSession.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("getInputStream".equals(method.getName()) && method.getParameterTypes().length == 0) {
+                            return inputStream;
+                        }
+                        try {
+                            return method.invoke(session, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * @return True if permessage-deflate has been agreed with the client
+     */
+    public boolean isPerMessageDeflateEnabled() {
+        return perMessageDeflate != null;
     }
 
     public boolean isConnected() {
@@ -61,10 +114,49 @@ public class WebSocketConnection extends NanoWSD.WebSocket {
         }
     }
 
+    /**
+     * @return The messages from the client. Can only be subscribed to once.
+     */
     public Observable<String> receiveMessages() {
         return responseSubject;
     }
 
+    /**
+     * @return The binary messages from the client. Can only be subscribed to once.
+     */
+    public Observable<byte[]> receiveBinaryMessages() {
+        return binaryResponseSubject;
+    }
+
+    @Override
+    public void send(String payload) throws IOException {
+        if (perMessageDeflate != null) {
+            send(NanoWSD.WebSocketFrame.OpCode.Text, payload.getBytes(UTF8));
+        } else {
+            super.send(payload);
+        }
+    }
+
+    @Override
+    public void send(byte[] payload) throws IOException {
+        if (perMessageDeflate != null) {
+            send(NanoWSD.WebSocketFrame.OpCode.Binary, payload);
+        } else {
+            super.send(payload);
+        }
+    }
+
+    private void send(NanoWSD.WebSocketFrame.OpCode opCode, byte[] payload) throws IOException {
+        if (!perMessageDeflate.shouldDeflate(payload)) {
+            sendFrame(new NanoWSD.WebSocketFrame(opCode, true, payload));
+            return;
+        }
+        // compressed and sent under the same lock, as with context takeover the client must inflate messages in the order they were deflated
+        synchronized (this) {
+            sendFrame(new DeflatedFrame(opCode, perMessageDeflate.deflate(payload)));
+        }
+    }
+
     private void sendMessage(String data) {
         try {
             send(data);
@@ -81,17 +173,50 @@ public class WebSocketConnection extends NanoWSD.WebSocket {
     @Override
     protected void onClose(NanoWSD.WebSocketFrame.CloseCode closeCode, String s, boolean b) {
         Log.d(TAG, "Websocket closed: " + closeCode);
+        if (perMessageDeflate != null) {
+            perMessageDeflate.close();
+        }
         disconnectedSubject.onComplete();
     }
 
     @Override
     protected void onMessage(NanoWSD.WebSocketFrame webSocketFrame) {
+        if (deflateFrameInputStream != null && deflateFrameInputStream.nextMessageCompressed()) {
+            onDeflatedMessage(webSocketFrame);
+            return;
+        }
+        if (webSocketFrame.getOpCode() == NanoWSD.WebSocketFrame.OpCode.Binary) {
+            Log.d(TAG, "Received binary payload, length: " + webSocketFrame.getBinaryPayload().length);
+            binaryResponseSubject.onNext(webSocketFrame.getBinaryPayload());
+            return;
+        }
         Log.d(TAG, "Received payload: " + webSocketFrame.getTextPayload());
         if (!webSocketFrame.getTextPayload().isEmpty()) {
             responseSubject.onNext(webSocketFrame.getTextPayload());
         }
     }
 
+    private void onDeflatedMessage(NanoWSD.WebSocketFrame webSocketFrame) {
+        byte[] payload;
+        try {
+            payload = perMessageDeflate.inflate(webSocketFrame.getBinaryPayload());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to inflate message", e);
+            try {
+                close(InvalidFramePayloadData, "Invalid deflated message", false);
+            } catch (IOException closeException) {
+                Log.e(TAG, "Failed to disconnect: " + closeException.getMessage());
+            }
+            return;
+        }
+        Log.d(TAG, "Received deflated payload, length: " + webSocketFrame.getBinaryPayload().length + " -> " + payload.length);
+        if (webSocketFrame.getOpCode() == NanoWSD.WebSocketFrame.OpCode.Binary) {
+            binaryResponseSubject.onNext(payload);
+        } else if (payload.length > 0) {
+            responseSubject.onNext(new String(payload, UTF8));
+        }
+    }
+
     @Override
     protected void onPong(NanoWSD.WebSocketFrame pong) {
         // No-op
@@ -103,4 +228,37 @@ public class WebSocketConnection extends NanoWSD.WebSocket {
         disconnect();
         disconnectedSubject.onComplete();
     }
+
+    /**
+     * A frame with the RSV1 bit set, which NanoWSD does not support writing
+     */
+    private static class DeflatedFrame extends NanoWSD.WebSocketFrame {
+
+        private static final int FIN = 0x80;
+        private static final int RSV1 = 0x40;
+
+        DeflatedFrame(OpCode opCode, byte[] payload) {
+            super(opCode, true, payload);
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            byte[] payload = getBinaryPayload();
+            out.write(FIN | RSV1 | getOpCode().getValue());
+            if (payload.length <= 125) {
+                out.write(payload.length);
+            } else if (payload.length <= 0xFFFF) {
+                out.write(126);
+                out.write(payload.length >>> 8);
+                out.write(payload.length);
+            } else {
+                out.write(127);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int) ((long) payload.length >>> shift));
+                }
+            }
+            out.write(payload);
+            out.flush();
+        }
+    }
 }
@@ -41,10 +41,16 @@ public class WebSocketServer extends NanoWSD {
     private static final int MIN_PORT = 4001;
     private static final int MAX_PORT = 5999;
 
+    private static final String HEADER_WEBSOCKET_EXTENSIONS = "sec-websocket-extensions";
+    private static final String HEADER_WEBSOCKET_EXTENSIONS_RESPONSE = "Sec-WebSocket-Extensions";
+
     private PublishSubject<WebSocketConnection> connectionSubject = PublishSubject.create();
 
     private String hostname;
     private int port;
+    private boolean perMessageDeflateEnabled = true;
+    private boolean serverContextTakeover = true;
+    private int minDeflateSize = PerMessageDeflate.DEFAULT_MIN_DEFLATE_SIZE;
 
     private WebSocketServer(Context context, String hostname, int port) {
         super(hostname, port);
@@ -62,9 +68,44 @@ public class WebSocketServer extends NanoWSD {
         return port;
     }
 
+    /**
+     * Set whether the permessage-deflate extension is agreed with clients that offer it. Enabled by default.
+     *
+     * @param enabled True to compress messages if the client supports it
+     */
+    public void setPerMessageDeflateEnabled(boolean enabled) {
+        this.perMessageDeflateEnabled = enabled;
+    }
+
+    /**
+     * Set whether the deflate window is kept between the messages sent to a client, which gives better compression for streams of similar
+     * messages but uses more memory per connection. Enabled by default.
+     *
+     * @param serverContextTakeover True to keep the window between messages, unless the client asks otherwise
+     */
+    public void setServerContextTakeover(boolean serverContextTakeover) {
+        this.serverContextTakeover = serverContextTakeover;
+    }
+
+    /**
+     * @param minDeflateSize Messages smaller than this, in bytes, are sent without compression
+     */
+    public void setMinDeflateSize(int minDeflateSize) {
+        this.minDeflateSize = minDeflateSize;
+    }
+
     @Override
     protected WebSocket openWebSocket(IHTTPSession ihttpSession) {
-        final WebSocketConnection webSocket = new WebSocketConnection(ihttpSession);
+        PerMessageDeflate perMessageDeflate = null;
+        if (perMessageDeflateEnabled) {
+            perMessageDeflate = PerMessageDeflate.negotiate(ihttpSession.getHeaders().get(HEADER_WEBSOCKET_EXTENSIONS), serverContextTakeover,
+                                                            minDeflateSize);
+        }
+        final WebSocketConnection webSocket = new WebSocketConnection(ihttpSession, perMessageDeflate);
+        if (perMessageDeflate != null) {
+            Log.d(TAG, "Using " + perMessageDeflate.getResponseHeader());
+            webSocket.getHandshakeResponse().addHeader(HEADER_WEBSOCKET_EXTENSIONS_RESPONSE, perMessageDeflate.getResponseHeader());
+        }
         webSocket.onConnected().subscribe(new CompletableObserver() {
             @Override
             public void onSubscribe(Disposable d) {
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.aevi.android.rxmessenger.util;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Re-orders messages that have been numbered by the sender but may arrive out of order, e.g. because they were sent over different channels.
+ * <p>
+ * Messages are released to the {@link Receiver} strictly in sequence order. Should more than the configured number of messages be waiting for a
+ * missing sequence number, the gap is assumed lost and skipped so that the stream can continue.
+ * </p>
+ * <p>
+ * For internal use only
+ * </p>
+ */
+public class MessageSequencer<T> {
+
+    private static final String TAG = MessageSequencer.class.getSimpleName();
+
+    private final TreeMap<Long, T> pending = new TreeMap<>();
+    private final int maxPending;
+    private final Receiver<T> receiver;
+
+    private long nextSequence;
+
+    public MessageSequencer(int maxPending, Receiver<T> receiver) {
+        this.maxPending = maxPending;
+        this.receiver = receiver;
+    }
+
+    /**
+     * Pass a received message to the sequencer
+     *
+     * @param sequence The sequence number given to the message by the sender
+     * @param message  The message
+     */
+    public synchronized void receive(long sequence, T message) {
+        if (sequence < nextSequence) {
+            Log.d(TAG, "Ignoring duplicate message with sequence: " + sequence);
+            return;
+        }
+        if (sequence == nextSequence) {
+            release(message);
+            releasePending();
+        } else {
+            pending.put(sequence, message);
+            if (pending.size() > maxPending) {
+                Long first = pending.firstKey();
+                Log.w(TAG, String.format("Skipping missing messages %d to %d", nextSequence, first - 1));
+                nextSequence = first;
+                releasePending();
+            }
+        }
+    }
+
+    /**
+     * Clear any pending messages and start again from sequence zero
+     */
+    public synchronized void reset() {
+        pending.clear();
+        nextSequence = 0;
+    }
+
+    private void releasePending() {
+        while (!pending.isEmpty() && pending.firstKey() == nextSequence) {
+            Map.Entry<Long, T> entry = pending.pollFirstEntry();
+            release(entry.getValue());
+        }
+    }
+
+    private void release(T message) {
+        nextSequence++;
+        receiver.onMessage(message);
+    }
+
+    public interface Receiver<T> {
+
+        /**
+         * Called for each message in sequence order
+         *
+         * @param message The message
+         */
+        void onMessage(T message);
+    }
+}
@@ -0,0 +1,234 @@
+package com.aevi.android.rxmessenger.client;
+
+import com.aevi.android.rxmessenger.ChannelClient;
+import com.aevi.android.rxmessenger.MessagePriority;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Observable;
+import io.reactivex.functions.Function;
+import io.reactivex.subjects.PublishSubject;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class CachingChannelClientTest {
+
+    @Mock
+    ChannelClient channelClient;
+
+    private long now = 1000;
+    private CachingChannelClient cachingChannelClient;
+
+    @Before
+    public void setup() {
+        initMocks(this);
+        respondWith("status", "ready");
+        cachingChannelClient = createClient(2, null);
+    }
+
+    private void respondWith(String request, String response) {
+        when(channelClient.sendMessage(request)).thenReturn(Observable.just(response, "ignored"));
+    }
+
+    private void respondWithMaxAge(String request, String response, long maxAgeSeconds) {
+        when(channelClient.sendMessage(request)).thenReturn(Observable.just(ResponseCacheControl.frame(response, maxAgeSeconds)));
+    }
+
+    private CachingChannelClient createClient(int maxEntries, Function<String, String> keyFunction) {
+        return new CachingChannelClient(channelClient, maxEntries, 10, TimeUnit.SECONDS, keyFunction) {
+            @Override
+            long elapsedRealtime() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void willAnswerRepeatedRequestsFromCache() {
+        cachingChannelClient.sendMessage("status").test().assertValues("ready").assertComplete();
+        cachingChannelClient.sendMessage("status").test().assertValues("ready").assertComplete();
+
+        verify(channelClient, times(1)).sendMessage("status");
+        assertThat(cachingChannelClient.getStats().getMisses()).isEqualTo(1);
+        assertThat(cachingChannelClient.getStats().getHits()).isEqualTo(1);
+    }
+
+    @Test
+    public void willNotSendUntilSubscribed() {
+        cachingChannelClient.sendMessage("status");
+
+        verify(channelClient, times(0)).sendMessage(anyString());
+        assertThat(cachingChannelClient.getStats().getMisses()).isEqualTo(0);
+    }
+
+    @Test
+    public void willNotCacheUntilResponseReceived() {
+        PublishSubject<String> responses = PublishSubject.create();
+        when(channelClient.sendMessage("slow")).thenReturn(responses);
+
+        cachingChannelClient.sendMessage("slow").test();
+        cachingChannelClient.sendMessage("slow").test();
+
+        verify(channelClient, times(2)).sendMessage("slow");
+    }
+
+    @Test
+    public void willSendAgainOnceExpired() {
+        cachingChannelClient.sendMessage("status").test();
+        now += 10000;
+        cachingChannelClient.sendMessage("status").test().assertValues("ready");
+
+        verify(channelClient, times(2)).sendMessage("status");
+        assertThat(cachingChannelClient.getStats().getEvictions()).isEqualTo(1);
+    }
+
+    @Test
+    public void willEvictLeastRecentlyUsed() {
+        respondWith("a", "1");
+        respondWith("b", "2");
+        cachingChannelClient.sendMessage("status").test();
+        cachingChannelClient.sendMessage("a").test();
+        cachingChannelClient.sendMessage("status").test();
+        cachingChannelClient.sendMessage("b").test();
+
+        cachingChannelClient.sendMessage("status").test();
+        cachingChannelClient.sendMessage("a").test();
+
+        verify(channelClient, times(1)).sendMessage("status");
+        verify(channelClient, times(2)).sendMessage("a");
+        assertThat(cachingChannelClient.getStats().getEvictions()).isEqualTo(2);
+    }
+
+    @Test
+    public void willUseMaxAgeFromService() {
+        respondWithMaxAge("status", "ready", 60);
+
+        cachingChannelClient.sendMessage("status").test().assertValues("ready");
+        now += 30000;
+        cachingChannelClient.sendMessage("status").test().assertValues("ready");
+
+        verify(channelClient, times(1)).sendMessage("status");
+    }
+
+    @Test
+    public void willNotCacheWhenServiceSaysNoStore() {
+        respondWithMaxAge("status", "ready", 0);
+
+        cachingChannelClient.sendMessage("status").test().assertValues("ready");
+        cachingChannelClient.sendMessage("status").test().assertValues("ready");
+
+        verify(channelClient, times(2)).sendMessage("status");
+        assertThat(cachingChannelClient.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void willPassOnResponsesWithoutMaxAge() {
+        when(channelClient.sendMessage("time", MessagePriority.HIGH)).thenReturn(Observable.just(ResponseCacheControl.frame("now", 0)));
+
+        cachingChannelClient.sendMessage("time", MessagePriority.HIGH).test().assertValues("now");
+    }
+
+    @Test
+    public void willDisposeRequestAfterFirstResponse() {
+        PublishSubject<String> responses = PublishSubject.create();
+        when(channelClient.sendMessage("slow")).thenReturn(responses);
+
+        cachingChannelClient.sendMessage("slow").test().assertNotComplete();
+        responses.onNext("ready");
+
+        assertThat(responses.hasObservers()).isFalse();
+        assertThat(cachingChannelClient.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void willCancelRequestIfDisposedBeforeResponse() {
+        PublishSubject<String> responses = PublishSubject.create();
+        when(channelClient.sendMessage("slow")).thenReturn(responses);
+
+        cachingChannelClient.sendMessage("slow").test().dispose();
+
+        assertThat(responses.hasObservers()).isFalse();
+    }
+
+    @Test
+    public void willNotCacheWhenRequestsForSameKeyOverlap() {
+        PublishSubject<String> responses = PublishSubject.create();
+        when(channelClient.sendMessage("a")).thenReturn(responses);
+
+        cachingChannelClient.sendMessage("a").test();
+        cachingChannelClient.sendMessage("a").test();
+        responses.onNext("1");
+
+        assertThat(cachingChannelClient.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void willCacheWhileRequestForOtherKeyInProgress() {
+        PublishSubject<String> updates = PublishSubject.create();
+        when(channelClient.sendMessage("updates")).thenReturn(updates);
+        PublishSubject<String> responses = PublishSubject.create();
+        when(channelClient.sendMessage("a")).thenReturn(responses);
+
+        cachingChannelClient.sendMessage("updates").test();
+        cachingChannelClient.sendMessage("a").test();
+        responses.onNext("1");
+
+        assertThat(updates.hasObservers()).isTrue();
+        assertThat(cachingChannelClient.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void willCacheByKeyAndBypassNullKeys() {
+        respondWith("status:1", "ready");
+        respondWith("status:2", "ready");
+        respondWith("pay", "done");
+        CachingChannelClient client = createClient(2, new Function<String, String>() {
+            @Override
+            public String apply(String request) {
+                return request.startsWith("status") ? "status" : null;
+            }
+        });
+
+        client.sendMessage("status:1").test();
+        client.sendMessage("status:2").test().assertValues("ready");
+        client.sendMessage("pay").test().assertValues("done", "ignored");
+        client.sendMessage("pay").test();
+
+        verify(channelClient, times(0)).sendMessage("status:2");
+        verify(channelClient, times(2)).sendMessage("pay");
+        assertThat(client.getStats().getHits()).isEqualTo(1);
+        assertThat(client.getStats().getMisses()).isEqualTo(1);
+    }
+
+    @Test
+    public void canInvalidate() {
+        cachingChannelClient.sendMessage("status").test();
+        cachingChannelClient.invalidate("status");
+        cachingChannelClient.sendMessage("status").test();
+
+        verify(channelClient, times(2)).sendMessage("status");
+    }
+
+    @Test
+    public void willNotCacheBinaryMessages() {
+        byte[] request = new byte[]{1};
+        when(channelClient.sendBinaryMessage(request)).thenReturn(Observable.just(new byte[]{2}));
+
+        cachingChannelClient.sendBinaryMessage(request).test();
+        cachingChannelClient.sendBinaryMessage(request).test();
+
+        verify(channelClient, times(2)).sendBinaryMessage(request);
+    }
+}
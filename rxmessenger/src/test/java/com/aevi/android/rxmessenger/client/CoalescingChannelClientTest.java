@@ -0,0 +1,153 @@
+package com.aevi.android.rxmessenger.client;
+
+import com.aevi.android.rxmessenger.ChannelClient;
+import com.aevi.android.rxmessenger.MessagePriority;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import io.reactivex.functions.Function;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.subjects.PublishSubject;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class CoalescingChannelClientTest {
+
+    @Mock
+    ChannelClient channelClient;
+
+    private PublishSubject<String> responses = PublishSubject.create();
+    private CoalescingChannelClient coalescingChannelClient;
+
+    @Before
+    public void setup() {
+        initMocks(this);
+        when(channelClient.sendMessage("status")).thenReturn(responses);
+        coalescingChannelClient = new CoalescingChannelClient(channelClient);
+    }
+
+    @Test
+    public void willSendIdenticalRequestsOnce() {
+        TestObserver<String> first = coalescingChannelClient.sendMessage("status").test();
+        TestObserver<String> second = coalescingChannelClient.sendMessage("status").test();
+
+        responses.onNext("ready");
+        responses.onComplete();
+
+        verify(channelClient, times(1)).sendMessage("status");
+        first.assertValues("ready").assertComplete();
+        second.assertValues("ready").assertComplete();
+    }
+
+    @Test
+    public void willSendAgainOnceFirstResponseReceived() {
+        coalescingChannelClient.sendMessage("status").test();
+        responses.onNext("ready");
+
+        assertThat(coalescingChannelClient.getInFlightCount()).isEqualTo(0);
+        coalescingChannelClient.sendMessage("status").test();
+
+        verify(channelClient, times(2)).sendMessage("status");
+    }
+
+    @Test
+    public void willNotShareHighPriorityRequests() {
+        PublishSubject<String> highPriorityResponses = PublishSubject.create();
+        when(channelClient.sendMessage("status", MessagePriority.HIGH)).thenReturn(highPriorityResponses);
+        coalescingChannelClient.sendMessage("status", MessagePriority.NORMAL).test();
+        TestObserver<String> highPriority = coalescingChannelClient.sendMessage("status", MessagePriority.HIGH).test();
+
+        highPriorityResponses.onNext("ready");
+
+        verify(channelClient, times(1)).sendMessage("status");
+        verify(channelClient, times(1)).sendMessage("status", MessagePriority.HIGH);
+        highPriority.assertValues("ready");
+    }
+
+    @Test
+    public void willNotSendOrKeepRequestUntilSubscribed() {
+        coalescingChannelClient.sendMessage("status");
+
+        verify(channelClient, times(0)).sendMessage("status");
+        assertThat(coalescingChannelClient.getInFlightCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void willSendAgainOnceRequestHasEnded() {
+        coalescingChannelClient.sendMessage("status").test();
+        responses.onComplete();
+
+        assertThat(coalescingChannelClient.getInFlightCount()).isEqualTo(0);
+        coalescingChannelClient.sendMessage("status").test();
+
+        verify(channelClient, times(2)).sendMessage("status");
+    }
+
+    @Test
+    public void willOnlyCancelRequestWhenAllCallersDispose() {
+        TestObserver<String> first = coalescingChannelClient.sendMessage("status").test();
+        TestObserver<String> second = coalescingChannelClient.sendMessage("status").test();
+
+        first.dispose();
+        assertThat(responses.hasObservers()).isTrue();
+
+        second.dispose();
+        assertThat(responses.hasObservers()).isFalse();
+        assertThat(coalescingChannelClient.getInFlightCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void willNotCoalesceDifferentRequests() {
+        when(channelClient.sendMessage("config")).thenReturn(PublishSubject.<String>create());
+
+        coalescingChannelClient.sendMessage("status").test();
+        coalescingChannelClient.sendMessage("config").test();
+
+        verify(channelClient).sendMessage("status");
+        verify(channelClient).sendMessage("config");
+        assertThat(coalescingChannelClient.getInFlightCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void canUseKeyFunction() {
+        when(channelClient.sendMessage("{\"type\":\"status\",\"id\":1}")).thenReturn(responses);
+        coalescingChannelClient = new CoalescingChannelClient(channelClient, new Function<String, String>() {
+            @Override
+            public String apply(String request) {
+                return request.contains("status") ? "status" : null;
+            }
+        });
+
+        TestObserver<String> first = coalescingChannelClient.sendMessage("{\"type\":\"status\",\"id\":1}").test();
+        TestObserver<String> second = coalescingChannelClient.sendMessage("{\"type\":\"status\",\"id\":2}").test();
+        responses.onNext("ready");
+
+        first.assertValue("ready");
+        second.assertValue("ready");
+        verify(channelClient, times(0)).sendMessage("{\"type\":\"status\",\"id\":2}");
+    }
+
+    @Test
+    public void willCoalesceIdenticalBinaryRequests() {
+        PublishSubject<byte[]> binaryResponses = PublishSubject.create();
+        byte[] request = {1, 2, 3};
+        when(channelClient.sendBinaryMessage(request)).thenReturn(binaryResponses);
+
+        TestObserver<byte[]> first = coalescingChannelClient.sendBinaryMessage(request).test();
+        TestObserver<byte[]> second = coalescingChannelClient.sendBinaryMessage(new byte[]{1, 2, 3}).test();
+        binaryResponses.onNext(new byte[]{4});
+
+        verify(channelClient, times(1)).sendBinaryMessage(request);
+        first.assertValueCount(1);
+        second.assertValueCount(1);
+    }
+}
@@ -21,6 +21,8 @@ import android.os.*;
 
 import com.aevi.android.rxmessenger.MessageException;
 import com.aevi.android.rxmessenger.MockShadowMessenger;
+import com.aevi.android.rxmessenger.model.FramedMessage;
+import com.aevi.android.rxmessenger.service.AbstractChannelService;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -35,6 +37,7 @@ import org.robolectric.shadows.ShadowPackageManager;
 
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import io.reactivex.annotations.NonNull;
 import io.reactivex.functions.Predicate;
@@ -195,6 +198,127 @@ public class ObservableMessengerClientTest {
         });
     }
 
+    @Test
+    public void checkWillReceiveResponsesAfterErrorFromService() throws RemoteException, InterruptedException {
+        setupMockBoundMessengerService();
+        TestObserver<String> rejected = createObservableSendDataAndSubscribe(new DataObject());
+        sendErrorReply("rateLimited", "Too many messages");
+        rejected.awaitDone(2000, TimeUnit.MILLISECONDS).assertError(MessageException.class);
+
+        TestObserver<String> obs = createObservableSendDataAndSubscribe(new DataObject());
+        DataObject response = new DataObject();
+        sendReply(response);
+
+        obs.awaitDone(2000, TimeUnit.MILLISECONDS).assertNoErrors().assertValue(response.toJson());
+    }
+
+    @Test
+    public void checkWillOnlyFailTheRejectedRequest() throws RemoteException {
+        setupMockBoundMessengerService();
+        TestObserver<String> first = createObservableSendDataAndSubscribe(new DataObject());
+        TestObserver<String> second = createObservableSendDataAndSubscribe(new DataObject());
+
+        sendRejection(getReceivedBundle(1).getLong(KEY_REQUEST_ID), "serviceOverloaded", "Service is overloaded");
+        DataObject response = new DataObject();
+        sendReply(response);
+
+        second.awaitDone(2000, TimeUnit.MILLISECONDS).assertError(MessageException.class);
+        first.assertNoErrors().assertNotComplete().assertValue(response.toJson());
+    }
+
+    @Test
+    public void checkWillResumeFromLastConnection() throws RemoteException {
+        setupMockBoundMessengerService();
+        createObservableSendDataAndSubscribe(new DataObject());
+        String firstClientId = getReceivedBundle(0).getString(KEY_CLIENT_ID);
+
+        TestObserver<String> resumed = observableMessengerClient.resumeConnection().test();
+        DataObject missed = new DataObject();
+        sendReply(missed);
+
+        Bundle resume = getReceivedBundle(MockShadowMessenger.getMessages().size() - 1);
+        assertThat(resume.getString(KEY_RESUME_CLIENT_ID)).isEqualTo(firstClientId);
+        assertThat(resume.getString(KEY_CLIENT_ID)).isNotEqualTo(firstClientId);
+        resumed.awaitDone(2000, TimeUnit.MILLISECONDS).assertNoErrors().assertValue(missed.toJson());
+    }
+
+    @Test
+    public void checkCanSendMessagesAfterResumeFails() throws RemoteException {
+        setupMockBoundMessengerService();
+        createObservableSendDataAndSubscribe(new DataObject());
+
+        TestObserver<String> resumed = observableMessengerClient.resumeConnection().test();
+        sendErrorReply(AbstractChannelService.ERROR_RESUME_FAILED, "The messages sent since 0 are not available");
+        resumed.awaitDone(2000, TimeUnit.MILLISECONDS).assertError(MessageException.class);
+
+        TestObserver<String> obs = createObservableSendDataAndSubscribe(new DataObject());
+        DataObject response = new DataObject();
+        sendReply(response);
+
+        obs.awaitDone(2000, TimeUnit.MILLISECONDS).assertNoErrors().assertValue(response.toJson());
+    }
+
+    @Test
+    public void checkWillSendCancelWhenDisposedBeforeEndOfStream() throws RemoteException {
+        setupMockBoundMessengerService();
+        TestObserver<String> obs = createObservableSendDataAndSubscribe(new DataObject());
+
+        obs.dispose();
+
+        Message cancel = getSentCancelMessage();
+        assertThat(cancel).isNotNull();
+        assertThat(cancel.getData().getString(KEY_CLIENT_ID)).isEqualTo(getReceivedBundle(0).getString(KEY_CLIENT_ID));
+        assertThat(cancel.getData().getLong(KEY_REQUEST_ID)).isEqualTo(getReceivedBundle(0).getLong(KEY_REQUEST_ID)).isNotEqualTo(NO_REQUEST_ID);
+    }
+
+    @Test
+    public void checkWillNotSendCancelAfterEndOfStream() throws RemoteException {
+        setupMockBoundMessengerService();
+        TestObserver<String> obs = createObservableSendDataAndSubscribe(new DataObject());
+        sendEndStream();
+
+        obs.awaitDone(2000, TimeUnit.MILLISECONDS).assertComplete();
+        obs.dispose();
+
+        assertThat(getSentCancelMessage()).isNull();
+    }
+
+    @Test
+    public void checkWillOnlyCancelTheDisposedRequest() throws RemoteException {
+        setupMockBoundMessengerService();
+        TestObserver<String> first = createObservableSendDataAndSubscribe(new DataObject());
+        createObservableSendDataAndSubscribe(new DataObject());
+
+        first.dispose();
+
+        Message cancel = getSentCancelMessage();
+        assertThat(cancel).isNotNull();
+        assertThat(cancel.getData().getLong(KEY_REQUEST_ID)).isEqualTo(getReceivedBundle(0).getLong(KEY_REQUEST_ID));
+        assertThat(getReceivedBundle(1).getLong(KEY_REQUEST_ID)).isNotEqualTo(getReceivedBundle(0).getLong(KEY_REQUEST_ID));
+    }
+
+    @Test
+    public void checkWillSendTimeoutWithMessage() throws RemoteException {
+        setupMockBoundMessengerService();
+        DataObject msg = new DataObject();
+
+        observableMessengerClient.sendMessage(msg.toJson(), 2, TimeUnit.SECONDS).test();
+
+        FramedMessage sent = FramedMessage.decode(getReceivedBundle(0).getString(KEY_DATA_REQUEST));
+        assertThat(sent.getLongHeader(HEADER_TIMEOUT, -1)).isEqualTo(2000);
+        assertThat(sent.getPayload()).isEqualTo(msg.toJson());
+    }
+
+    @Test
+    public void checkWillFailAndCancelAtDeadline() throws RemoteException {
+        setupMockBoundMessengerService();
+        TestObserver<String> obs = observableMessengerClient.sendMessage(new DataObject().toJson(), 200, TimeUnit.MILLISECONDS).test();
+        sendReply(new DataObject());
+
+        obs.awaitDone(2000, TimeUnit.MILLISECONDS).assertValueCount(1).assertError(TimeoutException.class);
+        assertThat(getSentCancelMessage()).isNotNull();
+    }
+
     @Test
     public void checkWillIgnoreNullMessageFromPcs() throws RemoteException, InterruptedException {
         TestObserver<String> actionTestObserver = createObservableSendDataAndSubscribe(null);
@@ -231,8 +355,7 @@ public class ObservableMessengerClientTest {
     private void sendEndStream() throws RemoteException {
         Message m = Message.obtain();
         m.what = MESSAGE_END_STREAM;
-        Message sent = MockShadowMessenger.getMessages().get(0);
-        sent.replyTo.send(m);
+        getLastSentMessage().replyTo.send(m);
     }
 
     private void sendReply(DataObject response) throws RemoteException {
@@ -241,8 +364,7 @@ public class ObservableMessengerClientTest {
         Bundle b = new Bundle();
         b.putString(KEY_DATA_RESPONSE, response.toJson());
         m.setData(b);
-        Message sent = MockShadowMessenger.getMessages().get(0);
-        sent.replyTo.send(m);
+        getLastSentMessage().replyTo.send(m);
     }
 
     private void sendErrorReply(String code, String desc) throws RemoteException {
@@ -251,8 +373,30 @@ public class ObservableMessengerClientTest {
         Bundle b = new Bundle();
         b.putString(KEY_DATA_RESPONSE, new MessageException(code, desc).toJson());
         m.setData(b);
-        Message sent = MockShadowMessenger.getMessages().get(0);
-        sent.replyTo.send(m);
+        getLastSentMessage().replyTo.send(m);
+    }
+
+    private void sendRejection(long requestId, String code, String desc) throws RemoteException {
+        Message m = Message.obtain();
+        m.what = MESSAGE_ERROR;
+        Bundle b = new Bundle();
+        b.putString(KEY_DATA_RESPONSE, new MessageException(code, desc).toJson());
+        b.putLong(KEY_REQUEST_ID, requestId);
+        m.setData(b);
+        getLastSentMessage().replyTo.send(m);
+    }
+
+    private Message getSentCancelMessage() {
+        for (Message m : MockShadowMessenger.getMessages()) {
+            if (m.what == MESSAGE_CANCEL) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    private Message getLastSentMessage() {
+        return MockShadowMessenger.getMessages().get(MockShadowMessenger.getMessages().size() - 1);
     }
 
     private Bundle getReceivedBundle(int messageIndex) {
@@ -7,6 +7,7 @@ import android.content.Intent;
 import android.content.pm.ResolveInfo;
 import android.os.*;
 
+import com.aevi.android.rxmessenger.MessagePriority;
 import com.aevi.android.rxmessenger.MockShadowMessenger;
 import com.aevi.android.rxmessenger.client.websocket.OkWebSocketClient;
 import com.aevi.android.rxmessenger.model.ConnectionParams;
@@ -119,6 +120,19 @@ public class ObservableWebSocketClientTest {
         verifyMessagesSentToServerViaMessenger(2);
     }
 
+    @Test
+    public void willSendHighPriorityMessageViaMessenger() throws RemoteException {
+        setupMockBoundMessengerService();
+        createObservableSendDataAndSubscribe("hellooooo");
+        sendConnectionParamsFromServer();
+        setWebSocketConnectedState(true);
+
+        observableWebSocketClient.sendMessage("Abort, abort", MessagePriority.HIGH).test();
+
+        verify(observableWebSocketClient.okWebSocketClient, times(0)).sendMessage(anyString());
+        verifyMessagesSentToServerViaMessenger(2);
+    }
+
     @Test
     public void willCloseWebSocket() throws RemoteException {
         setupMockBoundMessengerService();
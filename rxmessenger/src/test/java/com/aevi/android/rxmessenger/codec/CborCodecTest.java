@@ -0,0 +1,99 @@
+package com.aevi.android.rxmessenger.codec;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public class CborCodecTest {
+
+    private final CborCodec<Payment> codec = new CborCodec<>(Payment.class);
+
+    @Test
+    public void willRoundTripMessage() {
+        Payment payment = new Payment("coffee", 350, -12, 2.5, true, Arrays.asList("a", "b"));
+
+        Payment decoded = codec.decodeBinary(codec.encodeBinary(payment));
+
+        assertThat(decoded).isEqualTo(payment);
+    }
+
+    @Test
+    public void willEncodeSmallerThanJson() {
+        Payment payment = new Payment("coffee", 350, -12, 2.5, true, Arrays.asList("a", "b"));
+
+        byte[] cbor = codec.encodeBinary(payment);
+        byte[] json = new Gson().toJson(payment).getBytes(Charset.forName("UTF-8"));
+
+        assertThat(cbor.length).isLessThan(json.length);
+    }
+
+    @Test
+    public void willEncodeUsingStandardCbor() {
+        CborCodec<List<Long>> listCodec = new CborCodec<>(new Gson(), new TypeToken<List<Long>>() {
+        }.getType());
+
+        byte[] encoded = listCodec.encodeBinary(Arrays.asList(1L, 500L, -1L));
+
+        // RFC 7049: array(3), unsigned(1), unsigned16(500), negative(0)
+        assertThat(encoded).containsExactly(0x83, 0x01, 0x19, 0x01, 0xF4, 0x20);
+    }
+
+    @Test
+    public void willDecodeFloatsFromOtherEncoders() {
+        CborCodec<Double> doubleCodec = new CborCodec<>(Double.class);
+
+        assertThat(doubleCodec.decodeBinary(new byte[]{(byte) 0xF9, 0x3E, 0x00})).isEqualTo(1.5);
+        assertThat(doubleCodec.decodeBinary(new byte[]{(byte) 0xFA, 0x3F, (byte) 0xC0, 0x00, 0x00})).isEqualTo(1.5);
+    }
+
+    @Test(expected = CodecException.class)
+    public void willThrowOnTruncatedMessage() {
+        byte[] encoded = codec.encodeBinary(new Payment("coffee", 350, -12, 2.5, true, Arrays.asList("a", "b")));
+
+        codec.decodeBinary(Arrays.copyOf(encoded, encoded.length - 2));
+    }
+
+    static class Payment {
+
+        private final String description;
+        private final long amount;
+        private final int adjustment;
+        private final double rate;
+        private final boolean approved;
+        private final List<String> tags;
+
+        Payment(String description, long amount, int adjustment, double rate, boolean approved, List<String> tags) {
+            this.description = description;
+            this.amount = amount;
+            this.adjustment = adjustment;
+            this.rate = rate;
+            this.approved = approved;
+            this.tags = tags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Payment payment = (Payment) o;
+            return amount == payment.amount && adjustment == payment.adjustment && Double.compare(payment.rate, rate) == 0
+                    && approved == payment.approved && description.equals(payment.description) && tags.equals(payment.tags);
+        }
+
+        @Override
+        public int hashCode() {
+            return description.hashCode();
+        }
+    }
+}
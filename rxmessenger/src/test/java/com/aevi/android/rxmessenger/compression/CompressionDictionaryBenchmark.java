@@ -0,0 +1,91 @@
+package com.aevi.android.rxmessenger.compression;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the compression ratio and time per message of plain deflate with deflate using a dictionary built from a separate set of similar
+ * messages, for messages of 200-2000 bytes.
+ * <p>
+ * Ignored by default, run manually with e.g. {@code ./gradlew :rxmessenger:test --tests *CompressionDictionaryBenchmark}
+ * </p>
+ */
+@Ignore("Benchmark, run manually")
+@RunWith(RobolectricTestRunner.class)
+public class CompressionDictionaryBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String[] ITEMS = {"coffee", "tea", "croissant", "sandwich", "water", "juice", "muffin", "salad"};
+    private static final int SAMPLES = 500;
+    private static final int MESSAGES = 200;
+    private static final int ROUNDS = 200;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void comparePlainDeflateWithDictionary() {
+        CompressionDictionaryBuilder builder = new CompressionDictionaryBuilder();
+        for (int i = 0; i < SAMPLES; i++) {
+            builder.addSample(createBasket());
+        }
+        CompressionDictionary dictionary = builder.build("basket");
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            messages.add(createBasket());
+        }
+
+        MessageCompressor plain = new MessageCompressor(0);
+        MessageCompressor withDictionary = new MessageCompressor(0, dictionary).forDictionary(dictionary);
+        measure(plain, messages);
+        measure(withDictionary, messages);
+
+        System.out.println(String.format(Locale.US, "%d byte dictionary, plain: %s, dictionary: %s", dictionary.size(),
+                                         measure(plain, messages), measure(withDictionary, messages)));
+    }
+
+    private String measure(MessageCompressor compressor, List<String> messages) {
+        long originalBytes = 0;
+        long compressedBytes = 0;
+        long compressNanos = 0;
+        long decompressNanos = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            for (String message : messages) {
+                long start = System.nanoTime();
+                byte[] compressed = compressor.compress(message);
+                long compressedAt = System.nanoTime();
+                compressor.decompress(compressed);
+                decompressNanos += System.nanoTime() - compressedAt;
+                compressNanos += compressedAt - start;
+                originalBytes += message.getBytes(UTF8).length;
+                compressedBytes += compressed.length;
+            }
+        }
+        int count = ROUNDS * messages.size();
+        return String.format(Locale.US, "ratio %.2f, compress %d ns/message, decompress %d ns/message",
+                             (double) originalBytes / compressedBytes, compressNanos / count, decompressNanos / count);
+    }
+
+    private String createBasket() {
+        StringBuilder basket = new StringBuilder("{\"basketId\":\"").append(Long.toHexString(random.nextLong()))
+                .append("\",\"currency\":\"GBP\",\"basketItems\":[");
+        int items = 1 + random.nextInt(12);
+        for (int i = 0; i < items; i++) {
+            if (i > 0) {
+                basket.append(',');
+            }
+            String item = ITEMS[random.nextInt(ITEMS.length)];
+            basket.append("{\"id\":\"").append(Integer.toHexString(random.nextInt())).append("\",\"label\":\"").append(item)
+                    .append("\",\"quantity\":").append(1 + random.nextInt(3)).append(",\"amount\":").append(100 + random.nextInt(900))
+                    .append(",\"category\":\"food\",\"references\":{\"sku\":\"").append(item.toUpperCase(Locale.US)).append("\"}}");
+        }
+        return basket.append("],\"additionalData\":{}}").toString();
+    }
+}
@@ -0,0 +1,62 @@
+package com.aevi.android.rxmessenger.compression;
+
+import org.junit.Test;
+
+import java.util.Set;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public class CompressionDictionaryBuilderTest {
+
+    @Test
+    public void willSplitMessageIntoKeysAndMembers() {
+        Set<String> fragments = CompressionDictionaryBuilder.getFragments("{\"item\":\"coffee\",\"amounts\":[250,300]}");
+
+        assertThat(fragments).contains("\"item\":", "\"item\":\"coffee\",", "\"amounts\":", "250,", "300]");
+    }
+
+    @Test
+    public void willIgnoreStructureInsideStrings() {
+        Set<String> fragments = CompressionDictionaryBuilder.getFragments("{\"name\":\"a, \\\"b\\\" {c}\"}");
+
+        assertThat(fragments).containsOnly("\"name\":", "\"name\":\"a, \\\"b\\\" {c}\"}");
+    }
+
+    @Test
+    public void willOnlyAddFragmentsFoundInSeveralMessages() {
+        CompressionDictionary dictionary = new CompressionDictionaryBuilder()
+                .addSample("{\"currency\":\"GBP\",\"unique1\":1}")
+                .addSample("{\"currency\":\"GBP\",\"unique2\":2}")
+                .build("test");
+
+        String content = new String(dictionary.getContent());
+        assertThat(dictionary.getId()).isEqualTo("test");
+        assertThat(content).contains("\"currency\":\"GBP\",");
+        assertThat(content).doesNotContain("unique");
+    }
+
+    @Test
+    public void willPutMostValuableFragmentsLast() {
+        CompressionDictionaryBuilder builder = new CompressionDictionaryBuilder();
+        for (int i = 0; i < 10; i++) {
+            builder.addSample("{\"transactionReference\":\"abc\"" + (i < 3 ? ",\"rare\":true" : "") + "}");
+        }
+
+        String content = new String(builder.build("test").getContent());
+
+        assertThat(content).endsWith("\"transactionReference\":");
+        assertThat(content).startsWith("\"rare\":");
+    }
+
+    @Test
+    public void willNotExceedMaxSize() {
+        CompressionDictionaryBuilder builder = new CompressionDictionaryBuilder().setMaxSize(64);
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 20; j++) {
+                builder.addSample("{\"field" + j + "\":\"value of field " + j + "\"}");
+            }
+        }
+
+        assertThat(builder.build("test").size()).isLessThanOrEqualTo(64);
+    }
+}
@@ -0,0 +1,130 @@
+package com.aevi.android.rxmessenger.compression;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.zip.Deflater;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class MessageCompressorTest {
+
+    private MessageCompressor messageCompressor;
+
+    @Before
+    public void setup() {
+        messageCompressor = new MessageCompressor(100);
+    }
+
+    @Test
+    public void willOnlyCompressMessagesAtOrAboveThreshold() {
+        assertThat(messageCompressor.shouldCompress(repeat("a", 99))).isFalse();
+        assertThat(messageCompressor.shouldCompress(repeat("a", 100))).isTrue();
+        assertThat(messageCompressor.shouldCompress(null)).isFalse();
+    }
+
+    @Test
+    public void canCompressAndDecompress() {
+        String message = "{\"basket\":[" + repeat("{\"item\":\"coffee\",\"amount\":250,\"currency\":\"GBP\"},", 20) + "]}£";
+
+        byte[] compressed = messageCompressor.compress(message);
+
+        assertThat(compressed.length).isLessThan(message.length() / 4);
+        assertThat(messageCompressor.decompress(compressed)).isEqualTo(message);
+    }
+
+    @Test
+    public void canReusePooledInstances() {
+        for (int i = 0; i < 20; i++) {
+            String message = repeat("message " + i + " ", 50);
+            assertThat(messageCompressor.decompress(messageCompressor.compress(message))).isEqualTo(message);
+        }
+    }
+
+    @Test
+    public void willRecordStats() {
+        String message = repeat("abcdefgh", 100);
+
+        messageCompressor.decompress(messageCompressor.compress(message));
+        messageCompressor.decompress(messageCompressor.compress(message));
+
+        CompressionStats stats = messageCompressor.getStats();
+        assertThat(stats.getCompressedMessages()).isEqualTo(2);
+        assertThat(stats.getDecompressedMessages()).isEqualTo(2);
+        assertThat(stats.getUncompressedBytes()).isEqualTo(1600);
+        assertThat(stats.getCompressionRatio()).isGreaterThan(10);
+    }
+
+    @Test
+    public void canCompressAndDecompressWithDictionary() {
+        CompressionDictionary dictionary = new CompressionDictionary("basket", "{\"item\":\"coffee\",\"amount\":250,\"currency\":\"GBP\"}");
+        MessageCompressor dictionaryCompressor = new MessageCompressor(100, dictionary).forDictionary(dictionary);
+        String message = "{\"item\":\"tea\",\"amount\":200,\"currency\":\"GBP\"}";
+
+        byte[] withDictionary = dictionaryCompressor.compress(message);
+
+        assertThat(withDictionary.length).isLessThan(messageCompressor.compress(message).length);
+        assertThat(dictionaryCompressor.decompress(withDictionary)).isEqualTo(message);
+    }
+
+    @Test
+    public void willShareStatsWithDictionaryCompressor() {
+        CompressionDictionary dictionary = new CompressionDictionary("basket", "abcdefgh");
+        MessageCompressor compressor = new MessageCompressor(100, dictionary);
+
+        compressor.forDictionary(compressor.getDictionary("basket")).compress(repeat("abcdefgh", 10));
+
+        assertThat(compressor.getStats().getCompressedMessages()).isEqualTo(1);
+        assertThat(compressor.getDictionaryIds()).containsExactly("basket");
+        assertThat(compressor.getDictionary("other")).isNull();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void willFailToDecompressWithoutDictionary() {
+        CompressionDictionary dictionary = new CompressionDictionary("basket", "{\"item\":\"coffee\",\"amount\":250,\"currency\":\"GBP\"}");
+        MessageCompressor dictionaryCompressor = new MessageCompressor(100, dictionary).forDictionary(dictionary);
+
+        messageCompressor.decompress(dictionaryCompressor.compress("{\"item\":\"coffee\",\"amount\":250,\"currency\":\"GBP\"}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void willRejectInvalidData() {
+        messageCompressor.decompress(new byte[]{1, 2, 3, 4, 5});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void willRejectTruncatedData() {
+        byte[] compressed = messageCompressor.compress(repeat("abcdefgh", 100));
+        byte[] truncated = new byte[compressed.length / 2];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+
+        messageCompressor.decompress(truncated);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void willRejectMessageLargerThanMaxSize() {
+        MessageCompressor limitedCompressor = new MessageCompressor(100, Deflater.DEFAULT_COMPRESSION, 10000);
+
+        limitedCompressor.decompress(messageCompressor.compress(repeat("a", 10001)));
+    }
+
+    @Test
+    public void canDecompressMessageOfMaxSize() {
+        MessageCompressor limitedCompressor = new MessageCompressor(100, Deflater.DEFAULT_COMPRESSION, 10000);
+        String message = repeat("a", 10000);
+
+        assertThat(limitedCompressor.decompress(messageCompressor.compress(message))).isEqualTo(message);
+        assertThat(limitedCompressor.forDictionary(null).getMaxMessageSize()).isEqualTo(10000);
+    }
+
+    private static String repeat(String value, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+}
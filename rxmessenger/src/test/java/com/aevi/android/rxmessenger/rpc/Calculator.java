@@ -0,0 +1,16 @@
+package com.aevi.android.rxmessenger.rpc;
+
+import java.util.List;
+
+import io.reactivex.Observable;
+
+@RpcService
+public interface Calculator {
+
+    Observable<Integer> add(int a, int b);
+
+    Observable<Long> count(List<String> items, long start);
+
+    @RpcMethod(id = 7)
+    Observable<String> fail(String reason);
+}
@@ -0,0 +1,140 @@
+package com.aevi.android.rxmessenger.rpc;
+
+import com.aevi.android.rxmessenger.ChannelClient;
+import com.aevi.android.rxmessenger.ChannelServer;
+import com.aevi.android.rxmessenger.MessageException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.reactivex.Observable;
+import io.reactivex.ObservableSource;
+import io.reactivex.Observer;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.subjects.PublishSubject;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class RpcTest {
+
+    @Mock
+    ChannelClient channelClient;
+
+    @Mock
+    ChannelServer channelServer;
+
+    private final PublishSubject<String> requests = PublishSubject.create();
+    private final PublishSubject<String> responses = PublishSubject.create();
+    private final List<String> sentRequests = new ArrayList<>();
+
+    private CalculatorRpcClient client;
+
+    @Before
+    public void setup() {
+        initMocks(this);
+        when(channelServer.subscribeToMessages()).thenReturn(requests);
+        when(channelServer.send(anyString())).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                responses.onNext((String) invocation.getArguments()[0]);
+                return true;
+            }
+        });
+        when(channelClient.sendMessage(anyString())).thenAnswer(new Answer<Observable<String>>() {
+            @Override
+            public Observable<String> answer(InvocationOnMock invocation) throws Throwable {
+                final String request = (String) invocation.getArguments()[0];
+                sentRequests.add(request);
+                // subscribe before sending, as the fake server replies synchronously
+                return Observable.wrap(new ObservableSource<String>() {
+                    @Override
+                    public void subscribe(Observer<? super String> observer) {
+                        responses.subscribe(observer);
+                        requests.onNext(request);
+                    }
+                });
+            }
+        });
+        new CalculatorRpcDispatcher(channelServer, new CalculatorService()).start();
+        client = new CalculatorRpcClient(channelClient);
+    }
+
+    @Test
+    public void willCallRemoteMethod() {
+        TestObserver<Integer> testObserver = client.add(2, 3).test();
+
+        testObserver.assertValue(5).assertComplete();
+    }
+
+    @Test
+    public void willStreamResultsWithGenericParameters() {
+        TestObserver<Long> testObserver = client.count(Arrays.asList("a", "b", "c"), 10).test();
+
+        testObserver.assertValues(10L, 11L, 12L).assertComplete();
+    }
+
+    @Test
+    public void willPassErrorsToClient() {
+        TestObserver<String> testObserver = client.fail("nope").test();
+
+        testObserver.assertError(new MessageException("failed", "nope"));
+    }
+
+    @Test
+    public void willUseIntegerMethodIds() {
+        client.fail("nope").test();
+
+        assertThat(sentRequests.get(0)).startsWith("{\"i\":1,\"m\":7,\"a\":[\"nope\"]");
+        assertThat(CalculatorRpcClient.METHOD_ADD).isEqualTo("add".hashCode());
+    }
+
+    @Test
+    public void willIgnoreResponsesToOtherCalls() {
+        TestObserver<Integer> testObserver = client.add(1, 1).test();
+
+        responses.onNext("{\"i\":99,\"v\":42}");
+        responses.onNext("not rpc");
+
+        testObserver.assertValue(2).assertComplete();
+    }
+
+    @Test
+    public void willReturnErrorForUnknownMethod() {
+        TestObserver<String> testObserver = responses.test();
+
+        requests.onNext("{\"i\":5,\"m\":123,\"a\":[]}");
+
+        testObserver.assertValue("{\"i\":5,\"e\":{\"code\":\"unknownMethod\",\"message\":\"Unknown method id: 123\"}}");
+    }
+
+    static class CalculatorService implements Calculator {
+
+        @Override
+        public Observable<Integer> add(int a, int b) {
+            return Observable.just(a + b);
+        }
+
+        @Override
+        public Observable<Long> count(List<String> items, long start) {
+            return Observable.rangeLong(start, items.size());
+        }
+
+        @Override
+        public Observable<String> fail(String reason) {
+            return Observable.error(new MessageException("failed", reason));
+        }
+    }
+}
@@ -14,24 +14,59 @@
 package com.aevi.android.rxmessenger.service;
 
 import android.content.Intent;
+import android.os.Bundle;
 import android.os.Message;
 import android.os.Messenger;
 import android.support.annotation.NonNull;
 
 import com.aevi.android.rxmessenger.ChannelServer;
+import com.aevi.android.rxmessenger.MessageException;
 import com.aevi.android.rxmessenger.MockShadowMessenger;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowLog;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Scheduler;
+import io.reactivex.functions.Consumer;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.TestScheduler;
 
 import static com.aevi.android.rxmessenger.MessageConstants.CHANNEL_MESSENGER;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_CHANNEL_TYPE;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_CLIENT_ID;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_DATA_REQUEST;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_RESUME_CLIENT_ID;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_RESUME_SEQUENCE;
+import static com.aevi.android.rxmessenger.MessageConstants.MESSAGE_CANCEL;
+import static com.aevi.android.rxmessenger.MessageConstants.MESSAGE_REQUEST;
 import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 @RunWith(RobolectricTestRunner.class)
@@ -62,6 +97,412 @@ public class AbstractChannelServiceTest {
         assertThat(testAbstractChannelService.channelType).isEqualTo(CHANNEL_MESSENGER);
     }
 
+    @Test
+    public void willTagMessagesFromAllClients() {
+        SimpleChannelService service = new SimpleChannelService();
+        TestObserver<ClientMessage> allMessages = service.allMessages().test();
+
+        MessengerChannelServer first = (MessengerChannelServer) service.getChannelServer("client1", CHANNEL_MESSENGER, "com.first");
+        MessengerChannelServer second = (MessengerChannelServer) service.getChannelServer("client2", CHANNEL_MESSENGER, "com.second");
+        first.notifyMessage("hello");
+        second.notifyMessage("hi");
+        first.notifyMessage("bye");
+
+        allMessages.assertValueCount(3);
+        ClientMessage message = allMessages.values().get(1);
+        assertThat(message.getClientId()).isEqualTo("client2");
+        assertThat(message.getClientPackageName()).isEqualTo("com.second");
+        assertThat(message.getChannelServer()).isSameAs(second);
+        assertThat(message.getMessage()).isEqualTo("hi");
+        assertThat(allMessages.values().get(2).getClientId()).isEqualTo("client1");
+    }
+
+    @Test
+    public void willTagMessagesFromClientsConnectedBeforeSubscribing() {
+        SimpleChannelService service = new SimpleChannelService();
+        MessengerChannelServer first = (MessengerChannelServer) service.getChannelServer("client1", CHANNEL_MESSENGER, "com.first");
+
+        TestObserver<ClientMessage> allMessages = service.allMessages().test();
+        service.allMessages().test();
+        first.notifyMessage("hello");
+
+        allMessages.assertValueCount(1);
+        assertThat(allMessages.values().get(0).getClientId()).isEqualTo("client1");
+        assertThat(allMessages.values().get(0).getClientPackageName()).isEqualTo("com.first");
+    }
+
+    @Test
+    public void willNotSubscribeToExistingClientAgain() {
+        SimpleChannelService service = new SimpleChannelService();
+        TestObserver<ClientMessage> allMessages = service.allMessages().test();
+
+        MessengerChannelServer first = (MessengerChannelServer) service.getChannelServer("client1", CHANNEL_MESSENGER, "com.first");
+        service.getChannelServer("client1", CHANNEL_MESSENGER, "com.first");
+        first.notifyMessage("hello");
+
+        allMessages.assertValueCount(1);
+    }
+
+    @Test
+    public void willPassCancelToExistingClient() {
+        SimpleChannelService service = new SimpleChannelService();
+        MessengerChannelServer channelServer = (MessengerChannelServer) service.getChannelServer("client1", CHANNEL_MESSENGER, "com.first");
+        TestObserver<Void> cancelled = channelServer.whenCancelled().test();
+
+        new AbstractChannelService.IncomingHandler(service).handleMessage(setupCancelMessage("client1"));
+
+        cancelled.assertComplete();
+    }
+
+    @Test
+    public void willNotCreateClientForCancel() {
+        SimpleChannelService service = new SimpleChannelService();
+
+        new AbstractChannelService.IncomingHandler(service).handleMessage(setupCancelMessage("client1"));
+
+        assertThat(service.channelServerMap).isEmpty();
+    }
+
+    @Test
+    public void willRejectMessagesOverClientRateLimit() {
+        RateLimitedChannelService service = new RateLimitedChannelService(channelServer, new RateLimit(1, 2, RateLimit.Policy.REJECT));
+        AbstractChannelService.IncomingHandler handler = new AbstractChannelService.IncomingHandler(service);
+
+        handler.handleMessage(setupRequestMessage("client1"));
+        handler.handleMessage(setupRequestMessage("client1"));
+        handler.handleMessage(setupRequestMessage("client1"));
+
+        verify(channelServer, times(2)).handleMessage(any(Message.class));
+        verify(channelServer).send(any(MessageException.class));
+        assertThat(service.getThrottleStats("client1").getAdmitted()).isEqualTo(2);
+        assertThat(service.getThrottleStats("client1").getRejected()).isEqualTo(1);
+    }
+
+    @Test
+    public void willNotThrottleClientsWithoutRateLimit() {
+        AbstractChannelService.IncomingHandler handler = new AbstractChannelService.IncomingHandler(testAbstractChannelService);
+
+        handler.handleMessage(setupRequestMessage("client1"));
+        handler.handleMessage(setupRequestMessage("client1"));
+
+        verify(channelServer, times(2)).handleMessage(any(Message.class));
+        assertThat(testAbstractChannelService.getThrottleStats("client1")).isNull();
+    }
+
+    @Test
+    public void willDropPackageBucketOnceLastClientHasGone() {
+        when(channelServer.getClientPackageName()).thenReturn("com.first");
+        PackageRateLimitedChannelService service = new PackageRateLimitedChannelService(channelServer, new RateLimit(1, 2, RateLimit.Policy.REJECT));
+        AbstractChannelService.IncomingHandler handler = new AbstractChannelService.IncomingHandler(service);
+        handler.handleMessage(setupRequestMessage("client1"));
+        handler.handleMessage(setupRequestMessage("client2"));
+
+        service.onUnbind(clientIntent("client1"));
+        assertThat(service.packageBuckets).containsOnlyKeys("com.first");
+
+        service.onUnbind(clientIntent("client2"));
+        assertThat(service.packageBuckets).isEmpty();
+    }
+
+    @Test
+    public void willShedLowPriorityRequestsWhenOverloaded() {
+        OverloadedChannelService service = new OverloadedChannelService(channelServer, true);
+        TestObserver<LoadShedder.State> states = service.observeLoadShedding().test();
+
+        new AbstractChannelService.IncomingHandler(service).handleMessage(setupRequestMessage("client1"));
+
+        verify(channelServer, never()).handleMessage(any(Message.class));
+        ArgumentCaptor<MessageException> captor = ArgumentCaptor.forClass(MessageException.class);
+        verify(channelServer).send(captor.capture());
+        assertThat(captor.getValue().getCode()).isEqualTo(LoadShedder.ERROR_OVERLOADED);
+        assertThat(captor.getValue().isRetryable()).isTrue();
+        states.assertValues(LoadShedder.State.NORMAL, LoadShedder.State.SHEDDING);
+    }
+
+    @Test
+    public void willCountRequestsWaitingInMessengerQueue() {
+        OverloadedChannelService service = new OverloadedChannelService(channelServer, true);
+        AbstractChannelService.IncomingHandler handler = new AbstractChannelService.IncomingHandler(service);
+        ShadowLooper.pauseMainLooper();
+
+        handler.sendMessage(setupRequestMessage("client1"));
+        assertThat(service.shedder.getQueueDepth()).isEqualTo(1);
+
+        ShadowLooper.unPauseMainLooper();
+        assertThat(service.shedder.getQueueDepth()).isEqualTo(0);
+        verify(channelServer).send(any(MessageException.class));
+    }
+
+    @Test
+    public void willRejectOnlyTheShedRequestOfMessengerClient() {
+        MessengerChannelServer messengerChannelServer = mock(MessengerChannelServer.class);
+        OverloadedChannelService service = new OverloadedChannelService(messengerChannelServer, true);
+        Message request = setupRequestMessage("client1");
+
+        new AbstractChannelService.IncomingHandler(service).handleMessage(request);
+
+        verify(messengerChannelServer).reject(any(Message.class), any(MessageException.class));
+        verify(messengerChannelServer, never()).send(any(MessageException.class));
+        verify(messengerChannelServer, never()).handleMessage(any(Message.class));
+    }
+
+    @Test
+    public void willNotShedHighPriorityRequests() {
+        OverloadedChannelService service = new OverloadedChannelService(channelServer, false);
+
+        new AbstractChannelService.IncomingHandler(service).handleMessage(setupRequestMessage("client1"));
+
+        verify(channelServer).handleMessage(any(Message.class));
+    }
+
+    @Test
+    public void willRegisterEachClientOnceWhenBindingAndUnbindingInParallel() throws Exception {
+        final RegistryChannelService service = new RegistryChannelService();
+        final int threads = 8;
+        final int clients = 400;
+        // the handler is created on the first bind, so it is done on the test thread
+        service.onBind(clientIntent("warmup"));
+
+        // every thread binds every client, so each new client is raced for
+        runInParallel(threads, new Task() {
+            @Override
+            public void run(int thread) {
+                for (int i = 0; i < clients; i++) {
+                    service.onBind(clientIntent("client" + i));
+                }
+            }
+        });
+
+        assertThat(service.channelServerMap).hasSize(clients + 1);
+        assertThat(service.newClients).hasSize(clients + 1);
+
+        // each thread unbinds its own share of the clients, while binding and unbinding clients of its own
+        runInParallel(threads, new Task() {
+            @Override
+            public void run(int thread) {
+                for (int i = thread; i < clients; i += threads) {
+                    service.onUnbind(clientIntent("client" + i));
+                    Intent other = clientIntent("other" + thread + "-" + i);
+                    service.onBind(other);
+                    service.onUnbind(other);
+                }
+            }
+        });
+        service.onUnbind(clientIntent("warmup"));
+
+        assertThat(service.channelServerMap).isEmpty();
+        assertThat(service.newClients).hasSize(clients * 2 + 1);
+    }
+
+    @Test
+    public void willReturnFromBindBeforeClientInitialised() {
+        InitialiseLaterChannelService service = new InitialiseLaterChannelService();
+
+        service.onBind(clientIntent("client1"));
+
+        assertThat(service.newClients).isEmpty();
+        service.initialisationScheduler.triggerActions();
+        assertThat(service.newClients).hasSize(1);
+    }
+
+    @Test
+    public void willHoldMessagesUntilClientInitialised() {
+        InitialiseLaterChannelService service = new InitialiseLaterChannelService();
+        AbstractChannelService.IncomingHandler handler = new AbstractChannelService.IncomingHandler(service);
+
+        handler.handleMessage(setupDataMessage("client1", "one"));
+        handler.handleMessage(setupDataMessage("client1", "two"));
+        assertThat(service.received).isEmpty();
+
+        service.initialisationScheduler.triggerActions();
+        ShadowLooper.runUiThreadTasks();
+        handler.handleMessage(setupDataMessage("client1", "three"));
+
+        assertThat(service.received).containsExactly("one", "two", "three");
+    }
+
+    @Test
+    public void willEvictLeastRecentlyActiveClientOverLimit() {
+        LimitedChannelService service = new LimitedChannelService();
+        AbstractChannelService.IncomingHandler handler = new AbstractChannelService.IncomingHandler(service);
+        handler.handleMessage(setupDataMessage("client1", "hello"));
+        handler.handleMessage(setupDataMessage("client2", "hello"));
+        ChannelServer first = service.getChannelServerForId("client1");
+        ChannelServer.EvictionListener listener = mock(ChannelServer.EvictionListener.class);
+        first.addClientListener(listener);
+        TestObserver<String> firstMessages = first.subscribeToMessages().test();
+        handler.handleMessage(setupDataMessage("client1", "again"));
+
+        handler.handleMessage(setupDataMessage("client3", "hello"));
+        ShadowLooper.runUiThreadTasks();
+
+        assertThat(service.channelServerMap.keySet()).containsOnly("client1", "client3");
+        verify(listener, never()).onClientEvicted(any(ChannelServer.EvictionReason.class));
+        firstMessages.assertNotComplete();
+    }
+
+    @Test
+    public void willNotifyAndDisposeEvictedClient() {
+        LimitedChannelService service = new LimitedChannelService();
+        ChannelServer first = service.getChannelServer("client1", CHANNEL_MESSENGER, "com.first");
+        ChannelServer.EvictionListener listener = mock(ChannelServer.EvictionListener.class);
+        first.addClientListener(listener);
+        TestObserver<String> firstMessages = first.subscribeToMessages().test();
+        service.getChannelServer("client2", CHANNEL_MESSENGER, "com.second");
+
+        service.getChannelServer("client3", CHANNEL_MESSENGER, "com.third");
+        ShadowLooper.runUiThreadTasks();
+
+        assertThat(service.getChannelServerForId("client1")).isNull();
+        firstMessages.assertComplete();
+        InOrder inOrder = inOrder(listener);
+        inOrder.verify(listener).onClientEvicted(ChannelServer.EvictionReason.CLIENT_LIMIT);
+        inOrder.verify(listener).onClientDispose();
+    }
+
+    @Test
+    public void willCarryOnWithChannelServerOfResumedClient() {
+        ResumableChannelService service = new ResumableChannelService();
+        AbstractChannelService.IncomingHandler handler = new AbstractChannelService.IncomingHandler(service);
+        handler.handleMessage(setupDataMessage("client1", "hello"));
+        ChannelServer first = service.getChannelServerForId("client1");
+        TestObserver<String> messages = first.subscribeToMessages().test();
+
+        service.onUnbind(clientIntent("client1"));
+        handler.handleMessage(setupResumeMessage("client2", "client1"));
+        handler.handleMessage(setupDataMessage("client2", "again"));
+
+        assertThat(service.getChannelServerForId("client1")).isNull();
+        assertThat(service.getChannelServerForId("client2")).isSameAs(first);
+        assertThat(service.newClients).containsOnly(first);
+        messages.assertValue("again");
+        messages.assertNotComplete();
+    }
+
+    class ResumableChannelService extends RegistryChannelService {
+
+        @Override
+        protected int getReplayBufferSize(String clientPackageName) {
+            return 8;
+        }
+    }
+
+    class LimitedChannelService extends SimpleChannelService {
+
+        @Override
+        protected int getMaxClients() {
+            return 2;
+        }
+    }
+
+    class InitialiseLaterChannelService extends RegistryChannelService {
+
+        final TestScheduler initialisationScheduler = new TestScheduler();
+        final List<String> received = new ArrayList<>();
+
+        @Override
+        protected Scheduler getClientInitialisationScheduler() {
+            return initialisationScheduler;
+        }
+
+        @Override
+        protected void onNewClient(ChannelServer channelServer, String callingPackageName) {
+            super.onNewClient(channelServer, callingPackageName);
+            channelServer.subscribeToMessages().subscribe(new Consumer<String>() {
+                @Override
+                public void accept(String message) {
+                    received.add(message);
+                }
+            });
+        }
+    }
+
+    class RegistryChannelService extends AbstractChannelService {
+
+        final Set<ChannelServer> newClients =
+                Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<ChannelServer, Boolean>()));
+        private final Messenger messenger = mock(Messenger.class);
+
+        RegistryChannelService() {
+            attachBaseContext(RuntimeEnvironment.application);
+        }
+
+        @NonNull
+        @Override
+        protected Messenger getMessenger() {
+            return messenger;
+        }
+
+        @Override
+        protected void onNewClient(ChannelServer channelServer, String callingPackageName) {
+            newClients.add(channelServer);
+        }
+    }
+
+    class OverloadedChannelService extends TestAbstractChannelService {
+
+        private final boolean lowPriority;
+
+        OverloadedChannelService(ChannelServer fakeHandler, boolean lowPriority) {
+            super(fakeHandler);
+            this.lowPriority = lowPriority;
+        }
+
+        // a negative queue depth means always overloaded
+        final LoadShedder shedder = new LoadShedder(100, 500, -1);
+
+        @Override
+        protected LoadShedder createLoadShedder() {
+            return shedder;
+        }
+
+        @Override
+        protected boolean isLowPriority(String clientPackageName) {
+            return lowPriority;
+        }
+    }
+
+    class RateLimitedChannelService extends TestAbstractChannelService {
+
+        private final RateLimit rateLimit;
+
+        RateLimitedChannelService(ChannelServer fakeHandler, RateLimit rateLimit) {
+            super(fakeHandler);
+            this.rateLimit = rateLimit;
+        }
+
+        @Override
+        protected RateLimit getClientRateLimit(String clientPackageName) {
+            return rateLimit;
+        }
+    }
+
+    class PackageRateLimitedChannelService extends TestAbstractChannelService {
+
+        private final RateLimit rateLimit;
+
+        PackageRateLimitedChannelService(ChannelServer fakeHandler, RateLimit rateLimit) {
+            super(fakeHandler);
+            this.rateLimit = rateLimit;
+        }
+
+        @Override
+        protected RateLimit getPackageRateLimit(String clientPackageName) {
+            return rateLimit;
+        }
+    }
+
+    class SimpleChannelService extends AbstractChannelService {
+
+        SimpleChannelService() {
+            attachBaseContext(RuntimeEnvironment.application);
+        }
+
+        @Override
+        protected void onNewClient(ChannelServer channelServer, String callingPackageName) {
+        }
+    }
+
     class TestAbstractChannelService extends AbstractChannelService {
 
         String channelType;
@@ -101,6 +542,72 @@ public class AbstractChannelServiceTest {
 
     }
 
+    interface Task {
+        void run(int thread);
+    }
+
+    private void runInParallel(int threads, final Task task) throws Exception {
+        final CyclicBarrier start = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    task.run(thread);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+    }
+
+    @NonNull
+    private Intent clientIntent(String clientId) {
+        Intent intent = new Intent();
+        intent.putExtra(KEY_CLIENT_ID, clientId);
+        intent.putExtra(KEY_CHANNEL_TYPE, CHANNEL_MESSENGER);
+        return intent;
+    }
+
+    @NonNull
+    private Message setupCancelMessage(String clientId) {
+        Message m = Message.obtain(null, MESSAGE_CANCEL);
+        Bundle data = new Bundle();
+        data.putString(KEY_CLIENT_ID, clientId);
+        m.setData(data);
+        return m;
+    }
+
+    @NonNull
+    private Message setupDataMessage(String clientId, String payload) {
+        Message m = setupRequestMessage(clientId);
+        m.getData().putString(KEY_DATA_REQUEST, payload);
+        return m;
+    }
+
+    @NonNull
+    private Message setupResumeMessage(String clientId, String previousClientId) {
+        Message m = setupRequestMessage(clientId);
+        m.getData().putString(KEY_RESUME_CLIENT_ID, previousClientId);
+        m.getData().putLong(KEY_RESUME_SEQUENCE, 0);
+        return m;
+    }
+
+    @NonNull
+    private Message setupRequestMessage(String clientId) {
+        Message m = Message.obtain(null, MESSAGE_REQUEST);
+        Bundle data = new Bundle();
+        data.putString(KEY_CLIENT_ID, clientId);
+        m.setData(data);
+        return m;
+    }
+
     @NonNull
     private Message setupEmptyMessage() {
         return mock(Message.class);
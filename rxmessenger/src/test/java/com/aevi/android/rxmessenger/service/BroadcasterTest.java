@@ -0,0 +1,188 @@
+package com.aevi.android.rxmessenger.service;
+
+import com.aevi.android.rxmessenger.ChannelServer;
+import com.aevi.android.rxmessenger.compression.MessageCompressor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.TestScheduler;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class BroadcasterTest {
+
+    @Mock
+    ChannelServer firstClient;
+
+    @Mock
+    ChannelServer secondClient;
+
+    private TestScheduler scheduler = new TestScheduler();
+
+    @Before
+    public void setup() {
+        initMocks(this);
+    }
+
+    @Test
+    public void willBroadcastToAllClientsOnScheduler() {
+        Broadcaster broadcaster = new Broadcaster(4, Broadcaster.DropPolicy.DROP_OLDEST, scheduler);
+
+        assertThat(broadcaster.broadcast(Arrays.asList(firstClient, secondClient), "update")).isEqualTo(2);
+        verify(firstClient, never()).send(anyString());
+
+        scheduler.triggerActions();
+        verify(firstClient).send("update");
+        verify(secondClient).send("update");
+    }
+
+    @Test
+    public void willPublishOnlyToSubscribers() {
+        Broadcaster broadcaster = new Broadcaster(4, Broadcaster.DropPolicy.DROP_OLDEST, scheduler);
+        broadcaster.subscribe(firstClient, "prices");
+        broadcaster.subscribe(secondClient, "news");
+
+        assertThat(broadcaster.publish("prices", "1.17")).isEqualTo(1);
+        assertThat(broadcaster.publish("weather", "sunny")).isEqualTo(0);
+        scheduler.triggerActions();
+
+        verify(firstClient).send("1.17");
+        verify(secondClient, never()).send(anyString());
+    }
+
+    @Test
+    public void canUnsubscribe() {
+        Broadcaster broadcaster = new Broadcaster(4, Broadcaster.DropPolicy.DROP_OLDEST, scheduler);
+        broadcaster.subscribe(firstClient, "prices");
+        broadcaster.unsubscribe(firstClient, "prices");
+
+        assertThat(broadcaster.publish("prices", "1.17")).isEqualTo(0);
+    }
+
+    @Test
+    public void willSendInOrder() {
+        Broadcaster broadcaster = new Broadcaster(4, Broadcaster.DropPolicy.DROP_OLDEST, scheduler);
+        broadcaster.subscribe(firstClient, "prices");
+
+        broadcaster.publish("prices", "1");
+        broadcaster.publish("prices", "2");
+        broadcaster.publish("prices", "3");
+        scheduler.triggerActions();
+
+        InOrder inOrder = inOrder(firstClient);
+        inOrder.verify(firstClient).send("1");
+        inOrder.verify(firstClient).send("2");
+        inOrder.verify(firstClient).send("3");
+    }
+
+    @Test
+    public void willDropOldestWhenQueueFull() {
+        Broadcaster broadcaster = new Broadcaster(2, Broadcaster.DropPolicy.DROP_OLDEST, scheduler);
+        broadcaster.subscribe(firstClient, "prices");
+
+        broadcaster.publish("prices", "1");
+        broadcaster.publish("prices", "2");
+        broadcaster.publish("prices", "3");
+        scheduler.triggerActions();
+
+        verify(firstClient, never()).send("1");
+        verify(firstClient).send("2");
+        verify(firstClient).send("3");
+        assertThat(broadcaster.getDroppedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void willDropNewestWhenQueueFull() {
+        Broadcaster broadcaster = new Broadcaster(2, Broadcaster.DropPolicy.DROP_NEWEST, scheduler);
+        broadcaster.subscribe(firstClient, "prices");
+
+        broadcaster.publish("prices", "1");
+        broadcaster.publish("prices", "2");
+        broadcaster.publish("prices", "3");
+        scheduler.triggerActions();
+
+        verify(firstClient).send("1");
+        verify(firstClient).send("2");
+        verify(firstClient, never()).send("3");
+        assertThat(broadcaster.getDroppedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void willNotSendQueuedMessagesToRemovedClient() {
+        Broadcaster broadcaster = new Broadcaster(4, Broadcaster.DropPolicy.DROP_OLDEST, scheduler);
+        broadcaster.subscribe(firstClient, "prices");
+        broadcaster.publish("prices", "1");
+
+        broadcaster.remove(firstClient);
+        scheduler.triggerActions();
+
+        verify(firstClient, never()).send(anyString());
+        assertThat(broadcaster.publish("prices", "2")).isEqualTo(0);
+    }
+
+    @Test
+    public void willNotQueueForClientRemovedBeforeBroadcast() {
+        Broadcaster broadcaster = new Broadcaster(4, Broadcaster.DropPolicy.DROP_OLDEST, scheduler);
+        broadcaster.remove(firstClient);
+
+        assertThat(broadcaster.broadcast(Arrays.asList(firstClient, secondClient), "update")).isEqualTo(1);
+        broadcaster.subscribe(firstClient, "prices");
+        assertThat(broadcaster.publish("prices", "1.17")).isEqualTo(0);
+        scheduler.triggerActions();
+
+        verify(firstClient, never()).send(anyString());
+        verify(secondClient).send("update");
+    }
+
+    @Test
+    public void willOnlyUseSchedulerWhileMessagesQueued() {
+        final List<Scheduler.Worker> workers = new ArrayList<>();
+        Scheduler countingScheduler = new Scheduler() {
+            @Override
+            public Worker createWorker() {
+                Worker worker = scheduler.createWorker();
+                workers.add(worker);
+                return worker;
+            }
+        };
+        Broadcaster broadcaster = new Broadcaster(4, Broadcaster.DropPolicy.DROP_OLDEST, countingScheduler);
+
+        broadcaster.broadcast(Arrays.asList(firstClient, secondClient), "update");
+        scheduler.triggerActions();
+
+        verify(firstClient).send("update");
+        verify(secondClient).send("update");
+        for (Scheduler.Worker worker : workers) {
+            assertThat(worker.isDisposed()).isTrue();
+        }
+    }
+
+    @Test
+    public void willCompressBroadcastMessageOncePerDictionary() {
+        MessageCompressor compressor = new MessageCompressor(0);
+        BroadcastMessage message = new BroadcastMessage("{\"price\":\"1.17\"}");
+
+        byte[] first = message.getCompressed(compressor);
+        byte[] second = message.getCompressed(compressor.forDictionary(null));
+
+        assertThat(second).isSameAs(first);
+        assertThat(compressor.getStats().getCompressedMessages()).isEqualTo(1);
+        assertThat(compressor.decompress(first)).isEqualTo("{\"price\":\"1.17\"}");
+    }
+}
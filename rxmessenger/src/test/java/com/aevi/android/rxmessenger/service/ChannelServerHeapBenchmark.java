@@ -0,0 +1,123 @@
+package com.aevi.android.rxmessenger.service;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import io.reactivex.functions.Consumer;
+
+/**
+ * Measures the heap retained by each of 1000 simulated idle clients: for each channel type when the client has connected but not sent
+ * anything, and for each {@link MessageRetention} after the client has sent one large message that its subscriber has finished with, along
+ * with how much of that is the message itself.
+ * <p>
+ * Each client is subscribed to, as a service would in {@code onNewClient()}. Ignored by default, run manually with e.g.
+ * {@code ./gradlew :rxmessenger:test --tests *ChannelServerHeapBenchmark}. The figures come from the used heap after garbage collection, so
+ * run with nothing else in the same JVM.
+ * </p>
+ */
+@Ignore("Benchmark, run manually")
+public class ChannelServerHeapBenchmark {
+
+    private static final int CLIENTS = 1000;
+    private static final int MESSAGE_LENGTH = 16 * 1024;
+
+    private int received;
+
+    private interface ClientFactory {
+        BaseChannelServer create(int client);
+    }
+
+    @Test
+    public void measureRetainedBytesPerIdleClient() {
+        report("messenger", new ClientFactory() {
+            @Override
+            public BaseChannelServer create(int client) {
+                return new MessengerChannelServer("service", "client" + client);
+            }
+        });
+        report("websocket", new ClientFactory() {
+            @Override
+            public BaseChannelServer create(int client) {
+                return new WebSocketChannelServer(null, "service", "client" + client);
+            }
+        });
+        report("hybrid", new ClientFactory() {
+            @Override
+            public BaseChannelServer create(int client) {
+                return new HybridChannelServer(null, "service", "client" + client);
+            }
+        });
+    }
+
+    @Test
+    public void measureRetainedBytesPerIdleClientAfterLargeMessage() {
+        for (final MessageRetention retention : MessageRetention.values()) {
+            ClientFactory factory = new ClientFactory() {
+                @Override
+                public BaseChannelServer create(int client) {
+                    MessengerChannelServer channelServer = new MessengerChannelServer("service", "client" + client);
+                    channelServer.setMessageRetention(retention);
+                    return channelServer;
+                }
+            };
+            // the first round warms up class loading and the subjects
+            measure(factory, true);
+            long withoutMessage = measure(factory, false);
+            long withMessage = measure(factory, true);
+            System.out.println(String.format(Locale.US, "%s: %d bytes retained per idle client, %d of them by a %d char message",
+                                             retention, withMessage, Math.max(0, withMessage - withoutMessage), MESSAGE_LENGTH));
+        }
+    }
+
+    private void report(String channel, ClientFactory factory) {
+        measure(factory, false);
+        System.out.println(String.format(Locale.US, "%s: %d bytes retained per idle client", channel, measure(factory, false)));
+    }
+
+    private long measure(ClientFactory factory, boolean sendMessage) {
+        long before = usedHeap();
+        List<BaseChannelServer> clients = new ArrayList<>(CLIENTS);
+        for (int i = 0; i < CLIENTS; i++) {
+            BaseChannelServer channelServer = factory.create(i);
+            channelServer.subscribeToMessages().subscribe(new Consumer<String>() {
+                @Override
+                public void accept(String message) {
+                    received += message.length();
+                }
+            });
+            if (sendMessage) {
+                channelServer.notifyMessage(createMessage(i));
+            }
+            clients.add(channelServer);
+        }
+        long retained = usedHeap() - before;
+        if (clients.size() != CLIENTS) {
+            throw new IllegalStateException("Clients must still be reachable when measured");
+        }
+        return retained / CLIENTS;
+    }
+
+    private static String createMessage(int client) {
+        char[] message = new char[MESSAGE_LENGTH];
+        Arrays.fill(message, (char) ('a' + client % 26));
+        return new String(message);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,109 @@
+package com.aevi.android.rxmessenger.service;
+
+import com.aevi.android.rxmessenger.ChannelServer.EvictionReason;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.schedulers.TestScheduler;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class ClientEvictorTest {
+
+    private TestScheduler scheduler = new TestScheduler();
+    private List<String> evicted = new ArrayList<>();
+    private List<EvictionReason> reasons = new ArrayList<>();
+
+    @Test
+    public void willEvictIdleClient() {
+        ClientEvictor evictor = createEvictor(0);
+        evictor.onClientAdded("client1", 1000);
+
+        scheduler.advanceTimeBy(999, TimeUnit.MILLISECONDS);
+        assertThat(evicted).isEmpty();
+
+        scheduler.advanceTimeBy(500, TimeUnit.MILLISECONDS);
+        assertThat(evicted).containsExactly("client1");
+        assertThat(reasons).containsExactly(EvictionReason.IDLE);
+        assertThat(evictor.isTracked("client1")).isFalse();
+    }
+
+    @Test
+    public void willNotEvictActiveClient() {
+        ClientEvictor evictor = createEvictor(0);
+        evictor.onClientAdded("client1", 1000);
+
+        for (int i = 0; i < 5; i++) {
+            scheduler.advanceTimeBy(800, TimeUnit.MILLISECONDS);
+            evictor.onActivity("client1");
+        }
+
+        assertThat(evicted).isEmpty();
+    }
+
+    @Test
+    public void willNotEvictClientWithoutTimeout() {
+        ClientEvictor evictor = createEvictor(0);
+        evictor.onClientAdded("client1", ClientEvictor.NO_TIMEOUT);
+        evictor.onClientAdded("client2", 1000);
+
+        scheduler.advanceTimeBy(10, TimeUnit.SECONDS);
+
+        assertThat(evicted).containsExactly("client2");
+    }
+
+    @Test
+    public void willEvictLeastRecentlyActiveClientOverLimit() {
+        ClientEvictor evictor = createEvictor(2);
+        evictor.onClientAdded("client1", ClientEvictor.NO_TIMEOUT);
+        evictor.onClientAdded("client2", ClientEvictor.NO_TIMEOUT);
+        evictor.onActivity("client1");
+
+        evictor.onClientAdded("client3", ClientEvictor.NO_TIMEOUT);
+
+        assertThat(evicted).containsExactly("client2");
+        assertThat(reasons).containsExactly(EvictionReason.CLIENT_LIMIT);
+        assertThat(evictor.isTracked("client1")).isTrue();
+        assertThat(evictor.isTracked("client3")).isTrue();
+    }
+
+    @Test
+    public void willForgetRemovedClient() {
+        ClientEvictor evictor = createEvictor(1);
+        evictor.onClientAdded("client1", 1000);
+        evictor.onClientRemoved("client1");
+
+        evictor.onClientAdded("client2", 1000);
+        scheduler.advanceTimeBy(500, TimeUnit.MILLISECONDS);
+
+        assertThat(evicted).isEmpty();
+    }
+
+    @Test
+    public void willLookForIdleClientsMoreOftenForShorterTimeout() {
+        ClientEvictor evictor = createEvictor(0);
+        evictor.onClientAdded("client1", 10000);
+        evictor.onClientAdded("client2", 100);
+
+        scheduler.advanceTimeBy(150, TimeUnit.MILLISECONDS);
+
+        assertThat(evicted).containsExactly("client2");
+    }
+
+    private ClientEvictor createEvictor(int maxClients) {
+        return new ClientEvictor(maxClients, scheduler, new ClientEvictor.Evictions() {
+            @Override
+            public void evict(String clientId, EvictionReason reason) {
+                evicted.add(clientId);
+                reasons.add(reason);
+            }
+        });
+    }
+}
@@ -0,0 +1,162 @@
+package com.aevi.android.rxmessenger.service;
+
+import com.aevi.android.rxmessenger.ChannelServer;
+import com.aevi.android.rxmessenger.MessageException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.schedulers.TestScheduler;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class ClientThrottleTest {
+
+    @Mock
+    ChannelServer channelServer;
+
+    @Mock
+    ChannelServer otherChannelServer;
+
+    private TestScheduler scheduler = new TestScheduler();
+    private List<String> delivered = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        initMocks(this);
+    }
+
+    @Test
+    public void willAdmitBurstThenRejectWithError() {
+        ClientThrottle throttle = new ClientThrottle(channelServer, new RateLimit(1, 2, RateLimit.Policy.REJECT), null, null, scheduler);
+
+        submit(throttle, "one", "two", "three");
+
+        assertThat(delivered).containsExactly("one", "two");
+        ArgumentCaptor<MessageException> captor = ArgumentCaptor.forClass(MessageException.class);
+        verify(channelServer).send(captor.capture());
+        assertThat(captor.getValue().getCode()).isEqualTo(RateLimit.ERROR_RATE_LIMITED);
+        assertThat(throttle.getStats().getAdmitted()).isEqualTo(2);
+        assertThat(throttle.getStats().getRejected()).isEqualTo(1);
+    }
+
+    @Test
+    public void willAdmitAgainOnceTokensRefilled() {
+        ClientThrottle throttle = new ClientThrottle(channelServer, new RateLimit(10, 1, RateLimit.Policy.REJECT), null, null, scheduler);
+
+        submit(throttle, "one", "two");
+        scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+        submit(throttle, "three");
+
+        assertThat(delivered).containsExactly("one", "three");
+    }
+
+    @Test
+    public void willDropSilently() {
+        ClientThrottle throttle = new ClientThrottle(channelServer, new RateLimit(1, 1, RateLimit.Policy.DROP), null, null, scheduler);
+
+        submit(throttle, "one", "two");
+
+        assertThat(delivered).containsExactly("one");
+        verify(channelServer, never()).send(any(MessageException.class));
+        assertThat(throttle.getStats().getDropped()).isEqualTo(1);
+    }
+
+    @Test
+    public void willQueueAndDeliverInOrderAsTokensRefill() {
+        ClientThrottle throttle = new ClientThrottle(channelServer, new RateLimit(10, 1, RateLimit.Policy.QUEUE, 2), null, null, scheduler);
+
+        submit(throttle, "one", "two", "three", "four");
+        assertThat(delivered).containsExactly("one");
+        assertThat(throttle.getQueuedCount()).isEqualTo(2);
+        verify(channelServer).send(any(MessageException.class));
+
+        scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+        assertThat(delivered).containsExactly("one", "two");
+
+        scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+        assertThat(delivered).containsExactly("one", "two", "three");
+        assertThat(throttle.getStats().getQueued()).isEqualTo(2);
+        assertThat(throttle.getStats().getAdmitted()).isEqualTo(3);
+    }
+
+    @Test
+    public void willKeepOrderWhileMessagesQueued() {
+        ClientThrottle throttle = new ClientThrottle(channelServer, new RateLimit(10, 2, RateLimit.Policy.QUEUE), null, null, scheduler);
+
+        submit(throttle, "one", "two", "three");
+        scheduler.advanceTimeBy(50, TimeUnit.MILLISECONDS);
+        submit(throttle, "four");
+        scheduler.advanceTimeBy(50, TimeUnit.MILLISECONDS);
+
+        assertThat(delivered).containsExactly("one", "two", "three");
+        scheduler.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+        assertThat(delivered).containsExactly("one", "two", "three", "four");
+    }
+
+    @Test
+    public void willShareBucketBetweenClientsOfPackage() {
+        RateLimit packageLimit = new RateLimit(1, 2, RateLimit.Policy.REJECT);
+        TokenBucket packageBucket = new TokenBucket(packageLimit, scheduler.now(TimeUnit.MILLISECONDS));
+        ClientThrottle first = new ClientThrottle(channelServer, null, packageBucket, packageLimit, scheduler);
+        ClientThrottle second = new ClientThrottle(otherChannelServer, null, packageBucket, packageLimit, scheduler);
+
+        submit(first, "one", "two");
+        submit(second, "three");
+
+        assertThat(delivered).containsExactly("one", "two");
+        verify(otherChannelServer).send(any(MessageException.class));
+    }
+
+    @Test
+    public void willNotUseClientTokenWhenPackageLimitReached() {
+        RateLimit packageLimit = new RateLimit(1, 1, RateLimit.Policy.REJECT);
+        TokenBucket packageBucket = new TokenBucket(packageLimit, scheduler.now(TimeUnit.MILLISECONDS));
+        ClientThrottle first = new ClientThrottle(channelServer, null, packageBucket, packageLimit, scheduler);
+        ClientThrottle second = new ClientThrottle(otherChannelServer, new RateLimit(1, 1, RateLimit.Policy.REJECT), packageBucket, packageLimit,
+                                                   scheduler);
+
+        submit(first, "one");
+        submit(second, "two");
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        submit(second, "three");
+
+        assertThat(delivered).containsExactly("one", "three");
+    }
+
+    @Test
+    public void willDiscardQueueWhenDisposed() {
+        ClientThrottle throttle = new ClientThrottle(channelServer, new RateLimit(10, 1, RateLimit.Policy.QUEUE), null, null, scheduler);
+
+        submit(throttle, "one", "two");
+        throttle.dispose();
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+
+        assertThat(delivered).containsExactly("one");
+        assertThat(throttle.getQueuedCount()).isEqualTo(0);
+    }
+
+    private void submit(ClientThrottle throttle, String... messages) {
+        for (final String message : messages) {
+            throttle.submit(new Runnable() {
+                @Override
+                public void run() {
+                    delivered.add(message);
+                }
+            });
+        }
+    }
+}
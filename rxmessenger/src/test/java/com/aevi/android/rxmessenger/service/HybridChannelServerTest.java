@@ -0,0 +1,239 @@
+package com.aevi.android.rxmessenger.service;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.support.annotation.NonNull;
+
+import com.aevi.android.rxmessenger.MessagePriority;
+import com.aevi.android.rxmessenger.model.FramedMessage;
+import com.aevi.android.rxmessenger.service.websocket.WebSocketConnection;
+import com.aevi.android.rxmessenger.service.websocket.WebSocketServer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.List;
+
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subjects.PublishSubject;
+
+import static com.aevi.android.rxmessenger.MessageConstants.*;
+import static com.aevi.android.rxmessenger.service.WebSocketChannelServer.CONNECT_PLEASE;
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class HybridChannelServerTest {
+
+    private static final int THRESHOLD = 10;
+
+    private HybridChannelServer hybridChannelServer;
+
+    private String COMPONENT_NAME = "com.rxmessenger/.IsHybrid";
+    private String CLIENT_PACKAGE_NAME = "com.rxmessenger.clients.rock";
+
+    @Mock
+    Context context;
+
+    @Mock
+    WebSocketServer webSocketServer;
+
+    @Mock
+    WebSocketConnection webSocketConnection;
+
+    @Mock
+    Messenger replyToMessenger;
+
+    private Scheduler testScheduler = Schedulers.trampoline();
+
+    private PublishSubject<String> messageStream = PublishSubject.create();
+
+    @Before
+    public void setup() {
+        initMocks(this);
+        hybridChannelServer = new TestHybridChannelServer(context, COMPONENT_NAME, CLIENT_PACKAGE_NAME);
+        when(webSocketConnection.receiveMessages()).thenReturn(messageStream);
+        when(webSocketConnection.receiveBinaryMessages()).thenReturn(Observable.<byte[]>never());
+        when(webSocketConnection.onDisconnected()).thenReturn(Completable.never());
+        when(webSocketConnection.isConnected()).thenReturn(true);
+        when(webSocketServer.startServer()).thenReturn(Observable.just(webSocketConnection));
+    }
+
+    @Test
+    public void willUseThresholdFromClient() {
+        sendConnectMessage();
+
+        assertThat(hybridChannelServer.getThreshold()).isEqualTo(THRESHOLD);
+    }
+
+    @Test
+    public void willSendSmallMessageViaMessenger() throws IOException, RemoteException {
+        sendConnectMessage();
+
+        hybridChannelServer.send("small");
+
+        verify(webSocketConnection, never()).send(anyString());
+        FramedMessage sent = FramedMessage.decode(getLastMessengerMessage());
+        assertThat(sent.getPayload()).isEqualTo("small");
+        assertThat(sent.getLongHeader(HEADER_SEQUENCE, -1)).isEqualTo(0);
+    }
+
+    @Test
+    public void willSendLargeMessageViaWebSocket() throws IOException {
+        sendConnectMessage();
+
+        hybridChannelServer.send("this message is too large");
+
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        verify(webSocketConnection).send(captor.capture());
+        assertThat(FramedMessage.decode(captor.getValue()).getPayload()).isEqualTo("this message is too large");
+    }
+
+    @Test
+    public void willNumberMessagesAcrossChannels() throws IOException, RemoteException {
+        sendConnectMessage();
+
+        hybridChannelServer.send("this message is too large");
+        hybridChannelServer.send("small");
+
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        verify(webSocketConnection).send(captor.capture());
+        assertThat(FramedMessage.decode(captor.getValue()).getLongHeader(HEADER_SEQUENCE, -1)).isEqualTo(0);
+        assertThat(FramedMessage.decode(getLastMessengerMessage()).getLongHeader(HEADER_SEQUENCE, -1)).isEqualTo(1);
+    }
+
+    @Test
+    public void willNotifyMessagesInSequenceOrder() {
+        sendConnectMessage();
+        TestObserver<String> testObserver = hybridChannelServer.subscribeToMessages().test();
+
+        hybridChannelServer.handleMessage(setupMessage(frame(1, "second")));
+        hybridChannelServer.notifyMessage(frame(2, "third"));
+        hybridChannelServer.notifyMessage(frame(0, "first"));
+
+        testObserver.assertValues("first", "second", "third");
+    }
+
+    @Test
+    public void willSendHighPriorityMessageWithoutNumber() throws RemoteException {
+        sendConnectMessage();
+
+        hybridChannelServer.send("ping", MessagePriority.HIGH);
+        hybridChannelServer.send("small");
+
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(replyToMessenger, atLeast(2)).send(captor.capture());
+        List<Message> sent = captor.getAllValues();
+        FramedMessage high = FramedMessage.decode(sent.get(sent.size() - 2).getData().getString(KEY_DATA_RESPONSE));
+        assertThat(high.getPayload()).isEqualTo("ping");
+        assertThat(high.hasHeader(HEADER_SEQUENCE)).isFalse();
+        assertThat(FramedMessage.decode(getLastMessengerMessage()).getLongHeader(HEADER_SEQUENCE, -1)).isEqualTo(0);
+    }
+
+    @Test
+    public void willNotifyHighPriorityMessageWithoutWaitingForSequence() {
+        sendConnectMessage();
+        TestObserver<String> testObserver = hybridChannelServer.subscribeToMessages().test();
+
+        hybridChannelServer.notifyMessage(frame(1, "second"));
+        hybridChannelServer.notifyMessage(FramedMessage.of("cancel that").withHeader(HEADER_PRIORITY, MessagePriority.HIGH.name()).encode());
+
+        testObserver.assertValues("cancel that");
+    }
+
+    @Test
+    public void willNotPassConnectMessageToService() {
+        TestObserver<String> testObserver = hybridChannelServer.subscribeToMessages().test();
+
+        sendConnectMessage();
+
+        testObserver.assertNoValues();
+    }
+
+    @Test
+    public void willSendEndStreamAsNumberedMessage() throws RemoteException {
+        when(webSocketConnection.isConnected()).thenReturn(false);
+        sendConnectMessage();
+
+        hybridChannelServer.send("small");
+        hybridChannelServer.sendEndStream();
+
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(replyToMessenger, atLeast(2)).send(captor.capture());
+        FramedMessage sent = FramedMessage.decode(captor.getValue().getData().getString(KEY_DATA_RESPONSE));
+        assertThat(sent.hasHeader(HEADER_END_STREAM)).isTrue();
+        assertThat(sent.getLongHeader(HEADER_SEQUENCE, -1)).isEqualTo(1);
+        for (Message message : captor.getAllValues()) {
+            assertThat(message.what).isNotEqualTo(MESSAGE_END_STREAM);
+        }
+    }
+
+    @Test
+    public void willOnlyCloseWebSocketWhenEndingStream() throws IOException {
+        sendConnectMessage();
+
+        hybridChannelServer.sendEndStream();
+
+        verify(webSocketConnection, never()).send(WebSocketChannelServer.CLOSE_MESSAGE);
+        verify(webSocketConnection).disconnect();
+    }
+
+    private String getLastMessengerMessage() throws RemoteException {
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(replyToMessenger, atLeastOnce()).send(captor.capture());
+        return captor.getValue().getData().getString(KEY_DATA_RESPONSE);
+    }
+
+    private String frame(long sequence, String payload) {
+        return FramedMessage.of(payload).withHeader(HEADER_SEQUENCE, sequence).encode();
+    }
+
+    private void sendConnectMessage() {
+        hybridChannelServer.handleMessage(setupMessage(CONNECT_PLEASE));
+    }
+
+    @NonNull
+    private Message setupMessage(String message) {
+        Message m = new Message();
+        m.what = MESSAGE_REQUEST;
+        m.replyTo = replyToMessenger;
+        Bundle b = new Bundle();
+        b.putString(KEY_DATA_REQUEST, message);
+        b.putString(KEY_CHANNEL_TYPE, CHANNEL_HYBRID);
+        b.putString(KEY_CLIENT_ID, "iClient");
+        b.putInt(KEY_HYBRID_THRESHOLD, THRESHOLD);
+        m.setData(b);
+        return m;
+    }
+
+    class TestHybridChannelServer extends HybridChannelServer {
+
+        TestHybridChannelServer(Context context, String serviceComponentName, String clientPackageName) {
+            super(context, serviceComponentName, clientPackageName);
+        }
+
+        @Override
+        protected WebSocketServer createWebSocketServer() {
+            return webSocketServer;
+        }
+
+        @Override
+        protected Scheduler getSendScheduler() {
+            return testScheduler;
+        }
+    }
+}
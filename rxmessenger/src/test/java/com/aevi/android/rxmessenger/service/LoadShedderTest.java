@@ -0,0 +1,84 @@
+package com.aevi.android.rxmessenger.service;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import io.reactivex.observers.TestObserver;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class LoadShedderTest {
+
+    private LoadShedder loadShedder = new LoadShedder(100, 500, 2);
+
+    @Test
+    public void willNotShedShortBurst() {
+        assertThat(loadShedder.shouldShed(150, true, 1000)).isFalse();
+        assertThat(loadShedder.shouldShed(200, true, 1200)).isFalse();
+        assertThat(loadShedder.shouldShed(50, true, 1400)).isFalse();
+        assertThat(loadShedder.shouldShed(150, true, 1600)).isFalse();
+
+        assertThat(loadShedder.getState()).isEqualTo(LoadShedder.State.NORMAL);
+    }
+
+    @Test
+    public void willShedWhenAboveTargetForInterval() {
+        loadShedder.shouldShed(150, true, 1000);
+
+        assertThat(loadShedder.shouldShed(150, true, 1500)).isTrue();
+        assertThat(loadShedder.getState()).isEqualTo(LoadShedder.State.SHEDDING);
+        assertThat(loadShedder.getShedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void willNotShedHighPriority() {
+        loadShedder.shouldShed(150, true, 1000);
+
+        assertThat(loadShedder.shouldShed(150, false, 1500)).isFalse();
+        assertThat(loadShedder.getState()).isEqualTo(LoadShedder.State.SHEDDING);
+    }
+
+    @Test
+    public void willStopSheddingOnceBelowTarget() {
+        loadShedder.shouldShed(150, true, 1000);
+        loadShedder.shouldShed(150, true, 1500);
+
+        assertThat(loadShedder.shouldShed(20, true, 1600)).isFalse();
+        assertThat(loadShedder.getState()).isEqualTo(LoadShedder.State.NORMAL);
+    }
+
+    @Test
+    public void willShedStraightAwayWhenQueueTooDeep() {
+        loadShedder.onEnqueued();
+        loadShedder.onEnqueued();
+        loadShedder.onEnqueued();
+
+        assertThat(loadShedder.shouldShed(0, true, 1000)).isTrue();
+
+        loadShedder.onDequeued();
+        assertThat(loadShedder.getQueueDepth()).isEqualTo(2);
+        assertThat(loadShedder.shouldShed(0, true, 1001)).isFalse();
+    }
+
+    @Test
+    public void willNotCountMessagesThatWereNeverQueued() {
+        loadShedder.onDequeued();
+        loadShedder.onEnqueued();
+
+        assertThat(loadShedder.getQueueDepth()).isEqualTo(1);
+    }
+
+    @Test
+    public void willEmitStateChanges() {
+        TestObserver<LoadShedder.State> states = loadShedder.observeState().test();
+
+        loadShedder.shouldShed(150, true, 1000);
+        loadShedder.shouldShed(150, true, 1500);
+        loadShedder.shouldShed(150, true, 1600);
+        loadShedder.shouldShed(20, true, 1700);
+
+        states.assertValues(LoadShedder.State.NORMAL, LoadShedder.State.SHEDDING, LoadShedder.State.NORMAL);
+    }
+}
@@ -0,0 +1,161 @@
+package com.aevi.android.rxmessenger.service;
+
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.support.annotation.NonNull;
+
+import com.aevi.android.rxmessenger.ChannelServer;
+import com.aevi.android.rxmessenger.MessageException;
+import com.aevi.android.rxmessenger.internal.LocalChannels;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.reactivex.functions.Consumer;
+
+import static com.aevi.android.rxmessenger.MessageConstants.*;
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class LocalChannelsTest {
+
+    private static final String CLIENT_ID = "localClient";
+    private static final String CLIENT_PACKAGE_NAME = "com.rxmessenger.clients.local";
+
+    private TestLocalChannelService service;
+    private IBinder binder;
+
+    @Mock
+    LocalChannels.Receiver receiver;
+
+    @Mock
+    Messenger receiverMessenger;
+
+    @Before
+    public void setup() {
+        initMocks(this);
+        when(receiver.getReplyTo()).thenReturn(receiverMessenger);
+        service = new TestLocalChannelService();
+        binder = service.onBind(new Intent());
+    }
+
+    @Test
+    public void willDetectLocalService() {
+        assertThat(LocalChannels.isLocal(binder)).isTrue();
+        assertThat(LocalChannels.isLocal(new Binder())).isFalse();
+    }
+
+    @Test
+    public void willNotBeLocalOnceServiceDestroyed() {
+        service.onDestroy();
+
+        assertThat(LocalChannels.isLocal(binder)).isFalse();
+        assertThat(LocalChannels.send(binder, CLIENT_ID, CHANNEL_MESSENGER, CLIENT_PACKAGE_NAME, "hello", null, receiver)).isFalse();
+    }
+
+    @Test
+    public void willPassMessageDirectlyToChannelServer() {
+        LocalChannels.send(binder, CLIENT_ID, CHANNEL_MESSENGER, CLIENT_PACKAGE_NAME, "hello", null, receiver);
+
+        assertThat(service.received).containsExactly("hello");
+        assertThat(service.newClientPackageName).isEqualTo(CLIENT_PACKAGE_NAME);
+    }
+
+    @Test
+    public void willPassRepliesDirectlyToReceiver() {
+        service.replyToMessages();
+
+        LocalChannels.send(binder, CLIENT_ID, CHANNEL_MESSENGER, CLIENT_PACKAGE_NAME, "hello", null, receiver);
+        service.newClient.send(new MessageException("oops", "failed"));
+
+        verify(receiver).onMessage(eq("reply to hello"), anyString());
+        verify(receiver).onEndStream();
+        verify(receiver).onError(any(MessageException.class));
+        verifyZeroInteractions(receiverMessenger);
+    }
+
+    @Test
+    public void willSendMessageToCustomChannelServer() {
+        ChannelServer customChannelServer = mock(ChannelServer.class);
+        service.customChannelServer = customChannelServer;
+
+        LocalChannels.send(binder, CLIENT_ID, CHANNEL_MESSENGER, CLIENT_PACKAGE_NAME, "hello", null, receiver);
+
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(customChannelServer).handleMessage(captor.capture());
+        assertThat(captor.getValue().what).isEqualTo(MESSAGE_REQUEST);
+        assertThat(captor.getValue().getData().getString(KEY_DATA_REQUEST)).isEqualTo("hello");
+        assertThat(captor.getValue().getData().getString(KEY_CLIENT_ID)).isEqualTo(CLIENT_ID);
+        assertThat(captor.getValue().replyTo).isEqualTo(receiverMessenger);
+    }
+
+    class TestLocalChannelService extends AbstractChannelService {
+
+        private final IBinder serviceBinder = new Binder();
+
+        ChannelServer newClient;
+        String newClientPackageName;
+        List<String> received = new ArrayList<>();
+        ChannelServer customChannelServer;
+        boolean replyToMessages;
+
+        TestLocalChannelService() {
+            attachBaseContext(RuntimeEnvironment.application);
+        }
+
+        void replyToMessages() {
+            replyToMessages = true;
+        }
+
+        @NonNull
+        @Override
+        protected Messenger getMessenger() {
+            Messenger messenger = mock(Messenger.class);
+            when(messenger.getBinder()).thenReturn(serviceBinder);
+            return messenger;
+        }
+
+        @Override
+        protected void monitorForDeath(Messenger incomingMessenger, ChannelServer channelServer) {
+
+        }
+
+        @NonNull
+        @Override
+        protected ChannelServer getChannelServer(String clientId, String channelType, String clientPackageName) {
+            if (customChannelServer != null) {
+                return customChannelServer;
+            }
+            return super.getChannelServer(clientId, channelType, clientPackageName);
+        }
+
+        @Override
+        protected void onNewClient(final ChannelServer channelServer, String callingPackageName) {
+            newClient = channelServer;
+            newClientPackageName = callingPackageName;
+            channelServer.subscribeToMessages().subscribe(new Consumer<String>() {
+                @Override
+                public void accept(String message) throws Exception {
+                    received.add(message);
+                    if (replyToMessages) {
+                        channelServer.send("reply to " + message);
+                        channelServer.sendEndStream();
+                    }
+                }
+            });
+        }
+    }
+}
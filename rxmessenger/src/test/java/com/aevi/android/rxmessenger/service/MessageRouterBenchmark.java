@@ -0,0 +1,99 @@
+package com.aevi.android.rxmessenger.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.reactivex.functions.Consumer;
+import io.reactivex.subjects.PublishSubject;
+
+/**
+ * Compares the CPU time per message of every subscriber parsing each message to check its type, with routing the messages via a
+ * {@link MessageRouter}.
+ * <p>
+ * Ignored by default, run manually with e.g. {@code ./gradlew :rxmessenger:test --tests *MessageRouterBenchmark}
+ * </p>
+ */
+@Ignore("Benchmark, run manually")
+public class MessageRouterBenchmark {
+
+    private static final int HANDLERS = 50;
+    private static final int WARMUP_MESSAGES = 20000;
+    private static final int MESSAGES = 100000;
+
+    private final Gson gson = new Gson();
+    private int handled;
+
+    @Test
+    public void compareFullParseWithRouter() {
+        List<String> messages = createMessages();
+
+        measureSubscribersParsing(messages, WARMUP_MESSAGES);
+        measureRouter(messages, WARMUP_MESSAGES);
+
+        long subscribersNanos = measureSubscribersParsing(messages, MESSAGES);
+        long routerNanos = measureRouter(messages, MESSAGES);
+
+        System.out.println(String.format("%d handlers, subscribers parsing: %d ns/message, router: %d ns/message",
+                                         HANDLERS, subscribersNanos / MESSAGES, routerNanos / MESSAGES));
+    }
+
+    private long measureSubscribersParsing(List<String> messages, int count) {
+        PublishSubject<String> subject = PublishSubject.create();
+        for (int i = 0; i < HANDLERS; i++) {
+            final String type = "type" + i;
+            subject.subscribe(new Consumer<String>() {
+                @Override
+                public void accept(String message) throws Exception {
+                    JsonObject json = gson.fromJson(message, JsonObject.class);
+                    if (type.equals(json.get("type").getAsString())) {
+                        handled++;
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            subject.onNext(messages.get(i % messages.size()));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long measureRouter(List<String> messages, int count) {
+        MessageRouter messageRouter = new MessageRouter("type");
+        for (int i = 0; i < HANDLERS; i++) {
+            messageRouter.register("type" + i, new MessageRouter.Handler() {
+                @Override
+                public void onMessage(RoutedMessage message) {
+                    message.asJsonObject();
+                    handled++;
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            messageRouter.route(messages.get(i % messages.size()));
+        }
+        return System.nanoTime() - start;
+    }
+
+    private List<String> createMessages() {
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < HANDLERS; i++) {
+            JsonObject message = new JsonObject();
+            message.addProperty("type", "type" + i);
+            JsonObject data = new JsonObject();
+            for (int j = 0; j < 20; j++) {
+                data.addProperty("field" + j, "value of field " + j);
+            }
+            message.add("data", data);
+            messages.add(gson.toJson(message));
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,153 @@
+package com.aevi.android.rxmessenger.service;
+
+import com.aevi.android.rxmessenger.ChannelServer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.reactivex.disposables.Disposable;
+import io.reactivex.subjects.PublishSubject;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class MessageRouterTest {
+
+    private MessageRouter messageRouter;
+    private RecordingHandler startHandler;
+    private RecordingHandler stopHandler;
+
+    @Before
+    public void setup() {
+        messageRouter = new MessageRouter("type");
+        startHandler = new RecordingHandler();
+        stopHandler = new RecordingHandler();
+        messageRouter.register("start", startHandler).register("stop", stopHandler);
+    }
+
+    @Test
+    public void willRouteToHandlerForType() {
+        boolean routed = messageRouter.route("{\"type\":\"stop\",\"data\":\"now\"}");
+
+        assertThat(routed).isTrue();
+        assertThat(startHandler.messages).isEmpty();
+        assertThat(stopHandler.messages).hasSize(1);
+        assertThat(stopHandler.messages.get(0).getRoutingValue()).isEqualTo("stop");
+        assertThat(stopHandler.messages.get(0).getMessage()).isEqualTo("{\"type\":\"stop\",\"data\":\"now\"}");
+    }
+
+    @Test
+    public void willFindRoutingFieldAfterOtherFields() {
+        messageRouter.route("{\"data\":{\"nested\":[1,2,{\"type\":\"stop\"}]},\"id\":5,\"type\":\"start\"}");
+
+        assertThat(startHandler.messages).hasSize(1);
+        assertThat(stopHandler.messages).isEmpty();
+    }
+
+    @Test
+    public void willParseMessageForTypedHandler() {
+        final List<TestMessage> received = new ArrayList<>();
+        messageRouter.register("typed", TestMessage.class, new MessageRouter.TypedHandler<TestMessage>() {
+            @Override
+            public void onMessage(TestMessage message) {
+                received.add(message);
+            }
+        });
+
+        messageRouter.route("{\"type\":\"typed\",\"data\":\"hello\"}");
+
+        assertThat(received).hasSize(1);
+        assertThat(received.get(0).data).isEqualTo("hello");
+    }
+
+    @Test
+    public void willUseDefaultHandlerForUnknownOrMissingType() {
+        RecordingHandler defaultHandler = new RecordingHandler();
+        messageRouter.setDefaultHandler(defaultHandler);
+
+        messageRouter.route("{\"type\":\"unknown\"}");
+        messageRouter.route("{\"data\":\"no type\"}");
+        messageRouter.route("{\"type\":5}");
+        messageRouter.route("not json");
+
+        assertThat(defaultHandler.messages).hasSize(4);
+        assertThat(defaultHandler.messages.get(0).getRoutingValue()).isEqualTo("unknown");
+        assertThat(defaultHandler.messages.get(1).getRoutingValue()).isNull();
+    }
+
+    @Test
+    public void willNotRouteUnknownTypeWithoutDefaultHandler() {
+        assertThat(messageRouter.route("{\"type\":\"unknown\"}")).isFalse();
+        assertThat(messageRouter.route("[]")).isFalse();
+    }
+
+    @Test
+    public void willNotRouteToUnregisteredHandler() {
+        messageRouter.unregister("start");
+
+        assertThat(messageRouter.route("{\"type\":\"start\"}")).isFalse();
+        assertThat(startHandler.messages).isEmpty();
+    }
+
+    @Test
+    public void willRouteMessagesFromChannelServer() {
+        PublishSubject<String> messages = PublishSubject.create();
+        ChannelServer channelServer = mock(ChannelServer.class);
+        when(channelServer.subscribeToMessages()).thenReturn(messages);
+
+        Disposable disposable = messageRouter.attach(channelServer);
+        messages.onNext("{\"type\":\"start\"}");
+        disposable.dispose();
+        messages.onNext("{\"type\":\"start\"}");
+
+        assertThat(startHandler.messages).hasSize(1);
+    }
+
+    @Test
+    public void willKeepRoutingAfterHandlerFails() {
+        PublishSubject<String> messages = PublishSubject.create();
+        ChannelServer channelServer = mock(ChannelServer.class);
+        when(channelServer.subscribeToMessages()).thenReturn(messages);
+        final List<String> failed = new ArrayList<>();
+        messageRouter.register("typed", TestMessage.class, new MessageRouter.TypedHandler<TestMessage>() {
+            @Override
+            public void onMessage(TestMessage message) {
+            }
+        }).setErrorHandler(new MessageRouter.ErrorHandler() {
+            @Override
+            public void onError(String message, RuntimeException error) {
+                failed.add(message);
+            }
+        });
+
+        Disposable disposable = messageRouter.attach(channelServer);
+        messages.onNext("{\"type\":\"typed\",\"data\":{\"not\":\"a string\"}}");
+        messages.onNext("{\"type\":\"start\"}");
+
+        assertThat(failed).containsExactly("{\"type\":\"typed\",\"data\":{\"not\":\"a string\"}}");
+        assertThat(startHandler.messages).hasSize(1);
+        assertThat(disposable.isDisposed()).isFalse();
+    }
+
+    static class TestMessage {
+        String type;
+        String data;
+    }
+
+    static class RecordingHandler implements MessageRouter.Handler {
+
+        final List<RoutedMessage> messages = new ArrayList<>();
+
+        @Override
+        public void onMessage(RoutedMessage message) {
+            messages.add(message);
+        }
+    }
+}
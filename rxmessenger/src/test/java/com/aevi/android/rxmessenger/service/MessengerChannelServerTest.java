@@ -9,6 +9,9 @@ import android.support.annotation.NonNull;
 
 import com.aevi.android.rxmessenger.FakeBinder;
 import com.aevi.android.rxmessenger.MessageException;
+import com.aevi.android.rxmessenger.compression.CompressionDictionary;
+import com.aevi.android.rxmessenger.compression.MessageCompressor;
+import com.aevi.android.rxmessenger.model.FramedMessage;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -17,18 +20,37 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.robolectric.RobolectricTestRunner;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 import io.reactivex.observers.TestObserver;
 
+import static com.aevi.android.rxmessenger.MessageConstants.COMPRESSION_DEFLATE;
+import static com.aevi.android.rxmessenger.MessageConstants.HEADER_REQUEST_ID;
+import static com.aevi.android.rxmessenger.MessageConstants.HEADER_TIMEOUT;
 import static com.aevi.android.rxmessenger.MessageConstants.KEY_CLIENT_ID;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_COMPRESSION;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_COMPRESSION_DICTIONARIES;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_COMPRESSION_DICTIONARY;
 import static com.aevi.android.rxmessenger.MessageConstants.KEY_DATA_REQUEST;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_DATA_REQUEST_BINARY;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_DATA_REQUEST_DEFLATED;
 import static com.aevi.android.rxmessenger.MessageConstants.KEY_DATA_RESPONSE;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_DATA_RESPONSE_BINARY;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_DATA_RESPONSE_DEFLATED;
 import static com.aevi.android.rxmessenger.MessageConstants.KEY_DATA_SENDER;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_REQUEST_ID;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_RESUME_CLIENT_ID;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_RESUME_SEQUENCE;
+import static com.aevi.android.rxmessenger.MessageConstants.KEY_SEQUENCE;
+import static com.aevi.android.rxmessenger.MessageConstants.MESSAGE_CANCEL;
 import static com.aevi.android.rxmessenger.MessageConstants.MESSAGE_END_STREAM;
 import static com.aevi.android.rxmessenger.MessageConstants.MESSAGE_ERROR;
 import static com.aevi.android.rxmessenger.MessageConstants.MESSAGE_REQUEST;
 import static com.aevi.android.rxmessenger.MessageConstants.MESSAGE_RESPONSE;
 import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -97,6 +119,74 @@ public class MessengerChannelServerTest {
         assertThat(testObserver.values().get(0)).isEqualTo("{ id: 567 }");
     }
 
+    @Test
+    public void willNotKeepMessagesByDefault() {
+        messengerChannelServer.handleMessage(setupJsonMessage("{ id: 567 }", CLIENT_ID));
+
+        messengerChannelServer.subscribeToMessages().test().assertNoValues();
+        assertThat(messengerChannelServer.getMessageRetention()).isEqualTo(MessageRetention.NONE);
+    }
+
+    @Test
+    public void willWaitForNextMessageWithoutRetention() throws InterruptedException {
+        messengerChannelServer.handleMessage(setupJsonMessage("{ id: 567 }", CLIENT_ID));
+        final AtomicReference<String> lastMessage = new AtomicReference<>();
+        Thread waiting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                lastMessage.set(messengerChannelServer.getLastMessageBlocking());
+            }
+        });
+        waiting.start();
+        while (waiting.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+
+        messengerChannelServer.handleMessage(setupJsonMessage("{ id: 568 }", CLIENT_ID));
+        waiting.join(2000);
+
+        assertThat(lastMessage.get()).isEqualTo("{ id: 568 }");
+    }
+
+    @Test
+    public void willReplayLatestMessageWhenRetained() {
+        messengerChannelServer.setMessageRetention(MessageRetention.LATEST);
+        messengerChannelServer.handleMessage(setupJsonMessage("{ id: 567 }", CLIENT_ID));
+        messengerChannelServer.handleMessage(setupJsonMessage("{ id: 568 }", CLIENT_ID));
+
+        messengerChannelServer.subscribeToMessages().test().assertValue("{ id: 568 }");
+        assertThat(messengerChannelServer.getLastMessageBlocking()).isEqualTo("{ id: 568 }");
+    }
+
+    @Test
+    public void checkWillHandleValidBinaryMessage() {
+        Message m = setupJsonMessage(null, CLIENT_ID);
+        m.getData().remove(KEY_DATA_REQUEST);
+        m.getData().putByteArray(KEY_DATA_REQUEST_BINARY, new byte[]{1, 2, 3});
+        TestObserver<String> textObserver = messengerChannelServer.subscribeToMessages().test();
+        TestObserver<byte[]> binaryObserver = messengerChannelServer.subscribeToBinaryMessages().test();
+
+        messengerChannelServer.handleMessage(m);
+
+        textObserver.assertNoValues();
+        assertThat(binaryObserver.values()).hasSize(1);
+        assertThat(binaryObserver.values().get(0)).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    public void willSendBinaryMessage() throws RemoteException {
+        setupReplyTo();
+
+        boolean sent = messengerChannelServer.send(new byte[]{4, 5});
+
+        assertThat(sent).isTrue();
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(replyToMessenger).send(captor.capture());
+        assertThat(captor.getValue().what).isEqualTo(MESSAGE_RESPONSE);
+        assertThat(captor.getValue().getData().getByteArray(KEY_DATA_RESPONSE_BINARY)).containsExactly(4, 5);
+        assertThat(captor.getValue().getData().containsKey(KEY_DATA_RESPONSE)).isFalse();
+    }
+
     @Test
     public void willSendMessage() throws RemoteException {
         setupReplyTo();
@@ -129,6 +219,327 @@ public class MessengerChannelServerTest {
         verifySentMessage(MESSAGE_END_STREAM, null);
     }
 
+    @Test
+    public void willSignalCancellationWhenClientCancels() {
+        TestObserver<Void> cancelled = messengerChannelServer.whenCancelled().test();
+        messengerChannelServer.handleMessage(setupJsonMessage("{ id: 567 }", CLIENT_ID));
+        cancelled.assertNotComplete();
+
+        Message m = Message.obtain(null, MESSAGE_CANCEL);
+        m.setData(new Bundle());
+        messengerChannelServer.handleMessage(m);
+
+        cancelled.assertComplete();
+        messengerChannelServer.whenCancelled().test().assertNotComplete();
+    }
+
+    @Test
+    public void willOnlyCancelTheRequestNamed() {
+        messengerChannelServer.handleMessage(setupJsonMessage("{ id: 1 }", CLIENT_ID, 1));
+        TestObserver<Void> first = messengerChannelServer.whenCancelled().test();
+        messengerChannelServer.handleMessage(setupJsonMessage("{ id: 2 }", CLIENT_ID, 2));
+        TestObserver<Void> second = messengerChannelServer.whenCancelled().test();
+
+        messengerChannelServer.handleMessage(setupCancelMessage(1));
+
+        first.assertComplete();
+        second.assertNotComplete();
+    }
+
+    @Test
+    public void willCancelRequestReceivedAfterItsCancel() {
+        messengerChannelServer.handleMessage(setupCancelMessage(3));
+        messengerChannelServer.handleMessage(setupJsonMessage("{ id: 3 }", CLIENT_ID, 3));
+
+        messengerChannelServer.whenCancelled().test().assertComplete();
+    }
+
+    @Test
+    public void willTakeRequestIdFromFrame() {
+        messengerChannelServer.handleMessage(setupJsonMessage(FramedMessage.of("{ id: 4 }").withHeader(HEADER_REQUEST_ID, 4).encode(), CLIENT_ID));
+        TestObserver<Void> cancelled = messengerChannelServer.whenCancelled().test();
+
+        messengerChannelServer.handleMessage(setupCancelMessage(4));
+
+        cancelled.assertComplete();
+    }
+
+    @Test
+    public void willNameRequestRejected() throws RemoteException {
+        TestObserver<String> messages = messengerChannelServer.subscribeToMessages().test();
+
+        messengerChannelServer.reject(setupJsonMessage("{ id: 5 }", CLIENT_ID, 5), new MessageException("bleep", "bloop"));
+
+        messages.assertNoValues();
+        verifyRejected(5);
+    }
+
+    @Test
+    public void willTakeIdOfRequestRejectedFromFrame() throws RemoteException {
+        String request = FramedMessage.of("{ id: 6 }").withHeader(HEADER_REQUEST_ID, 6).encode();
+
+        messengerChannelServer.reject(setupJsonMessage(request, CLIENT_ID), new MessageException("bleep", "bloop"));
+
+        verifyRejected(6);
+    }
+
+    @Test
+    public void willNotPassCancelOnAsMessage() {
+        TestObserver<String> messages = messengerChannelServer.subscribeToMessages().test();
+
+        Message m = setupJsonMessage("{ id: 567 }", CLIENT_ID);
+        m.what = MESSAGE_CANCEL;
+        messengerChannelServer.handleMessage(m);
+
+        messages.assertNoValues();
+    }
+
+    @Test
+    public void willGiveRemainingTimeForMessageWithDeadline() {
+        DeadlineChannelServer channelServer = new DeadlineChannelServer();
+        TestObserver<String> messages = channelServer.subscribeToMessages().test();
+
+        channelServer.handleMessage(setupJsonMessage(FramedMessage.of("{ id: 567 }").withHeader(HEADER_TIMEOUT, 500).encode(), CLIENT_ID));
+        channelServer.now += 200;
+
+        messages.assertValue("{ id: 567 }");
+        assertThat(channelServer.hasDeadline()).isTrue();
+        assertThat(channelServer.getRemainingTimeMillis()).isEqualTo(300);
+    }
+
+    @Test
+    public void willHaveNoDeadlineForMessageWithout() {
+        DeadlineChannelServer channelServer = new DeadlineChannelServer();
+        channelServer.handleMessage(setupJsonMessage(FramedMessage.of("{ id: 1 }").withHeader(HEADER_TIMEOUT, 500).encode(), CLIENT_ID));
+
+        channelServer.handleMessage(setupJsonMessage("{ id: 2 }", CLIENT_ID));
+
+        assertThat(channelServer.hasDeadline()).isFalse();
+        assertThat(channelServer.getRemainingTimeMillis()).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void willDropMessagesOnceDeadlinePassed() throws RemoteException {
+        DeadlineChannelServer channelServer = new DeadlineChannelServer();
+        channelServer.handleMessage(setupJsonMessage(FramedMessage.of("{ id: 567 }").withHeader(HEADER_TIMEOUT, 500).encode(), CLIENT_ID));
+        channelServer.replyTo = replyToMessenger;
+
+        assertThat(channelServer.send("in time")).isTrue();
+        channelServer.now += 500;
+        assertThat(channelServer.send("too late")).isFalse();
+        assertThat(channelServer.send(new byte[]{1})).isFalse();
+        assertThat(channelServer.sendEndStream()).isTrue();
+
+        verify(replyToMessenger, times(2)).send(any(Message.class));
+        assertThat(channelServer.getRemainingTimeMillis()).isEqualTo(0);
+    }
+
+    @Test
+    public void willKeepDeadlineOfEachRequest() throws RemoteException {
+        DeadlineChannelServer channelServer = new DeadlineChannelServer();
+        channelServer.handleMessage(setupJsonMessage(FramedMessage.of("{ id: 1 }").withHeader(HEADER_TIMEOUT, 500).encode(), CLIENT_ID, 1));
+        channelServer.handleMessage(setupJsonMessage(FramedMessage.of("{ id: 2 }").withHeader(HEADER_TIMEOUT, 1000).encode(), CLIENT_ID, 2));
+        channelServer.handleMessage(setupJsonMessage("{ id: 3 }", CLIENT_ID, 3));
+        channelServer.replyTo = replyToMessenger;
+        channelServer.now += 500;
+
+        assertThat(channelServer.isExpired(1)).isTrue();
+        assertThat(channelServer.isExpired(2)).isFalse();
+        assertThat(channelServer.hasDeadline()).isFalse();
+        assertThat(channelServer.send("for request 3")).isTrue();
+        verify(replyToMessenger).send(any(Message.class));
+    }
+
+    @Test
+    public void willSignalCancellationWhenClientDisposed() {
+        TestObserver<Void> cancelled = messengerChannelServer.whenCancelled().test();
+
+        messengerChannelServer.disposeClient();
+
+        cancelled.assertComplete();
+    }
+
+    @Test
+    public void willCompleteSubscriptionsMadeAfterClientDisposed() {
+        messengerChannelServer.disposeClient();
+
+        messengerChannelServer.subscribeToMessages().test().assertComplete();
+        messengerChannelServer.subscribeToBinaryMessages().test().assertComplete();
+        messengerChannelServer.whenCancelled().test().assertComplete();
+    }
+
+    @Test
+    public void willNotCompressUnlessClientAsks() throws RemoteException {
+        messengerChannelServer.setMessageCompressor(new MessageCompressor(10));
+        messengerChannelServer.handleMessage(setupJsonMessage("{ id: 567 }", CLIENT_ID));
+        setupReplyTo();
+
+        messengerChannelServer.send("a message long enough to compress");
+
+        verifySentMessage(MESSAGE_RESPONSE, "a message long enough to compress");
+        assertThat(messengerChannelServer.isCompressionAgreed()).isFalse();
+    }
+
+    @Test
+    public void willNotCompressIfServiceDisabledCompression() {
+        messengerChannelServer.handleMessage(setupCompressionMessage("{ id: 567 }"));
+
+        assertThat(messengerChannelServer.isCompressionAgreed()).isFalse();
+    }
+
+    @Test
+    public void willCompressLargeMessagesOnceClientAsks() throws RemoteException {
+        MessageCompressor compressor = new MessageCompressor(10);
+        messengerChannelServer.setMessageCompressor(compressor);
+        messengerChannelServer.handleMessage(setupCompressionMessage("{ id: 567 }"));
+        setupReplyTo();
+
+        messengerChannelServer.send("a message long enough to compress");
+        messengerChannelServer.send("small");
+
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(replyToMessenger, times(2)).send(captor.capture());
+        Bundle compressed = captor.getAllValues().get(0).getData();
+        assertThat(compressed.containsKey(KEY_DATA_RESPONSE)).isFalse();
+        assertThat(compressor.decompress(compressed.getByteArray(KEY_DATA_RESPONSE_DEFLATED))).isEqualTo("a message long enough to compress");
+        assertThat(compressed.getString(KEY_COMPRESSION)).isEqualTo(COMPRESSION_DEFLATE);
+        Bundle small = captor.getAllValues().get(1).getData();
+        assertThat(small.getString(KEY_DATA_RESPONSE)).isEqualTo("small");
+        assertThat(small.getString(KEY_COMPRESSION)).isEqualTo(COMPRESSION_DEFLATE);
+        assertThat(compressor.getStats().getCompressedMessages()).isEqualTo(1);
+    }
+
+    @Test
+    public void willAgreeOnFirstDictionaryBothSidesHave() throws RemoteException {
+        CompressionDictionary dictionary = new CompressionDictionary("basket", "a message long enough");
+        messengerChannelServer.setMessageCompressor(new MessageCompressor(10, new CompressionDictionary("other", "other"), dictionary));
+        Message m = setupCompressionMessage("{ id: 567 }");
+        m.getData().putStringArray(KEY_COMPRESSION_DICTIONARIES, new String[]{"unknown", "basket", "other"});
+        messengerChannelServer.handleMessage(m);
+        setupReplyTo();
+
+        messengerChannelServer.send("a message long enough to compress");
+
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(replyToMessenger).send(captor.capture());
+        Bundle compressed = captor.getValue().getData();
+        assertThat(compressed.getString(KEY_COMPRESSION_DICTIONARY)).isEqualTo("basket");
+        MessageCompressor clientCompressor = new MessageCompressor(10, dictionary).forDictionary(dictionary);
+        assertThat(clientCompressor.decompress(compressed.getByteArray(KEY_DATA_RESPONSE_DEFLATED))).isEqualTo("a message long enough to compress");
+    }
+
+    @Test
+    public void willDecompressCompressedRequest() {
+        MessageCompressor compressor = new MessageCompressor(10);
+        messengerChannelServer.setMessageCompressor(compressor);
+        Message m = setupCompressionMessage(null);
+        m.getData().remove(KEY_DATA_REQUEST);
+        m.getData().putByteArray(KEY_DATA_REQUEST_DEFLATED, compressor.compress("{ id: 567, name: \"compressed\" }"));
+
+        TestObserver<String> testObserver = sendMessageAndObserve(m);
+
+        testObserver.assertValue("{ id: 567, name: \"compressed\" }");
+    }
+
+    @Test
+    public void willNotNumberMessagesByDefault() throws RemoteException {
+        setupReplyTo();
+
+        messengerChannelServer.send("one");
+
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(replyToMessenger).send(captor.capture());
+        assertThat(captor.getValue().getData().containsKey(KEY_SEQUENCE)).isFalse();
+        assertThat(messengerChannelServer.getReplayBufferSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void willNumberMessagesWhenReplayBufferSet() throws RemoteException {
+        messengerChannelServer.setReplayBufferSize(4);
+        setupReplyTo();
+
+        messengerChannelServer.send("one");
+        messengerChannelServer.send(new byte[]{2});
+        messengerChannelServer.sendEndStream();
+
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(replyToMessenger, times(3)).send(captor.capture());
+        for (int i = 0; i < 3; i++) {
+            assertThat(captor.getAllValues().get(i).getData().getLong(KEY_SEQUENCE)).isEqualTo(i + 1);
+        }
+        assertThat(messengerChannelServer.getReplayBufferSize()).isEqualTo(4);
+    }
+
+    @Test
+    public void willSendMissedMessagesWhenClientResumes() throws RemoteException {
+        messengerChannelServer.setReplayBufferSize(4);
+        setupReplyTo();
+        messengerChannelServer.send("one");
+        messengerChannelServer.detach();
+        messengerChannelServer.send("two");
+        messengerChannelServer.send("three");
+        messengerChannelServer.reattach();
+
+        messengerChannelServer.handleMessage(setupResumeMessage(1));
+        messengerChannelServer.send("four");
+
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(replyToMessenger).send(captor.capture());
+        verify(messenger, times(3)).send(captor.capture());
+        String[] expected = {"one", "two", "three", "four"};
+        for (int i = 0; i < expected.length; i++) {
+            Bundle data = captor.getAllValues().get(i).getData();
+            assertThat(data.getString(KEY_DATA_RESPONSE)).isEqualTo(expected[i]);
+            assertThat(data.getLong(KEY_SEQUENCE)).isEqualTo(i + 1);
+        }
+    }
+
+    @Test
+    public void willFailToResumeWhenMissedMessagesDropped() throws RemoteException {
+        messengerChannelServer.setReplayBufferSize(2);
+        for (int i = 0; i < 3; i++) {
+            messengerChannelServer.send("message " + i);
+        }
+        messengerChannelServer.reattach();
+
+        messengerChannelServer.handleMessage(setupResumeMessage(0));
+
+        verifyResumeFailed();
+    }
+
+    @Test
+    public void willFailToResumeClientThatWasNotReattached() throws RemoteException {
+        messengerChannelServer.setReplayBufferSize(2);
+
+        messengerChannelServer.handleMessage(setupResumeMessage(0));
+
+        verifyResumeFailed();
+    }
+
+    private void verifyResumeFailed() throws RemoteException {
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(messenger).send(captor.capture());
+        assertThat(captor.getValue().what).isEqualTo(MESSAGE_ERROR);
+        MessageException error = MessageException.fromJson(captor.getValue().getData().getString(KEY_DATA_RESPONSE));
+        assertThat(error.getCode()).isEqualTo(AbstractChannelService.ERROR_RESUME_FAILED);
+    }
+
+    @NonNull
+    private Message setupResumeMessage(long lastSequence) {
+        Message m = setupJsonMessage(null, CLIENT_ID);
+        m.getData().remove(KEY_DATA_REQUEST);
+        m.getData().putString(KEY_RESUME_CLIENT_ID, "previous");
+        m.getData().putLong(KEY_RESUME_SEQUENCE, lastSequence);
+        return m;
+    }
+
+    @NonNull
+    private Message setupCompressionMessage(String json) {
+        Message m = setupJsonMessage(json, CLIENT_ID);
+        m.getData().putString(KEY_COMPRESSION, COMPRESSION_DEFLATE);
+        return m;
+    }
+
     private void verifySentMessage(int type, String message) throws RemoteException {
         ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
         verify(replyToMessenger).send(captor.capture());
@@ -146,6 +557,28 @@ public class MessengerChannelServerTest {
         assertThat(b.getString(KEY_DATA_SENDER)).isEqualTo(COMPONENT_NAME);
     }
 
+    private void verifyRejected(long requestId) throws RemoteException {
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(messenger).send(captor.capture());
+        assertThat(captor.getValue().what).isEqualTo(MESSAGE_ERROR);
+        assertThat(captor.getValue().getData().getLong(KEY_REQUEST_ID)).isEqualTo(requestId);
+        assertThat(MessageException.fromJson(captor.getValue().getData().getString(KEY_DATA_RESPONSE)).getCode()).isEqualTo("bleep");
+    }
+
+    class DeadlineChannelServer extends MessengerChannelServer {
+
+        long now = 1000;
+
+        DeadlineChannelServer() {
+            super(COMPONENT_NAME, CLIENT_PACKAGE_NAME);
+        }
+
+        @Override
+        long elapsedRealtime() {
+            return now;
+        }
+    }
+
     private void setupReplyTo() {
         messengerChannelServer.replyTo = replyToMessenger;
     }
@@ -169,6 +602,20 @@ public class MessengerChannelServerTest {
     }
 
     @NonNull
+    private Message setupJsonMessage(String json, String clientId, long requestId) {
+        Message m = setupJsonMessage(json, clientId);
+        m.getData().putLong(KEY_REQUEST_ID, requestId);
+        return m;
+    }
+
+    private Message setupCancelMessage(long requestId) {
+        Message m = Message.obtain(null, MESSAGE_CANCEL);
+        Bundle b = new Bundle();
+        b.putLong(KEY_REQUEST_ID, requestId);
+        m.setData(b);
+        return m;
+    }
+
     private Message setupJsonMessage(String json, String clientId) {
         Message m = new Message();
         m.what = MESSAGE_REQUEST;
@@ -0,0 +1,113 @@
+package com.aevi.android.rxmessenger.service;
+
+import com.aevi.android.rxmessenger.MessagePriority;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the throughput of sending from several threads via an {@link OutboundQueue} with sending while holding a lock, as the number of
+ * producer threads grows.
+ * <p>
+ * Each send does a small amount of work, standing in for the binder transaction or socket write of a real send. Results depend heavily on the
+ * number of cores, so run on a device or a multi-core machine.
+ * </p>
+ * <p>
+ * Ignored by default, run manually with e.g. {@code ./gradlew :rxmessenger:test --tests *OutboundQueueBenchmark}
+ * </p>
+ */
+@Ignore("Benchmark, run manually")
+public class OutboundQueueBenchmark {
+
+    private static final int[] PRODUCERS = {1, 2, 4, 8};
+    private static final int MESSAGES_PER_PRODUCER = 200000;
+    private static final int SEND_WORK = 200;
+
+    private long sent;
+    private long checksum;
+
+    @Test
+    public void compareQueueWithLock() throws InterruptedException {
+        for (int producers : PRODUCERS) {
+            // warm up both first
+            measureQueue(producers);
+            measureLock(producers);
+
+            long queueNanos = measureQueue(producers);
+            long lockNanos = measureLock(producers);
+            long messages = (long) producers * MESSAGES_PER_PRODUCER;
+            System.out.println(String.format("%d producers, queue: %d messages/ms, lock: %d messages/ms", producers,
+                                             messages * 1000000 / queueNanos, messages * 1000000 / lockNanos));
+        }
+    }
+
+    private long measureQueue(int producers) throws InterruptedException {
+        final OutboundQueue<String> queue = new OutboundQueue<>(new OutboundQueue.Sender<String>() {
+            @Override
+            public void send(String message) {
+                doSend();
+            }
+        }, null);
+        return run(producers, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < MESSAGES_PER_PRODUCER; i++) {
+                    queue.offer("message", MessagePriority.NORMAL);
+                }
+            }
+        });
+    }
+
+    private long measureLock(int producers) throws InterruptedException {
+        final Object lock = new Object();
+        return run(producers, new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < MESSAGES_PER_PRODUCER; i++) {
+                    synchronized (lock) {
+                        doSend();
+                    }
+                }
+            }
+        });
+    }
+
+    private void doSend() {
+        long hash = sent++;
+        for (int i = 0; i < SEND_WORK; i++) {
+            hash = hash * 31 + i;
+        }
+        checksum += hash;
+    }
+
+    private long run(int producers, Runnable producer) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < producers; i++) {
+            final Runnable work = producer;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    work.run();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.nanoTime() - begin;
+    }
+}
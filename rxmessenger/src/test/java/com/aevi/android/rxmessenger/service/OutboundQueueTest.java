@@ -0,0 +1,237 @@
+package com.aevi.android.rxmessenger.service;
+
+import com.aevi.android.rxmessenger.MessagePriority;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.reactivex.schedulers.TestScheduler;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class OutboundQueueTest {
+
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+    private final OutboundQueue.Sender<String> recordingSender = new OutboundQueue.Sender<String>() {
+        @Override
+        public void send(String message) {
+            sent.add(message);
+        }
+    };
+
+    @Test
+    public void willSendStraightAwayOnCallingThreadWithoutScheduler() {
+        OutboundQueue<String> queue = new OutboundQueue<>(recordingSender, null);
+
+        assertThat(queue.offer("hello", MessagePriority.NORMAL)).isTrue();
+
+        assertThat(sent).containsExactly("hello");
+    }
+
+    @Test
+    public void willSendOnScheduler() {
+        TestScheduler scheduler = new TestScheduler();
+        OutboundQueue<String> queue = new OutboundQueue<>(recordingSender, scheduler);
+
+        queue.offer("first", MessagePriority.NORMAL);
+        queue.offer("second", MessagePriority.NORMAL);
+        queue.offer("urgent", MessagePriority.HIGH);
+        assertThat(sent).isEmpty();
+
+        scheduler.triggerActions();
+        assertThat(sent).containsExactly("urgent", "first", "second");
+    }
+
+    @Test
+    public void willSendMessagesAddedWhileSending() {
+        final AtomicReference<OutboundQueue<String>> queue = new AtomicReference<>();
+        queue.set(new OutboundQueue<>(new OutboundQueue.Sender<String>() {
+            @Override
+            public void send(String message) {
+                sent.add(message);
+                if (message.equals("first")) {
+                    queue.get().offer("second", MessagePriority.NORMAL);
+                    // not sent yet, as this thread is still sending the first
+                    assertThat(sent).containsExactly("first");
+                }
+            }
+        }, null));
+
+        queue.get().offer("first", MessagePriority.NORMAL);
+
+        assertThat(sent).containsExactly("first", "second");
+    }
+
+    @Test
+    public void willKeepSendingAfterSenderFails() {
+        OutboundQueue<String> queue = new OutboundQueue<>(new OutboundQueue.Sender<String>() {
+            @Override
+            public void send(String message) {
+                if (message.equals("bad")) {
+                    throw new IllegalStateException("Oops");
+                }
+                sent.add(message);
+            }
+        }, null);
+
+        queue.offer("bad", MessagePriority.NORMAL);
+        queue.offer("good", MessagePriority.NORMAL);
+
+        assertThat(sent).containsExactly("good");
+    }
+
+    @Test
+    public void willCloseAfterQueuedMessagesSent() {
+        TestScheduler scheduler = new TestScheduler();
+        OutboundQueue<String> queue = new OutboundQueue<>(recordingSender, scheduler);
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        queue.offer("last words", MessagePriority.NORMAL);
+        queue.close(new Runnable() {
+            @Override
+            public void run() {
+                assertThat(sent).containsExactly("last words");
+                closed.set(true);
+            }
+        });
+        assertThat(queue.isClosed()).isTrue();
+        assertThat(queue.offer("too late", MessagePriority.NORMAL)).isFalse();
+
+        scheduler.triggerActions();
+        assertThat(closed.get()).isTrue();
+        assertThat(sent).containsExactly("last words");
+    }
+
+    @Test
+    public void willCloseWhenClosedWhileSending() {
+        final AtomicReference<OutboundQueue<String>> queue = new AtomicReference<>();
+        final AtomicInteger closedCount = new AtomicInteger();
+        queue.set(new OutboundQueue<>(new OutboundQueue.Sender<String>() {
+            @Override
+            public void send(String message) {
+                sent.add(message);
+                queue.get().close(new Runnable() {
+                    @Override
+                    public void run() {
+                        closedCount.incrementAndGet();
+                    }
+                });
+                assertThat(queue.get().offer("too late", MessagePriority.NORMAL)).isFalse();
+            }
+        }, null));
+
+        queue.get().offer("first", MessagePriority.NORMAL);
+
+        assertThat(sent).containsExactly("first");
+        assertThat(closedCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void willSendEveryAcceptedMessageBeforeClosingWhileOthersOffer() throws InterruptedException {
+        final int producers = 4;
+        final AtomicInteger accepted = new AtomicInteger();
+        final AtomicInteger sentBeforeClose = new AtomicInteger(-1);
+        final OutboundQueue<String> queue = new OutboundQueue<>(recordingSender, null);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (queue.offer("message", MessagePriority.NORMAL)) {
+                        accepted.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        Thread.sleep(20);
+        queue.close(new Runnable() {
+            @Override
+            public void run() {
+                sentBeforeClose.set(sent.size());
+            }
+        });
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(sentBeforeClose.get()).isEqualTo(accepted.get());
+        assertThat(sent).hasSize(accepted.get());
+    }
+
+    @Test
+    public void willSendFromManyThreadsOneAtATimeInOrder() throws InterruptedException {
+        final int producers = 8;
+        final int messages = 10000;
+        final AtomicInteger sending = new AtomicInteger();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final List<List<Integer>> received = new ArrayList<>();
+        for (int i = 0; i < producers; i++) {
+            received.add(new ArrayList<Integer>());
+        }
+        final OutboundQueue<int[]> queue = new OutboundQueue<>(new OutboundQueue.Sender<int[]>() {
+            @Override
+            public void send(int[] message) {
+                if (sending.incrementAndGet() != 1) {
+                    overlapped.set(true);
+                }
+                // not synchronized, as only one thread sends at a time
+                received.get(message[0]).add(message[1]);
+                sending.decrementAndGet();
+            }
+        }, null);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < messages; i++) {
+                        queue.offer(new int[]{producer, i}, MessagePriority.NORMAL);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(overlapped.get()).isFalse();
+        for (List<Integer> producerMessages : received) {
+            assertThat(producerMessages).hasSize(messages);
+            for (int i = 0; i < messages; i++) {
+                assertThat(producerMessages.get(i)).isEqualTo(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.aevi.android.rxmessenger.service;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class PendingMessagesTest {
+
+    private List<String> delivered = new ArrayList<>();
+
+    @Test
+    public void willHoldMessagesUntilReleased() {
+        PendingMessages pendingMessages = new PendingMessages(4);
+
+        submit(pendingMessages, "one", "two");
+
+        assertThat(delivered).isEmpty();
+        assertThat(pendingMessages.getPendingCount()).isEqualTo(2);
+
+        pendingMessages.release();
+
+        assertThat(delivered).containsExactly("one", "two");
+        assertThat(pendingMessages.getPendingCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void willPassOnMessagesStraightAwayOnceReleased() {
+        PendingMessages pendingMessages = new PendingMessages(4);
+        pendingMessages.release();
+
+        submit(pendingMessages, "one");
+
+        assertThat(delivered).containsExactly("one");
+    }
+
+    @Test
+    public void willRejectMessagesOverLimit() {
+        PendingMessages pendingMessages = new PendingMessages(2);
+
+        assertThat(pendingMessages.submit(delivery("one"))).isTrue();
+        assertThat(pendingMessages.submit(delivery("two"))).isTrue();
+        assertThat(pendingMessages.submit(delivery("three"))).isFalse();
+
+        pendingMessages.release();
+        assertThat(delivered).containsExactly("one", "two");
+    }
+
+    @Test
+    public void willKeepOrderOfMessagesSubmittedWhileReleasing() {
+        final PendingMessages pendingMessages = new PendingMessages(4);
+        pendingMessages.submit(new Runnable() {
+            @Override
+            public void run() {
+                delivered.add("one");
+                submit(pendingMessages, "three");
+            }
+        });
+        submit(pendingMessages, "two");
+
+        pendingMessages.release();
+
+        assertThat(delivered).containsExactly("one", "two", "three");
+    }
+
+    @Test
+    public void willDropMessagesOnceDiscarded() {
+        PendingMessages pendingMessages = new PendingMessages(4);
+        submit(pendingMessages, "one");
+
+        pendingMessages.discard();
+        pendingMessages.release();
+        submit(pendingMessages, "two");
+
+        assertThat(delivered).isEmpty();
+    }
+
+    private void submit(PendingMessages pendingMessages, String... messages) {
+        for (String message : messages) {
+            pendingMessages.submit(delivery(message));
+        }
+    }
+
+    private Runnable delivery(final String message) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                delivered.add(message);
+            }
+        };
+    }
+}
@@ -0,0 +1,62 @@
+package com.aevi.android.rxmessenger.service;
+
+import com.aevi.android.rxmessenger.MessagePriority;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class PriorityLanesTest {
+
+    private PriorityLanes<String> lanes = new PriorityLanes<>(2);
+
+    @Test
+    public void willTakeHighPriorityFirst() {
+        lanes.add("bulk", MessagePriority.NORMAL);
+        lanes.add("heartbeat", MessagePriority.HIGH);
+
+        assertThat(lanes.poll()).isEqualTo("heartbeat");
+        assertThat(lanes.poll()).isEqualTo("bulk");
+        assertThat(lanes.poll()).isNull();
+    }
+
+    @Test
+    public void willKeepOrderWithinLane() {
+        lanes.add("first", MessagePriority.NORMAL);
+        lanes.add("second", MessagePriority.NORMAL);
+
+        assertThat(lanes.poll()).isEqualTo("first");
+        assertThat(lanes.poll()).isEqualTo("second");
+    }
+
+    @Test
+    public void willTakeNormalAfterMaxHighInARow() {
+        lanes.add("bulk 1", MessagePriority.NORMAL);
+        lanes.add("bulk 2", MessagePriority.NORMAL);
+        for (int i = 1; i <= 5; i++) {
+            lanes.add("high " + i, MessagePriority.HIGH);
+        }
+
+        assertThat(lanes.poll()).isEqualTo("high 1");
+        assertThat(lanes.poll()).isEqualTo("high 2");
+        assertThat(lanes.poll()).isEqualTo("bulk 1");
+        assertThat(lanes.poll()).isEqualTo("high 3");
+        assertThat(lanes.poll()).isEqualTo("high 4");
+        assertThat(lanes.poll()).isEqualTo("bulk 2");
+        assertThat(lanes.poll()).isEqualTo("high 5");
+        assertThat(lanes.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void canClear() {
+        lanes.add("bulk", MessagePriority.NORMAL);
+        lanes.add("heartbeat", MessagePriority.HIGH);
+
+        lanes.clear();
+
+        assertThat(lanes.poll()).isNull();
+    }
+}
@@ -0,0 +1,58 @@
+package com.aevi.android.rxmessenger.service;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class ReplayBufferTest {
+
+    @Test
+    public void willNumberMessagesInOrder() {
+        ReplayBuffer<String> buffer = new ReplayBuffer<>(4);
+
+        assertThat(buffer.add("one")).isEqualTo(1);
+        assertThat(buffer.add("two")).isEqualTo(2);
+        assertThat(buffer.getLastSequence()).isEqualTo(2);
+    }
+
+    @Test
+    public void willReturnMessagesAfterSequenceGiven() {
+        ReplayBuffer<String> buffer = new ReplayBuffer<>(4);
+        add(buffer, "one", "two", "three");
+
+        assertThat(buffer.since(0)).containsExactly("one", "two", "three");
+        assertThat(buffer.since(1)).containsExactly("two", "three");
+        assertThat(buffer.since(3)).isEmpty();
+    }
+
+    @Test
+    public void willDropOldestMessagesWhenFull() {
+        ReplayBuffer<String> buffer = new ReplayBuffer<>(2);
+        add(buffer, "one", "two", "three", "four", "five");
+
+        assertThat(buffer.since(3)).containsExactly("four", "five");
+        assertThat(buffer.since(2)).isNull();
+    }
+
+    @Test
+    public void willNotReturnMessagesForSequenceNotReached() {
+        ReplayBuffer<String> buffer = new ReplayBuffer<>(2);
+        add(buffer, "one");
+
+        assertThat(buffer.since(2)).isNull();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void willRejectEmptyBuffer() {
+        new ReplayBuffer<String>(0);
+    }
+
+    private void add(ReplayBuffer<String> buffer, String... messages) {
+        for (String message : messages) {
+            buffer.add(message);
+        }
+    }
+}
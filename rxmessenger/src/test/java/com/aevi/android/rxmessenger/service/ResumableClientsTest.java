@@ -0,0 +1,85 @@
+package com.aevi.android.rxmessenger.service;
+
+import com.aevi.android.rxmessenger.ChannelServer;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.schedulers.TestScheduler;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class ResumableClientsTest {
+
+    private static final String PACKAGE_NAME = "com.rxmessenger.clients.rock";
+
+    private TestScheduler scheduler = new TestScheduler();
+    private List<String> expired = new ArrayList<>();
+    private ResumableClients resumableClients = new ResumableClients(1000, scheduler, new ResumableClients.Expiry() {
+        @Override
+        public void expire(String clientId, ChannelServer channelServer) {
+            expired.add(clientId);
+        }
+    });
+
+    @Test
+    public void willGiveBackChannelServerOfClientThatReconnects() {
+        ChannelServer channelServer = createChannelServer();
+        resumableClients.hold("client1", channelServer);
+
+        assertThat(resumableClients.take("client1", PACKAGE_NAME)).isSameAs(channelServer);
+        assertThat(resumableClients.isEmpty()).isTrue();
+
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        assertThat(expired).isEmpty();
+    }
+
+    @Test
+    public void willExpireClientThatDoesNotReconnectInTime() {
+        resumableClients.hold("client1", createChannelServer());
+
+        scheduler.advanceTimeBy(999, TimeUnit.MILLISECONDS);
+        assertThat(expired).isEmpty();
+
+        scheduler.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+        assertThat(expired).containsExactly("client1");
+        assertThat(resumableClients.take("client1", PACKAGE_NAME)).isNull();
+    }
+
+    @Test
+    public void willNotGiveBackChannelServerToOtherPackage() {
+        ChannelServer channelServer = createChannelServer();
+        resumableClients.hold("client1", channelServer);
+
+        assertThat(resumableClients.take("client1", "com.other")).isNull();
+        assertThat(resumableClients.take("client1", PACKAGE_NAME)).isSameAs(channelServer);
+    }
+
+    @Test
+    public void willReleaseAllChannelServersWhenCleared() {
+        ChannelServer channelServer1 = createChannelServer();
+        ChannelServer channelServer2 = createChannelServer();
+        resumableClients.hold("client1", channelServer1);
+        resumableClients.hold("client2", channelServer2);
+
+        assertThat(resumableClients.clear()).containsOnly(channelServer1, channelServer2);
+        assertThat(resumableClients.isEmpty()).isTrue();
+
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        assertThat(expired).isEmpty();
+    }
+
+    private ChannelServer createChannelServer() {
+        ChannelServer channelServer = mock(ChannelServer.class);
+        when(channelServer.getClientPackageName()).thenReturn(PACKAGE_NAME);
+        return channelServer;
+    }
+}
@@ -0,0 +1,149 @@
+package com.aevi.android.rxmessenger.service;
+
+import com.aevi.android.rxmessenger.ChannelServer;
+import com.aevi.android.rxmessenger.MessageException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Consumer;
+import io.reactivex.subjects.SingleSubject;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class SharedResponsesTest {
+
+    @Mock
+    ChannelServer firstClient;
+
+    @Mock
+    ChannelServer secondClient;
+
+    private long now = 1000;
+    private int computations;
+    private SingleSubject<String> result;
+
+    @Before
+    public void setup() {
+        initMocks(this);
+        result = SingleSubject.create();
+    }
+
+    private Single<String> compute() {
+        return result.doOnSubscribe(new Consumer<Disposable>() {
+            @Override
+            public void accept(Disposable disposable) {
+                computations++;
+            }
+        });
+    }
+
+    private SharedResponses createSharedResponses(long cacheTimeMs) {
+        return new SharedResponses(cacheTimeMs, TimeUnit.MILLISECONDS) {
+            @Override
+            long elapsedRealtime() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void willComputeOnceForAllWaitingClients() {
+        SharedResponses sharedResponses = new SharedResponses();
+
+        sharedResponses.send(firstClient, "rates", compute());
+        sharedResponses.send(secondClient, "rates", compute());
+        verify(firstClient, never()).send(anyString());
+
+        result.onSuccess("1.17");
+
+        assertThat(computations).isEqualTo(1);
+        verify(firstClient).send("1.17");
+        verify(secondClient).send("1.17");
+        assertThat(sharedResponses.getInFlightCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void willComputeDifferentKeysSeparately() {
+        SharedResponses sharedResponses = new SharedResponses();
+        SingleSubject<String> other = SingleSubject.create();
+
+        sharedResponses.send(firstClient, "rates", compute());
+        sharedResponses.send(secondClient, "balance", other);
+        other.onSuccess("100");
+
+        verify(secondClient).send("100");
+        verify(firstClient, never()).send(anyString());
+        assertThat(sharedResponses.getInFlightCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void willComputeAgainOnceCompleteIfNotCaching() {
+        SharedResponses sharedResponses = new SharedResponses();
+        sharedResponses.send(firstClient, "rates", Single.just("1.17"));
+
+        sharedResponses.send(secondClient, "rates", compute());
+
+        assertThat(computations).isEqualTo(1);
+    }
+
+    @Test
+    public void willSendCachedResultUntilExpired() {
+        SharedResponses sharedResponses = createSharedResponses(500);
+        sharedResponses.send(firstClient, "rates", Single.just("1.17"));
+
+        sharedResponses.send(secondClient, "rates", compute());
+        verify(secondClient).send("1.17");
+        assertThat(computations).isEqualTo(0);
+
+        now += 500;
+        sharedResponses.send(secondClient, "rates", compute());
+        assertThat(computations).isEqualTo(1);
+    }
+
+    @Test
+    public void canInvalidateCachedResult() {
+        SharedResponses sharedResponses = createSharedResponses(500);
+        sharedResponses.send(firstClient, "rates", Single.just("1.17"));
+
+        sharedResponses.invalidate("rates");
+        sharedResponses.send(secondClient, "rates", compute());
+
+        assertThat(computations).isEqualTo(1);
+    }
+
+    @Test
+    public void willSendErrorToAllWaitingClientsAndNotCache() {
+        SharedResponses sharedResponses = createSharedResponses(500);
+        sharedResponses.send(firstClient, "rates", compute());
+        sharedResponses.send(secondClient, "rates", compute());
+
+        result.onError(new IllegalStateException("Rates unavailable"));
+
+        ArgumentCaptor<MessageException> captor = ArgumentCaptor.forClass(MessageException.class);
+        verify(firstClient).send(captor.capture());
+        assertThat(captor.getValue().getCode()).isEqualTo(SharedResponses.ERROR_SHARED_REQUEST);
+        assertThat(captor.getValue().getMessage()).isEqualTo("Rates unavailable");
+        verify(secondClient).send(any(MessageException.class));
+
+        result = SingleSubject.create();
+        sharedResponses.send(firstClient, "rates", compute());
+        assertThat(computations).isEqualTo(2);
+        verify(firstClient, times(1)).send(any(MessageException.class));
+    }
+}
@@ -10,6 +10,7 @@ import android.os.RemoteException;
 import android.support.annotation.NonNull;
 
 import com.aevi.android.rxmessenger.MessageException;
+import com.aevi.android.rxmessenger.MessagePriority;
 import com.aevi.android.rxmessenger.service.websocket.WebSocketConnection;
 import com.aevi.android.rxmessenger.service.websocket.WebSocketServer;
 
@@ -17,6 +18,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.robolectric.RobolectricTestRunner;
 
@@ -27,6 +29,7 @@ import io.reactivex.Observable;
 import io.reactivex.Scheduler;
 import io.reactivex.observers.TestObserver;
 import io.reactivex.schedulers.Schedulers;
+import io.reactivex.schedulers.TestScheduler;
 import io.reactivex.subjects.CompletableSubject;
 import io.reactivex.subjects.PublishSubject;
 
@@ -154,6 +157,25 @@ public class WebSocketChannelServerTest {
         verify(webSocketConnection).send(msg);
     }
 
+    @Test
+    public void willSendHighPriorityMessagesBeforeQueuedMessages() throws IOException {
+        TestScheduler scheduler = new TestScheduler();
+        testScheduler = scheduler;
+        setupWebserverConnection();
+        sendFirstMessage();
+        scheduler.triggerActions();
+
+        webSocketChannelServer.send("bulk 1");
+        webSocketChannelServer.send("bulk 2");
+        webSocketChannelServer.send("heartbeat", MessagePriority.HIGH);
+        scheduler.triggerActions();
+
+        InOrder inOrder = inOrder(webSocketConnection);
+        inOrder.verify(webSocketConnection).send("heartbeat");
+        inOrder.verify(webSocketConnection).send("bulk 1");
+        inOrder.verify(webSocketConnection).send("bulk 2");
+    }
+
     @Test
     public void checkWillHandleStartServerError() throws RemoteException {
         setupWebserverConnectionError();
@@ -232,6 +254,7 @@ public class WebSocketChannelServerTest {
 
     private void setupWebserverConnection() {
         when(webSocketConnection.receiveMessages()).thenReturn(messageStream);
+        when(webSocketConnection.receiveBinaryMessages()).thenReturn(Observable.<byte[]>never());
         when(webSocketConnection.onDisconnected()).thenReturn(Completable.never());
         when(webSocketConnection.isConnected()).thenReturn(true);
         when(webSocketServer.startServer()).thenReturn(Observable.just(webSocketConnection));
@@ -0,0 +1,73 @@
+package com.aevi.android.rxmessenger.service.websocket;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import fi.iki.elonen.NanoWSD;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public class DeflateFrameInputStreamTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] MASK = {0x11, 0x22, 0x33, 0x44};
+
+    @Test
+    public void willClearRsv1AndRecordCompressedMessages() throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        writeFrame(frames, 0x80 | 0x40 | 0x1, new byte[]{(byte) 0xf2, 0x48, (byte) 0xcd, (byte) 0xc9, (byte) 0xc9, 0x07, 0x00});
+        writeFrame(frames, 0x80 | 0x2, new byte[300]);
+        writeFrame(frames, 0x80 | 0x40 | 0x2, new byte[70000]);
+        DeflateFrameInputStream in = new DeflateFrameInputStream(new ByteArrayInputStream(frames.toByteArray()));
+
+        NanoWSD.WebSocketFrame first = NanoWSD.WebSocketFrame.read(in);
+        assertThat(in.nextMessageCompressed()).isTrue();
+        NanoWSD.WebSocketFrame second = NanoWSD.WebSocketFrame.read(in);
+        assertThat(in.nextMessageCompressed()).isFalse();
+        NanoWSD.WebSocketFrame third = NanoWSD.WebSocketFrame.read(in);
+        assertThat(in.nextMessageCompressed()).isTrue();
+
+        assertThat(first.getOpCode()).isEqualTo(NanoWSD.WebSocketFrame.OpCode.Text);
+        assertThat(second.getBinaryPayload()).hasSize(300);
+        assertThat(third.getBinaryPayload()).hasSize(70000);
+        assertThat(in.read()).isEqualTo(-1);
+    }
+
+    @Test
+    public void willNotRecordContinuationFrames() throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        writeFrame(frames, 0x40 | 0x1, "first".getBytes(UTF8));
+        writeFrame(frames, 0x80, "second".getBytes(UTF8));
+        DeflateFrameInputStream in = new DeflateFrameInputStream(new ByteArrayInputStream(frames.toByteArray()));
+
+        NanoWSD.WebSocketFrame.read(in);
+        NanoWSD.WebSocketFrame.read(in);
+
+        assertThat(in.nextMessageCompressed()).isTrue();
+        assertThat(in.nextMessageCompressed()).isFalse();
+    }
+
+    private static void writeFrame(ByteArrayOutputStream out, int head, byte[] payload) {
+        out.write(head);
+        if (payload.length <= 125) {
+            out.write(0x80 | payload.length);
+        } else if (payload.length <= 0xFFFF) {
+            out.write(0x80 | 126);
+            out.write(payload.length >>> 8);
+            out.write(payload.length);
+        } else {
+            out.write(0x80 | 127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) ((long) payload.length >>> shift));
+            }
+        }
+        out.write(MASK, 0, MASK.length);
+        for (int i = 0; i < payload.length; i++) {
+            out.write(payload[i] ^ MASK[i % 4]);
+        }
+    }
+}
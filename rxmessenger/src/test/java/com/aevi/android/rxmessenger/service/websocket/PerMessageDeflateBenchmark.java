@@ -0,0 +1,82 @@
+package com.aevi.android.rxmessenger.service.websocket;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the bytes sent and the time spent deflating and inflating per message for a stream of large report messages, without compression and
+ * with permessage-deflate with and without context takeover.
+ * <p>
+ * Ignored by default, run manually with e.g. {@code ./gradlew :rxmessenger:test --tests *PerMessageDeflateBenchmark}
+ * </p>
+ */
+@Ignore("Benchmark, run manually")
+public class PerMessageDeflateBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MESSAGES = 500;
+    private static final int LINES_PER_MESSAGE = 400;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void compareContextTakeover() throws IOException {
+        List<byte[]> messages = new ArrayList<>();
+        long totalBytes = 0;
+        for (int i = 0; i < MESSAGES; i++) {
+            byte[] message = createReportChunk(i).getBytes(UTF8);
+            messages.add(message);
+            totalBytes += message.length;
+        }
+
+        measure("permessage-deflate", messages);
+        measure("permessage-deflate; server_no_context_takeover", messages);
+
+        System.out.println(String.format(Locale.US, "uncompressed: %d bytes/message", totalBytes / MESSAGES));
+        System.out.println(measure("permessage-deflate; server_no_context_takeover", messages));
+        System.out.println(measure("permessage-deflate", messages));
+    }
+
+    private String measure(String offer, List<byte[]> messages) throws IOException {
+        PerMessageDeflate server = PerMessageDeflate.negotiate(offer, true, PerMessageDeflate.DEFAULT_MIN_DEFLATE_SIZE);
+        PerMessageDeflate client = PerMessageDeflate.negotiate("permessage-deflate", true, PerMessageDeflate.DEFAULT_MIN_DEFLATE_SIZE);
+        long sentBytes = 0;
+        long deflateNanos = 0;
+        long inflateNanos = 0;
+        for (byte[] message : messages) {
+            long start = System.nanoTime();
+            byte[] deflated = server.deflate(message);
+            long deflatedAt = System.nanoTime();
+            client.inflate(deflated);
+            inflateNanos += System.nanoTime() - deflatedAt;
+            deflateNanos += deflatedAt - start;
+            sentBytes += deflated.length;
+        }
+        server.close();
+        client.close();
+        return String.format(Locale.US, "%s: %d bytes/message, deflate %d us/message, inflate %d us/message", server.getResponseHeader(),
+                             sentBytes / messages.size(), deflateNanos / messages.size() / 1000, inflateNanos / messages.size() / 1000);
+    }
+
+    private String createReportChunk(int chunk) {
+        StringBuilder report = new StringBuilder("{\"reportId\":\"eod-2019-04-18\",\"chunk\":").append(chunk).append(",\"lines\":[");
+        for (int i = 0; i < LINES_PER_MESSAGE; i++) {
+            if (i > 0) {
+                report.append(',');
+            }
+            report.append("{\"transactionId\":\"").append(Long.toHexString(random.nextLong()))
+                    .append("\",\"type\":\"").append(random.nextBoolean() ? "SALE" : "REFUND")
+                    .append("\",\"amount\":").append(random.nextInt(100000))
+                    .append(",\"currency\":\"GBP\",\"cardScheme\":\"").append(random.nextBoolean() ? "VISA" : "MASTERCARD")
+                    .append("\",\"terminalId\":\"T0001\",\"merchantId\":\"M123456\"}");
+        }
+        return report.append("]}").toString();
+    }
+}
@@ -0,0 +1,120 @@
+package com.aevi.android.rxmessenger.service.websocket;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public class PerMessageDeflateTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void willNotNegotiateIfNotOffered() {
+        assertThat(PerMessageDeflate.negotiate(null, true, 0)).isNull();
+        assertThat(PerMessageDeflate.negotiate("x-webkit-deflate-frame", true, 0)).isNull();
+    }
+
+    @Test
+    public void canNegotiatePlainOffer() {
+        PerMessageDeflate perMessageDeflate = PerMessageDeflate.negotiate("permessage-deflate", true, 0);
+
+        assertThat(perMessageDeflate.getResponseHeader()).isEqualTo("permessage-deflate");
+    }
+
+    @Test
+    public void willEchoContextTakeoverParams() {
+        PerMessageDeflate perMessageDeflate =
+                PerMessageDeflate.negotiate("permessage-deflate; client_no_context_takeover; server_no_context_takeover", true, 0);
+
+        assertThat(perMessageDeflate.isServerNoContextTakeover()).isTrue();
+        assertThat(perMessageDeflate.isClientNoContextTakeover()).isTrue();
+        assertThat(perMessageDeflate.getResponseHeader()).isEqualTo("permessage-deflate; server_no_context_takeover; client_no_context_takeover");
+    }
+
+    @Test
+    public void willAddServerNoContextTakeoverIfDisabled() {
+        PerMessageDeflate perMessageDeflate = PerMessageDeflate.negotiate("permessage-deflate; client_max_window_bits", false, 0);
+
+        assertThat(perMessageDeflate.getResponseHeader()).isEqualTo("permessage-deflate; server_no_context_takeover");
+    }
+
+    @Test
+    public void willDeclineSmallServerWindowAndPickNextOffer() {
+        PerMessageDeflate perMessageDeflate =
+                PerMessageDeflate.negotiate("permessage-deflate; server_max_window_bits=10, permessage-deflate; server_max_window_bits=15", true, 0);
+
+        assertThat(perMessageDeflate).isNotNull();
+        assertThat(PerMessageDeflate.negotiate("permessage-deflate; server_max_window_bits=10", true, 0)).isNull();
+    }
+
+    @Test
+    public void willDeclineUnknownOrDuplicateParams() {
+        assertThat(PerMessageDeflate.negotiate("permessage-deflate; unknown", true, 0)).isNull();
+        assertThat(PerMessageDeflate.negotiate("permessage-deflate; client_no_context_takeover; client_no_context_takeover", true, 0)).isNull();
+    }
+
+    @Test
+    public void canInflateRfcExample() throws IOException {
+        PerMessageDeflate perMessageDeflate = PerMessageDeflate.negotiate("permessage-deflate", true, 0);
+
+        byte[] message = perMessageDeflate.inflate(new byte[]{(byte) 0xf2, 0x48, (byte) 0xcd, (byte) 0xc9, (byte) 0xc9, 0x07, 0x00});
+
+        assertThat(new String(message, UTF8)).isEqualTo("Hello");
+    }
+
+    @Test
+    public void willRemoveEmptyBlockFromDeflatedMessage() throws IOException {
+        PerMessageDeflate perMessageDeflate = PerMessageDeflate.negotiate("permessage-deflate", true, 0);
+
+        byte[] deflated = perMessageDeflate.deflate("Hello".getBytes(UTF8));
+
+        assertThat(deflated[deflated.length - 1]).isNotEqualTo((byte) 0xff);
+        assertThat(perMessageDeflate.inflate(deflated)).isEqualTo("Hello".getBytes(UTF8));
+    }
+
+    @Test
+    public void canUseContextTakeoverAcrossMessages() throws IOException {
+        PerMessageDeflate server = PerMessageDeflate.negotiate("permessage-deflate", true, 0);
+        PerMessageDeflate client = PerMessageDeflate.negotiate("permessage-deflate", true, 0);
+        String message = "{\"reportLine\":\"a line of the end of day report\",\"amount\":1234}";
+
+        byte[] first = server.deflate(message.getBytes(UTF8));
+        byte[] second = server.deflate(message.getBytes(UTF8));
+
+        assertThat(second.length).isLessThan(first.length);
+        assertThat(new String(client.inflate(first), UTF8)).isEqualTo(message);
+        assertThat(new String(client.inflate(second), UTF8)).isEqualTo(message);
+    }
+
+    @Test
+    public void willResetWithoutContextTakeover() throws IOException {
+        PerMessageDeflate perMessageDeflate = PerMessageDeflate.negotiate("permessage-deflate; server_no_context_takeover", true, 0);
+        byte[] message = "{\"reportLine\":\"a line of the end of day report\",\"amount\":1234}".getBytes(UTF8);
+
+        assertThat(perMessageDeflate.deflate(message)).isEqualTo(perMessageDeflate.deflate(message));
+    }
+
+    @Test
+    public void willOnlyDeflateFromMinSize() {
+        PerMessageDeflate perMessageDeflate = PerMessageDeflate.negotiate("permessage-deflate", true, 10);
+
+        assertThat(perMessageDeflate.shouldDeflate(new byte[9])).isFalse();
+        assertThat(perMessageDeflate.shouldDeflate(new byte[10])).isTrue();
+    }
+
+    @Test(expected = IOException.class)
+    public void willRejectInvalidData() throws IOException {
+        PerMessageDeflate.negotiate("permessage-deflate", true, 0).inflate(new byte[]{(byte) 0xff, (byte) 0xff, 0x01, 0x02});
+    }
+
+    @Test(expected = IOException.class)
+    public void willRejectUseAfterClose() throws IOException {
+        PerMessageDeflate perMessageDeflate = PerMessageDeflate.negotiate("permessage-deflate", true, 0);
+        perMessageDeflate.close();
+
+        perMessageDeflate.deflate(new byte[10]);
+    }
+}